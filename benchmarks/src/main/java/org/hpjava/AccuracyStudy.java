@@ -0,0 +1,70 @@
+package org.hpjava;
+
+import com.aparapi.Range ;
+
+/**
+ * Force error against time, with and without quadrupole moments, for a
+ * range of opening angles.
+ *
+ * Usage: AccuracyStudy N [theta ...] [-reps R]
+ *
+ * Prints one CSV line per opening angle and expansion order: n, theta,
+ * expansion, interactions per star, mean force time (ms), relative RMS
+ * force error (against direct summation over a sample of 500 stars).
+ */
+public class AccuracyStudy
+{
+    public static void main(String [] args)
+    {
+        int n = Integer.parseInt(args [0]) ;
+        int reps = 3 ;
+        java.util.List<Float> angles = new java.util.ArrayList<Float>() ;
+        for(int i = 1 ; i < args.length ; i++) {
+            if(args [i].equals("-reps"))
+                reps = Integer.parseInt(args [++i]) ;
+            else
+                angles.add(Float.parseFloat(args [i])) ;
+        }
+        if(angles.isEmpty()) {
+            angles.add(0.5F) ;
+            angles.add(0.7F) ;
+            angles.add(1.0F) ;
+            angles.add(1.4F) ;
+        }
+
+        StudyStars stars = new StudyStars(n, 1234) ;
+        new StarOrder(StarOrder.MORTON, n).reorder(n, stars.x, stars.y, stars.z) ;
+
+        float [] ax = new float [n], ay = new float [n], az = new float [n] ;
+        FlatTree tree = new FlatTree(2 * n) ;
+        MortonTreeBuilder builder = new MortonTreeBuilder(tree) ;
+
+        System.out.println("n,theta,expansion,interactions_per_star,force_ms,rms_error") ;
+        for(float theta : angles) {
+            for(int q = 0 ; q < 2 ; q++) {
+                builder.openingAngle = theta ;
+                builder.quadrupole = (q == 1) ;
+                builder.build(stars.x, stars.y, stars.z, n) ;
+
+                KernelTree kernel = new KernelTree(stars.x, stars.y, stars.z,
+                                                   ax, ay, az, tree) ;
+                kernel.execute(Range.create(n)) ;  // warm up
+
+                long start = System.nanoTime() ;
+                for(int r = 0 ; r < reps ; r++) {
+                    kernel.execute(Range.create(n)) ;
+                }
+                double millis = (System.nanoTime() - start) / (1e6 * reps) ;
+                double interactions = (double) kernel.countInteractions(n) / n ;
+                kernel.dispose() ;
+
+                double error = stars.error(ax, ay, az, Math.max(1, n / 500)) ;
+
+                System.out.println(n + "," + theta + "," +
+                                   (q == 1 ? "quadrupole" : "monopole") + "," +
+                                   String.format("%.1f,%.1f,%.2e", interactions,
+                                                 millis, error)) ;
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.hpjava;
+
+import java.util.Random ;
+
+/**
+ * Cost and accuracy of block time steps against global steps, for a
+ * Plummer sphere in equilibrium.
+ *
+ * Usage: BlockStepStudy N [-time T]
+ *
+ * Integrates for time T (default 40 * DT) with a reference run of
+ * global steps DT / 16, then global steps DT, DT / 2 and DT / 4, then
+ * block steps with the finest level DT / 4 and coarsest 4 * DT at a
+ * range of step lengths.  Prints one CSV line per run: maximum level,
+ * finest step, step length, sub-steps, force evaluations per star, total
+ * time (ms), RMS position difference from the reference run.
+ */
+public class BlockStepStudy
+{
+    static final float DT = AparapiBarnesHut.DT ;
+
+    public static void main(String [] args)
+    {
+        int n = Integer.parseInt(args [0]) ;
+        double endTime = 40 * DT ;
+        for(int i = 1 ; i < args.length ; i++) {
+            if(args [i].equals("-time"))
+                endTime = Double.parseDouble(args [++i]) ;
+        }
+
+        StudyStars stars = new StudyStars(n, 1234) ;
+        float [] vx = new float [n], vy = new float [n], vz = new float [n] ;
+        plummer(stars, vx, vy, vz, AparapiBarnesHut.RADIUS / 4) ;
+
+        System.out.println("max_level,finest_step,step_length,substeps," +
+                           "forces_per_star,ms,rms_difference") ;
+
+        float [][] reference = run(stars, vx, vy, vz, 0, DT / 16, 0, endTime, null) ;
+        for(float dt : new float [] {DT, DT / 2, DT / 4}) {
+            run(stars, vx, vy, vz, 0, dt, 0, endTime, reference) ;
+        }
+        for(float stepLength : new float [] {1e-5F, 3e-5F, 1e-4F}) {
+            run(stars, vx, vy, vz, 4, DT / 4, stepLength, endTime, reference) ;
+        }
+    }
+
+    static float [][] run(StudyStars stars, float [] vx0, float [] vy0, float [] vz0,
+                          int maxLevel, float dt, float stepLength,
+                          double endTime, float [][] reference)
+    {
+        int n = stars.x.length ;
+        float [] x = stars.x.clone(), y = stars.y.clone(), z = stars.z.clone() ;
+        float [] vx = vx0.clone(), vy = vy0.clone(), vz = vz0.clone() ;
+        float [] ax = new float [n], ay = new float [n], az = new float [n] ;
+
+        FlatTree tree = new FlatTree(2 * n) ;
+        MortonTreeBuilder builder = new MortonTreeBuilder(tree) ;
+        KernelTree kernel = new KernelTree(x, y, z, ax, ay, az, tree) ;
+        BlockSteps steps = new BlockSteps(n, maxLevel, dt, stepLength) ;
+
+        long start = System.nanoTime() ;
+        long forces = 0 ;
+        int substeps = 0 ;
+        while(true) {
+            steps.drift(x, y, z, vx, vy, vz) ;
+            builder.build(x, y, z, n) ;
+            kernel.setTree(tree) ;
+            kernel.computeForcesActive(steps.active, steps.numActive) ;
+            forces += steps.numActive ;
+            if(steps.time >= endTime - 0.5 * dt && steps.tick == 0) break ;
+            steps.kick(vx, vy, vz, ax, ay, az) ;
+            substeps++ ;
+        }
+        double millis = (System.nanoTime() - start) / 1e6 ;
+        kernel.dispose() ;
+
+        double difference = 0 ;
+        if(reference != null) {
+            for(int i = 0 ; i < n ; i++) {
+                difference += sq(wrap(x [i] - reference [0] [i])) +
+                              sq(wrap(y [i] - reference [1] [i])) +
+                              sq(wrap(z [i] - reference [2] [i])) ;
+            }
+            difference = Math.sqrt(difference / n) ;
+        }
+        System.out.println(maxLevel + "," + dt + "," + stepLength + "," +
+                           substeps + "," +
+                           String.format("%.1f,%.0f,%.3e", (double) forces / n,
+                                         millis, difference)) ;
+        return new float [][] {x, y, z} ;
+    }
+
+    static void plummer(StudyStars stars, float [] vx, float [] vy, float [] vz,
+                        double a)
+    {
+        // Plummer sphere of unit mass stars, with isotropic Gaussian
+        // velocities of the local dispersion of the equilibrium model.
+
+        int n = stars.x.length ;
+        double centre = 0.5 * AparapiBarnesHut.BOX_WIDTH ;
+        double rMax = 0.45 * AparapiBarnesHut.BOX_WIDTH ;
+        Random rand = new Random(4321) ;
+        for(int i = 0 ; i < n ; i++) {
+            double r ;
+            do {
+                double u = rand.nextDouble() ;
+                r = a / Math.sqrt(Math.pow(u, -2.0 / 3) - 1) ;
+            } while(!(r < rMax)) ;
+
+            double cosTheta = 2 * rand.nextDouble() - 1 ;
+            double sinTheta = Math.sqrt(1 - cosTheta * cosTheta) ;
+            double phi = 2 * Math.PI * rand.nextDouble() ;
+            stars.x [i] = (float) (centre + r * sinTheta * Math.cos(phi)) ;
+            stars.y [i] = (float) (centre + r * sinTheta * Math.sin(phi)) ;
+            stars.z [i] = (float) (centre + r * cosTheta) ;
+
+            double sigma = Math.sqrt(n / (6 * Math.sqrt(r * r + a * a))) ;
+            vx [i] = (float) (sigma * rand.nextGaussian()) ;
+            vy [i] = (float) (sigma * rand.nextGaussian()) ;
+            vz [i] = (float) (sigma * rand.nextGaussian()) ;
+        }
+    }
+
+    static double wrap(double d)
+    {
+        double box = AparapiBarnesHut.BOX_WIDTH ;
+        if(d > box / 2) d -= box ;
+        if(d < -box / 2) d += box ;
+        return d ;
+    }
+
+    static double sq(double d)
+    {
+        return d * d ;
+    }
+}
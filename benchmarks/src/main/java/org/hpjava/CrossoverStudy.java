@@ -0,0 +1,92 @@
+package org.hpjava;
+
+import com.aparapi.Range ;
+
+/**
+ * Force time of Barnes-Hut (KernelTree, quadrupole moments) against the
+ * fast multipole method, at about the same accuracy, for a range of N.
+ *
+ * Usage: CrossoverStudy [N ...] [-theta T] [-order P] [-fmmTheta T]
+ *                       [-leafSize L] [-reps R]
+ *
+ * Prints one CSV line per N and method: n, method, interactions per
+ * star (multipole to local and star to star, for FMM), mean force time
+ * (ms), relative RMS force error (against direct summation over a
+ * sample of 300 stars).  Both run as Java code on the Parallel pool.
+ */
+public class CrossoverStudy
+{
+    public static void main(String [] args)
+    {
+        float theta = 0.7F ;
+        int order = 3 ;
+        float fmmTheta = 0.7F ;
+        int leafSize = 32 ;
+        int reps = 3 ;
+        java.util.List<Integer> sizes = new java.util.ArrayList<Integer>() ;
+        for(int i = 0 ; i < args.length ; i++) {
+            if(args [i].equals("-theta"))
+                theta = Float.parseFloat(args [++i]) ;
+            else if(args [i].equals("-order"))
+                order = Integer.parseInt(args [++i]) ;
+            else if(args [i].equals("-fmmTheta"))
+                fmmTheta = Float.parseFloat(args [++i]) ;
+            else if(args [i].equals("-leafSize"))
+                leafSize = Integer.parseInt(args [++i]) ;
+            else if(args [i].equals("-reps"))
+                reps = Integer.parseInt(args [++i]) ;
+            else
+                sizes.add(Integer.parseInt(args [i])) ;
+        }
+        if(sizes.isEmpty()) {
+            sizes.add(10000) ;
+            sizes.add(100000) ;
+            sizes.add(1000000) ;
+        }
+
+        System.out.println("n,method,interactions_per_star,force_ms,rms_error") ;
+        for(int n : sizes) {
+            StudyStars stars = new StudyStars(n, 1234) ;
+            new StarOrder(StarOrder.MORTON, n).reorder(n, stars.x, stars.y, stars.z) ;
+            float [] ax = new float [n], ay = new float [n], az = new float [n] ;
+            int stride = Math.max(1, n / 300) ;
+
+            FlatTree tree = new FlatTree(2 * n) ;
+            MortonTreeBuilder builder = new MortonTreeBuilder(tree) ;
+            builder.openingAngle = theta ;
+            builder.quadrupole = true ;
+            builder.build(stars.x, stars.y, stars.z, n) ;
+            KernelTree kernel = new KernelTree(stars.x, stars.y, stars.z,
+                                               ax, ay, az, tree) ;
+            kernel.backend = KernelTree.FORK_JOIN ;
+            kernel.computeForces(Range.create(n)) ;  // warm up
+            long start = System.nanoTime() ;
+            for(int r = 0 ; r < reps ; r++) {
+                kernel.computeForces(Range.create(n)) ;
+            }
+            double millis = (System.nanoTime() - start) / (1e6 * reps) ;
+            double interactions = (double) kernel.countInteractions(n) / n ;
+            System.out.println(n + ",barnes-hut," +
+                               String.format("%.1f,%.1f,%.2e", interactions, millis,
+                                             stars.error(ax, ay, az, stride))) ;
+            kernel.dispose() ;
+
+            builder.leafSize = leafSize ;
+            builder.quadrupole = false ;
+            builder.build(stars.x, stars.y, stars.z, n) ;
+            FastMultipole fmm = new FastMultipole(stars.x, stars.y, stars.z,
+                                                  ax, ay, az, order, fmmTheta) ;
+            fmm.computeForces(tree, n) ;
+            start = System.nanoTime() ;
+            for(int r = 0 ; r < reps ; r++) {
+                fmm.computeForces(tree, n) ;
+            }
+            millis = (System.nanoTime() - start) / (1e6 * reps) ;
+            interactions = (double) (fmm.cellInteractions.sum() +
+                                            fmm.starInteractions.sum()) / n ;
+            System.out.println(n + ",fmm," +
+                               String.format("%.1f,%.1f,%.2e", interactions, millis,
+                                             stars.error(ax, ay, az, stride))) ;
+        }
+    }
+}
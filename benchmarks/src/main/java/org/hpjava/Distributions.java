@@ -0,0 +1,91 @@
+package org.hpjava;
+
+import java.util.Random ;
+
+
+/*
+
+Initial star distributions for the benchmarks, all centred in the
+simulation box.
+
+  uniform   - uniform sphere of radius AparapiBarnesHut.RADIUS, as the
+              initial state of the simulation.
+  plummer   - Plummer sphere with scale radius RADIUS / 4.
+  clustered - CLUSTERS small Plummer spheres scattered through a sphere
+              of radius RADIUS.
+
+*/
+
+class Distributions {
+
+    final static float RADIUS = AparapiBarnesHut.RADIUS ;
+    final static float BOX_WIDTH = AparapiBarnesHut.BOX_WIDTH ;
+
+    final static int CLUSTERS = 16 ;
+
+    static void generate(String name, int n, long seed,
+                         float [] x, float [] y, float [] z) {
+
+        Random rand = new Random(seed) ;
+        double centre = 0.5 * BOX_WIDTH ;
+
+        switch(name) {
+            case "uniform" :
+                for(int i = 0 ; i < n ; i++) {
+                    double rx, ry, rz ;
+                    do {
+                        rx = (2 * rand.nextDouble() - 1) * RADIUS ;
+                        ry = (2 * rand.nextDouble() - 1) * RADIUS ;
+                        rz = (2 * rand.nextDouble() - 1) * RADIUS ;
+                    } while(rx * rx + ry * ry + rz * rz > RADIUS * RADIUS) ;
+                    x [i] = (float) (centre + rx) ;
+                    y [i] = (float) (centre + ry) ;
+                    z [i] = (float) (centre + rz) ;
+                }
+                break ;
+            case "plummer" :
+                plummer(rand, 0, n, centre, centre, centre, RADIUS / 4, x, y, z) ;
+                break ;
+            case "clustered" :
+                for(int c = 0 ; c < CLUSTERS ; c++) {
+                    double cx, cy, cz ;
+                    do {
+                        cx = (2 * rand.nextDouble() - 1) * RADIUS ;
+                        cy = (2 * rand.nextDouble() - 1) * RADIUS ;
+                        cz = (2 * rand.nextDouble() - 1) * RADIUS ;
+                    } while(cx * cx + cy * cy + cz * cz > RADIUS * RADIUS) ;
+                    plummer(rand, c * n / CLUSTERS, (c + 1) * n / CLUSTERS,
+                            centre + cx, centre + cy, centre + cz,
+                            RADIUS / 20, x, y, z) ;
+                }
+                break ;
+            default :
+                throw new IllegalArgumentException("unknown distribution " + name) ;
+        }
+    }
+
+    static void plummer(Random rand, int lo, int hi,
+                        double cx, double cy, double cz, double a,
+                        float [] x, float [] y, float [] z) {
+
+        // Radius from inverse of cumulative mass M(r) = r^3 / (r^2 + a^2)^1.5,
+        // truncated to stay well inside the box.
+
+        double rMax = 0.45 * BOX_WIDTH ;
+        for(int i = lo ; i < hi ; i++) {
+            double r ;
+            do {
+                double u = rand.nextDouble() ;
+                r = a / Math.sqrt(Math.pow(u, -2.0 / 3) - 1) ;
+            } while(!(r < rMax)) ;
+
+            double cosTheta = 2 * rand.nextDouble() - 1 ;
+            double sinTheta = Math.sqrt(1 - cosTheta * cosTheta) ;
+            double phi = 2 * Math.PI * rand.nextDouble() ;
+
+            x [i] = AparapiBarnesHut.mod((float) (cx + r * sinTheta * Math.cos(phi)), BOX_WIDTH) ;
+            y [i] = AparapiBarnesHut.mod((float) (cy + r * sinTheta * Math.sin(phi)), BOX_WIDTH) ;
+            z [i] = AparapiBarnesHut.mod((float) (cz + r * cosTheta), BOX_WIDTH) ;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package org.hpjava;
+
+import java.util.Collections ;
+import java.util.LinkedHashSet ;
+import java.util.concurrent.TimeUnit ;
+
+import org.openjdk.jmh.annotations.Benchmark ;
+import org.openjdk.jmh.annotations.BenchmarkMode ;
+import org.openjdk.jmh.annotations.Fork ;
+import org.openjdk.jmh.annotations.Level ;
+import org.openjdk.jmh.annotations.Measurement ;
+import org.openjdk.jmh.annotations.Mode ;
+import org.openjdk.jmh.annotations.OutputTimeUnit ;
+import org.openjdk.jmh.annotations.Param ;
+import org.openjdk.jmh.annotations.Scope ;
+import org.openjdk.jmh.annotations.Setup ;
+import org.openjdk.jmh.annotations.State ;
+import org.openjdk.jmh.annotations.TearDown ;
+import org.openjdk.jmh.annotations.Warmup ;
+
+import com.aparapi.Range ;
+import com.aparapi.device.Device ;
+import com.aparapi.device.JavaDevice ;
+import com.aparapi.internal.kernel.KernelManager ;
+
+
+/*
+
+Force pass of KernelTree.  Each benchmark varies one aspect of the pass,
+with its own state and parameters (besides those of Stars), so no trial
+repeats another with a setting the pass ignores.  Everything else is as
+in a default run: Morton tree, opening angle OPENING_ANGLE, monopoles,
+wide node records walked by skip links, one work item per star on
+Aparapi's Java Thread Pool, so results are comparable between machines
+with and without OpenCL.
+
+  walk        node records read by the per-star walk - encoding wide,
+              packed or quantized, by skip links - or wide records by
+              parent links (parent).
+  grouped     groups of at most groupSize stars walking the tree once
+              each, or the per-star walk for groupSize 0.
+  quadrupole  opening angle, with and without quadrupole moments.
+  backend     Aparapi against forkjoin, the same walk run directly as
+              Java code on the Parallel pool (the number of threads is
+              set by -Dbh.threads, passed with -jvmArgs).  Interactions
+              per second of all backends, including vector, are in
+              InteractionBenchmark.
+
+*/
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ForceBenchmarks {
+
+    static final float OPENING_ANGLE = 1.0F ;
+
+    @State(Scope.Benchmark)
+    public static class Walk {
+
+        @Param({"wide", "packed", "quantized", "parent"})
+        public String walk ;
+
+        KernelTree kernel ;
+        FlatTree tree ;
+
+        @Setup(Level.Trial)
+        public void setUp(Stars stars) {
+            boolean parentWalk = walk.equals("parent") ;
+            tree = tree(stars, OPENING_ANGLE, false, parentWalk ? "wide" : walk) ;
+            kernel = kernel(stars, tree, "aparapi") ;
+            kernel.parentWalk = parentWalk ;
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            kernel.dispose() ;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Groups {
+
+        @Param({"0", "16", "32", "64"})
+        public int groupSize ;
+
+        KernelTree kernel ;
+        FlatTree tree ;
+        StarGroups groups ;
+
+        @Setup(Level.Trial)
+        public void setUp(Stars stars) {
+            tree = tree(stars, OPENING_ANGLE, false, "wide") ;
+            kernel = kernel(stars, tree, "aparapi") ;
+            groups = new StarGroups(groupSize) ;
+            if(groupSize > 0) groups.build(stars.x, stars.y, stars.z, stars.n) ;
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            kernel.dispose() ;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Quadrupoles {
+
+        @Param({"0.5", "0.7", "1.0"})
+        public float openingAngle ;
+
+        @Param({"false", "true"})
+        public boolean quadrupole ;
+
+        KernelTree kernel ;
+        FlatTree tree ;
+
+        @Setup(Level.Trial)
+        public void setUp(Stars stars) {
+            tree = tree(stars, openingAngle, quadrupole, "wide") ;
+            kernel = kernel(stars, tree, "aparapi") ;
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            kernel.dispose() ;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Backends {
+
+        @Param({"aparapi", "forkjoin"})
+        public String backend ;
+
+        KernelTree kernel ;
+        FlatTree tree ;
+
+        @Setup(Level.Trial)
+        public void setUp(Stars stars) {
+            tree = tree(stars, OPENING_ANGLE, false, "wide") ;
+            kernel = kernel(stars, tree, backend) ;
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            kernel.dispose() ;
+        }
+    }
+
+    static FlatTree tree(Stars stars, float openingAngle, boolean quadrupole,
+                         String encoding) {
+        FlatTree tree = new FlatTree(2 * stars.n) ;
+        MortonTreeBuilder builder = new MortonTreeBuilder(tree) ;
+        builder.openingAngle = openingAngle ;
+        builder.quadrupole = quadrupole ;
+        builder.encoding = FlatTree.encoding(encoding) ;
+        builder.build(stars.x, stars.y, stars.z, stars.n) ;
+        return tree ;
+    }
+
+    static KernelTree kernel(Stars stars, FlatTree tree, String backend) {
+
+        // Kernel for tree, run by Aparapi on its Java Thread Pool even
+        // if there is an OpenCL device.
+
+        KernelTree kernel = new KernelTree(stars.x, stars.y, stars.z,
+                                           stars.ax, stars.ay, stars.az, tree) ;
+        kernel.setExplicit(true) ;
+        kernel.backend = KernelTree.backend(backend) ;
+        KernelManager.instance().setPreferredDevices(kernel,
+                new LinkedHashSet<Device>(Collections.singleton(JavaDevice.THREAD_POOL))) ;
+        return kernel ;
+    }
+
+    static float pass(Stars stars, KernelTree kernel, FlatTree tree) {
+        kernel.setTree(tree) ;
+        kernel.computeForces(Range.create(stars.n)) ;
+        return stars.ax [0] ;
+    }
+
+    @Benchmark
+    public float walk(Stars stars, Walk walk) {
+        return pass(stars, walk.kernel, walk.tree) ;
+    }
+
+    @Benchmark
+    public float grouped(Stars stars, Groups groups) {
+        if(groups.groupSize == 0) {
+            return pass(stars, groups.kernel, groups.tree) ;
+        }
+        groups.kernel.setTree(groups.tree) ;
+        groups.kernel.computeForcesGrouped(groups.groups) ;
+        return stars.ax [0] ;
+    }
+
+    @Benchmark
+    public float quadrupole(Stars stars, Quadrupoles quadrupoles) {
+        return pass(stars, quadrupoles.kernel, quadrupoles.tree) ;
+    }
+
+    @Benchmark
+    public float backend(Stars stars, Backends backends) {
+        return pass(stars, backends.kernel, backends.tree) ;
+    }
+}
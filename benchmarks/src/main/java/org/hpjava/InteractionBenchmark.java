@@ -0,0 +1,114 @@
+package org.hpjava;
+
+import java.util.Collections ;
+import java.util.LinkedHashSet ;
+import java.util.concurrent.TimeUnit ;
+
+import org.openjdk.jmh.annotations.AuxCounters ;
+import org.openjdk.jmh.annotations.Benchmark ;
+import org.openjdk.jmh.annotations.BenchmarkMode ;
+import org.openjdk.jmh.annotations.Fork ;
+import org.openjdk.jmh.annotations.Level ;
+import org.openjdk.jmh.annotations.Measurement ;
+import org.openjdk.jmh.annotations.Mode ;
+import org.openjdk.jmh.annotations.OutputTimeUnit ;
+import org.openjdk.jmh.annotations.Param ;
+import org.openjdk.jmh.annotations.Scope ;
+import org.openjdk.jmh.annotations.Setup ;
+import org.openjdk.jmh.annotations.State ;
+import org.openjdk.jmh.annotations.TearDown ;
+import org.openjdk.jmh.annotations.Warmup ;
+
+import com.aparapi.Range ;
+import com.aparapi.device.Device ;
+import com.aparapi.device.JavaDevice ;
+import com.aparapi.internal.kernel.KernelManager ;
+
+
+/*
+
+Force law evaluations per second of the per-star force pass - the
+scalar walk on Aparapi's Java Thread Pool (aparapi) or on the Parallel
+pool (forkjoin), against interaction lists summed in SIMD lanes
+(vector).  The interactions counter is the throughput to compare;
+backends do the same interactions, except that vector always walks
+the wide node records.
+
+The Vector API is an incubating module, so for SIMD lanes (rather than
+the scalar summation of the same lists) the forked JVM needs it added:
+
+  java -jar target/benchmarks.jar InteractionBenchmark \
+       -jvmArgsAppend "--add-modules jdk.incubator.vector"
+
+*/
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class InteractionBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Lists {
+
+        @Param({"0.5", "1.0"})
+        public float openingAngle ;
+
+        @Param({"false", "true"})
+        public boolean quadrupole ;
+
+        @Param({"aparapi", "forkjoin", "vector"})
+        public String backend ;
+
+        KernelTree kernel ;
+        FlatTree tree ;
+        Range range ;
+
+        @Setup(Level.Trial)
+        public void setUp(Stars stars) {
+            tree = new FlatTree(2 * stars.n) ;
+            MortonTreeBuilder builder = new MortonTreeBuilder(tree) ;
+            builder.openingAngle = openingAngle ;
+            builder.quadrupole = quadrupole ;
+            builder.build(stars.x, stars.y, stars.z, stars.n) ;
+
+            kernel = new KernelTree(stars.x, stars.y, stars.z,
+                                    stars.ax, stars.ay, stars.az, tree) ;
+            kernel.setExplicit(true) ;
+            kernel.backend = KernelTree.backend(backend) ;
+            KernelManager.instance().setPreferredDevices(kernel,
+                    new LinkedHashSet<Device>(Collections.singleton(JavaDevice.THREAD_POOL))) ;
+            range = Range.create(stars.n) ;
+            if(kernel.backend == KernelTree.VECTOR) {
+                System.out.println("interaction lists summed " +
+                                   InteractionList.create(true).lanes()) ;
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            kernel.dispose() ;
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counts {
+
+        public long interactions ;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            interactions = 0 ;
+        }
+    }
+
+    @Benchmark
+    public float forcePass(Stars stars, Lists lists, Counts counts) {
+        lists.kernel.setTree(lists.tree) ;
+        lists.kernel.computeForces(lists.range) ;
+        counts.interactions += lists.kernel.countInteractions(stars.n) ;
+        return stars.ax [0] ;
+    }
+}
@@ -0,0 +1,67 @@
+package org.hpjava;
+
+import java.util.concurrent.TimeUnit ;
+
+import org.openjdk.jmh.annotations.Benchmark ;
+import org.openjdk.jmh.annotations.BenchmarkMode ;
+import org.openjdk.jmh.annotations.Fork ;
+import org.openjdk.jmh.annotations.Level ;
+import org.openjdk.jmh.annotations.Measurement ;
+import org.openjdk.jmh.annotations.Mode ;
+import org.openjdk.jmh.annotations.OutputTimeUnit ;
+import org.openjdk.jmh.annotations.Param ;
+import org.openjdk.jmh.annotations.Scope ;
+import org.openjdk.jmh.annotations.Setup ;
+import org.openjdk.jmh.annotations.State ;
+import org.openjdk.jmh.annotations.Warmup ;
+
+
+/*
+
+Forces by the fast multipole method (all three passes), on a Morton
+tree with leaves of up to leafSize stars.  Compare with ForceBenchmarks
+(quadrupole) at the same N and distribution, at openingAngle and order
+chosen for equal accuracy (scripts/crossover-study.sh measures both).
+
+*/
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class MultipoleBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Multipole {
+
+        @Param({"3", "4", "6"})
+        public int order ;
+
+        @Param({"0.5", "0.7"})
+        public float theta ;
+
+        @Param({"16", "32"})
+        public int leafSize ;
+
+        FastMultipole fmm ;
+        FlatTree tree ;
+
+        @Setup(Level.Trial)
+        public void setUp(Stars stars) {
+            tree = new FlatTree(2 * stars.n) ;
+            MortonTreeBuilder builder = new MortonTreeBuilder(tree) ;
+            builder.leafSize = leafSize ;
+            builder.build(stars.x, stars.y, stars.z, stars.n) ;
+
+            fmm = new FastMultipole(stars.x, stars.y, stars.z,
+                                    stars.ax, stars.ay, stars.az, order, theta) ;
+        }
+    }
+
+    @Benchmark
+    public float fastMultipole(Stars stars, Multipole multipole) {
+        multipole.fmm.computeForces(multipole.tree, stars.n) ;
+        return stars.ax [0] ;
+    }
+}
@@ -0,0 +1,57 @@
+package org.hpjava;
+
+import com.aparapi.Range ;
+
+/**
+ * Force-phase time for stars in their initial random order, and after
+ * reordering along Morton and Hilbert curves.
+ *
+ * Usage: OrderingBenchmark N [none|morton|hilbert ...] [-reps R]
+ *
+ * Prints one CSV line per ordering: n, order, mean force time (ms).
+ * Run under "perf stat" (see scripts/ordering-study.sh) to get cache
+ * miss counts for each ordering.
+ */
+public class OrderingBenchmark
+{
+    public static void main(String [] args)
+    {
+        int n = Integer.parseInt(args [0]) ;
+        int reps = 3 ;
+        java.util.List<String> orders = new java.util.ArrayList<String>() ;
+        for(int i = 1 ; i < args.length ; i++) {
+            if(args [i].equals("-reps"))
+                reps = Integer.parseInt(args [++i]) ;
+            else
+                orders.add(args [i]) ;
+        }
+        if(orders.isEmpty()) {
+            orders.add("none") ;
+            orders.add("morton") ;
+            orders.add("hilbert") ;
+        }
+
+        float [] ax = new float [n], ay = new float [n], az = new float [n] ;
+        FlatTree tree = new FlatTree(2 * n) ;
+        MortonTreeBuilder builder = new MortonTreeBuilder(tree) ;
+
+        for(String name : orders) {
+            StudyStars stars = new StudyStars(n, 1234) ;
+            new StarOrder(StarOrder.curve(name), n).reorder(n, stars.x, stars.y, stars.z) ;
+
+            builder.build(stars.x, stars.y, stars.z, n) ;
+            KernelTree kernel = new KernelTree(stars.x, stars.y, stars.z,
+                                               ax, ay, az, tree) ;
+            kernel.execute(Range.create(n)) ;  // warm up
+
+            long start = System.nanoTime() ;
+            for(int r = 0 ; r < reps ; r++) {
+                kernel.execute(Range.create(n)) ;
+            }
+            double millis = (System.nanoTime() - start) / (1e6 * reps) ;
+            kernel.dispose() ;
+
+            System.out.println(n + "," + name + "," + String.format("%.1f", millis)) ;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.hpjava;
+
+import java.util.Random ;
+
+import org.openjdk.jmh.annotations.Level ;
+import org.openjdk.jmh.annotations.Param ;
+import org.openjdk.jmh.annotations.Scope ;
+import org.openjdk.jmh.annotations.Setup ;
+import org.openjdk.jmh.annotations.State ;
+
+
+/*
+
+Benchmark state: per-star arrays for N stars in a given distribution.
+
+*/
+
+@State(Scope.Benchmark)
+public class Stars {
+
+    @Param({"10000", "100000", "250000"})
+    public int n ;
+
+    @Param({"uniform", "plummer", "clustered"})
+    public String distribution ;
+
+    float [] x, y, z ;
+    float [] vx, vy, vz ;
+    float [] ax, ay, az ;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        x = new float [n] ;
+        y = new float [n] ;
+        z = new float [n] ;
+        vx = new float [n] ;
+        vy = new float [n] ;
+        vz = new float [n] ;
+        ax = new float [n] ;
+        ay = new float [n] ;
+        az = new float [n] ;
+
+        Distributions.generate(distribution, n, 1234, x, y, z) ;
+
+        Random rand = new Random(5678) ;
+        for(int i = 0 ; i < n ; i++) {
+            vx [i] = (float) rand.nextGaussian() ;
+            vy [i] = (float) rand.nextGaussian() ;
+            vz [i] = (float) rand.nextGaussian() ;
+            ax [i] = (float) rand.nextGaussian() ;
+            ay [i] = (float) rand.nextGaussian() ;
+            az [i] = (float) rand.nextGaussian() ;
+        }
+    }
+}
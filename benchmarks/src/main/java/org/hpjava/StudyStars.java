@@ -0,0 +1,64 @@
+package org.hpjava;
+
+
+/*
+
+Stars for the study programs (AccuracyStudy, BlockStepStudy,
+CrossoverStudy, OrderingBenchmark): a uniform ball as the initial state
+of the simulation (Distributions "uniform"), with accelerations summed
+directly over all stars to measure the error of approximate forces.
+
+*/
+
+class StudyStars {
+
+    final float [] x, y, z ;
+
+    StudyStars(int n, long seed) {
+        x = new float [n] ;
+        y = new float [n] ;
+        z = new float [n] ;
+        Distributions.generate("uniform", n, seed, x, y, z) ;
+    }
+
+    double [] direct(int i) {
+
+        // Acceleration of star i summed directly over all other stars,
+        // as in KernelTree.forceLaw.
+
+        float box = KernelTree.BOX_WIDTH ;
+        double [] a = new double [3] ;
+        for(int j = 0 ; j < x.length ; j++) {
+            if(j == i) continue ;
+            double dx = x [i] - x [j], dy = y [i] - y [j], dz = z [i] - z [j] ;
+            if(dx > box / 2) dx -= box ;
+            if(dx < -box / 2) dx += box ;
+            if(dy > box / 2) dy -= box ;
+            if(dy < -box / 2) dy += box ;
+            if(dz > box / 2) dz -= box ;
+            if(dz < -box / 2) dz += box ;
+            double rSquared = dx * dx + dy * dy + dz * dz ;
+            double rCubedInv = 1 / (rSquared * Math.sqrt(rSquared)) ;
+            a [0] -= rCubedInv * dx ;
+            a [1] -= rCubedInv * dy ;
+            a [2] -= rCubedInv * dz ;
+        }
+        return a ;
+    }
+
+    double error(float [] ax, float [] ay, float [] az, int stride) {
+
+        // Relative RMS error of accelerations ax, ay, az over every
+        // stride'th star, compared with direct summation.
+
+        double error = 0, norm = 0 ;
+        for(int i = 0 ; i < x.length ; i += stride) {
+            double [] a = direct(i) ;
+            norm += a [0] * a [0] + a [1] * a [1] + a [2] * a [2] ;
+            error += (ax [i] - a [0]) * (ax [i] - a [0]) +
+                     (ay [i] - a [1]) * (ay [i] - a [1]) +
+                     (az [i] - a [2]) * (az [i] - a [2]) ;
+        }
+        return Math.sqrt(error / norm) ;
+    }
+}
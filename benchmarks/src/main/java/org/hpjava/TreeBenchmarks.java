@@ -0,0 +1,115 @@
+package org.hpjava;
+
+import java.util.concurrent.TimeUnit ;
+
+import org.openjdk.jmh.annotations.Benchmark ;
+import org.openjdk.jmh.annotations.BenchmarkMode ;
+import org.openjdk.jmh.annotations.Fork ;
+import org.openjdk.jmh.annotations.Level ;
+import org.openjdk.jmh.annotations.Measurement ;
+import org.openjdk.jmh.annotations.Mode ;
+import org.openjdk.jmh.annotations.OutputTimeUnit ;
+import org.openjdk.jmh.annotations.Param ;
+import org.openjdk.jmh.annotations.Scope ;
+import org.openjdk.jmh.annotations.Setup ;
+import org.openjdk.jmh.annotations.State ;
+import org.openjdk.jmh.annotations.Warmup ;
+
+
+/*
+
+Tree construction phases: the original Node tree (build, precompute,
+flatten) and the builders writing directly into a FlatTree.  The opening
+angle only applies to the FlatTree builders, which store each node's
+opening threshold (and encode compact records with it); the Node tree
+always uses Node.OPENING_ANGLE.
+
+*/
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TreeBenchmarks {
+
+    static final float HALF_BOX = AparapiBarnesHut.BOX_WIDTH / 2 ;
+
+    @State(Scope.Benchmark)
+    public static class LegacyTree {
+
+        AparapiBarnesHut.Node root ;
+        FlatTree flat ;
+        KernelTree kernel ;
+
+        @Setup(Level.Trial)
+        public void setUp(Stars stars) {
+            root = buildNodes(stars) ;
+            flat = new FlatTree(2 * stars.n) ;
+            kernel = new KernelTree(stars.x, stars.y, stars.z,
+                                    stars.ax, stars.ay, stars.az, flat) ;
+            kernel.allocateNodes(flat, AparapiBarnesHut.Node.numNodes) ;
+            root.preComputeAndAllocateFlat(kernel) ;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Builders {
+
+        @Param({"0.5", "1.0"})
+        public float openingAngle ;
+
+        FlatTreeBuilder serial ;
+        MortonTreeBuilder parallel ;
+
+        @Setup(Level.Trial)
+        public void setUp(Stars stars) {
+            serial = new FlatTreeBuilder(new FlatTree(2 * stars.n)) ;
+            serial.openingAngle = openingAngle ;
+            parallel = new MortonTreeBuilder(new FlatTree(2 * stars.n)) ;
+            parallel.openingAngle = openingAngle ;
+        }
+    }
+
+    static AparapiBarnesHut.Node buildNodes(Stars stars) {
+        AparapiBarnesHut.Node.numNodes = 0 ;
+        AparapiBarnesHut.Node root =
+                new AparapiBarnesHut.Node(HALF_BOX, HALF_BOX, HALF_BOX,
+                                          AparapiBarnesHut.BOX_WIDTH) ;
+        for(int i = 0 ; i < stars.n ; i++) {
+            root.addParticle(stars.x [i], stars.y [i], stars.z [i], i) ;
+        }
+        return root ;
+    }
+
+    @Benchmark
+    public AparapiBarnesHut.Node legacyAddParticle(Stars stars) {
+        return buildNodes(stars) ;
+    }
+
+    @Benchmark
+    public int legacyPreComputeAndAllocateFlat(LegacyTree legacy) {
+        legacy.kernel.allocateNodes(legacy.flat, AparapiBarnesHut.Node.numNodes) ;
+        legacy.root.preComputeAndAllocateFlat(legacy.kernel) ;
+        return legacy.kernel.nodeTop ;
+    }
+
+    @Benchmark
+    public int legacyFlatten(LegacyTree legacy) {
+        legacy.root.flatten(KernelTree.NULL, KernelTree.NULL, legacy.kernel) ;
+        return legacy.kernel.nodesI [KernelTree.NODEISIZE * KernelTree.TREE_ROOT +
+                                     KernelTree.FIRSTCHILD] ;
+    }
+
+    @Benchmark
+    public int flatTreeBuild(Stars stars, Builders builders) {
+        builders.serial.build(stars.x, stars.y, stars.z, stars.n) ;
+        return builders.serial.tree.numNodes ;
+    }
+
+    @Benchmark
+    public int mortonTreeBuild(Stars stars, Builders builders) {
+        builders.parallel.build(stars.x, stars.y, stars.z, stars.n) ;
+        return builders.parallel.tree.numNodes ;
+    }
+}
@@ -0,0 +1,90 @@
+package org.hpjava;
+
+import java.util.concurrent.TimeUnit ;
+
+import org.openjdk.jmh.annotations.Benchmark ;
+import org.openjdk.jmh.annotations.BenchmarkMode ;
+import org.openjdk.jmh.annotations.Fork ;
+import org.openjdk.jmh.annotations.Level ;
+import org.openjdk.jmh.annotations.Measurement ;
+import org.openjdk.jmh.annotations.Mode ;
+import org.openjdk.jmh.annotations.OutputTimeUnit ;
+import org.openjdk.jmh.annotations.Scope ;
+import org.openjdk.jmh.annotations.Setup ;
+import org.openjdk.jmh.annotations.State ;
+import org.openjdk.jmh.annotations.TearDown ;
+import org.openjdk.jmh.annotations.Warmup ;
+
+
+/*
+
+The two velocity Verlet loops of the main time step, serial and in
+IntegratorKernel (parallel Java, as without an OpenCL device).
+
+*/
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VerletBenchmarks {
+
+    static final double DT_OVER_2 = 0.5 * AparapiBarnesHut.DT ;
+    static final double DT_SQUARED_OVER_2 =
+            0.5 * AparapiBarnesHut.DT * AparapiBarnesHut.DT ;
+
+    @Benchmark
+    public float updatePositions(Stars stars) {
+        AparapiBarnesHut.updatePositions(stars.x, stars.y, stars.z,
+                                         stars.vx, stars.vy, stars.vz,
+                                         stars.ax, stars.ay, stars.az, stars.n,
+                                         DT_OVER_2, DT_SQUARED_OVER_2) ;
+        return stars.x [0] ;
+    }
+
+    @Benchmark
+    public float updateVelocities(Stars stars) {
+        AparapiBarnesHut.updateVelocities(stars.vx, stars.vy, stars.vz,
+                                          stars.ax, stars.ay, stars.az, stars.n,
+                                          DT_OVER_2) ;
+        return stars.vx [0] ;
+    }
+
+    @State(Scope.Benchmark)
+    public static class Integrator {
+
+        IntegratorKernel kernel ;
+
+        @Setup(Level.Trial)
+        public void setUp(Stars stars) {
+            kernel = new IntegratorKernel(stars.x, stars.y, stars.z,
+                                          stars.vx, stars.vy, stars.vz,
+                                          stars.ax, stars.ay, stars.az,
+                                          stars.n, AparapiBarnesHut.DT, false) ;
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            kernel.dispose() ;
+        }
+    }
+
+    @Benchmark
+    public float drift(Stars stars, Integrator integrator) {
+        integrator.kernel.drift() ;
+        return stars.x [0] ;
+    }
+
+    @Benchmark
+    public float kick(Stars stars, Integrator integrator) {
+        integrator.kernel.kick() ;
+        return stars.vx [0] ;
+    }
+
+    @Benchmark
+    public float kickDrift(Stars stars, Integrator integrator) {
+        integrator.kernel.kickDrift() ;
+        return stars.x [0] ;
+    }
+}
@@ -0,0 +1,14 @@
+#!/bin/sh
+#
+# Force error against force time, monopole only and with quadrupole
+# moments, for a range of opening angles.
+#
+#   scripts/accuracy-study.sh N [theta ...]
+
+set -e
+cd "$(dirname "$0")/.."
+
+mvn -q install -DskipTests
+(cd benchmarks && mvn -q package)
+
+java -Xmx8g -cp benchmarks/target/benchmarks.jar org.hpjava.AccuracyStudy "$@" 2> /dev/null
@@ -0,0 +1,14 @@
+#!/bin/sh
+#
+# Cost and accuracy of block time steps against global steps, for a
+# Plummer sphere in equilibrium.
+#
+#   scripts/block-step-study.sh N [-time T]
+
+set -e
+cd "$(dirname "$0")/.."
+
+mvn -q install -DskipTests
+(cd benchmarks && mvn -q package)
+
+java -Xmx8g -cp benchmarks/target/benchmarks.jar org.hpjava.BlockStepStudy "$@" 2> /dev/null
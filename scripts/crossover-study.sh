@@ -0,0 +1,15 @@
+#!/bin/sh
+#
+# Force time of Barnes-Hut against the fast multipole method, at about
+# the same accuracy, for a range of N.
+#
+#   scripts/crossover-study.sh [N ...] [-theta T] [-order P] [-fmmTheta T]
+#                              [-leafSize L] [-reps R]
+
+set -e
+cd "$(dirname "$0")/.."
+
+mvn -q install -DskipTests
+(cd benchmarks && mvn -q package)
+
+java -Xmx8g -cp benchmarks/target/benchmarks.jar org.hpjava.CrossoverStudy "$@" 2> /dev/null
@@ -0,0 +1,33 @@
+#!/bin/sh
+#
+# Force-phase time and cache misses with stars in random order, Morton
+# order and Hilbert order, for a range of N.
+#
+#   scripts/ordering-study.sh [N ...]
+#
+# Cache miss counts need Linux "perf"; without it only times are printed.
+
+set -e
+cd "$(dirname "$0")/.."
+
+mvn -q install -DskipTests
+(cd benchmarks && mvn -q package)
+CP=benchmarks/target/benchmarks.jar
+
+SIZES=${*:-"10000 100000 1000000 10000000"}
+
+echo "n,order,force_ms,cache_references,cache_misses,l1d_load_misses"
+for n in $SIZES ; do
+    for order in none morton hilbert ; do
+        if command -v perf > /dev/null ; then
+            out=$(perf stat -x, -e cache-references,cache-misses,L1-dcache-load-misses \
+                      -o target/perf.txt \
+                      java -Xmx8g -cp "$CP" org.hpjava.OrderingBenchmark $n $order 2> /dev/null | tail -1)
+            counts=$(grep -v '^#' target/perf.txt | grep -v '^$' | cut -d, -f1 | paste -sd, -)
+            echo "$out,$counts"
+        else
+            out=$(java -Xmx8g -cp "$CP" org.hpjava.OrderingBenchmark $n $order 2> /dev/null | tail -1)
+            echo "$out,,,"
+        fi
+    done
+done
@@ -0,0 +1,18 @@
+#!/bin/sh
+#
+# Build and run the JMH benchmarks, writing machine readable results.
+#
+#   scripts/run-benchmarks.sh [results.json] [JMH options ...]
+#
+# e.g. scripts/run-benchmarks.sh tree.json TreeBenchmarks -p n=100000
+
+set -e
+cd "$(dirname "$0")/.."
+
+RESULTS=${1:-benchmark-results.json}
+[ $# -gt 0 ] && shift
+
+mvn -q install -DskipTests
+(cd benchmarks && mvn -q package)
+
+java -jar benchmarks/target/benchmarks.jar -rf json -rff "$RESULTS" "$@"
@@ -1,15 +1,20 @@
 
 package org.hpjava;
 
-import java.awt.Color ;
-import java.awt.Dimension ;
-import java.awt.Graphics ;
-import javax.swing.JFrame ;
-import javax.swing.JPanel ;
+import java.awt.GraphicsEnvironment ;
 
-import java.util.Random ;
+import java.io.FileOutputStream ;
+import java.io.IOException ;
+import java.io.PrintStream ;
+
+import java.nio.file.Path ;
+import java.nio.file.Paths ;
+
+import java.util.Arrays ;
 
 import com.aparapi.Range ;
+import com.aparapi.device.Device ;
+import com.aparapi.device.OpenCLDevice ;
 import com.aparapi.internal.kernel.KernelManager ;
 
 public class AparapiBarnesHut {
@@ -17,7 +22,7 @@ public class AparapiBarnesHut {
     // Size of simulation
 
     //final static int N = 10000 ;  // Number of "stars"
-    final static int N = 250000 ;  // Number of "stars"
+    final static int N = Integer.getInteger("bh.n", 250000) ;  // Number of "stars"
     final static float BOX_WIDTH = 100.0F ;
 
     // Initial state
@@ -30,12 +35,45 @@ public class AparapiBarnesHut {
            // controls total angular momentum (tend to increase this
            // as N increases, to keep "galaxy" stable).
 
+    final static int INITIAL =
+            InitialConditions.model(System.getProperty("bh.initial", "sphere")) ;
+           // Model of initial state: sphere, plummer, hernquist or
+           // collision (see InitialConditions).
+    final static long SEED = Long.getLong("bh.seed", 1234) ;
+           // Seed of the initial state.
+    final static float SCALE_RADIUS =
+            Float.parseFloat(System.getProperty("bh.scaleRadius", "0")) ;
+           // Scale radius of Plummer and Hernquist models (0 for
+           // default).
+    final static int GALAXIES = Integer.getInteger("bh.galaxies", 2) ;
+           // Number of Plummer spheres in collision model.
+    final static String LOAD = System.getProperty("bh.load") ;
+           // Load initial positions and velocities from this file (see
+           // StarFile), instead of generating them.
+    final static int LOAD_FORMAT =
+            StarFile.format(System.getProperty("bh.loadFormat", "rows")) ;
+           // Layout of that file: rows or columns.
+
 
     // Simulation
 
     final static float DT = 0.0005F ;  // Time step
            // (tend to decrease this as N increases, to maintain accuracy)
 
+    final static boolean SERIAL_VERLET = Boolean.getBoolean("bh.serialVerlet") ;
+           // Update positions and velocities in serial host loops, rather
+           // than in IntegratorKernel.
+    final static boolean FUSED_KICK =
+            Boolean.parseBoolean(System.getProperty("bh.fusedKick", "true")) ;
+           // Defer final velocity update of each step, and do it in the
+           // same pass as the position update of the next step.
+    final static int MAX_LEVEL = Integer.getInteger("bh.maxLevel", 0) ;
+           // If nonzero, stars take individual time steps of DT times
+           // powers of two up to 2^MAX_LEVEL (see BlockSteps).
+    final static float STEP_LENGTH =
+            Float.parseFloat(System.getProperty("bh.stepLength", "3e-5")) ;
+           // Max of |a| dt^2 / 2 for individual time steps.
+
 
     // Display
 
@@ -43,6 +81,18 @@ public class AparapiBarnesHut {
     final static int DELAY = 0 ;
     final static int OUTPUT_FREQ = 1 ;
 
+    final static boolean HEADLESS = Boolean.getBoolean("bh.headless") ||
+                                    GraphicsEnvironment.isHeadless() ;
+           // no window at all
+    final static int FRAME_RATE = Integer.getInteger("bh.fps", 25) ;
+           // max frames per second displayed
+    final static int VIEW = Renderer.view(System.getProperty("bh.view", "xy")) ;
+           // Axes of the box shown across and down the window.
+    final static float VIEW_ANGLE =
+            Float.parseFloat(System.getProperty("bh.viewAngle", "0")) ;
+           // Degrees the box is turned about the vertical axis of the
+           // window, before projection.
+
 
     // Star positions
     static float [] x = new float [N] ;
@@ -60,94 +110,326 @@ public class AparapiBarnesHut {
     static float [] az = new float [N] ;
 
     // Barnes Hut tree
+
+    final static boolean LEGACY_TREE = Boolean.getBoolean("bh.legacyTree") ;
+           // Build tree of Node objects and flatten it afterwards, rather
+           // than building directly into pooled flat arrays.
+
     static Node tree ;
+
+    final static boolean PARALLEL_BUILD = Boolean.getBoolean("bh.parallelBuild") ;
+           // Build tree in parallel from sorted Morton keys.
+    final static boolean REFIT = Boolean.getBoolean("bh.refit") ;
+           // Keep flat tree between steps, refitting it while few stars
+           // leave their leaves (see RefitTreeBuilder).
+
+    final static int GROUP_SIZE = Integer.getInteger("bh.groupSize", 0) ;
+           // If nonzero, groups of up to this many nearby stars share a
+           // tree walk and interaction list (not with legacy tree).
+    final static boolean WALK_STATS = Boolean.getBoolean("bh.walkStats") ;
+           // Report node visits and interactions per star.
+    final static boolean PARENT_WALK = Boolean.getBoolean("bh.parentWalk") ;
+           // Walk flat trees by child / sibling / parent links, instead
+           // of by skip links.
+    final static int FORCE_BACKEND =
+            KernelTree.backend(System.getProperty("bh.forceBackend", "aparapi")) ;
+           // Run force kernel through Aparapi, or directly as Java code
+           // on the Parallel pool - per-star walk, or walk to interaction
+           // lists summed in SIMD lanes (vector).
+    final static int FORCE_GRAIN = Integer.getInteger("bh.forceGrain", 32) ;
+           // Work items per task on the Parallel pool.
+    final static boolean FMM = Boolean.getBoolean("bh.fmm") ;
+           // Compute forces by the fast multipole method on the flat
+           // tree, instead of KernelTree (see FastMultipole).
+    final static int FMM_ORDER = Integer.getInteger("bh.fmmOrder", 4) ;
+           // Order of multipole and local expansions.
+    final static float FMM_THETA =
+            Float.parseFloat(System.getProperty("bh.fmmTheta", "0.5")) ;
+           // Opening angle of the dual tree walk.
+    final static String SPLIT = System.getProperty("bh.split") ;
+           // Split per-star force pass between these backends at once,
+           // e.g. "aparapi,forkjoin", by measured throughput (see
+           // WorkSplitter).
+    final static boolean BALANCE = Boolean.getBoolean("bh.balance") ;
+           // Split per-star force pass into chunks of equal cost, from
+           // work counted in the last pass (see LoadBalance).
+    final static int BALANCE_CHUNKS =
+            Integer.getInteger("bh.balanceChunks", LoadBalance.defaultChunks()) ;
+           // Number of chunks.
+    final static boolean BALANCE_STATS = Boolean.getBoolean("bh.balanceStats") ;
+           // Report imbalance of chunks and threads in each force pass.
+
+    final static int METRICS =
+            StepMetrics.format(System.getProperty("bh.metrics", "csv")) ;
+           // Format of periodic metrics summaries: csv, json or none
+           // (see StepMetrics).
+    final static int METRICS_EVERY = Integer.getInteger("bh.metricsEvery", 20) ;
+           // Steps per summary.
+    final static String METRICS_FILE = System.getProperty("bh.metricsFile") ;
+           // Write summaries to this file, instead of standard output.
+    final static int LOG_EVERY =
+            Integer.getInteger("bh.logEvery", WALK_STATS || BALANCE_STATS ? 1 : 0) ;
+           // Print detailed report of every LOG_EVERY-th step (0 for
+           // none).  Defaults to every step with bh.walkStats or
+           // bh.balanceStats.
+
+    final static String CHECKPOINT = System.getProperty("bh.checkpoint") ;
+           // Write state to this checkpoint file, in the background (see
+           // Checkpoint).
+    final static int CHECKPOINT_EVERY = Integer.getInteger("bh.checkpointEvery", 100) ;
+           // Steps between checkpoints.
+    final static String RESTART = System.getProperty("bh.restart") ;
+           // Resume from this checkpoint file, instead of the initial
+           // random sphere.
+
+    final static String TRAJECTORY = System.getProperty("bh.trajectory") ;
+           // Stream positions to this trajectory file, in the background
+           // (see TrajectoryWriter).
+    final static int TRAJECTORY_EVERY = Integer.getInteger("bh.trajectoryEvery", 10) ;
+           // Steps between trajectory frames.
+    final static boolean TRAJECTORY_VELOCITIES =
+            Boolean.getBoolean("bh.trajectoryVelocities") ;
+           // Include velocities in trajectory frames.
+    final static int TRAJECTORY_ENCODING =
+            TrajectoryWriter.encoding(System.getProperty("bh.trajectoryEncoding",
+                                                         "delta")) ;
+           // Encoding of positions: float, quantized or delta.
+    final static int TRAJECTORY_BUFFERS = Integer.getInteger("bh.trajectoryBuffers", 4) ;
+           // Frames that may wait for the writer thread.
+    final static int TRAJECTORY_POLICY =
+            TrajectoryWriter.policy(System.getProperty("bh.trajectoryPolicy",
+                                                       "drop")) ;
+           // When all buffers are waiting: drop the frame, or block
+           // until one is written.
+
+    static StarGroups groups = new StarGroups(GROUP_SIZE) ;
+
+    static LoadBalance balance = new LoadBalance(BALANCE_CHUNKS) ;
+
+    // Optional reordering of stars along space filling curve
+
+    final static int ORDER =
+            StarOrder.curve(System.getProperty("bh.order", "none")) ;
+    final static int ORDER_FREQ = Integer.getInteger("bh.orderFreq", 20) ;
+
+    static StarOrder order = new StarOrder(ORDER, ORDER == StarOrder.NONE ? 0 : N) ;
+
+    static FlatTree flatTree = new FlatTree(2 * N) ;
+    static TreeBuilder treeBuilder = newTreeBuilder() ;
+
+    // Force kernel, kept for the whole run so Aparapi can keep its
+    // compiled code and device buffers.
+
+    static KernelTree kernel = newKernel() ;
+    static Range range = Range.create(N) ;
     
-    static Display display = new Display() ;
-    
-    public static void main(String args []) throws Exception {
+    static IntegratorKernel integrator ;
 
-        // Define initial state of stars
+    static WorkSplitter splitter ;
 
-        Random rand = new Random(1234) ;
+    static FastMultipole fmm ;
 
-        // Randomly choose plane for net angular velocity
+    static BlockSteps blockSteps ;
 
-        double nx = 2 * rand.nextDouble() - 1 ;
-        double ny = 2 * rand.nextDouble() - 1 ;
-        double nz = 2 * rand.nextDouble() - 1 ;
-        double norm = 1.0 / Math.sqrt(nx * nx + ny * ny + nz * nz) ;
-        nx *= norm ;
-        ny *= norm ;
-        nz *= norm ;
-       
+    static Renderer renderer ;
 
-        // ... or just rotate in x, y plane
-        //double nx = 0, ny = 0, nz = 1.0 ;
+    static StepMetrics metrics ;
+    static boolean logStep ;  // print detailed report of current step
 
-        // ... or just rotate in x, z plane
-        //double nx = 0, ny = 1.0, nz = 0 ;
+    static Checkpoint.Writer checkpointWriter ;
 
-        // Initial state is ball of randomly placed stars, rotating
-        // according to angular velocity chosen above.
+    static TrajectoryWriter trajectory ;
+    
+    public static void main(String args []) throws Exception {
 
-        for(int i = 0 ; i < N ; i++) {
+        metrics = new StepMetrics(METRICS, METRICS_EVERY,
+                                  METRICS_FILE != null ?
+                                  new PrintStream(new FileOutputStream(METRICS_FILE)) :
+                                  System.out) ;
 
-            // Place star randomly in sphere of specified radius
-            double rx, ry, rz, r ;
-            do {
-                rx = (2 * rand.nextDouble() - 1) * RADIUS ;
-                ry = (2 * rand.nextDouble() - 1) * RADIUS ;
-                rz = (2 * rand.nextDouble() - 1) * RADIUS ;
-                r = Math.sqrt(rx * rx + ry * ry + rz * rz) ;
-            } while(r > RADIUS) ;
+        if(!HEADLESS) {
+            renderer = new Renderer(N, WINDOW_SIZE, BOX_WIDTH, FRAME_RATE,
+                                    VIEW, VIEW_ANGLE) ;
+            renderer.show("MD") ;
+        }
 
-            x [i] = (float) (0.5 * BOX_WIDTH + rx) ;
-            y [i] = (float) (0.5 * BOX_WIDTH + ry) ;
-            z [i] = (float) (0.5 * BOX_WIDTH + rz) ;
+        if(MAX_LEVEL > 0) {
+            blockSteps = new BlockSteps(N, MAX_LEVEL, DT, STEP_LENGTH) ;
+        }
 
-            vx [i] = (float) (ANGULAR_VELOCITY * (ny * rz - nz * ry)) ; 
-            vy [i] = (float) (ANGULAR_VELOCITY * (nz * rx - nx * rz)) ; 
-            vz [i] = (float) (ANGULAR_VELOCITY * (nx * ry - ny * rx)) ; 
+        Checkpoint restart = null ;
+        if(RESTART != null)
+            restart = restart(Paths.get(RESTART)) ;
+        else
+            initialState() ;
+
+        if(MAX_LEVEL == 0 && !SERIAL_VERLET) {
+            boolean onDevice =
+                    KernelManager.instance().bestDevice() instanceof OpenCLDevice ;
+            integrator = new IntegratorKernel(x, y, z, vx, vy, vz, ax, ay, az,
+                                              N, DT, onDevice) ;
+        }
+        if(FMM && !LEGACY_TREE && MAX_LEVEL == 0) {
+            fmm = new FastMultipole(x, y, z, ax, ay, az, FMM_ORDER, FMM_THETA) ;
+        }
+        if(SPLIT != null && !LEGACY_TREE) {
+            boolean onDevice =
+                    KernelManager.instance().bestDevice() instanceof OpenCLDevice ;
+            splitter = new WorkSplitter(x, y, z, ax, ay, az, flatTree,
+                                        WorkSplitter.backends(SPLIT), onDevice,
+                                        FORCE_GRAIN) ;
+        }
+        if(FORCE_BACKEND == KernelTree.VECTOR) {
+            System.out.println("vector backend: interaction lists summed " +
+                               InteractionList.create(true).lanes()) ;
+        }
+        if(CHECKPOINT != null) {
+            checkpointWriter = new Checkpoint.Writer(Paths.get(CHECKPOINT)) ;
+        }
+        if(TRAJECTORY != null) {
+            trajectory = new TrajectoryWriter(Paths.get(TRAJECTORY), N,
+                                              TRAJECTORY_ENCODING,
+                                              TRAJECTORY_VELOCITIES, BOX_WIDTH,
+                                              TRAJECTORY_BUFFERS,
+                                              TRAJECTORY_POLICY) ;
+
+            // Frames still queued are written when the run is stopped.
+
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    trajectory.close() ;
+                }
+                catch(IOException e) {
+                    System.err.println(e) ;
+                }
+            })) ;
+        }
+
+        // A checkpoint taken with the final half kick of its last step
+        // pending finishes it in the integrator, or else here.
+
+        boolean kickPending = false ;
+        if(restart != null && restart.kickPending) {
+            if(integrator != null)
+                kickPending = true ;
+            else
+                updateVelocities(vx, vy, vz, ax, ay, az, N, 0.5 * DT) ;
         }
          
-        int iter = 0 ;
+        int iter = restart != null ? (int) restart.iteration : 0 ;
         while(true) {
             double dtOver2 = 0.5 * DT;
             double dtSquaredOver2 = 0.5 * DT * DT;  
 
-            if(iter % OUTPUT_FREQ == 0) {
-                System.out.println("iter = " + iter + ", time = " + iter * DT) ;
-                display.repaint() ;
+            metrics.beginStep(iter) ;
+            logStep = LOG_EVERY > 0 && iter % LOG_EVERY == 0 ;
+
+            if(logStep && iter % OUTPUT_FREQ == 0) {
+                System.out.println("iter = " + iter + ", time = " +
+                                   (blockSteps != null ? blockSteps.time :
+                                                         iter * DT)) ;
+            }
+
+            if(renderer != null) {
+                renderer.offer(x, y, z) ;
+            }
+
+            if(iter % ORDER_FREQ == 0 && ORDER != StarOrder.NONE) {
+                long startOrderTime = StepMetrics.start() ;
+                if(integrator != null) integrator.syncToHost() ;
+                order.reorder(N, x, y, z, vx, vy, vz, ax, ay, az) ;
+                if(blockSteps != null) order.reorder(N, blockSteps.level) ;
+                if(trajectory != null) trajectory.reordered() ;
+                treeBuilder.invalidate() ;
+                balance.invalidate() ;
+                if(integrator != null) integrator.hostChanged() ;
+                metrics.end(StepMetrics.REORDER, startOrderTime) ;
             }
 
             // Verlet integration:
             // http://en.wikipedia.org/wiki/Verlet_integration#Velocity_Verlet
 
+            if(blockSteps != null) {
+                // Individual time steps: forces only on stars at the end
+                // of their steps.
+
+                long startDriftTime = StepMetrics.start() ;
+
+                blockSteps.drift(x, y, z, vx, vy, vz) ;
+
+                metrics.end(StepMetrics.INTEGRATE, startDriftTime) ;
+
+                computeAccelerations();
+
+                long startKickTime = StepMetrics.start() ;
+
+                blockSteps.kick(vx, vy, vz, ax, ay, az) ;
+
+                metrics.end(StepMetrics.INTEGRATE, startKickTime) ;
+                if(logStep) {
+                    System.out.println("time to integrate = " +
+                                       metrics.millis(StepMetrics.INTEGRATE) +
+                                       " milliseconds, active stars = " +
+                                       blockSteps.numActive + ", stars per level = " +
+                                       Arrays.toString(blockSteps.population));
+                }
+            }
+            else if(SERIAL_VERLET) {
+                long startVerletTime = StepMetrics.start() ;
+
+                updatePositions(x, y, z, vx, vy, vz, ax, ay, az, N,
+                                dtOver2, dtSquaredOver2) ;
+
+                metrics.end(StepMetrics.INTEGRATE, startVerletTime) ;
+
+                computeAccelerations();
+
+                long startKickTime = StepMetrics.start() ;
+
+                updateVelocities(vx, vy, vz, ax, ay, az, N, dtOver2) ;
+
+                metrics.end(StepMetrics.INTEGRATE, startKickTime) ;
+            }
+            else {
+                // If final velocity update of last step is still pending,
+                // do it in same pass as this position update.
+
+                long startVerletTime = StepMetrics.start() ;
+
+                if(kickPending)
+                    integrator.kickDrift() ;
+                else
+                    integrator.drift() ;
 
-            for (int i = 0; i < N; i++) {
-                // update position
-                // mod implements periodic box
-                x[i] = mod((float) (x [i] + (vx[i] * DT) +
-                                   (ax[i] * dtSquaredOver2)), BOX_WIDTH);
-                y[i] = mod((float) (y [i] + (vy[i] * DT) +
-                                   (ay[i] * dtSquaredOver2)), BOX_WIDTH);
-                z[i] = mod((float) (z [i] + (vz[i] * DT) +
-                                   (az[i] * dtSquaredOver2)), BOX_WIDTH);
-                // update velocity halfway
-                vx[i] += (ax[i] * dtOver2);
-                vy[i] += (ay[i] * dtOver2);
-                vz[i] += (az[i] * dtOver2);
-            }    
-
-            computeAccelerations();
-
-            for (int i = 0; i < N; i++) {
-                // finish updating velocity with new acceleration
-                vx[i] += (ax[i] * dtOver2);
-                vy[i] += (ay[i] * dtOver2);
-                vz[i] += (az[i] * dtOver2);
+                metrics.end(StepMetrics.INTEGRATE, startVerletTime) ;
+
+                computeAccelerations();
+
+                long startKickTime = StepMetrics.start() ;
+
+                if(FUSED_KICK)
+                    kickPending = true ;
+                else
+                    integrator.kick() ;
+
+                metrics.end(StepMetrics.INTEGRATE, startKickTime) ;
+                if(logStep) {
+                    System.out.println("time to integrate = " +
+                                       metrics.millis(StepMetrics.INTEGRATE) +
+                                       " milliseconds");
+                }
             }
 
+            if(CHECKPOINT != null && (iter + 1) % CHECKPOINT_EVERY == 0) {
+                checkpoint(iter + 1, kickPending) ;
+            }
+
+            if(TRAJECTORY != null && (iter + 1) % TRAJECTORY_EVERY == 0) {
+                trajectoryFrame(iter + 1) ;
+            }
+
+            metrics.endStep() ;
+
             iter++ ;
             //break ; // debug
         }       
@@ -155,105 +437,402 @@ public class AparapiBarnesHut {
 
     }
 
+    static void initialState() throws IOException {
+
+        // Define initial state of stars
+
+        long start = System.nanoTime() ;
+        if(LOAD != null) {
+            StarFile.read(Paths.get(LOAD), LOAD_FORMAT, N, x, y, z, vx, vy, vz) ;
+        }
+        else {
+            new InitialConditions(INITIAL, SEED, BOX_WIDTH, RADIUS, SCALE_RADIUS,
+                                  ANGULAR_VELOCITY, GALAXIES)
+                    .generate(N, x, y, z, vx, vy, vz) ;
+        }
+        System.out.println((LOAD != null ? "loaded " + LOAD : "generated") +
+                           " initial state of " + N + " stars in " +
+                           (System.nanoTime() - start) / 1000000 +
+                           " milliseconds") ;
+    }
+
+    static Checkpoint restart(Path file) throws Exception {
+
+        // Read state straight into the star arrays from checkpoint file.
+
+        long start = System.nanoTime() ;
+        Checkpoint checkpoint =
+                Checkpoint.read(file, new float [][] {x, y, z, vx, vy, vz, ax, ay, az},
+                                blockSteps != null ? blockSteps.level : null,
+                                originalIds()) ;
+        if(checkpoint.dt != DT || checkpoint.boxWidth != BOX_WIDTH ||
+           checkpoint.maxLevel != MAX_LEVEL) {
+            throw new IllegalArgumentException("checkpoint " + file +
+                    " was written with different DT, BOX_WIDTH or bh.maxLevel") ;
+        }
+        if(blockSteps != null) {
+            blockSteps.tick = checkpoint.tick ;
+            blockSteps.time = checkpoint.time ;
+        }
+        if(checkpoint.originalId != null) {
+
+            // Stars were saved in reordered positions - carry on from
+            // their permutation (kept, even if this run never reorders).
+
+            order.originalId = checkpoint.originalId ;
+        }
+        System.out.println("restarted from " + file + " at iter = " +
+                           checkpoint.iteration + ", time = " + checkpoint.time +
+                           " in " + (System.nanoTime() - start) / 1000000 +
+                           " milliseconds") ;
+        return checkpoint ;
+    }
+
+    static void checkpoint(int iter, boolean kickPending) throws Exception {
+
+        // Snapshot state as at start of step iter, and write it in the
+        // background.
+
+        long start = StepMetrics.start() ;
+        if(integrator != null) integrator.syncToHost() ;
+
+        int [] ids = originalIds() ;
+        Checkpoint checkpoint = checkpointWriter.snapshot(N, blockSteps != null,
+                                                          ids != null) ;
+        float [][] state = {x, y, z, vx, vy, vz, ax, ay, az} ;
+        for(int k = 0 ; k < state.length ; k++) {
+            System.arraycopy(state [k], 0, checkpoint.state [k], 0, N) ;
+        }
+        checkpoint.kickPending = kickPending ;
+        checkpoint.iteration = iter ;
+        checkpoint.dt = DT ;
+        checkpoint.boxWidth = BOX_WIDTH ;
+        checkpoint.openingAngle = LEGACY_TREE ? Node.OPENING_ANGLE :
+                                                treeBuilder.openingAngle ;
+        checkpoint.maxLevel = MAX_LEVEL ;
+        checkpoint.stepLength = STEP_LENGTH ;
+        if(blockSteps != null) {
+            System.arraycopy(blockSteps.level, 0, checkpoint.level, 0, N) ;
+            checkpoint.tick = blockSteps.tick ;
+            checkpoint.time = blockSteps.time ;
+        }
+        else {
+            checkpoint.time = iter * (double) DT ;
+        }
+        if(ids != null) {
+            System.arraycopy(ids, 0, checkpoint.originalId, 0, N) ;
+        }
+        checkpointWriter.write(checkpoint) ;
+
+        metrics.end(StepMetrics.CHECKPOINT, start) ;
+        if(logStep) {
+            System.out.println("time to snapshot checkpoint = " +
+                               metrics.millis(StepMetrics.CHECKPOINT) +
+                               " milliseconds, checkpoints written = " +
+                               checkpointWriter.written + ", last in " +
+                               checkpointWriter.lastWriteNanos / 1000000 +
+                               " milliseconds") ;
+        }
+    }
+
+    static int [] originalIds() {
+
+        // Original number of the star now at each index, or null if
+        // stars are never reordered (here or in the run restarted from).
+
+        return N > 0 && order.originalId.length == N ? order.originalId : null ;
+    }
+
+    static void trajectoryFrame(int iter) throws IOException {
+
+        // Queue positions as at start of step iter for the trajectory
+        // writer.  With a fused kick pending, velocities are half a kick
+        // behind.
+
+        long start = StepMetrics.start() ;
+        if(integrator != null) integrator.syncToHost() ;
+
+        double time = blockSteps != null ? blockSteps.time : iter * (double) DT ;
+        trajectory.offer(iter, time, x, y, z, vx, vy, vz, originalIds()) ;
+
+        metrics.end(StepMetrics.TRAJECTORY, start) ;
+        if(logStep) {
+            System.out.println("time to queue trajectory frame = " +
+                               metrics.millis(StepMetrics.TRAJECTORY) +
+                               " milliseconds, frames written = " +
+                               trajectory.framesWritten + ", dropped = " +
+                               trajectory.framesDropped + ", queue depth = " +
+                               trajectory.queueDepth() + " (max " +
+                               trajectory.maxQueueDepth + "), " +
+                               String.format("%.1f", trajectory.megabytesPerSecond()) +
+                               " MB/s, " + trajectory.bytesWritten / 1000000 +
+                               " MB") ;
+        }
+    }
+
+    static void updatePositions(float [] x, float [] y, float [] z,
+                                float [] vx, float [] vy, float [] vz,
+                                float [] ax, float [] ay, float [] az, int n,
+                                double dtOver2, double dtSquaredOver2) {
+
+        for (int i = 0; i < n; i++) {
+            // update position
+            // mod implements periodic box
+            x[i] = mod((float) (x [i] + (vx[i] * DT) +
+                               (ax[i] * dtSquaredOver2)), BOX_WIDTH);
+            y[i] = mod((float) (y [i] + (vy[i] * DT) +
+                               (ay[i] * dtSquaredOver2)), BOX_WIDTH);
+            z[i] = mod((float) (z [i] + (vz[i] * DT) +
+                               (az[i] * dtSquaredOver2)), BOX_WIDTH);
+            // update velocity halfway
+            vx[i] += (ax[i] * dtOver2);
+            vy[i] += (ay[i] * dtOver2);
+            vz[i] += (az[i] * dtOver2);
+        }    
+    }
+
+    static void updateVelocities(float [] vx, float [] vy, float [] vz,
+                                 float [] ax, float [] ay, float [] az, int n,
+                                 double dtOver2) {
+
+        for (int i = 0; i < n; i++) {
+            // finish updating velocity with new acceleration
+            vx[i] += (ax[i] * dtOver2);
+            vy[i] += (ay[i] * dtOver2);
+            vz[i] += (az[i] * dtOver2);
+        }
+    }
+
+    static TreeBuilder newTreeBuilder() {
+        TreeBuilder builder = PARALLEL_BUILD ?
+                              new MortonTreeBuilder(flatTree) :
+                              new FlatTreeBuilder(flatTree) ;
+        return REFIT ? new RefitTreeBuilder(builder) : builder ;
+    }
+
+    static KernelTree newKernel() {
+        KernelTree kernel = new KernelTree(x, y, z, ax, ay, az, flatTree) ;
+        kernel.setExplicit(true) ;
+        kernel.parentWalk = PARENT_WALK ;  // takes effect in setTree
+        kernel.backend = FORCE_BACKEND ;
+        kernel.hostGrain = FORCE_GRAIN ;
+        return kernel ;
+    }
+
     static boolean reported = false ;
 
     // Compute accelerations of all stars from current positions:
     static void computeAccelerations() {
+
+        if(LEGACY_TREE) {
+            computeAccelerationsLegacyTree() ;
+            return ;
+        }
+
+        // Build the BH tree directly in flattened form.
+
+        long startTreeTime = StepMetrics.start() ;
+
+        treeBuilder.build(x, y, z, N) ;
+
+        metrics.end(StepMetrics.BUILD, startTreeTime) ;
+        if(logStep) {
+            System.out.println("time to build Tree = " +
+                               metrics.millis(StepMetrics.BUILD) + " milliseconds");
+
+            System.out.println("Number of nodes = " + flatTree.numNodes);
+            if(REFIT) {
+                RefitTreeBuilder refit = (RefitTreeBuilder) treeBuilder ;
+                System.out.println("stars leaving their leaves = " + refit.migrants +
+                                   ", loose stars = " + refit.loose +
+                                   (refit.rebuilt ? " (tree rebuilt)" : "")) ;
+            }
+        }
+        metrics.tree(flatTree.numNodes, flatTree.depth()) ;
+
+        if(fmm != null) {
+            computeForcesMultipole() ;
+            return ;
+        }
+
+        kernel.setTree(flatTree) ;
+        if(splitter != null) splitter.setTree(flatTree) ;
+
+        computeForces() ;
+    }
+
+    static void computeForcesMultipole() {
+
+        long startForceTime = StepMetrics.start() ;
+
+        fmm.computeForces(flatTree, N) ;
+
+        metrics.end(StepMetrics.FORCES, startForceTime) ;
+        long cells = fmm.cellInteractions.sum() ;
+        long stars = fmm.starInteractions.sum() ;
+        if(logStep) {
+            System.out.println("time to calculate forces = " +
+                               metrics.millis(StepMetrics.FORCES) + " milliseconds");
+            System.out.println("multipole to local = " + cells +
+                               ", star to star = " + stars) ;
+        }
+        metrics.walk(N, fmm.pairs.sum(), cells + stars) ;
+        metrics.transfers(0, 0, 0, "fmm") ;
+    }
+
+    static void computeAccelerationsLegacyTree() {
         
        
         // Build the BH tree
 
-        long startTreeTime = System.currentTimeMillis();
+        long startTreeTime = StepMetrics.start() ;
 
         Node.numNodes = 0 ;
 
         tree = new Node(BOX_WIDTH / 2, BOX_WIDTH / 2, BOX_WIDTH / 2,
                         BOX_WIDTH) ;
         for (int i = 0; i < N; i++) {
-            tree.addParticle(x [i], y [i], z [i]);
+            tree.addParticle(x [i], y [i], z [i], i);
         }
 
-        long endTreeTime = System.currentTimeMillis();
-        System.out.println("time to build Tree = " +
-                           (endTreeTime - startTreeTime) + " milliseconds"); 
+        metrics.end(StepMetrics.BUILD, startTreeTime) ;
+        if(logStep) {
+            System.out.println("time to build Tree = " +
+                               metrics.millis(StepMetrics.BUILD) + " milliseconds");
+        }
         
         // Prcomputations on BH tree - also allocate nodes of "flattened"
         // tree in Java arrays.
 
-        KernelTree kernel = new KernelTree(x, y, z, ax, ay, az, Node.numNodes) ;
+        kernel.allocateNodes(flatTree, Node.numNodes) ;
 
-        long startPreComputeTime = System.currentTimeMillis();
+        long startPreComputeTime = StepMetrics.start() ;
         
         tree.preComputeAndAllocateFlat(kernel) ;
 
-        long endPreComputeTime = System.currentTimeMillis();
-        System.out.println("time to precompute Tree = " +
-                           (endPreComputeTime - startPreComputeTime) + " milliseconds"); 
+        metrics.end(StepMetrics.PRECOMPUTE, startPreComputeTime) ;
+        if(logStep) {
+            System.out.println("time to precompute Tree = " +
+                               metrics.millis(StepMetrics.PRECOMPUTE) + " milliseconds");
+        }
         
         // Finish initialization of flattened tree nodes (set pointers)
 
         // tree in Java arrays.
-        long startFlattenTime = System.currentTimeMillis();
+        long startFlattenTime = StepMetrics.start() ;
 
         tree.flatten(KernelTree.NULL, KernelTree.NULL, kernel) ;
 
-        long endFlattenTime = System.currentTimeMillis();
-        System.out.println("time to flatten Tree = " +
-                           (endFlattenTime - startFlattenTime) + " milliseconds"); 
+        metrics.end(StepMetrics.FLATTEN, startFlattenTime) ;
+        if(logStep) {
+            System.out.println("time to flatten Tree = " +
+                               metrics.millis(StepMetrics.FLATTEN) + " milliseconds");
+
+            System.out.println("Number of nodes = " + Node.numNodes);
+        }
+        metrics.tree(Node.numNodes, flatTree.depth()) ;
+
+        computeForces() ;
+    }
 
-        System.out.println("Number of nodes = " + Node.numNodes);
+    static void computeForces() {
        
         // Interaction forces (gravity)
         // This is where the program spends most of its time.
 
-        long startForceTime = System.currentTimeMillis();
+        boolean grouped = GROUP_SIZE > 0 && !LEGACY_TREE && blockSteps == null ;
+        if(grouped) {
+            long startGroupTime = StepMetrics.start() ;
 
-        kernel.execute(Range.create(N)) ;  // Invoke code on GPU
-        
-        long endForceTime = System.currentTimeMillis();
-        System.out.println("time to calculate forces = " +
-                           (endForceTime - startForceTime) + " milliseconds");
+            groups.build(x, y, z, N) ;
 
-        // Report on execution mode...
-        if(!reported) {
-            StringBuilder builder = new StringBuilder() ;
-            KernelManager.instance().reportDeviceUsage(builder, true) ;
-            System.out.println(builder) ;
-            reported = true ;
+            metrics.end(StepMetrics.GROUPS, startGroupTime) ;
+            if(logStep) {
+                System.out.println("time to form groups = " +
+                                   metrics.millis(StepMetrics.GROUPS) +
+                                   " milliseconds, number of groups = " +
+                                   groups.numGroups);
+            }
         }
 
-        kernel.dispose() ;
-    }
-    
-    static class Display extends JPanel {
+        boolean split = splitter != null && !grouped && blockSteps == null ;
 
-        static final double SCALE = WINDOW_SIZE / BOX_WIDTH ;
+        long startForceTime = StepMetrics.start() ;
 
-        Display() {
+        if(grouped)
+            kernel.computeForcesGrouped(groups) ;
+        else if(blockSteps != null)
+            kernel.computeForcesActive(blockSteps.active, blockSteps.numActive) ;
+        else if(split)
+            splitter.computeForces(N) ;
+        else if(BALANCE && balance.ready(N))
+            kernel.computeForcesChunked(balance.chunkStart, balance.numChunks) ;
+        else
+            kernel.computeForces(range) ;  // Invoke code on GPU
+        
+        metrics.end(StepMetrics.FORCES, startForceTime) ;
+        if(logStep) {
+            System.out.println("time to calculate forces = " +
+                               metrics.millis(StepMetrics.FORCES) + " milliseconds");
+            if(split) System.out.println(splitter.report()) ;
+        }
 
-            setPreferredSize(new Dimension(WINDOW_SIZE, WINDOW_SIZE)) ;
+        boolean balanceStats = BALANCE_STATS && logStep ;
+        if((BALANCE || balanceStats) && !grouped && blockSteps == null && !split) {
+            kernel.fetchCounters() ;
+            if(balanceStats) {
+                balance.measure(kernel, N) ;
+                System.out.println((kernel.chunked != 0 ? "balanced " : "") +
+                                   "load: " + balance.report()) ;
+            }
+            if(BALANCE) balance.update(kernel, N) ;
+        }
 
-            JFrame frame = new JFrame("MD");
-            frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-            frame.setContentPane(this);
-            frame.pack();
-            frame.setVisible(true);
+        boolean walkStats = WALK_STATS && logStep ;
+        if(walkStats || metrics.wantsWalk()) {
+            int stars = blockSteps != null ? blockSteps.numActive : N ;
+            int items = grouped ? groups.numGroups : stars ;
+            long visits = split ? splitter.countVisits() :
+                                  kernel.countVisits(items) ;
+            long interactions = split ? splitter.countInteractions() :
+                                        kernel.countInteractions(items) ;
+            metrics.walk(stars, visits, interactions) ;
+            if(walkStats) {
+                System.out.println("node visits per star = " +
+                                   (double) visits / stars +
+                                   ", interactions per star = " +
+                                   (double) interactions / stars) ;
+            }
+        }
+        if(split)
+            metrics.transfers(splitter.bytesToDevice(), splitter.bytesFromDevice(),
+                              kernel.reallocations, "split") ;
+        else
+            metrics.transfers(kernel.bytesToDevice, kernel.bytesFromDevice,
+                              kernel.reallocations, executionMode()) ;
+        if(logStep) {
+            System.out.println("bytes to device = " + kernel.bytesToDevice +
+                               ", bytes from device = " + kernel.bytesFromDevice +
+                               ", node buffer reallocations = " +
+                               kernel.reallocations) ;
         }
 
-        public void paintComponent(Graphics g) {
-            g.setColor(Color.BLACK) ;
-            g.fillRect(0, 0, WINDOW_SIZE, WINDOW_SIZE) ;
-            g.setColor(Color.WHITE) ;
-            for(int i = 0 ; i < N ; i++) {
-                int gx = (int) (SCALE * x [i]) ;
-                int gy = (int) (SCALE * y [i]) ;
-                if(0 <= gx && gx < WINDOW_SIZE && 0 < gy && gy < WINDOW_SIZE) { 
-                    g.fillRect(gx, gy, 1, 1) ;
-                }
-            } 
+        // Report on execution mode...
+        if(!reported) {
+            StringBuilder builder = new StringBuilder() ;
+            KernelManager.instance().reportDeviceUsage(builder, true) ;
+            System.out.println(builder) ;
+            reported = true ;
         }
     }
     
+    static String executionMode() {
+        if(kernel.backend != KernelTree.APARAPI)
+            return KernelTree.backendName(kernel.backend) ;
+        Device device = kernel.getTargetDevice() ;  // device of last pass
+        return device == null ? "none" : device.getType().toString().toLowerCase() ;
+    }
+
     static float mod(float x, float box) {
         float reduced = x - ((int) (x / box) * box) ;
         return reduced >= 0 ? reduced : reduced + box ;
@@ -272,6 +851,8 @@ public class AparapiBarnesHut {
         float xCent, yCent, zCent ;  // centre of mass
         Node [] children ;
 
+        int star ;  // index of star in a leaf
+
         float threshold ;
 
         int flatNode ;  // index of corresponding elements in flattened tree
@@ -287,7 +868,7 @@ public class AparapiBarnesHut {
             numNodes++ ;
         }
 
-        void addParticle(float x, float y, float z) {
+        void addParticle(float x, float y, float z, int star) {
             /* In single precision following test sometimes fails through rounding erros
             float sizeBy2 = size / 2 ;
             if(x < xMid - sizeBy2 || x > xMid + sizeBy2 ||
@@ -302,18 +883,19 @@ public class AparapiBarnesHut {
                 xCent = x ;
                 yCent = y ;
                 zCent = z ;
+                this.star = star ;
                 nParticles = 1 ;
                 return ;
             } 
             if(nParticles == 1) {
                 children = new Node [8] ;
-                addParticleToChild(xCent, yCent, zCent) ;  
+                addParticleToChild(xCent, yCent, zCent, this.star) ;  
             }
-            addParticleToChild(x, y, z) ;  
+            addParticleToChild(x, y, z, star) ;  
             nParticles++ ;
         }
 
-        void addParticleToChild(float x, float y, float z) {
+        void addParticleToChild(float x, float y, float z, int star) {
 
             int childIdx = ((x < xMid) ? 0 : 4) + ((y < yMid) ? 0 : 2) +
                            ((z < zMid) ? 0 : 1) ;
@@ -327,7 +909,7 @@ public class AparapiBarnesHut {
                                  size / 2) ;
                 children [childIdx] = child ;
             }
-            child.addParticle(x, y, z) ;
+            child.addParticle(x, y, z, star) ;
         }
 
 
@@ -360,7 +942,8 @@ public class AparapiBarnesHut {
             threshold = size / OPENING_ANGLE + delta ;
 
             flatNode = kernel.allocateNode(xMid, yMid, zMid, nParticles,
-                                           xCent, yCent, zCent, threshold) ;
+                                           xCent, yCent, zCent, threshold,
+                                           children == null ? star : 0) ;
                                           
         }
 
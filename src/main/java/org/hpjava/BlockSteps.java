@@ -0,0 +1,191 @@
+package org.hpjava;
+
+
+/*
+
+Hierarchical ("block") individual time steps.
+
+Each star has a level from 0 to maxLevel, and a time step of
+dt * 2^(maxLevel - level): dt itself at the finest level, and
+dt * 2^maxLevel at level 0.  Time is counted in ticks of dt, and a star
+at a given level starts and ends its steps at multiples of its number
+of ticks, so the steps of all levels nest.
+
+The scheme is kick-drift-kick leapfrog, as the global Verlet step:
+
+  drift  moves time on to the next tick at which some star's step
+         ends, drifting the positions of all stars with their current
+         velocities, and collects the stars whose steps end there (the
+         "active" stars) in a compact list.
+
+  kick   after forces on the active stars have been computed, closes
+         the step of each active star with a half kick, chooses the
+         level of its next step, and opens that with another half kick.
+
+Inactive stars keep the half-kicked velocity of the step they are in,
+so their positions advance correctly, and all positions are current
+after every drift - the tree can be built over all stars as usual, with
+forces only evaluated for the active ones (KernelTree.computeForcesActive).
+
+A star takes the longest step allowed by its acceleration a, such that
+|a| step^2 / 2 <= stepLength - the distance it would move away from a
+straight line in one step.  A star may move to any finer level at the
+end of a step, but only to a coarser level if the current tick is a
+multiple of the new step, and by one level at a time.
+
+Initially no star is in a step: the first drift leaves time unchanged
+and makes every star active, and the first kick only opens steps.
+
+*/
+
+class BlockSteps {
+
+    final static int GRAIN = 4096 ;  // stars per task
+
+    final int n ;
+    final int maxLevel ;
+    final float dt ;          // step of finest level
+    final float stepLength ;
+
+    final int [] level ;      // of each star, -1 before first step
+    final int [] active ;     // stars whose steps end at current tick
+    int numActive ;
+
+    final int [] population ; // number of stars at each level
+
+    long tick ;               // current time, in steps of finest level
+    double time ;
+
+    BlockSteps(int n, int maxLevel, float dt, float stepLength) {
+
+        this.n = n ;
+        this.maxLevel = maxLevel ;
+        this.dt = dt ;
+        this.stepLength = stepLength ;
+
+        level = new int [n] ;
+        active = new int [n] ;
+        population = new int [maxLevel + 1] ;
+        for(int i = 0 ; i < n ; i++) {
+            level [i] = -1 ;
+        }
+    }
+
+    long ticks(int level) {
+
+        // Length of step of level, in ticks.
+
+        return 1L << (maxLevel - level) ;
+    }
+
+    void drift(float [] x, float [] y, float [] z,
+               float [] vx, float [] vy, float [] vz) {
+
+        // Next tick at which some star's step ends.
+
+        for(int l = 0 ; l <= maxLevel ; l++) {
+            population [l] = 0 ;
+        }
+        boolean started = true ;
+        for(int i = 0 ; i < n ; i++) {
+            if(level [i] < 0)
+                started = false ;
+            else
+                population [level [i]]++ ;
+        }
+
+        long next = tick ;
+        if(started) {
+            next = Long.MAX_VALUE ;
+            for(int l = 0 ; l <= maxLevel ; l++) {
+                if(population [l] > 0) {
+                    next = Math.min(next, (tick / ticks(l) + 1) * ticks(l)) ;
+                }
+            }
+        }
+
+        float interval = (next - tick) * dt ;
+        if(interval > 0) {
+            float box = AparapiBarnesHut.BOX_WIDTH ;
+            Parallel.forRange(n, GRAIN, (lo, hi) -> {
+                for(int i = lo ; i < hi ; i++) {
+                    x [i] = AparapiBarnesHut.mod(x [i] + vx [i] * interval, box) ;
+                    y [i] = AparapiBarnesHut.mod(y [i] + vy [i] * interval, box) ;
+                    z [i] = AparapiBarnesHut.mod(z [i] + vz [i] * interval, box) ;
+                }
+            }) ;
+        }
+        tick = next ;
+        time += interval ;
+
+        // Compact list of active stars.
+
+        numActive = 0 ;
+        for(int i = 0 ; i < n ; i++) {
+            if(level [i] < 0 || tick % ticks(level [i]) == 0) {
+                active [numActive++] = i ;
+            }
+        }
+
+        // All levels are in step again at multiples of the longest step.
+
+        tick %= ticks(0) ;
+    }
+
+    void kick(float [] vx, float [] vy, float [] vz,
+              float [] ax, float [] ay, float [] az) {
+
+        int coarsest = alignedLevel() ;
+
+        Parallel.forRange(numActive, GRAIN, (lo, hi) -> {
+            for(int k = lo ; k < hi ; k++) {
+                int i = active [k] ;
+                float a2 = ax [i] * ax [i] + ay [i] * ay [i] + az [i] * az [i] ;
+
+                int old = level [i] ;
+                int l = Math.max(levelFor(a2), coarsest) ;
+                if(old >= 0) {
+                    l = Math.max(l, old - 1) ;
+                }
+
+                float kick = 0.5F * dt * ticks(l) ;
+                if(old >= 0) {
+                    kick += 0.5F * dt * ticks(old) ;
+                }
+                vx [i] += ax [i] * kick ;
+                vy [i] += ay [i] * kick ;
+                vz [i] += az [i] * kick ;
+
+                level [i] = l ;
+            }
+        }) ;
+    }
+
+    int alignedLevel() {
+
+        // Coarsest level whose steps may start at current tick.
+
+        int l = 0 ;
+        while(tick % ticks(l) != 0) {
+            l++ ;
+        }
+        return l ;
+    }
+
+    int levelFor(float a2) {
+
+        // Coarsest level whose step satisfies the step length criterion
+        // for squared acceleration a2 (or finest level).
+
+        float limit = 2 * stepLength ;
+        int l = 0 ;
+        while(l < maxLevel) {
+            float step = dt * ticks(l) ;
+            if(step * step * step * step * a2 <= limit * limit) {
+                return l ;
+            }
+            l++ ;
+        }
+        return l ;
+    }
+}
@@ -0,0 +1,318 @@
+package org.hpjava;
+
+import java.io.IOException ;
+
+import java.nio.ByteOrder ;
+import java.nio.MappedByteBuffer ;
+import java.nio.channels.FileChannel ;
+import java.nio.file.Files ;
+import java.nio.file.Path ;
+import java.nio.file.StandardCopyOption ;
+import java.nio.file.StandardOpenOption ;
+
+import java.util.concurrent.ExecutionException ;
+import java.util.concurrent.ExecutorService ;
+import java.util.concurrent.Executors ;
+import java.util.concurrent.Future ;
+
+
+/*
+
+Binary checkpoint of the whole simulation state, for restart.
+
+A checkpoint file is a fixed HEADER byte header followed by the per-star
+arrays, each as n contiguous little-endian 4 byte values, in the order
+x, y, z, vx, vy, vz, ax, ay, az, then (only with block time steps) the
+BlockSteps level of each star, then (only if stars are reordered) the
+StarOrder.originalId of each star, so a restart keeps original star
+numbers.  Header fields (byte offsets):
+
+   0  int     MAGIC ("BHCP")
+   4  int     VERSION of the format
+   8  int     n, number of stars
+  12  int     flags - KICK_PENDING, BLOCK_STEPS, ORIGINAL_IDS
+  16  long    iteration at which to resume
+  24  double  simulated time
+  32  float   time step DT
+  36  float   box width
+  40  float   opening angle
+  44  int     maximum block step level
+  48  float   block step length
+  52  long    BlockSteps.tick
+  60          reserved, zero up to HEADER
+
+Files are written and read through memory mapped regions, one per
+array, so copying an array to or from the file is one bulk transfer
+with no per-element formatting or parsing, and arrays of up to 2^29
+stars fit a single mapping.  Version 1 files, written before original
+ids were saved, are still read.
+
+Writer writes checkpoints in the background.  The caller copies the
+state into the arrays of a snapshot (the only work on its thread), and
+a separate thread writes that to a temporary file, which is then
+renamed over the previous checkpoint - a run killed mid-write still
+leaves the last complete checkpoint.  Restart (read) is a bulk copy
+from the mapped file straight into the simulation's own arrays.
+
+*/
+
+class Checkpoint {
+
+    final static int MAGIC = 0x50434842 ;  // "BHCP" little-endian
+    final static int VERSION = 2 ;
+    final static int HEADER = 128 ;        // bytes
+
+    final static int KICK_PENDING = 1 ;    // final half kick of last step
+                                           // not yet applied (fused kick)
+    final static int BLOCK_STEPS = 2 ;     // levels follow the arrays
+    final static int ORIGINAL_IDS = 4 ;    // original ids follow those
+
+    final static String [] ARRAYS = {"x", "y", "z", "vx", "vy", "vz",
+                                     "ax", "ay", "az"} ;
+
+    final int n ;
+    boolean kickPending ;
+    long iteration ;
+    double time ;
+    float dt, boxWidth, openingAngle ;
+    int maxLevel ;
+    float stepLength ;
+    long tick ;
+
+    final float [][] state ;  // arrays in order of ARRAYS
+    final int [] level ;      // null unless block time steps
+    final int [] originalId ; // null unless stars are reordered
+
+    Checkpoint(int n, boolean blockSteps) {
+        this(n, blockSteps, false) ;
+    }
+
+    Checkpoint(int n, boolean blockSteps, boolean reordered) {
+        this(new float [ARRAYS.length] [n], blockSteps ? new int [n] : null,
+             reordered ? new int [n] : null) ;
+    }
+
+    Checkpoint(float [][] state, int [] level, int [] originalId) {
+
+        // Checkpoint of (or to be read into) existing arrays.
+
+        this.n = state [0].length ;
+        this.state = state ;
+        this.level = level ;
+        this.originalId = originalId ;
+    }
+
+    void write(Path file) throws IOException {
+
+        // Write to file.tmp, then rename to file.
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp") ;
+        long size = size() ;
+        try(FileChannel channel = FileChannel.open(tmp,
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE,
+                                                  0, HEADER) ;
+            header.order(ByteOrder.LITTLE_ENDIAN) ;
+            header.putInt(0, MAGIC) ;
+            header.putInt(4, VERSION) ;
+            header.putInt(8, n) ;
+            header.putInt(12, (kickPending ? KICK_PENDING : 0) |
+                              (level != null ? BLOCK_STEPS : 0) |
+                              (originalId != null ? ORIGINAL_IDS : 0)) ;
+            header.putLong(16, iteration) ;
+            header.putDouble(24, time) ;
+            header.putFloat(32, dt) ;
+            header.putFloat(36, boxWidth) ;
+            header.putFloat(40, openingAngle) ;
+            header.putInt(44, maxLevel) ;
+            header.putFloat(48, stepLength) ;
+            header.putLong(52, tick) ;
+            header.force() ;
+
+            for(int k = 0 ; k < state.length ; k++) {
+                region(channel, FileChannel.MapMode.READ_WRITE, n, k)
+                        .asFloatBuffer().put(state [k]) ;
+            }
+            int k = state.length ;
+            if(level != null) {
+                region(channel, FileChannel.MapMode.READ_WRITE, n, k++)
+                        .asIntBuffer().put(level) ;
+            }
+            if(originalId != null) {
+                region(channel, FileChannel.MapMode.READ_WRITE, n, k)
+                        .asIntBuffer().put(originalId) ;
+            }
+            channel.force(true) ;
+            if(channel.size() != size) {
+                throw new IOException("short checkpoint write " + tmp) ;
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE) ;
+    }
+
+    static Checkpoint read(Path file) throws IOException {
+        return read(file, null, null, null) ;
+    }
+
+    static Checkpoint read(Path file, float [][] state, int [] level,
+                           int [] originalId) throws IOException {
+
+        /*
+         * Map file and copy its arrays into state, level and originalId,
+         * which must be the size recorded in the file (or null, to
+         * allocate them).  Levels and original ids are only read if the
+         * file has them.
+         */
+
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if(channel.size() < HEADER) {
+                throw new IOException("not a checkpoint file " + file) ;
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY,
+                                                  0, HEADER) ;
+            header.order(ByteOrder.LITTLE_ENDIAN) ;
+            if(header.getInt(0) != MAGIC) {
+                throw new IOException("not a checkpoint file " + file) ;
+            }
+            if(header.getInt(4) < 1 || header.getInt(4) > VERSION) {
+                throw new IOException("unsupported checkpoint version " +
+                                      header.getInt(4) + " in " + file) ;
+            }
+            int n = header.getInt(8) ;
+            int flags = header.getInt(12) ;
+            boolean blockSteps = (flags & BLOCK_STEPS) != 0 ;
+            boolean reordered = (flags & ORIGINAL_IDS) != 0 ;
+            if(state == null) {
+                state = new float [ARRAYS.length] [n] ;
+            }
+            if(level == null && blockSteps) {
+                level = new int [n] ;
+            }
+            if(originalId == null && reordered) {
+                originalId = new int [n] ;
+            }
+            if(state.length != ARRAYS.length || state [0].length != n ||
+               (blockSteps && level.length != n) ||
+               (reordered && originalId.length != n)) {
+                throw new IOException("checkpoint " + file + " has " + n +
+                                      " stars, expected " + state [0].length) ;
+            }
+            Checkpoint checkpoint = new Checkpoint(state, blockSteps ? level : null,
+                                                   reordered ? originalId : null) ;
+            checkpoint.kickPending = (flags & KICK_PENDING) != 0 ;
+            checkpoint.iteration = header.getLong(16) ;
+            checkpoint.time = header.getDouble(24) ;
+            checkpoint.dt = header.getFloat(32) ;
+            checkpoint.boxWidth = header.getFloat(36) ;
+            checkpoint.openingAngle = header.getFloat(40) ;
+            checkpoint.maxLevel = header.getInt(44) ;
+            checkpoint.stepLength = header.getFloat(48) ;
+            checkpoint.tick = header.getLong(52) ;
+
+            if(channel.size() != checkpoint.size()) {
+                throw new IOException("truncated checkpoint file " + file) ;
+            }
+            for(int k = 0 ; k < checkpoint.state.length ; k++) {
+                region(channel, FileChannel.MapMode.READ_ONLY, n, k)
+                        .asFloatBuffer().get(checkpoint.state [k]) ;
+            }
+            int k = checkpoint.state.length ;
+            if(checkpoint.level != null) {
+                region(channel, FileChannel.MapMode.READ_ONLY, n, k++)
+                        .asIntBuffer().get(checkpoint.level) ;
+            }
+            if(checkpoint.originalId != null) {
+                region(channel, FileChannel.MapMode.READ_ONLY, n, k)
+                        .asIntBuffer().get(checkpoint.originalId) ;
+            }
+            return checkpoint ;
+        }
+    }
+
+    long size() {
+        return HEADER + 4L * n * (state.length + (level != null ? 1 : 0) +
+                                  (originalId != null ? 1 : 0)) ;
+    }
+
+    static MappedByteBuffer region(FileChannel channel, FileChannel.MapMode mode,
+                                   int n, int k) throws IOException {
+
+        // Mapping of k-th array (levels, then original ids, after the
+        // float arrays).
+
+        MappedByteBuffer buffer = channel.map(mode, HEADER + 4L * n * k, 4L * n) ;
+        buffer.order(ByteOrder.LITTLE_ENDIAN) ;
+        return buffer ;
+    }
+
+    static class Writer {
+
+        final Path file ;
+        final ExecutorService thread = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "checkpoint writer") ;
+            t.setDaemon(true) ;
+            return t ;
+        }) ;
+
+        Checkpoint snapshot ;
+        Future<?> pending ;
+
+        int written ;        // completed checkpoints
+        long lastWriteNanos ;
+
+        Writer(Path file) {
+            this.file = file ;
+        }
+
+        Checkpoint snapshot(int n, boolean blockSteps, boolean reordered)
+                throws IOException {
+
+            /*
+             * Checkpoint to fill with current state, then pass to write.
+             * Waits for any write still in progress, whose arrays are
+             * reused.
+             */
+
+            finish() ;
+            if(snapshot == null || snapshot.n != n ||
+               (snapshot.level != null) != blockSteps ||
+               (snapshot.originalId != null) != reordered) {
+                snapshot = new Checkpoint(n, blockSteps, reordered) ;
+            }
+            return snapshot ;
+        }
+
+        void write(Checkpoint checkpoint) {
+            pending = thread.submit(() -> {
+                long start = System.nanoTime() ;
+                checkpoint.write(file) ;
+                lastWriteNanos = System.nanoTime() - start ;
+                written++ ;
+                return null ;
+            }) ;
+        }
+
+        void finish() throws IOException {
+
+            // Wait for write in progress, if any.
+
+            if(pending == null) return ;
+            try {
+                pending.get() ;
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt() ;
+                throw new IOException("interrupted writing " + file, e) ;
+            }
+            catch(ExecutionException e) {
+                throw new IOException("failed writing " + file, e.getCause()) ;
+            }
+            finally {
+                pending = null ;
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package org.hpjava;
+
+import java.io.IOException ;
+
+
+/*
+
+The simulation of AparapiBarnesHut, split over several ranks, each
+owning the stars of one part of space (see Domain).  Ranks are threads
+of this JVM, connected by LocalTransport or (for testing) by sockets
+over loopback, or separate JVMs started with their own bh.rank:
+
+  java -Dbh.ranks=4 -Dbh.rank=0 -cp <jar> org.hpjava.DistributedBarnesHut &
+  java -Dbh.ranks=4 -Dbh.rank=1 -cp <jar> org.hpjava.DistributedBarnesHut &
+  ...
+
+There is no display.  Rank 0 prints figures of every bh.metricsEvery
+steps, as CSV (see Domain.report).
+
+*/
+
+public class DistributedBarnesHut {
+
+    final static float BOX_WIDTH = AparapiBarnesHut.BOX_WIDTH ;
+    final static float DT = AparapiBarnesHut.DT ;
+
+    // As AparapiBarnesHut (read here too, so that class is not
+    // initialized with its full size arrays).
+
+    final static int N = Integer.getInteger("bh.n", 250000) ;
+    final static int INITIAL =
+            InitialConditions.model(System.getProperty("bh.initial", "sphere")) ;
+    final static long SEED = Long.getLong("bh.seed", 1234) ;
+    final static float SCALE_RADIUS =
+            Float.parseFloat(System.getProperty("bh.scaleRadius", "0")) ;
+    final static int GALAXIES = Integer.getInteger("bh.galaxies", 2) ;
+    final static int FORCE_BACKEND =
+            KernelTree.backend(System.getProperty("bh.forceBackend", "aparapi")) ;
+    final static int FORCE_GRAIN = Integer.getInteger("bh.forceGrain", 32) ;
+    final static int METRICS_EVERY = Integer.getInteger("bh.metricsEvery", 10) ;
+
+    // Distribution
+
+    final static int RANKS = Integer.getInteger("bh.ranks", 2) ;
+           // Number of ranks.
+    final static int RANK = Integer.getInteger("bh.rank", -1) ;
+           // Rank of this JVM, connected to the others by sockets, or
+           // -1 to run all ranks as threads of this JVM.
+    final static int TRANSPORT =
+            Transport.type(System.getProperty("bh.transport", "local")) ;
+           // Transport between ranks that are threads: local or socket.
+    final static String HOST = System.getProperty("bh.host", "127.0.0.1") ;
+           // Host of all ranks, for socket transport.
+    final static int PORT = Integer.getInteger("bh.port", 47100) ;
+           // Rank r listens on this port plus r.
+    final static int STEPS = Integer.getInteger("bh.steps", 100) ;
+           // Steps to run.
+    final static int REBALANCE_EVERY = Integer.getInteger("bh.rebalanceEvery", 10) ;
+           // Steps between choices of splitters (see Domain).
+
+    interface RankBody {
+        void run(int rank) throws Exception ;
+    }
+
+    static void forRanks(int size, RankBody body) throws Exception {
+
+        // Run body for each rank in its own thread, and wait for all.
+        // Throws the first failure, if any.
+
+        Exception [] failure = new Exception [1] ;
+        Thread [] threads = new Thread [size] ;
+        for(int r = 0 ; r < size ; r++) {
+            int rank = r ;
+            threads [r] = new Thread(() -> {
+                try {
+                    body.run(rank) ;
+                }
+                catch(Exception e) {
+                    synchronized(failure) {
+                        if(failure [0] == null) failure [0] = e ;
+                    }
+                }
+            }, "rank " + r) ;
+            threads [r].start() ;
+        }
+        for(Thread thread : threads) {
+            thread.join() ;
+        }
+        if(failure [0] != null) throw failure [0] ;
+    }
+
+    public static void main(String args []) throws Exception {
+        if(RANK >= 0) {
+            run(new SocketTransport(RANK, RANKS, HOST, PORT)) ;
+        }
+        else if(TRANSPORT == Transport.LOCAL) {
+            LocalTransport [] transports = LocalTransport.create(RANKS) ;
+            forRanks(RANKS, rank -> run(transports [rank])) ;
+        }
+        else {
+            forRanks(RANKS, rank -> run(new SocketTransport(rank, RANKS, HOST, PORT))) ;
+        }
+    }
+
+    static void run(Transport transport) throws IOException {
+        try {
+            int capacity = (int) (Domain.HEADROOM * N / transport.size) ;
+            Domain domain = new Domain(transport, BOX_WIDTH, FORCE_BACKEND,
+                                       FORCE_GRAIN, capacity) ;
+
+            long start = System.currentTimeMillis() ;
+            domain.generate(new InitialConditions(INITIAL, SEED, BOX_WIDTH,
+                                                  AparapiBarnesHut.RADIUS,
+                                                  SCALE_RADIUS,
+                                                  AparapiBarnesHut.ANGULAR_VELOCITY,
+                                                  GALAXIES), N) ;
+            domain.start() ;
+            String line = domain.report(0) ;
+            if(line != null) {
+                System.out.println("generated and decomposed " + N + " stars on " +
+                                   transport.size + " ranks in " +
+                                   (System.currentTimeMillis() - start) +
+                                   " milliseconds") ;
+                System.out.println(Domain.CSV_HEADER) ;
+                System.out.println(line) ;
+            }
+
+            for(int step = 1 ; step <= STEPS ; step++) {
+                domain.step(DT, step % REBALANCE_EVERY == 0) ;
+                if(step % METRICS_EVERY == 0) {
+                    line = domain.report(step) ;
+                    if(line != null) System.out.println(line) ;
+                }
+            }
+        }
+        finally {
+            transport.close() ;
+        }
+    }
+}
@@ -0,0 +1,666 @@
+package org.hpjava;
+
+import java.io.IOException ;
+
+import java.nio.ByteBuffer ;
+
+import java.util.Arrays ;
+import java.util.Locale ;
+import java.util.SplittableRandom ;
+
+import com.aparapi.Range ;
+
+
+/*
+
+The stars of one rank of a distributed run (see DistributedBarnesHut),
+and the steps that rank takes.
+
+Decomposition.  Space is split along the Morton curve of the tree
+builders (MortonTreeBuilder.key): rank r owns the stars whose keys are
+in [splitters [r], splitters [r + 1]), a union of octree cells.  To
+choose the splitters, each rank sorts its stars by key and sends every
+rank samples of its sorted keys, each with the cost (nodes visited plus
+force law evaluations, in the last pass) of the stars up to the next
+sample.  Every rank then merges the same samples into the same
+splitters, putting equal cost on each rank.  Splitters are chosen again
+every few steps; in between, after each drift, stars that have crossed
+a splitter simply migrate to their new owner.
+
+Locally essential trees.  Each rank builds a tree over its own stars
+only (FlatTreeBuilder, in the cells of the whole box).  For every other
+rank q, it walks that tree against the bounding box of q's stars:
+
+  - a node far enough from every point of the box (by the test the
+    grouped walk uses, KernelTree.groupNodeRule) is sent alone, with its
+    centre of mass, mass and any quadrupole moment, and its threshold
+    replaced by -1, so every star of q accepts it;
+
+  - a leaf that is too close is sent with positions of its stars;
+
+  - any other node is sent, and the walk goes on into its children.
+
+The result is exactly the part of the tree any star of q can reach.  q
+appends the trees it receives, in rank order, after its own in the same
+FlatTree, renumbered so that the skip link of each root leads to the
+next root, and appends the imported stars after its own.  One pass of
+the unchanged KernelTree over q's own stars then walks all the trees in
+turn.  Forces are a Barnes-Hut sum over each rank's tree instead of one
+global tree - not bit for bit those of a single process, but within the
+accuracy of the method.
+
+Messages (see Transport) are:
+
+  stars    count, then per star x, y, z, vx, vy, vz, ax, ay, az, id,
+           cost (STAR_BYTES)
+  samples  count, then per sample key and cost
+  box      count of stars, then lower and upper corner
+  tree     node count, star count, then per node the NODEDSIZE floats
+           of nodesD, mass, size of subtree and number of stars
+           included (NODE_BYTES), then x, y, z of those stars
+
+Each step is a kick-drift-kick leapfrog, as in the single process.
+
+*/
+
+class Domain {
+
+    final static float HEADROOM = 1.25F ;
+    final static int SAMPLES = 64 ;  // key samples per rank, times ranks
+    final static int STAR_BYTES = 4 * 11 ;
+    final static int NODE_BYTES = 4 * (KernelTree.NODEDSIZE + 3) ;
+
+    final Transport transport ;
+    final int rank, size ;
+    final float boxWidth ;
+
+    int n ;          // own stars
+    int capacity ;   // of star arrays, which also hold imported stars
+
+    float [] x, y, z, vx, vy, vz, ax, ay, az ;
+    int [] id ;      // index of star in the whole initial state
+    float [] cost ;  // cost of star in last force pass
+
+    final long [] splitters ;
+    final float [] boxes ;     // lo x y z, hi x y z of each rank
+    final int [] boxStars ;    // stars in each rank
+
+    final FlatTree tree ;
+    final FlatTreeBuilder builder ;
+    KernelTree kernel ;
+    final int backend, grain ;
+
+    final KeySort sort = new KeySort() ;
+    final KeySort sampleSort = new KeySort() ;
+    int [] owner = new int [0] ;
+
+    // Scratch of export - tree nodes to send (negative if sent alone)
+    // and size of their subtrees, in sent order.
+
+    int [] export = new int [0], subtree = new int [0], stack = new int [0] ;
+    final ByteBuffer [] exports ;
+
+    // Last step
+
+    int migrated, importedNodes, importedStars ;
+    long interactions ;
+    long decomposeNanos, buildNanos, exchangeNanos, forceNanos, stepNanos ;
+
+    Domain(Transport transport, float boxWidth, int backend, int grain,
+           int capacity) {
+        this.transport = transport ;
+        rank = transport.rank ;
+        size = transport.size ;
+        this.boxWidth = boxWidth ;
+        this.backend = backend ;
+        this.grain = grain ;
+
+        splitters = new long [size + 1] ;
+        splitters [size] = Long.MAX_VALUE ;
+        boxes = new float [6 * size] ;
+        boxStars = new int [size] ;
+        exports = new ByteBuffer [size] ;
+
+        this.capacity = 0 ;
+        ensureCapacity(Math.max(capacity, 1)) ;
+        tree = new FlatTree(2 * this.capacity) ;
+        builder = new FlatTreeBuilder(tree) ;
+        builder.encoding = KernelTree.WIDE ;
+    }
+
+    void ensureCapacity(int needed) {
+
+        // Grow star arrays to hold needed stars.  A new kernel is made
+        // for the new arrays.
+
+        if(needed <= capacity) return ;
+        capacity = (int) (HEADROOM * needed) ;
+        x = grow(x) ;
+        y = grow(y) ;
+        z = grow(z) ;
+        vx = grow(vx) ;
+        vy = grow(vy) ;
+        vz = grow(vz) ;
+        ax = grow(ax) ;
+        ay = grow(ay) ;
+        az = grow(az) ;
+        cost = grow(cost) ;
+        id = id == null ? new int [capacity] : Arrays.copyOf(id, capacity) ;
+        if(kernel != null) {
+            kernel.dispose() ;
+            kernel = null ;
+        }
+    }
+
+    float [] grow(float [] a) {
+        return a == null ? new float [capacity] : Arrays.copyOf(a, capacity) ;
+    }
+
+    void generate(InitialConditions initial, int total) {
+
+        // This rank's share of the chunks of the initial state - the
+        // same stars as a single process would generate.
+
+        SplittableRandom root = new SplittableRandom(initial.seed) ;
+        double [] axis = InitialConditions.axis(root) ;
+        long [] seeds = InitialConditions.chunkSeeds(root, total) ;
+        int first = (int) ((long) rank * seeds.length / size) ;
+        int last = (int) ((long) (rank + 1) * seeds.length / size) ;
+        int lo = Math.min(total, first * InitialConditions.CHUNK) ;
+        int hi = Math.min(total, last * InitialConditions.CHUNK) ;
+
+        n = hi - lo ;
+        ensureCapacity(n) ;
+        Parallel.forRange(last - first, 1, (a, b) -> {
+            for(int c = first + a ; c < first + b ; c++) {
+                initial.generateChunk(c, seeds [c], axis, total, lo,
+                                      x, y, z, vx, vy, vz) ;
+            }
+        }) ;
+        for(int i = 0 ; i < n ; i++) {
+            id [i] = lo + i ;
+            cost [i] = 1 ;
+        }
+    }
+
+    void rebalance() throws IOException {
+
+        // Choose splitters for equal cost per rank.
+
+        sort.ensureCapacity(n) ;
+        for(int i = 0 ; i < n ; i++) {
+            sort.keys [i] = MortonTreeBuilder.key(x [i], y [i], z [i]) ;
+            sort.index [i] = i ;
+        }
+        sort.sort(n, 3 * MortonTreeBuilder.LEVELS) ;
+
+        int count = Math.min(SAMPLES * size, n) ;
+        ByteBuffer out = ByteBuffer.allocate(4 + 16 * count) ;
+        out.putInt(count) ;
+        for(int k = 0 ; k < count ; k++) {
+            int from = (int) ((long) k * n / count) ;
+            int to = (int) ((long) (k + 1) * n / count) ;
+            double sum = 0 ;
+            for(int m = from ; m < to ; m++) {
+                sum += Math.max(cost [sort.index [m]], 1) ;  // not yet walked
+            }
+            out.putLong(sort.keys [from]) ;
+            out.putDouble(sum) ;
+        }
+        out.flip() ;
+        ByteBuffer [] in = transport.allGather(out) ;
+
+        int total = 0 ;
+        for(ByteBuffer b : in) {
+            total += b.getInt(0) ;
+        }
+        double [] sampleCost = new double [total] ;
+        sampleSort.ensureCapacity(total) ;
+        int s = 0 ;
+        double totalCost = 0 ;
+        for(ByteBuffer b : in) {
+            int samples = b.getInt() ;
+            for(int k = 0 ; k < samples ; k++, s++) {
+                sampleSort.keys [s] = b.getLong() ;
+                sampleSort.index [s] = s ;
+                sampleCost [s] = b.getDouble() ;
+                totalCost += sampleCost [s] ;
+            }
+        }
+        sampleSort.sort(total, 3 * MortonTreeBuilder.LEVELS) ;
+
+        splitters [0] = 0 ;
+        int r = 1 ;
+        double sum = 0 ;
+        for(int k = 0 ; k < total ; k++) {
+            while(r < size && sum >= r * totalCost / size) {
+                splitters [r++] = sampleSort.keys [k] ;
+            }
+            sum += sampleCost [sampleSort.index [k]] ;
+        }
+        while(r < size) {
+            splitters [r++] = Long.MAX_VALUE ;
+        }
+    }
+
+    int owner(long key) {
+
+        // Rank whose range of keys holds key.
+
+        int lo = 0, hi = size - 1 ;
+        while(lo < hi) {
+            int mid = (lo + hi + 1) >>> 1 ;
+            if(splitters [mid] <= key)
+                lo = mid ;
+            else
+                hi = mid - 1 ;
+        }
+        return lo ;
+    }
+
+    void migrate() throws IOException {
+
+        // Send stars outside this rank's range to their owners.
+
+        if(owner.length < n) {
+            owner = new int [capacity] ;
+        }
+        int [] counts = new int [size] ;
+        for(int i = 0 ; i < n ; i++) {
+            owner [i] = owner(MortonTreeBuilder.key(x [i], y [i], z [i])) ;
+            counts [owner [i]]++ ;
+        }
+        ByteBuffer [] out = new ByteBuffer [size] ;
+        for(int q = 0 ; q < size ; q++) {
+            out [q] = ByteBuffer.allocate(4 + (q == rank ? 0 : STAR_BYTES * counts [q])) ;
+            out [q].putInt(q == rank ? 0 : counts [q]) ;
+        }
+        int kept = 0 ;
+        for(int i = 0 ; i < n ; i++) {
+            if(owner [i] == rank) {
+                move(i, kept++) ;
+            }
+            else {
+                putStar(out [owner [i]], i) ;
+            }
+        }
+        migrated = n - kept ;
+        n = kept ;
+        for(ByteBuffer b : out) {
+            b.flip() ;
+        }
+
+        ByteBuffer [] in = transport.allToAll(out) ;
+        int incoming = 0 ;
+        for(ByteBuffer b : in) {
+            incoming += b.getInt(0) ;
+        }
+        ensureCapacity(n + incoming) ;
+        for(ByteBuffer b : in) {
+            int count = b.getInt() ;
+            for(int k = 0 ; k < count ; k++) {
+                getStar(b, n++) ;
+            }
+        }
+    }
+
+    void move(int from, int to) {
+        if(from == to) return ;
+        x [to] = x [from] ;
+        y [to] = y [from] ;
+        z [to] = z [from] ;
+        vx [to] = vx [from] ;
+        vy [to] = vy [from] ;
+        vz [to] = vz [from] ;
+        ax [to] = ax [from] ;
+        ay [to] = ay [from] ;
+        az [to] = az [from] ;
+        id [to] = id [from] ;
+        cost [to] = cost [from] ;
+    }
+
+    void putStar(ByteBuffer b, int i) {
+        b.putFloat(x [i]).putFloat(y [i]).putFloat(z [i]) ;
+        b.putFloat(vx [i]).putFloat(vy [i]).putFloat(vz [i]) ;
+        b.putFloat(ax [i]).putFloat(ay [i]).putFloat(az [i]) ;
+        b.putInt(id [i]).putFloat(cost [i]) ;
+    }
+
+    void getStar(ByteBuffer b, int i) {
+        x [i] = b.getFloat() ;
+        y [i] = b.getFloat() ;
+        z [i] = b.getFloat() ;
+        vx [i] = b.getFloat() ;
+        vy [i] = b.getFloat() ;
+        vz [i] = b.getFloat() ;
+        ax [i] = b.getFloat() ;
+        ay [i] = b.getFloat() ;
+        az [i] = b.getFloat() ;
+        id [i] = b.getInt() ;
+        cost [i] = b.getFloat() ;
+    }
+
+    void computeForces() throws IOException {
+
+        long start = System.nanoTime() ;
+        builder.build(x, y, z, n) ;
+        long built = System.nanoTime() ;
+        buildNanos = built - start ;
+
+        // Bounding boxes of all ranks.
+
+        ByteBuffer box = ByteBuffer.allocate(4 + 24) ;
+        box.putInt(n) ;
+        float [] lo = {boxWidth, boxWidth, boxWidth} ;
+        float [] hi = {0, 0, 0} ;
+        for(int i = 0 ; i < n ; i++) {
+            lo [0] = Math.min(lo [0], x [i]) ;
+            lo [1] = Math.min(lo [1], y [i]) ;
+            lo [2] = Math.min(lo [2], z [i]) ;
+            hi [0] = Math.max(hi [0], x [i]) ;
+            hi [1] = Math.max(hi [1], y [i]) ;
+            hi [2] = Math.max(hi [2], z [i]) ;
+        }
+        for(int k = 0 ; k < 3 ; k++) {
+            box.putFloat(lo [k]) ;
+        }
+        for(int k = 0 ; k < 3 ; k++) {
+            box.putFloat(hi [k]) ;
+        }
+        box.flip() ;
+        ByteBuffer [] in = transport.allGather(box) ;
+        for(int q = 0 ; q < size ; q++) {
+            boxStars [q] = in [q].getInt() ;
+            for(int k = 0 ; k < 6 ; k++) {
+                boxes [6 * q + k] = in [q].getFloat() ;
+            }
+        }
+
+        // Locally essential trees.
+
+        ByteBuffer [] out = new ByteBuffer [size] ;
+        for(int q = 0 ; q < size ; q++) {
+            out [q] = export(q) ;
+        }
+        in = transport.allToAll(out) ;
+        importedNodes = 0 ;
+        importedStars = 0 ;
+        for(int q = 0 ; q < size ; q++) {
+            if(q != rank) append(in [q]) ;
+        }
+        long exchanged = System.nanoTime() ;
+        exchangeNanos = exchanged - built ;
+
+        if(kernel == null) {
+            kernel = new KernelTree(x, y, z, ax, ay, az, tree) ;
+            kernel.setExplicit(true) ;
+            kernel.backend = backend ;
+            kernel.hostGrain = grain ;
+        }
+        kernel.setTree(tree) ;
+        interactions = 0 ;
+        if(n > 0) {
+            kernel.computeForces(Range.create(n)) ;
+            kernel.fetchCounters() ;
+            for(int i = 0 ; i < n ; i++) {
+                cost [i] = kernel.visits [i] + kernel.interactions [i] ;
+                interactions += kernel.interactions [i] ;
+            }
+        }
+        forceNanos = System.nanoTime() - exchanged ;
+    }
+
+    ByteBuffer export(int q) {
+
+        // Nodes and stars of own tree that stars of rank q can reach.
+
+        int count = 0, stars = 0 ;
+        if(q != rank && boxStars [q] > 0 && n > 0) {
+            int [] nodesI = tree.nodesI ;
+            int top = tree.numNodes + 1 ;
+            if(export.length < top) {
+                export = new int [top] ;
+                subtree = new int [top] ;
+                stack = new int [2 * top] ;
+            }
+            int depth = 0 ;
+            int node = KernelTree.TREE_ROOT ;
+            while(node < top) {
+                int nodesIptr = KernelTree.NODEISIZE * node ;
+                while(depth > 0 && node >= stack [2 * depth - 1]) {
+                    depth-- ;
+                    subtree [stack [2 * depth]] = count - stack [2 * depth] ;
+                }
+                int mass = nodesI [nodesIptr + KernelTree.NPARTICLES] ;
+                int skip = nodesI [nodesIptr + KernelTree.SKIP] ;
+                if(mass == 0) {
+                    node = skip ;
+                    continue ;
+                }
+                int k = count++ ;
+                if(accepted(node, q)) {
+                    export [k] = -node ;
+                    subtree [k] = 1 ;
+                    node = skip ;
+                }
+                else if(nodesI [nodesIptr + KernelTree.FIRSTCHILD] == KernelTree.NULL) {
+                    export [k] = node ;
+                    subtree [k] = 1 ;
+                    stars += mass ;
+                    node = skip ;
+                }
+                else {
+                    export [k] = node ;
+                    stack [2 * depth] = k ;
+                    stack [2 * depth + 1] = skip ;
+                    depth++ ;
+                    node++ ;
+                }
+            }
+            while(depth > 0) {
+                depth-- ;
+                subtree [stack [2 * depth]] = count - stack [2 * depth] ;
+            }
+        }
+
+        int bytes = 8 + NODE_BYTES * count + 12 * stars ;
+        ByteBuffer b = exports [q] ;
+        if(b == null || b.capacity() < bytes) {
+            b = ByteBuffer.allocate((int) (HEADROOM * bytes)) ;
+            exports [q] = b ;
+        }
+        b.clear() ;
+        b.putInt(count) ;
+        b.putInt(stars) ;
+        float [] nodesD = tree.nodesD ;
+        int [] nodesI = tree.nodesI ;
+        for(int k = 0 ; k < count ; k++) {
+            int node = Math.abs(export [k]) ;
+            int nodesDptr = KernelTree.NODEDSIZE * node ;
+            int nodesIptr = KernelTree.NODEISIZE * node ;
+            for(int f = 0 ; f < KernelTree.NODEDSIZE ; f++) {
+                b.putFloat(f == KernelTree.THRESHOLD && export [k] < 0 ? -1F :
+                           nodesD [nodesDptr + f]) ;
+            }
+            int mass = nodesI [nodesIptr + KernelTree.NPARTICLES] ;
+            boolean leaf = export [k] > 0 &&
+                           nodesI [nodesIptr + KernelTree.FIRSTCHILD] == KernelTree.NULL ;
+            b.putInt(mass) ;
+            b.putInt(subtree [k]) ;
+            b.putInt(leaf ? mass : 0) ;
+        }
+        for(int k = 0 ; k < count ; k++) {
+            int node = export [k] ;
+            int nodesIptr = KernelTree.NODEISIZE * Math.abs(node) ;
+            if(node < 0 || nodesI [nodesIptr + KernelTree.FIRSTCHILD] != KernelTree.NULL)
+                continue ;
+            int first = nodesI [nodesIptr + KernelTree.FIRSTSTAR] ;
+            int last = first + nodesI [nodesIptr + KernelTree.NPARTICLES] ;
+            for(int m = first ; m < last ; m++) {
+                int star = tree.stars [m] ;
+                b.putFloat(x [star]).putFloat(y [star]).putFloat(z [star]) ;
+            }
+        }
+        b.flip() ;
+        return b ;
+    }
+
+    boolean accepted(int node, int q) {
+
+        // Whether node is far enough from every point of the box of
+        // rank q's stars (as KernelTree.boxDistance, in periodic box).
+
+        int nodesDptr = KernelTree.NODEDSIZE * node ;
+        double d2 = 0 ;
+        for(int k = 0 ; k < 3 ; k++) {
+            double p = tree.nodesD [nodesDptr + KernelTree.XMID + k] ;
+            double lo = boxes [6 * q + k] ;
+            double hi = boxes [6 * q + 3 + k] ;
+            double d = Math.max(Math.max(lo - p, p - hi), 0) ;
+            d = Math.min(d, Math.max(Math.max(lo - (p - boxWidth), (p - boxWidth) - hi), 0)) ;
+            d = Math.min(d, Math.max(Math.max(lo - (p + boxWidth), (p + boxWidth) - hi), 0)) ;
+            d2 += d * d ;
+        }
+        double threshold = tree.nodesD [nodesDptr + KernelTree.THRESHOLD] ;
+        return d2 > threshold * threshold ;
+    }
+
+    void append(ByteBuffer b) {
+
+        // Add tree received from another rank after those already in
+        // the FlatTree, and its stars after those in the star arrays.
+
+        int count = b.getInt() ;
+        int stars = b.getInt() ;
+        if(count == 0) return ;
+
+        int firstStar = n + importedStars ;
+        ensureCapacity(firstStar + stars) ;
+        if(tree.stars.length < firstStar + stars) {
+            tree.stars = Arrays.copyOf(tree.stars, capacity) ;
+        }
+        int first = tree.allocateNodes(count) ;
+        float [] nodesD = tree.nodesD ;
+        int [] nodesI = tree.nodesI ;
+        int nextStar = firstStar ;
+        for(int k = 0 ; k < count ; k++) {
+            int node = first + k ;
+            int nodesDptr = KernelTree.NODEDSIZE * node ;
+            int nodesIptr = KernelTree.NODEISIZE * node ;
+            for(int f = 0 ; f < KernelTree.NODEDSIZE ; f++) {
+                nodesD [nodesDptr + f] = b.getFloat() ;
+            }
+            int mass = b.getInt() ;
+            int size = b.getInt() ;
+            int included = b.getInt() ;
+            nodesI [nodesIptr + KernelTree.PARENT] = KernelTree.NULL ;
+            nodesI [nodesIptr + KernelTree.FIRSTCHILD] =
+                    size > 1 ? node + 1 : KernelTree.NULL ;
+            nodesI [nodesIptr + KernelTree.NEXT] = KernelTree.NULL ;
+            nodesI [nodesIptr + KernelTree.NPARTICLES] = mass ;
+            nodesI [nodesIptr + KernelTree.FIRSTSTAR] = nextStar ;
+            nodesI [nodesIptr + KernelTree.SKIP] = node + size ;
+            nextStar += included ;
+        }
+        for(int s = firstStar ; s < firstStar + stars ; s++) {
+            x [s] = b.getFloat() ;
+            y [s] = b.getFloat() ;
+            z [s] = b.getFloat() ;
+            tree.stars [s] = s ;
+        }
+        importedNodes += count ;
+        importedStars += stars ;
+    }
+
+    void kick(float dt) {
+        for(int i = 0 ; i < n ; i++) {
+            vx [i] += ax [i] * dt ;
+            vy [i] += ay [i] * dt ;
+            vz [i] += az [i] * dt ;
+        }
+    }
+
+    void drift(float dt) {
+        for(int i = 0 ; i < n ; i++) {
+            x [i] = wrap(x [i] + vx [i] * dt) ;
+            y [i] = wrap(y [i] + vy [i] * dt) ;
+            z [i] = wrap(z [i] + vz [i] * dt) ;
+        }
+    }
+
+    float wrap(float a) {
+        float w = a % boxWidth ;
+        if(w < 0) w += boxWidth ;
+        return w < boxWidth ? w : 0 ;
+    }
+
+    void start() throws IOException {
+
+        // Decompose the initial state, and compute its forces.
+
+        long begin = System.nanoTime() ;
+        rebalance() ;
+        migrate() ;
+        decomposeNanos = System.nanoTime() - begin ;
+        computeForces() ;
+        stepNanos = System.nanoTime() - begin ;
+    }
+
+    void step(float dt, boolean rebalance) throws IOException {
+        long begin = System.nanoTime() ;
+        kick(0.5F * dt) ;
+        drift(dt) ;
+
+        long decompose = System.nanoTime() ;
+        if(rebalance) rebalance() ;
+        migrate() ;
+        decomposeNanos = System.nanoTime() - decompose ;
+
+        computeForces() ;
+        kick(0.5F * dt) ;
+        stepNanos = System.nanoTime() - begin ;
+    }
+
+    final static String CSV_HEADER =
+            "step,ranks,stars_min,stars_max,migrated,let_nodes,let_stars," +
+            "interactions_per_star,decompose_ms,build_ms,exchange_ms," +
+            "force_ms_mean,force_ms_max,step_ms,mb_sent,efficiency" ;
+
+    String report(int step) throws IOException {
+
+        /*
+         * Gather figures of last step from all ranks.  Returns a CSV
+         * line on rank 0, null on the others.  Efficiency is total
+         * force time over ranks times the slowest step.
+         */
+
+        ByteBuffer out = ByteBuffer.allocate(8 * 11) ;
+        out.putLong(n).putLong(migrated).putLong(importedNodes)
+           .putLong(importedStars).putLong(interactions)
+           .putLong(decomposeNanos).putLong(buildNanos).putLong(exchangeNanos)
+           .putLong(forceNanos).putLong(stepNanos).putLong(transport.bytesSent) ;
+        out.flip() ;
+        ByteBuffer [] in = transport.allGather(out) ;
+        if(rank != 0) return null ;
+
+        long [][] v = new long [size] [11] ;
+        long [] sum = new long [11] ;
+        long [] max = new long [11] ;
+        long minStars = Long.MAX_VALUE ;
+        for(int q = 0 ; q < size ; q++) {
+            for(int k = 0 ; k < 11 ; k++) {
+                v [q] [k] = in [q].getLong() ;
+                sum [k] += v [q] [k] ;
+                max [k] = Math.max(max [k], v [q] [k]) ;
+            }
+            minStars = Math.min(minStars, v [q] [0]) ;
+        }
+        return String.format(Locale.ROOT,
+                "%d,%d,%d,%d,%d,%d,%d,%.1f,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%.1f,%.3f",
+                step, size, minStars, max [0], sum [1], sum [2] / size,
+                sum [3] / size, (double) sum [4] / Math.max(sum [0], 1),
+                max [5] / 1e6, max [6] / 1e6, max [7] / 1e6,
+                sum [8] / 1e6 / size, max [8] / 1e6, max [9] / 1e6,
+                sum [10] / 1e6, (double) sum [8] / (size * (double) max [9])) ;
+    }
+}
@@ -0,0 +1,516 @@
+package org.hpjava;
+
+import java.util.Arrays ;
+
+import java.util.concurrent.atomic.LongAdder ;
+
+
+/*
+
+Forces by the fast multipole method, on the same flat trees as
+KernelTree (FlatTreeBuilder or MortonTreeBuilder, preorder, best with
+bh.leafSize of 16 or more), in O(N) instead of O(N log N).
+
+Expansions are Cartesian Taylor series to total order "order" about the
+centre of mass z of each node, as in Dehnen's falcON:
+
+  multipole  M_n = sum over stars j of node of (x_j - z)^n
+
+  local      L_k, such that the potential of far stars at z + d is
+             - sum over k of L_k d^k
+
+for multi-indices n = (nx, ny, nz) with |n| = nx + ny + nz <= order,
+and x^n = x^nx y^ny z^nz.  The passes are:
+
+  upward     P2M at leaves, M2M (shift by t: sum of C(n, k) t^(n - k)
+             M_k) to parents, and the radius of each node about its
+             centre (largest distance of any of its stars).
+
+  walk       dual tree walk of pairs (B, A), from (root, root).  If
+             (r_A + r_B) < theta |R|, where R is the minimum image of
+             z_B - z_A, the pair interacts by M2L:
+
+               L_k += (-1)^|k| sum over n of C(k + n, k) b_(k+n) (R) M_n
+
+             with b_m the Taylor coefficients of 1 / |R - y| in y,
+             from the recurrence of Duan and Krasny
+
+               |m| R^2 b_m = (2|m| - 1) sum_i R_i b_(m - e_i)
+                             - (|m| - 1) sum_i b_(m - 2 e_i)
+
+             If not, and both are leaves, stars of A act on stars of B
+             directly (P2P, as KernelTree.starForce).
+             Otherwise the node with the larger radius is split.
+
+  downward   L2L (shift of locals to children) and, at leaves, L2P:
+             acceleration of star at z + d is sum of L_k grad d^k.
+
+Only B and its descendants are written while walking pairs (B, A), so
+children of a B holding more than "grain" stars are walked in parallel
+on the Parallel pool, as are subtrees in the upward and downward
+passes.  Arithmetic is in double.
+
+Loose stars of a refitted tree (RefitTreeBuilder) are not supported.
+
+*/
+
+class FastMultipole {
+
+    final int order ;
+    final float theta ;
+    final int terms ;  // multi-indices of order up to "order"
+
+    final float [] x, y, z ;
+    final float [] ax, ay, az ;
+
+    int grain = 4096 ;  // stars below which a subtree is one task
+
+    // Multi-index n = (ex [t], ey [t], ez [t]) of term t, terms in
+    // order of |n|.
+
+    final int [] ex, ey, ez, level ;
+    final int [][][] index ;
+
+    // M2L: L [m2lK] += m2lCoef * b [m2lSum] * M [m2lN]
+
+    final int [] m2lK, m2lN, m2lSum ;
+    final double [] m2lCoef ;
+
+    // Shifts: M2M  M' [shiftN] += shiftCoef * t^shiftD * M [shiftK]
+    //         L2L  L' [shiftK] += shiftCoef * t^shiftD * L [shiftN]
+
+    final int [] shiftN, shiftK, shiftD ;
+    final double [] shiftCoef ;
+
+    // Per node, indexed by node number
+
+    double [] multipoles = new double [0] ;
+    double [] locals = new double [0] ;
+    double [] centre = new double [0] ;
+    double [] radius = new double [0] ;
+
+    FlatTree tree ;
+    float [] nodesD ;
+    int [] nodesI ;
+    int [] leafStars ;
+
+    final ThreadLocal<double []> scratch ;
+
+    // Work in last pass
+
+    final LongAdder pairs = new LongAdder() ;       // visited by walk
+    final LongAdder cellInteractions = new LongAdder() ;  // M2L
+    final LongAdder starInteractions = new LongAdder() ;  // P2P
+
+    FastMultipole(float [] x, float [] y, float [] z,
+                  float [] ax, float [] ay, float [] az,
+                  int order, float theta) {
+
+        if(order < 1) {
+            throw new IllegalArgumentException("expansion order must be at least 1") ;
+        }
+
+        this.x = x ;
+        this.y = y ;
+        this.z = z ;
+        this.ax = ax ;
+        this.ay = ay ;
+        this.az = az ;
+        this.order = order ;
+        this.theta = theta ;
+
+        terms = (order + 1) * (order + 2) * (order + 3) / 6 ;
+        ex = new int [terms] ;
+        ey = new int [terms] ;
+        ez = new int [terms] ;
+        level = new int [terms] ;
+        index = new int [order + 1] [order + 1] [order + 1] ;
+        int t = 0 ;
+        for(int l = 0 ; l <= order ; l++) {
+            for(int a = l ; a >= 0 ; a--) {
+                for(int b = l - a ; b >= 0 ; b--) {
+                    ex [t] = a ;
+                    ey [t] = b ;
+                    ez [t] = l - a - b ;
+                    level [t] = l ;
+                    index [a] [b] [l - a - b] = t++ ;
+                }
+            }
+        }
+
+        int count = 0 ;
+        for(int k = 0 ; k < terms ; k++) {
+            for(int n = 0 ; n < terms ; n++) {
+                if(level [k] + level [n] <= order) count++ ;
+            }
+        }
+        m2lK = new int [count] ;
+        m2lN = new int [count] ;
+        m2lSum = new int [count] ;
+        m2lCoef = new double [count] ;
+        int c = 0 ;
+        for(int k = 0 ; k < terms ; k++) {
+            for(int n = 0 ; n < terms ; n++) {
+                if(level [k] + level [n] > order) continue ;
+                m2lK [c] = k ;
+                m2lN [c] = n ;
+                m2lSum [c] = index [ex [k] + ex [n]] [ey [k] + ey [n]] [ez [k] + ez [n]] ;
+                m2lCoef [c] = (level [k] % 2 == 0 ? 1 : -1) *
+                              binomial(ex [k] + ex [n], ex [k]) *
+                              binomial(ey [k] + ey [n], ey [k]) *
+                              binomial(ez [k] + ez [n], ez [k]) ;
+                c++ ;
+            }
+        }
+
+        count = 0 ;
+        for(int n = 0 ; n < terms ; n++) {
+            for(int k = 0 ; k < terms ; k++) {
+                if(ex [k] <= ex [n] && ey [k] <= ey [n] && ez [k] <= ez [n]) count++ ;
+            }
+        }
+        shiftN = new int [count] ;
+        shiftK = new int [count] ;
+        shiftD = new int [count] ;
+        shiftCoef = new double [count] ;
+        c = 0 ;
+        for(int n = 0 ; n < terms ; n++) {
+            for(int k = 0 ; k < terms ; k++) {
+                if(ex [k] > ex [n] || ey [k] > ey [n] || ez [k] > ez [n]) continue ;
+                shiftN [c] = n ;
+                shiftK [c] = k ;
+                shiftD [c] = index [ex [n] - ex [k]] [ey [n] - ey [k]] [ez [n] - ez [k]] ;
+                shiftCoef [c] = binomial(ex [n], ex [k]) * binomial(ey [n], ey [k]) *
+                                binomial(ez [n], ez [k]) ;
+                c++ ;
+            }
+        }
+
+        scratch = ThreadLocal.withInitial(() -> new double [2 * terms]) ;
+    }
+
+    static double binomial(int n, int k) {
+        double b = 1 ;
+        for(int i = 1 ; i <= k ; i++) {
+            b = b * (n - k + i) / i ;
+        }
+        return b ;
+    }
+
+    void computeForces(FlatTree tree, int n) {
+
+        // Accelerations of stars 0 to n - 1, all in tree.
+
+        if(!tree.preorder || tree.numLoose > 0) {
+            throw new IllegalStateException("fast multipole method needs a " +
+                                            "preorder tree without loose stars") ;
+        }
+        this.tree = tree ;
+        nodesD = tree.nodesD ;
+        nodesI = tree.nodesI ;
+        leafStars = tree.stars ;
+
+        int nodes = tree.numNodes + 1 ;
+        if(radius.length < nodes) {
+            int capacity = tree.nodesI.length / KernelTree.NODEISIZE ;
+            multipoles = new double [terms * capacity] ;
+            locals = new double [terms * capacity] ;
+            centre = new double [3 * capacity] ;
+            radius = new double [capacity] ;
+        }
+        Arrays.fill(locals, 0, terms * nodes, 0.0) ;
+        Arrays.fill(ax, 0, n, 0F) ;
+        Arrays.fill(ay, 0, n, 0F) ;
+        Arrays.fill(az, 0, n, 0F) ;
+        pairs.reset() ;
+        cellInteractions.reset() ;
+        starInteractions.reset() ;
+
+        int root = KernelTree.TREE_ROOT ;
+        if(mass(root) == 0) return ;
+        upward(root) ;
+        walk(root, root) ;
+        downward(root) ;
+    }
+
+    int mass(int node) {
+        return nodesI [KernelTree.NODEISIZE * node + KernelTree.NPARTICLES] ;
+    }
+
+    boolean leaf(int node) {
+        return nodesI [KernelTree.NODEISIZE * node + KernelTree.FIRSTCHILD] == KernelTree.NULL ;
+    }
+
+    int [] children(int node) {
+
+        // Children of node holding stars.
+
+        int [] children = new int [8] ;
+        int count = 0 ;
+        for(int child = firstChild(node) ; child != KernelTree.NULL ; child = next(child)) {
+            if(mass(child) == 0) continue ;
+            if(count == children.length) children = Arrays.copyOf(children, 2 * count) ;
+            children [count++] = child ;
+        }
+        return Arrays.copyOf(children, count) ;
+    }
+
+    void powers(double dx, double dy, double dz, double [] out, int offset, int maxLevel) {
+
+        // out [offset + t] = d^n for term t = n, up to order maxLevel.
+
+        out [offset] = 1 ;
+        int top = (maxLevel + 1) * (maxLevel + 2) * (maxLevel + 3) / 6 ;
+        for(int t = 1 ; t < top ; t++) {
+            int a = ex [t], b = ey [t], c = ez [t] ;
+            if(a > 0)
+                out [offset + t] = out [offset + index [a - 1] [b] [c]] * dx ;
+            else if(b > 0)
+                out [offset + t] = out [offset + index [a] [b - 1] [c]] * dy ;
+            else
+                out [offset + t] = out [offset + index [a] [b] [c - 1]] * dz ;
+        }
+    }
+
+    void upward(int node) {
+
+        // P2M and M2M: multipole, centre and radius of subtree of node.
+
+        int mp = terms * node ;
+        int cp = 3 * node ;
+        Arrays.fill(multipoles, mp, mp + terms, 0.0) ;
+
+        if(leaf(node)) {
+            int nodesIptr = KernelTree.NODEISIZE * node ;
+            int first = nodesI [nodesIptr + KernelTree.FIRSTSTAR] ;
+            int last = first + nodesI [nodesIptr + KernelTree.NPARTICLES] ;
+            double cx = 0, cy = 0, cz = 0 ;
+            for(int m = first ; m < last ; m++) {
+                int star = leafStars [m] ;
+                cx += x [star] ;
+                cy += y [star] ;
+                cz += z [star] ;
+            }
+            cx /= last - first ;
+            cy /= last - first ;
+            cz /= last - first ;
+            centre [cp] = cx ;
+            centre [cp + 1] = cy ;
+            centre [cp + 2] = cz ;
+
+            double [] s = scratch.get() ;
+            double r2 = 0 ;
+            for(int m = first ; m < last ; m++) {
+                int star = leafStars [m] ;
+                double dx = x [star] - cx, dy = y [star] - cy, dz = z [star] - cz ;
+                r2 = Math.max(r2, dx * dx + dy * dy + dz * dz) ;
+                powers(dx, dy, dz, s, 0, order) ;
+                for(int t = 0 ; t < terms ; t++) {
+                    multipoles [mp + t] += s [t] ;
+                }
+            }
+            radius [node] = Math.sqrt(r2) ;
+            return ;
+        }
+
+        int [] children = children(node) ;
+        if(mass(node) > grain)
+            Parallel.forEach(children.length, i -> upward(children [i])) ;
+        else
+            for(int child : children) upward(child) ;
+
+        double cx = 0, cy = 0, cz = 0 ;
+        for(int child : children) {
+            double m = multipoles [terms * child] ;
+            cx += m * centre [3 * child] ;
+            cy += m * centre [3 * child + 1] ;
+            cz += m * centre [3 * child + 2] ;
+        }
+        double total = mass(node) ;
+        cx /= total ;
+        cy /= total ;
+        cz /= total ;
+        centre [cp] = cx ;
+        centre [cp + 1] = cy ;
+        centre [cp + 2] = cz ;
+
+        double [] s = scratch.get() ;
+        double r = 0 ;
+        for(int child : children) {
+            int childCp = 3 * child ;
+            double tx = centre [childCp] - cx ;
+            double ty = centre [childCp + 1] - cy ;
+            double tz = centre [childCp + 2] - cz ;
+            r = Math.max(r, Math.sqrt(tx * tx + ty * ty + tz * tz) + radius [child]) ;
+            powers(tx, ty, tz, s, 0, order) ;
+            int childMp = terms * child ;
+            for(int i = 0 ; i < shiftN.length ; i++) {
+                multipoles [mp + shiftN [i]] +=
+                        shiftCoef [i] * s [shiftD [i]] * multipoles [childMp + shiftK [i]] ;
+            }
+        }
+        radius [node] = r ;
+    }
+
+    static double minimumImage(double d) {
+        double box = KernelTree.BOX_WIDTH ;
+        if(d > box / 2) d -= box ;
+        if(d < -box / 2) d += box ;
+        return d ;
+    }
+
+    void walk(int b, int a) {
+
+        // Interaction of pair (B, A): sources A acting on targets B.
+
+        pairs.increment() ;
+        double rx = minimumImage(centre [3 * b] - centre [3 * a]) ;
+        double ry = minimumImage(centre [3 * b + 1] - centre [3 * a + 1]) ;
+        double rz = minimumImage(centre [3 * b + 2] - centre [3 * a + 2]) ;
+        double r2 = rx * rx + ry * ry + rz * rz ;
+        double reach = radius [a] + radius [b] ;
+
+        boolean leafA = leaf(a), leafB = leaf(b) ;
+        if(reach * reach < theta * theta * r2) {
+            m2l(b, a, rx, ry, rz, r2) ;
+        }
+        else if(leafA && leafB) {
+            p2p(b, a, centre [3 * b] - centre [3 * a] - rx,
+                centre [3 * b + 1] - centre [3 * a + 1] - ry,
+                centre [3 * b + 2] - centre [3 * a + 2] - rz) ;
+        }
+        else if(leafA || (!leafB && radius [b] >= radius [a])) {
+            if(mass(b) > grain) {
+                int [] children = children(b) ;
+                Parallel.forEach(children.length, i -> walk(children [i], a)) ;
+            }
+            else {
+                for(int child = firstChild(b) ; child != KernelTree.NULL ; child = next(child)) {
+                    if(mass(child) > 0) walk(child, a) ;
+                }
+            }
+        }
+        else {
+            for(int child = firstChild(a) ; child != KernelTree.NULL ; child = next(child)) {
+                if(mass(child) > 0) walk(b, child) ;
+            }
+        }
+    }
+
+    int firstChild(int node) {
+        return nodesI [KernelTree.NODEISIZE * node + KernelTree.FIRSTCHILD] ;
+    }
+
+    int next(int node) {
+        return nodesI [KernelTree.NODEISIZE * node + KernelTree.NEXT] ;
+    }
+
+    void m2l(int b, int a, double rx, double ry, double rz, double r2) {
+
+        // Multipole of A to local expansion of B, at B - A = R.
+
+        double [] d = scratch.get() ;
+        d [0] = 1 / Math.sqrt(r2) ;
+        for(int t = 1 ; t < terms ; t++) {
+            int ea = ex [t], eb = ey [t], ec = ez [t] ;
+            double first = 0, second = 0 ;
+            if(ea > 0) first += rx * d [index [ea - 1] [eb] [ec]] ;
+            if(eb > 0) first += ry * d [index [ea] [eb - 1] [ec]] ;
+            if(ec > 0) first += rz * d [index [ea] [eb] [ec - 1]] ;
+            if(ea > 1) second += d [index [ea - 2] [eb] [ec]] ;
+            if(eb > 1) second += d [index [ea] [eb - 2] [ec]] ;
+            if(ec > 1) second += d [index [ea] [eb] [ec - 2]] ;
+            int l = level [t] ;
+            d [t] = ((2 * l - 1) * first - (l - 1) * second) / (l * r2) ;
+        }
+        int lp = terms * b, mp = terms * a ;
+        for(int i = 0 ; i < m2lK.length ; i++) {
+            locals [lp + m2lK [i]] += m2lCoef [i] * d [m2lSum [i]] * multipoles [mp + m2lN [i]] ;
+        }
+        cellInteractions.increment() ;
+    }
+
+    void p2p(int b, int a, double shiftX, double shiftY, double shiftZ) {
+
+        // Stars of leaf A acting directly on stars of leaf B.  Leaves
+        // this close are much smaller than the box, so the minimum
+        // image of every pair is the shift (0 or a box width) of the
+        // minimum image of their centres.
+
+        int bPtr = KernelTree.NODEISIZE * b, aPtr = KernelTree.NODEISIZE * a ;
+        int firstB = nodesI [bPtr + KernelTree.FIRSTSTAR] ;
+        int lastB = firstB + nodesI [bPtr + KernelTree.NPARTICLES] ;
+        int firstA = nodesI [aPtr + KernelTree.FIRSTSTAR] ;
+        int lastA = firstA + nodesI [aPtr + KernelTree.NPARTICLES] ;
+        for(int mb = firstB ; mb < lastB ; mb++) {
+            int target = leafStars [mb] ;
+            double tx = x [target] - shiftX ;
+            double ty = y [target] - shiftY ;
+            double tz = z [target] - shiftZ ;
+            double sx = 0, sy = 0, sz = 0 ;
+            for(int ma = firstA ; ma < lastA ; ma++) {
+                int source = leafStars [ma] ;
+                double dx = tx - x [source] ;
+                double dy = ty - y [source] ;
+                double dz = tz - z [source] ;
+                double rSquared = dx * dx + dy * dy + dz * dz ;
+                if(rSquared > 0) {
+                    double rCubedInv = 1 / (rSquared * Math.sqrt(rSquared)) ;
+                    sx -= rCubedInv * dx ;
+                    sy -= rCubedInv * dy ;
+                    sz -= rCubedInv * dz ;
+                }
+            }
+            ax [target] += (float) sx ;
+            ay [target] += (float) sy ;
+            az [target] += (float) sz ;
+        }
+        starInteractions.add((long) (lastB - firstB) * (lastA - firstA)) ;
+    }
+
+    void downward(int node) {
+
+        // L2L to children of node, and L2P at leaves.
+
+        int lp = terms * node ;
+        double cx = centre [3 * node], cy = centre [3 * node + 1], cz = centre [3 * node + 2] ;
+        double [] s = scratch.get() ;
+
+        if(leaf(node)) {
+            int nodesIptr = KernelTree.NODEISIZE * node ;
+            int first = nodesI [nodesIptr + KernelTree.FIRSTSTAR] ;
+            int last = first + nodesI [nodesIptr + KernelTree.NPARTICLES] ;
+            for(int m = first ; m < last ; m++) {
+                int star = leafStars [m] ;
+                powers(x [star] - cx, y [star] - cy, z [star] - cz, s, 0, order - 1) ;
+                double gx = 0, gy = 0, gz = 0 ;
+                for(int t = 1 ; t < terms ; t++) {
+                    double coefficient = locals [lp + t] ;
+                    int a = ex [t], b = ey [t], c = ez [t] ;
+                    if(a > 0) gx += coefficient * a * s [index [a - 1] [b] [c]] ;
+                    if(b > 0) gy += coefficient * b * s [index [a] [b - 1] [c]] ;
+                    if(c > 0) gz += coefficient * c * s [index [a] [b] [c - 1]] ;
+                }
+                ax [star] += (float) gx ;
+                ay [star] += (float) gy ;
+                az [star] += (float) gz ;
+            }
+            return ;
+        }
+
+        int [] children = children(node) ;
+        for(int child : children) {
+            powers(centre [3 * child] - cx, centre [3 * child + 1] - cy,
+                   centre [3 * child + 2] - cz, s, 0, order) ;
+            int childLp = terms * child ;
+            for(int i = 0 ; i < shiftN.length ; i++) {
+                locals [childLp + shiftK [i]] +=
+                        shiftCoef [i] * s [shiftD [i]] * locals [lp + shiftN [i]] ;
+            }
+        }
+        if(mass(node) > grain)
+            Parallel.forEach(children.length, i -> downward(children [i])) ;
+        else
+            for(int child : children) downward(child) ;
+    }
+}
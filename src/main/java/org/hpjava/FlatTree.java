@@ -0,0 +1,283 @@
+package org.hpjava;
+
+import java.util.Arrays ;
+
+
+/*
+
+Pooled storage for the "flattened" BH tree read by KernelTree.
+
+Layout of the nodesD and nodesI arrays is exactly as documented in
+KernelTree - node 0 is reserved to represent NULL, and the root of the
+tree is node 1.  The stars array holds star indices, with the stars of
+each leaf contiguous (see KernelTree.FIRSTSTAR).
+
+A preorder tree can also be encoded in the compact PACKED or QUANTIZED
+node records documented in KernelTree, after it is built (see encode).
+
+The arrays are kept from one time step to the next.  They are only
+reallocated (with some headroom) when a tree outgrows them, so in a
+steady state building a tree allocates no memory at all.
+
+*/
+
+class FlatTree {
+
+    final static float HEADROOM = 1.25F ;  // growth factor on reallocation
+
+    float [] nodesD ;
+    int [] nodesI ;
+    int [] stars = new int [0] ;
+
+    int numNodes ;   // nodes currently allocated, excluding reserved node 0
+    int capacity ;   // nodes that fit in current arrays, including node 0
+
+    int reallocations ;  // number of times arrays had to be grown
+
+    boolean quadrupole ;  // nodes of current tree have quadrupole moments
+    boolean preorder ;    // nodes numbered in preorder, with SKIP set
+
+    int encoding ;        // compact node records of current tree, if any
+    float [] packed = new float [0] ;
+    int [] quantized = new int [0] ;
+    float thresholdBase ; // least threshold per cell size (QUANTIZED)
+
+    int [] cells = new int [0] ;  // scratch - depth, x, y, z of each cell
+
+    // Stars stars [looseFirst] to stars [looseFirst + numLoose - 1] are
+    // in no leaf (only set by RefitTreeBuilder).
+
+    int looseFirst, numLoose ;
+
+    FlatTree(int capacity) {
+        allocate(Math.max(capacity, 2)) ;
+        reallocations = 0 ;
+    }
+
+    void clear() {
+        numNodes = 0 ;
+        numLoose = 0 ;
+    }
+
+    int allocateNode() {
+
+        /*
+         * Allocate next free node, growing arrays if necessary.
+         * Fields of a recycled node are NOT cleared here.
+         */
+
+        int node = numNodes + 1 ;
+        if(node >= capacity) {
+            allocate((int) (HEADROOM * (node + 1))) ;
+        }
+        numNodes = node ;
+        return node ;
+    }
+
+    int allocateNodes(int count) {
+
+        // Allocate count consecutive nodes, returning the first.
+
+        int first = numNodes + 1 ;
+        ensureCapacity(numNodes + count) ;
+        numNodes += count ;
+        return first ;
+    }
+
+    void ensureCapacity(int numNodes) {
+
+        // Make sure numNodes nodes (plus reserved node 0) will fit.
+
+        if(numNodes + 1 > capacity) {
+            allocate((int) (HEADROOM * (numNodes + 1))) ;
+        }
+    }
+
+    void ensureStars(int n) {
+        if(stars.length < n) {
+            stars = new int [n] ;
+        }
+    }
+
+    void encode(int encoding, float openingAngle) {
+
+        /*
+         * Fill node records for encoding, from the wide arrays.  The
+         * tree is left WIDE if it is not in preorder, or too deep for
+         * integer cell coordinates, or (PACKED) has indices that floats
+         * can't hold exactly.
+         */
+
+        this.encoding = KernelTree.WIDE ;
+        thresholdBase = Math.max(1F / openingAngle, TreeBuilder.MIN_OPENING) ;
+        if(encoding == KernelTree.WIDE || !preorder) return ;
+        if(encoding == KernelTree.PACKED &&
+           Math.max(numNodes + 1, stars.length) >= 1 << 24) return ;
+
+        int size = (numNodes + 1) * (encoding == KernelTree.PACKED ?
+                                     KernelTree.PACKEDSIZE :
+                                     KernelTree.QUANTSIZE) ;
+        if(encoding == KernelTree.PACKED && packed.length < size) {
+            packed = new float [(int) (HEADROOM * size)] ;
+        }
+        if(encoding == KernelTree.QUANTIZED && quantized.length < size) {
+            quantized = new int [(int) (HEADROOM * size)] ;
+        }
+        if(cells.length < 4 * (numNodes + 1)) {
+            cells = new int [(int) (HEADROOM * 4 * (numNodes + 1))] ;
+        }
+
+        // Parents come before children, so one forward pass.
+
+        for(int node = KernelTree.TREE_ROOT ; node <= numNodes ; node++) {
+
+            int nodesDptr = KernelTree.NODEDSIZE * node ;
+            int nodesIptr = KernelTree.NODEISIZE * node ;
+            int parent = nodesI [nodesIptr + KernelTree.PARENT] ;
+
+            int depth = 0, octant = 0, ix = 0, iy = 0, iz = 0 ;
+            if(parent != KernelTree.NULL) {
+                int parentDptr = KernelTree.NODEDSIZE * parent ;
+                octant = (nodesD [nodesDptr + KernelTree.XMID] <
+                          nodesD [parentDptr + KernelTree.XMID] ? 0 : 4) +
+                         (nodesD [nodesDptr + KernelTree.YMID] <
+                          nodesD [parentDptr + KernelTree.YMID] ? 0 : 2) +
+                         (nodesD [nodesDptr + KernelTree.ZMID] <
+                          nodesD [parentDptr + KernelTree.ZMID] ? 0 : 1) ;
+                depth = cells [4 * parent] + 1 ;
+                ix = 2 * cells [4 * parent + 1] + (octant >> 2) ;
+                iy = 2 * cells [4 * parent + 2] + ((octant >> 1) & 1) ;
+                iz = 2 * cells [4 * parent + 3] + (octant & 1) ;
+            }
+            if(depth > KernelTree.MAX_CELL_DEPTH) return ;
+            cells [4 * node] = depth ;
+            cells [4 * node + 1] = ix ;
+            cells [4 * node + 2] = iy ;
+            cells [4 * node + 3] = iz ;
+
+            int mass = nodesI [nodesIptr + KernelTree.NPARTICLES] ;
+            int link = nodesI [nodesIptr + KernelTree.FIRSTCHILD] == KernelTree.NULL ?
+                       -(nodesI [nodesIptr + KernelTree.FIRSTSTAR] + 1) :
+                       nodesI [nodesIptr + KernelTree.SKIP] ;
+            int cell = 8 * depth + octant ;
+
+            float xCent = nodesD [nodesDptr + KernelTree.XCENT] ;
+            float yCent = nodesD [nodesDptr + KernelTree.YCENT] ;
+            float zCent = nodesD [nodesDptr + KernelTree.ZCENT] ;
+            float threshold = nodesD [nodesDptr + KernelTree.THRESHOLD] ;
+
+            if(encoding == KernelTree.PACKED) {
+                int ptr = KernelTree.PACKEDSIZE * node ;
+                packed [ptr + KernelTree.PXCENT] = xCent ;
+                packed [ptr + KernelTree.PYCENT] = yCent ;
+                packed [ptr + KernelTree.PZCENT] = zCent ;
+                packed [ptr + KernelTree.PTHRESHOLD] = threshold ;
+                packed [ptr + KernelTree.PMASS] = mass ;
+                packed [ptr + KernelTree.PLINK] = link ;
+                packed [ptr + KernelTree.PCELL] = cell ;
+            }
+            else {
+                double cellSize = KernelTree.BOX_WIDTH / Math.pow(2, depth) ;
+                int qx = offset(xCent / cellSize - ix) ;
+                int qy = offset(yCent / cellSize - iy) ;
+                int qz = offset(zCent / cellSize - iz) ;
+                int qt = (int) Math.ceil(256 * (threshold / cellSize - thresholdBase)) ;
+                qt = Math.min(Math.max(qt, 0), 255) ;
+
+                int ptr = KernelTree.QUANTSIZE * node ;
+                quantized [ptr + KernelTree.QNXY] = qx << 16 | qy ;
+                quantized [ptr + KernelTree.QNZCELL] = qz << 16 | qt << 8 | cell ;
+                quantized [ptr + KernelTree.QNMASS] = mass ;
+                quantized [ptr + KernelTree.QNLINK] = link ;
+            }
+        }
+        this.encoding = encoding ;
+    }
+
+    int depth() {
+
+        /*
+         * Depth of deepest node (root has depth 0), by a walk of the
+         * whole tree over FIRSTCHILD / NEXT / PARENT links, which any
+         * builder sets.
+         */
+
+        if(numNodes == 0) return 0 ;
+        int maxDepth = 0, depth = 0 ;
+        int node = KernelTree.TREE_ROOT ;
+        while(node != KernelTree.NULL) {
+            maxDepth = Math.max(maxDepth, depth) ;
+            int nodesIptr = KernelTree.NODEISIZE * node ;
+            if(nodesI [nodesIptr + KernelTree.FIRSTCHILD] != KernelTree.NULL) {
+                node = nodesI [nodesIptr + KernelTree.FIRSTCHILD] ;
+                depth++ ;
+            }
+            else {
+                while(node != KernelTree.NULL &&
+                      nodesI [KernelTree.NODEISIZE * node + KernelTree.NEXT] == KernelTree.NULL) {
+                    node = nodesI [KernelTree.NODEISIZE * node + KernelTree.PARENT] ;
+                    depth-- ;
+                }
+                if(node != KernelTree.NULL) {
+                    node = nodesI [KernelTree.NODEISIZE * node + KernelTree.NEXT] ;
+                }
+            }
+        }
+        return maxDepth ;
+    }
+
+    static int offset(double fraction) {
+
+        // 16 bit fixed point fraction of a cell, decoded at mid-point
+        // of its interval.
+
+        return (int) Math.min(Math.max(Math.floor(65536 * fraction), 0), 65535) ;
+    }
+
+    static int encoding(String name) {
+        switch(name.toLowerCase()) {
+            case "wide" :
+                return KernelTree.WIDE ;
+            case "packed" :
+                return KernelTree.PACKED ;
+            case "quantized" :
+                return KernelTree.QUANTIZED ;
+            default :
+                throw new IllegalArgumentException("unknown node encoding " + name) ;
+        }
+    }
+
+    private void allocate(int newCapacity) {
+        if(nodesD == null) {
+            nodesD = new float [KernelTree.NODEDSIZE * newCapacity] ;
+            nodesI = new int [KernelTree.NODEISIZE * newCapacity] ;
+        }
+        else {
+            nodesD = Arrays.copyOf(nodesD, KernelTree.NODEDSIZE * newCapacity) ;
+            nodesI = Arrays.copyOf(nodesI, KernelTree.NODEISIZE * newCapacity) ;
+        }
+        capacity = newCapacity ;
+        reallocations++ ;
+    }
+
+    float distance(float x, float y, float z, int node) {
+
+        // Distance from mid-point of node, with cyclic boundaries
+        // (as Node.distance).
+
+        int nodesDptr = KernelTree.NODEDSIZE * node ;
+        float boxWidth = KernelTree.BOX_WIDTH ;
+
+        float dx, dy, dz ;
+        dx = x - nodesD [nodesDptr + KernelTree.XMID] ;
+        if(dx > boxWidth / 2) dx -= boxWidth ;
+        if(dx < -boxWidth / 2) dx += boxWidth ;
+        dy = y - nodesD [nodesDptr + KernelTree.YMID] ;
+        if(dy > boxWidth / 2) dy -= boxWidth ;
+        if(dy < -boxWidth / 2) dy += boxWidth ;
+        dz = z - nodesD [nodesDptr + KernelTree.ZMID] ;
+        if(dz > boxWidth / 2) dz -= boxWidth ;
+        if(dz < -boxWidth / 2) dz += boxWidth ;
+        return (float) Math.sqrt(dx * dx + dy * dy + dz * dz) ;
+    }
+}
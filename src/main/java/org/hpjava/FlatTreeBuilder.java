@@ -0,0 +1,323 @@
+package org.hpjava;
+
+import java.util.Arrays ;
+
+import static org.hpjava.KernelTree.* ;
+
+
+/*
+
+Builds the BH tree directly in the flattened form used by KernelTree,
+without creating any intermediate Node objects.
+
+Stars are inserted one by one, as in Node.addParticle, but nodes are
+allocated from a pooled FlatTree of the builder's own (work), and a
+leaf is only split when it would hold more than leafSize stars.  Some
+builder-side scratch arrays (also pooled) hold the information only
+needed during the build: size of each cell, running sums of star
+positions, slots for the eight children of internal nodes, and a
+linked list of the stars in each leaf.
+
+Nodes of the work tree are numbered in insertion order.  Once all stars
+are inserted, a backward pass counts the nodes in each subtree, and a
+single forward pass copies every node into the output tree at its
+depth first preorder position, setting the parent / firstChild / next /
+skip pointers, centres of mass, opening thresholds and ranges of stars.
+Children come after their parents in preorder, so quadrupole moments,
+if wanted, take a final pass in reverse order.
+
+*/
+
+class FlatTreeBuilder extends TreeBuilder {
+
+    final static int LEAF = -1 ;  // childBase of a node without children
+    final static int END = -1 ;   // end of list of leaf stars
+
+    final static int MAX_DEPTH = 40 ;
+          // Below this depth cells are smaller than float resolution of
+          // positions in the box, so any stars still sharing a cell are
+          // coincident.  They are left together in one leaf.
+
+    // Builder-side scratch, indexed by node
+
+    float [] size ;
+    double [] sums ;      // sums of x, y, z over stars in cell
+    int [] childBase ;    // offset of child slots in children, or LEAF
+
+    int [] children ;     // eight slots per internal node, 0 if empty
+    int childTop ;
+
+    int [] head ;         // first star in leaf, or END
+    int [] nextStar ;     // next star in same leaf, or END
+
+    int [] subtree ;      // nodes in subtree
+    int [] preorder ;     // number of node in output tree
+    int [] firstStar ;    // first of stars of subtree in output tree
+
+    final FlatTree work ; // tree in insertion order
+
+    float [] x, y, z ;
+
+    FlatTreeBuilder(FlatTree tree) {
+        super(tree) ;
+        work = new FlatTree(tree.capacity) ;
+        allocateScratch(work.capacity) ;
+        children = new int [8 * Math.max(tree.capacity / 2, 1)] ;
+        nextStar = new int [0] ;
+    }
+
+    void build(float [] x, float [] y, float [] z, int n) {
+
+        this.x = x ;
+        this.y = y ;
+        this.z = z ;
+
+        work.clear() ;
+        if(nextStar.length < n) {
+            nextStar = new int [n] ;
+        }
+        childTop = 0 ;
+
+        newNode(NULL, BOX_WIDTH / 2, BOX_WIDTH / 2, BOX_WIDTH / 2,
+                BOX_WIDTH) ;  // root
+
+        for(int i = 0 ; i < n ; i++) {
+            addParticle(i) ;
+        }
+
+        finish(n) ;
+
+        if(quadrupole) {
+            for(int node = tree.numNodes ; node >= TREE_ROOT ; node--) {
+                setQuadrupole(node, x, y, z) ;
+            }
+        }
+        tree.quadrupole = quadrupole ;
+        tree.encode(encoding, openingAngle) ;
+    }
+
+    void addParticle(int star) {
+
+        int node = TREE_ROOT ;
+        for(int depth = 0 ; ; depth++) {
+
+            int nodesIptr = NODEISIZE * node ;
+            int nParticles = work.nodesI [nodesIptr + NPARTICLES] ;
+
+            work.nodesI [nodesIptr + NPARTICLES] = nParticles + 1 ;
+            sums [3 * node] += x [star] ;
+            sums [3 * node + 1] += y [star] ;
+            sums [3 * node + 2] += z [star] ;
+
+            if(childBase [node] == LEAF) {
+                if(nParticles < leafSize || depth == MAX_DEPTH) {
+                    addToLeaf(node, star) ;
+                    return ;
+                }
+
+                // Split full leaf - push its stars down one level.
+
+                childBase [node] = allocateChildSlots() ;
+
+                int old = head [node] ;
+                head [node] = END ;
+                while(old != END) {
+                    int next = nextStar [old] ;
+                    int child = child(node, x [old], y [old], z [old]) ;
+                    work.nodesI [NODEISIZE * child + NPARTICLES]++ ;
+                    sums [3 * child] += x [old] ;
+                    sums [3 * child + 1] += y [old] ;
+                    sums [3 * child + 2] += z [old] ;
+                    addToLeaf(child, old) ;
+                    old = next ;
+                }
+            }
+
+            node = child(node, x [star], y [star], z [star]) ;
+        }
+    }
+
+    void addToLeaf(int node, int star) {
+        nextStar [star] = head [node] ;
+        head [node] = star ;
+    }
+
+    int child(int node, float x, float y, float z) {
+
+        // Child cell of node containing x, y, z - created if necessary.
+
+        int nodesDptr = NODEDSIZE * node ;
+        float xMid = work.nodesD [nodesDptr + XMID] ;
+        float yMid = work.nodesD [nodesDptr + YMID] ;
+        float zMid = work.nodesD [nodesDptr + ZMID] ;
+
+        int childIdx = ((x < xMid) ? 0 : 4) + ((y < yMid) ? 0 : 2) +
+                       ((z < zMid) ? 0 : 1) ;
+
+        int slot = childBase [node] + childIdx ;
+        int child = children [slot] ;
+        if(child == NULL) {
+            float sizeBy4 = size [node] / 4 ;
+            child = newNode(node,
+                            (x < xMid) ? xMid - sizeBy4 : xMid + sizeBy4,
+                            (y < yMid) ? yMid - sizeBy4 : yMid + sizeBy4,
+                            (z < zMid) ? zMid - sizeBy4 : zMid + sizeBy4,
+                            size [node] / 2) ;
+            children [slot] = child ;
+        }
+        return child ;
+    }
+
+    int newNode(int parent, float xMid, float yMid, float zMid, float size) {
+
+        int node = work.allocateNode() ;
+        if(node >= this.size.length) {
+            allocateScratch(work.capacity) ;
+        }
+
+        int nodesDptr = NODEDSIZE * node ;
+        int nodesIptr = NODEISIZE * node ;
+
+        work.nodesD [nodesDptr + XMID] = xMid ;
+        work.nodesD [nodesDptr + YMID] = yMid ;
+        work.nodesD [nodesDptr + ZMID] = zMid ;
+
+        work.nodesI [nodesIptr + PARENT] = parent ;
+        work.nodesI [nodesIptr + NPARTICLES] = 0 ;
+
+        this.size [node] = size ;
+        sums [3 * node] = 0 ;
+        sums [3 * node + 1] = 0 ;
+        sums [3 * node + 2] = 0 ;
+        childBase [node] = LEAF ;
+        head [node] = END ;
+
+        return node ;
+    }
+
+    int allocateChildSlots() {
+        int base = childTop ;
+        childTop += 8 ;
+        if(childTop > children.length) {
+            children = Arrays.copyOf(children,
+                                     (int) (FlatTree.HEADROOM * childTop)) ;
+        }
+        Arrays.fill(children, base, base + 8, NULL) ;
+        return base ;
+    }
+
+    void allocateScratch(int capacity) {
+        if(size == null) {
+            size = new float [capacity] ;
+            sums = new double [3 * capacity] ;
+            childBase = new int [capacity] ;
+            head = new int [capacity] ;
+            subtree = new int [capacity] ;
+            preorder = new int [capacity] ;
+            firstStar = new int [capacity] ;
+        }
+        else {
+            size = Arrays.copyOf(size, capacity) ;
+            sums = Arrays.copyOf(sums, 3 * capacity) ;
+            childBase = Arrays.copyOf(childBase, capacity) ;
+            head = Arrays.copyOf(head, capacity) ;
+            subtree = Arrays.copyOf(subtree, capacity) ;
+            preorder = Arrays.copyOf(preorder, capacity) ;
+            firstStar = Arrays.copyOf(firstStar, capacity) ;
+        }
+    }
+
+    void finish(int n) {
+
+        // Subtree sizes.  Children are allocated after their parents in
+        // the work tree, so work backwards.
+
+        int [] workI = work.nodesI ;
+        int numNodes = work.numNodes ;
+
+        Arrays.fill(subtree, 1, numNodes + 1, 1) ;
+        for(int node = numNodes ; node > TREE_ROOT ; node--) {
+            subtree [workI [NODEISIZE * node + PARENT]] += subtree [node] ;
+        }
+
+        // Single pass over all nodes, parents first, to number them in
+        // preorder and set pointers, centres of mass, opening thresholds
+        // and stars.  A node's number and first star are set when its
+        // parent is visited.
+
+        tree.clear() ;
+        tree.allocateNodes(numNodes) ;
+        tree.ensureStars(n) ;
+
+        float [] nodesD = tree.nodesD ;
+        int [] nodesI = tree.nodesI ;
+        int [] stars = tree.stars ;
+
+        preorder [TREE_ROOT] = TREE_ROOT ;
+        firstStar [TREE_ROOT] = 0 ;
+        nodesI [NODEISIZE * TREE_ROOT + PARENT] = NULL ;
+        nodesI [NODEISIZE * TREE_ROOT + NEXT] = NULL ;
+
+        for(int node = TREE_ROOT ; node <= numNodes ; node++) {
+
+            int out = preorder [node] ;
+            int workDptr = NODEDSIZE * node ;
+            int nodesDptr = NODEDSIZE * out ;
+            int nodesIptr = NODEISIZE * out ;
+
+            nodesD [nodesDptr + XMID] = work.nodesD [workDptr + XMID] ;
+            nodesD [nodesDptr + YMID] = work.nodesD [workDptr + YMID] ;
+            nodesD [nodesDptr + ZMID] = work.nodesD [workDptr + ZMID] ;
+
+            int nParticles = workI [NODEISIZE * node + NPARTICLES] ;
+            nodesI [nodesIptr + NPARTICLES] = nParticles ;
+            if(nParticles > 0) {
+                nodesD [nodesDptr + XCENT] = (float) (sums [3 * node] / nParticles) ;
+                nodesD [nodesDptr + YCENT] = (float) (sums [3 * node + 1] / nParticles) ;
+                nodesD [nodesDptr + ZCENT] = (float) (sums [3 * node + 2] / nParticles) ;
+            }
+            else {
+                nodesD [nodesDptr + XCENT] = nodesD [nodesDptr + XMID] ;
+                nodesD [nodesDptr + YCENT] = nodesD [nodesDptr + YMID] ;
+                nodesD [nodesDptr + ZCENT] = nodesD [nodesDptr + ZMID] ;
+            }
+
+            float delta = tree.distance(nodesD [nodesDptr + XCENT],
+                                        nodesD [nodesDptr + YCENT],
+                                        nodesD [nodesDptr + ZCENT], out) ;
+            nodesD [nodesDptr + THRESHOLD] = threshold(size [node], delta) ;
+
+            nodesI [nodesIptr + SKIP] = out + subtree [node] ;
+
+            int nextFree = firstStar [node] ;  // in stars
+            nodesI [nodesIptr + FIRSTSTAR] = nextFree ;
+            for(int star = head [node] ; star != END ; star = nextStar [star]) {
+                stars [nextFree++] = star ;
+            }
+
+            int firstChild = NULL ;
+            if(childBase [node] != LEAF) {
+                int next = out + 1 ;
+                int prev = NULL ;
+                for(int i = 0 ; i < 8 ; i++) {
+                    int child = children [childBase [node] + i] ;
+                    if(child != NULL) {
+                        preorder [child] = next ;
+                        firstStar [child] = nextFree ;
+                        nodesI [NODEISIZE * next + PARENT] = out ;
+                        if(prev == NULL)
+                            firstChild = next ;
+                        else
+                            nodesI [NODEISIZE * prev + NEXT] = next ;
+                        prev = next ;
+                        next += subtree [child] ;
+                        nextFree += workI [NODEISIZE * child + NPARTICLES] ;
+                    }
+                }
+                nodesI [NODEISIZE * prev + NEXT] = NULL ;
+            }
+            nodesI [nodesIptr + FIRSTCHILD] = firstChild ;
+        }
+        tree.preorder = true ;
+    }
+}
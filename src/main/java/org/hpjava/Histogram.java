@@ -0,0 +1,82 @@
+package org.hpjava;
+
+import java.util.Arrays ;
+
+
+/*
+
+Histogram of non-negative long values (nanoseconds, for phase timings),
+with log-linear buckets: values below 2^SUBBITS have a bucket each, and
+each power of two above that is split into 2^SUBBITS equal buckets, so a
+percentile is within 1 / 2^SUBBITS (about 6%) of the true value.
+
+Recording is a few shifts and an increment, into an array allocated
+once - cheap enough to do for every phase of every step.
+
+*/
+
+class Histogram {
+
+    final static int SUBBITS = 4 ;
+    final static int SUB = 1 << SUBBITS ;
+    final static int BUCKETS = (64 - SUBBITS) * SUB ;
+
+    final long [] counts = new long [BUCKETS] ;
+
+    long count, sum, min = Long.MAX_VALUE, max ;
+
+    void record(long value) {
+        value = Math.max(value, 0) ;
+        counts [bucket(value)]++ ;
+        count++ ;
+        sum += value ;
+        min = Math.min(min, value) ;
+        max = Math.max(max, value) ;
+    }
+
+    void reset() {
+        Arrays.fill(counts, 0L) ;
+        count = 0 ;
+        sum = 0 ;
+        min = Long.MAX_VALUE ;
+        max = 0 ;
+    }
+
+    static int bucket(long value) {
+        if(value < SUB) return (int) value ;
+        int exponent = 63 - Long.numberOfLeadingZeros(value) ;
+        int sub = (int) (value >>> (exponent - SUBBITS)) & (SUB - 1) ;
+        return (exponent - SUBBITS + 1) * SUB + sub ;
+    }
+
+    static long lowest(int bucket) {
+
+        // Smallest value in bucket.
+
+        if(bucket < SUB) return bucket ;
+        int exponent = bucket / SUB + SUBBITS - 1 ;
+        return (long) (SUB + bucket % SUB) << (exponent - SUBBITS) ;
+    }
+
+    double mean() {
+        return count == 0 ? 0 : (double) sum / count ;
+    }
+
+    long percentile(double q) {
+
+        // Smallest recorded value v (to bucket resolution) such that a
+        // fraction q of values are <= v.
+
+        if(count == 0) return 0 ;
+        long rank = Math.max(1, (long) Math.ceil(q * count)) ;
+        long seen = 0 ;
+        for(int b = 0 ; b < BUCKETS ; b++) {
+            seen += counts [b] ;
+            if(seen >= rank) {
+                long highest = b + 1 < BUCKETS ? lowest(b + 1) - 1 : Long.MAX_VALUE ;
+                return Math.max(Math.min(highest, max), min) ;
+            }
+        }
+        return max ;
+    }
+}
@@ -0,0 +1,291 @@
+package org.hpjava;
+
+import java.util.SplittableRandom ;
+
+
+/*
+
+Initial positions and velocities of the stars, generated in parallel.
+
+Models (all stars of unit mass, G = 1, as in KernelTree.forceLaw):
+
+  SPHERE     uniform ball of the given radius, rotating rigidly with
+             angular velocity omega about an axis chosen at random - the
+             original initial state.
+
+  PLUMMER    Plummer sphere of scale radius a, truncated at the radius,
+             with velocities drawn from its isotropic distribution
+             function (Aarseth, Henon and Wielen 1974).
+
+  HERNQUIST  Hernquist sphere of scale radius a, truncated at the
+             radius, with each velocity drawn from a Gaussian of the
+             local velocity dispersion given by the Jeans equation
+             (Hernquist 1990), capped below escape speed.
+
+  COLLISION  the given number of Plummer spheres, each with radius / 2
+             and scale radius a / 2, spaced round a circle of the given
+             radius in the x-y plane and falling towards its centre,
+             slightly off axis.
+
+Radii are drawn from the inverse of the cumulative mass of the model,
+restricted to the truncation radius, so there is no rejection of
+positions.  The velocities of the truncated models are those of the
+full model whose mass within the radius is n, so they are close to, but
+not exactly in, equilibrium.  Positions are centred in the box.
+
+Stars are generated in fixed chunks of CHUNK consecutive stars, one
+task per chunk, each from its own SplittableRandom stream seeded from a
+root stream.  Chunk seeds are drawn in chunk order before any task
+starts, so the result depends only on the seed and n - not on the
+number of threads or on which thread runs which chunk.
+
+*/
+
+class InitialConditions {
+
+    final static int SPHERE = 0 ;
+    final static int PLUMMER = 1 ;
+    final static int HERNQUIST = 2 ;
+    final static int COLLISION = 3 ;
+
+    final static int CHUNK = 1 << 14 ;  // stars per random stream
+
+    final int model ;
+    final long seed ;
+    final float boxWidth ;
+    final float radius ;       // truncation radius (SPHERE: radius)
+    final float scale ;        // scale radius a of PLUMMER and HERNQUIST
+    final float omega ;        // angular velocity of SPHERE
+    final int galaxies ;       // number of spheres in COLLISION
+
+    InitialConditions(int model, long seed, float boxWidth, float radius,
+                      float scale, float omega, int galaxies) {
+        this.model = model ;
+        this.seed = seed ;
+        this.boxWidth = boxWidth ;
+        this.radius = radius ;
+        this.scale = scale > 0 ? scale : defaultScale(model, radius) ;
+        this.omega = omega ;
+        this.galaxies = Math.max(galaxies, 1) ;
+    }
+
+    static int model(String name) {
+        switch(name.toLowerCase()) {
+            case "sphere" :
+                return SPHERE ;
+            case "plummer" :
+                return PLUMMER ;
+            case "hernquist" :
+                return HERNQUIST ;
+            case "collision" :
+                return COLLISION ;
+            default :
+                throw new IllegalArgumentException("unknown initial model " + name) ;
+        }
+    }
+
+    static float defaultScale(int model, float radius) {
+
+        // Scale radius putting most of the full model inside radius
+        // (94% for Plummer, 83% for Hernquist).
+
+        return model == HERNQUIST ? radius / 10 : radius / 4 ;
+    }
+
+    void generate(int n, float [] x, float [] y, float [] z,
+                  float [] vx, float [] vy, float [] vz) {
+
+        SplittableRandom root = new SplittableRandom(seed) ;
+        double [] axis = axis(root) ;
+        long [] seeds = chunkSeeds(root, n) ;
+
+        Parallel.forRange(seeds.length, 1, (lo, hi) -> {
+            for(int c = lo ; c < hi ; c++) {
+                generateChunk(c, seeds [c], axis, n, 0, x, y, z, vx, vy, vz) ;
+            }
+        }) ;
+    }
+
+    static double [] axis(SplittableRandom root) {
+
+        // Rotation axis of SPHERE.
+
+        double [] axis = {2 * root.nextDouble() - 1, 2 * root.nextDouble() - 1,
+                          2 * root.nextDouble() - 1} ;
+        double norm = 1.0 / Math.sqrt(axis [0] * axis [0] + axis [1] * axis [1] +
+                                      axis [2] * axis [2]) ;
+        for(int k = 0 ; k < 3 ; k++) {
+            axis [k] *= norm ;
+        }
+        return axis ;
+    }
+
+    static long [] chunkSeeds(SplittableRandom root, int n) {
+        long [] seeds = new long [(n + CHUNK - 1) / CHUNK] ;
+        for(int c = 0 ; c < seeds.length ; c++) {
+            seeds [c] = root.nextLong() ;
+        }
+        return seeds ;
+    }
+
+    void generateChunk(int c, long chunkSeed, double [] axis, int n, int base,
+                       float [] x, float [] y, float [] z,
+                       float [] vx, float [] vy, float [] vz) {
+
+        // Stars of chunk c of n, with star i at index i - base of the
+        // arrays.
+
+        SplittableRandom rand = new SplittableRandom(chunkSeed) ;
+        double [] star = new double [6] ;
+        int hi = Math.min(n, (c + 1) * CHUNK) ;
+        for(int i = c * CHUNK ; i < hi ; i++) {
+            double cx = 0, cy = 0, cz = 0, cvx = 0, cvy = 0, cvz = 0 ;
+            switch(model) {
+                case SPHERE :
+                    sphere(rand, axis, star) ;
+                    break ;
+                case PLUMMER :
+                    plummer(rand, n, radius, scale, star) ;
+                    break ;
+                case HERNQUIST :
+                    hernquist(rand, n, radius, scale, star) ;
+                    break ;
+                case COLLISION :
+                    int g = (int) ((long) i * galaxies / n) ;
+                    int members = (int) ((long) (g + 1) * n / galaxies) -
+                                  (int) ((long) g * n / galaxies) ;
+                    plummer(rand, members, radius / 2, scale / 2, star) ;
+
+                    // Fall towards centre at the circular speed of one
+                    // galaxy at the separation, with a quarter of that
+                    // across the line of approach.
+
+                    double angle = 2 * Math.PI * g / galaxies ;
+                    double speed = galaxies > 1 ?
+                                   Math.sqrt((double) members / radius) : 0 ;
+                    cx = radius * Math.cos(angle) ;
+                    cy = radius * Math.sin(angle) ;
+                    cvx = -speed * (Math.cos(angle) + 0.25 * Math.sin(angle)) ;
+                    cvy = -speed * (Math.sin(angle) - 0.25 * Math.cos(angle)) ;
+                    break ;
+            }
+            x [i - base] = wrap(0.5 * boxWidth + cx + star [0]) ;
+            y [i - base] = wrap(0.5 * boxWidth + cy + star [1]) ;
+            z [i - base] = wrap(0.5 * boxWidth + cz + star [2]) ;
+            vx [i - base] = (float) (cvx + star [3]) ;
+            vy [i - base] = (float) (cvy + star [4]) ;
+            vz [i - base] = (float) (cvz + star [5]) ;
+        }
+    }
+
+    float wrap(double a) {
+
+        // Position in periodic box.
+
+        float w = (float) (a % boxWidth) ;
+        if(w < 0) w += boxWidth ;
+        return w < boxWidth ? w : 0 ;
+    }
+
+    void sphere(SplittableRandom rand, double [] axis, double [] star) {
+        double rx, ry, rz ;
+        do {
+            rx = (2 * rand.nextDouble() - 1) * radius ;
+            ry = (2 * rand.nextDouble() - 1) * radius ;
+            rz = (2 * rand.nextDouble() - 1) * radius ;
+        } while(rx * rx + ry * ry + rz * rz > radius * radius) ;
+        star [0] = rx ;
+        star [1] = ry ;
+        star [2] = rz ;
+        star [3] = omega * (axis [1] * rz - axis [2] * ry) ;
+        star [4] = omega * (axis [2] * rx - axis [0] * rz) ;
+        star [5] = omega * (axis [0] * ry - axis [1] * rx) ;
+    }
+
+    static void plummer(SplittableRandom rand, int n, double rMax, double a,
+                        double [] star) {
+
+        // Mass within r is M r^3 / (r^2 + a^2)^3/2.
+
+        double inside = Math.pow(rMax * rMax / (rMax * rMax + a * a), 1.5) ;
+        double mass = n / inside ;  // of full model
+        double m = inside * rand.nextDouble() ;
+        double r = a / Math.sqrt(Math.pow(m, -2.0 / 3.0) - 1) ;
+        if(!(r <= rMax)) r = rMax ;  // m == 0 or rounding
+        direction(rand, r, star, 0) ;
+
+        // Speed as a fraction q of escape speed, with density of q
+        // proportional to q^2 (1 - q^2)^7/2 (maximum below 0.1).
+
+        double q, g ;
+        do {
+            q = rand.nextDouble() ;
+            g = 0.1 * rand.nextDouble() ;
+        } while(g > q * q * Math.pow(1 - q * q, 3.5)) ;
+        double escape = Math.sqrt(2 * mass / Math.sqrt(r * r + a * a)) ;
+        direction(rand, q * escape, star, 3) ;
+    }
+
+    static void hernquist(SplittableRandom rand, int n, double rMax, double a,
+                          double [] star) {
+
+        // Mass within r is M r^2 / (r + a)^2.
+
+        double inside = (rMax / (rMax + a)) * (rMax / (rMax + a)) ;
+        double mass = n / inside ;
+        double s = Math.sqrt(inside * rand.nextDouble()) ;
+        double r = Math.min(a * s / (1 - s), rMax) ;
+        direction(rand, r, star, 0) ;
+
+        double sigma = Math.sqrt(Math.max(dispersion(r, a, mass), 0)) ;
+        double escape = Math.sqrt(2 * mass / (r + a)) ;
+        double limit = 0.95 * escape ;
+        double v ;
+        do {
+            star [3] = sigma * gaussian(rand) ;
+            star [4] = sigma * gaussian(rand) ;
+            star [5] = sigma * gaussian(rand) ;
+            v = Math.sqrt(star [3] * star [3] + star [4] * star [4] +
+                          star [5] * star [5]) ;
+        } while(v > limit) ;
+    }
+
+    static double dispersion(double r, double a, double mass) {
+
+        // One dimensional velocity dispersion squared of isotropic
+        // Hernquist model (Hernquist 1990, eq. 10).
+
+        if(r == 0) return 0 ;
+        double u = r / a ;
+        return mass / (12 * a) *
+               (12 * u * Math.pow(1 + u, 3) * Math.log((1 + u) / u) -
+                u / (1 + u) * (25 + 52 * u + 42 * u * u + 12 * u * u * u)) ;
+    }
+
+    static void direction(SplittableRandom rand, double length,
+                          double [] star, int k) {
+
+        // Vector of given length in uniformly random direction, into
+        // star [k] to star [k + 2].
+
+        double cosTheta = 2 * rand.nextDouble() - 1 ;
+        double sinTheta = Math.sqrt(1 - cosTheta * cosTheta) ;
+        double phi = 2 * Math.PI * rand.nextDouble() ;
+        star [k] = length * sinTheta * Math.cos(phi) ;
+        star [k + 1] = length * sinTheta * Math.sin(phi) ;
+        star [k + 2] = length * cosTheta ;
+    }
+
+    static double gaussian(SplittableRandom rand) {
+
+        // Standard normal deviate, by the polar method.
+
+        double u, v, s ;
+        do {
+            u = 2 * rand.nextDouble() - 1 ;
+            v = 2 * rand.nextDouble() - 1 ;
+            s = u * u + v * v ;
+        } while(s >= 1 || s == 0) ;
+        return u * Math.sqrt(-2 * Math.log(s) / s) ;
+    }
+}
@@ -0,0 +1,197 @@
+package org.hpjava;
+
+import com.aparapi.Kernel;
+import com.aparapi.Range;
+
+
+/*
+
+Velocity Verlet updates of all stars, as a data parallel kernel.
+
+Modes:
+
+  DRIFT       update position and velocity halfway (first loop of the
+              original time step)
+  KICK        finish updating velocity with new acceleration (second
+              loop of the original time step)
+  KICK_DRIFT  KICK of one step fused with DRIFT of the next, so each
+              star is read and written once per step instead of twice
+
+On an OpenCL device the kernel runs in explicit mode: velocities stay
+in device buffers between steps, and only new accelerations go in and
+new positions (needed to build the tree) come out.  syncToHost must be
+called before the host reads velocities, and hostChanged after the host
+modifies any per-star array.
+
+Without OpenCL the same per-star update runs on the Parallel pool,
+directly on the host arrays.
+
+*/
+
+public class IntegratorKernel extends Kernel {
+
+    final static float BOX_WIDTH = AparapiBarnesHut.BOX_WIDTH ;
+
+    final static int DRIFT = 0 ;
+    final static int KICK = 1 ;
+    final static int KICK_DRIFT = 2 ;
+
+    final static int GRAIN = 4096 ;  // stars per task on host
+
+    // Star positions
+    final float [] x ;
+    final float [] y ;
+    final float [] z ;
+
+    // Star velocities
+    final float [] vx ;
+    final float [] vy ;
+    final float [] vz ;
+
+    // Star accelerations
+    final float [] ax ;
+    final float [] ay ;
+    final float [] az ;
+
+    int mode ;
+
+    final float dt ;
+    final float dtOver2 ;
+    final float dtSquaredOver2 ;
+
+    // Host side
+
+    final int n ;
+    final boolean onDevice ;
+    final Range range ;
+
+    boolean executed ;
+    boolean hostChanged = true ;
+
+    IntegratorKernel(float [] x, float [] y, float [] z,
+                     float [] vx, float [] vy, float [] vz,
+                     float [] ax, float [] ay, float [] az,
+                     int n, float dt, boolean onDevice) {
+
+        this.x = x ;
+        this.y = y ;
+        this.z = z ;
+
+        this.vx = vx ;
+        this.vy = vy ;
+        this.vz = vz ;
+
+        this.ax = ax ;
+        this.ay = ay ;
+        this.az = az ;
+
+        this.dt = dt ;
+        dtOver2 = 0.5F * dt ;
+        dtSquaredOver2 = 0.5F * dt * dt ;
+
+        this.n = n ;
+        this.onDevice = onDevice ;
+        range = Range.create(n) ;
+
+        if(onDevice) setExplicit(true) ;
+    }
+
+    void drift() {
+        apply(DRIFT) ;
+    }
+
+    void kick() {
+        apply(KICK) ;
+    }
+
+    void kickDrift() {
+        apply(KICK_DRIFT) ;
+    }
+
+    void apply(int mode) {
+
+        this.mode = mode ;
+
+        if(!onDevice) {
+            Parallel.forRange(n, GRAIN, (lo, hi) -> {
+                for(int i = lo ; i < hi ; i++) {
+                    update(i) ;
+                }
+            }) ;
+            return ;
+        }
+
+        if(hostChanged) {
+            put(x) ;
+            put(y) ;
+            put(z) ;
+            put(vx) ;
+            put(vy) ;
+            put(vz) ;
+            hostChanged = false ;
+        }
+        put(ax) ;
+        put(ay) ;
+        put(az) ;
+
+        execute(range) ;
+        executed = true ;
+
+        if(mode != KICK) {
+            get(x) ;
+            get(y) ;
+            get(z) ;
+        }
+    }
+
+    void syncToHost() {
+
+        // Bring velocities back from device.
+
+        if(onDevice && executed) {
+            get(vx) ;
+            get(vy) ;
+            get(vz) ;
+        }
+    }
+
+    void hostChanged() {
+
+        // Per-star arrays were modified on host - upload before next step.
+
+        hostChanged = true ;
+    }
+
+    float wrap(float x) {
+
+        // As AparapiBarnesHut.mod - implements periodic box.
+
+        float reduced = x - ((int) (x / BOX_WIDTH)) * BOX_WIDTH ;
+        float result = reduced ;
+        if(reduced < 0) result = reduced + BOX_WIDTH ;
+        return result ;
+    }
+
+    void update(int i) {
+        if(mode != DRIFT) {
+            // finish updating velocity with new acceleration
+            vx [i] += ax [i] * dtOver2 ;
+            vy [i] += ay [i] * dtOver2 ;
+            vz [i] += az [i] * dtOver2 ;
+        }
+        if(mode != KICK) {
+            // update position
+            x [i] = wrap(x [i] + vx [i] * dt + ax [i] * dtSquaredOver2) ;
+            y [i] = wrap(y [i] + vy [i] * dt + ay [i] * dtSquaredOver2) ;
+            z [i] = wrap(z [i] + vz [i] * dt + az [i] * dtSquaredOver2) ;
+            // update velocity halfway
+            vx [i] += ax [i] * dtOver2 ;
+            vy [i] += ay [i] * dtOver2 ;
+            vz [i] += az [i] * dtOver2 ;
+        }
+    }
+
+    public void run() {
+        update(getGlobalId()) ;
+    }
+}
@@ -0,0 +1,223 @@
+package org.hpjava;
+
+import java.util.Arrays ;
+
+
+/*
+
+Interaction list of one star, for the VECTOR backend of KernelTree (see
+KernelTree.listForce).  The tree walk only decides which nodes are
+accepted, and appends their centres of mass and masses - or, for a leaf
+that has to be opened, the positions of its stars with mass 1 - to the
+list in struct of arrays form.  The forces are then summed over the
+whole list in one loop, apart from the pointer chasing of the walk.
+
+Quadrupole moments of accepted nodes, if the tree has them, go in a
+second list.
+
+This class sums the list as scalar Java code, so it works on any Java
+version.  On Java 17 or later, with the incubating Vector API added
+(--add-modules jdk.incubator.vector), create returns a
+VectorInteractionList instead, which sums the same list in SIMD lanes,
+with masks in place of the branches of the periodic wrap.
+That class is compiled separately, into META-INF/versions/17 of the
+multi-release jar (see the "vector" profile of pom.xml).  It is only
+loaded if the module is available, so Java 8 builds and runs still use
+this class.
+
+*/
+
+class InteractionList {
+
+    final static float BOX_WIDTH = KernelTree.BOX_WIDTH ;
+
+    final static String VECTOR_CLASS = "org.hpjava.VectorInteractionList" ;
+
+    // Monopole sources - centres of mass of accepted nodes and stars of
+    // opened leaves
+
+    float [] x, y, z, mass ;
+    int count ;
+
+    // Quadrupole moments of accepted nodes, about their centres of mass
+
+    float [] qx, qy, qz ;
+    float [] qxx, qyy, qzz, qxy, qxz, qyz ;
+    int quadCount ;
+
+    final float [] acc = new float [3] ;  // result of evaluate
+
+    InteractionList() {
+        x = new float [64] ;
+        y = new float [64] ;
+        z = new float [64] ;
+        mass = new float [64] ;
+
+        qx = new float [16] ;
+        qy = new float [16] ;
+        qz = new float [16] ;
+        qxx = new float [16] ;
+        qyy = new float [16] ;
+        qzz = new float [16] ;
+        qxy = new float [16] ;
+        qxz = new float [16] ;
+        qyz = new float [16] ;
+    }
+
+    static InteractionList create(boolean vector) {
+
+        // New list, summed in SIMD lanes if vector is set and the
+        // Vector API is available.
+
+        if(vector && vectorAvailable()) {
+            try {
+                return (InteractionList)
+                        Class.forName(VECTOR_CLASS).getDeclaredConstructor().newInstance() ;
+            }
+            catch(ReflectiveOperationException | LinkageError e) {
+                // fall through to scalar list
+            }
+        }
+        return new InteractionList() ;
+    }
+
+    static boolean vectorAvailable() {
+        try {
+            Class.forName("jdk.incubator.vector.FloatVector") ;
+            Class.forName(VECTOR_CLASS) ;
+            return true ;
+        }
+        catch(ClassNotFoundException | LinkageError e) {
+            return false ;
+        }
+    }
+
+    String lanes() {
+
+        // How the list is summed, for logs.
+
+        return "by scalar code (add module jdk.incubator.vector, on " +
+               "Java 17 or later, for SIMD)" ;
+    }
+
+    void clear() {
+        count = 0 ;
+        quadCount = 0 ;
+    }
+
+    void add(float xSource, float ySource, float zSource, float m) {
+        if(count == x.length) {
+            int capacity = 2 * count ;
+            x = Arrays.copyOf(x, capacity) ;
+            y = Arrays.copyOf(y, capacity) ;
+            z = Arrays.copyOf(z, capacity) ;
+            mass = Arrays.copyOf(mass, capacity) ;
+        }
+        x [count] = xSource ;
+        y [count] = ySource ;
+        z [count] = zSource ;
+        mass [count] = m ;
+        count++ ;
+    }
+
+    void addQuadrupole(float xSource, float ySource, float zSource,
+                       float [] nodesD, int nodesDptr) {
+        if(quadCount == qx.length) {
+            int capacity = 2 * quadCount ;
+            qx = Arrays.copyOf(qx, capacity) ;
+            qy = Arrays.copyOf(qy, capacity) ;
+            qz = Arrays.copyOf(qz, capacity) ;
+            qxx = Arrays.copyOf(qxx, capacity) ;
+            qyy = Arrays.copyOf(qyy, capacity) ;
+            qzz = Arrays.copyOf(qzz, capacity) ;
+            qxy = Arrays.copyOf(qxy, capacity) ;
+            qxz = Arrays.copyOf(qxz, capacity) ;
+            qyz = Arrays.copyOf(qyz, capacity) ;
+        }
+        qx [quadCount] = xSource ;
+        qy [quadCount] = ySource ;
+        qz [quadCount] = zSource ;
+        qxx [quadCount] = nodesD [nodesDptr + KernelTree.QXX] ;
+        qyy [quadCount] = nodesD [nodesDptr + KernelTree.QYY] ;
+        qzz [quadCount] = nodesD [nodesDptr + KernelTree.QZZ] ;
+        qxy [quadCount] = nodesD [nodesDptr + KernelTree.QXY] ;
+        qxz [quadCount] = nodesD [nodesDptr + KernelTree.QXZ] ;
+        qyz [quadCount] = nodesD [nodesDptr + KernelTree.QYZ] ;
+        quadCount++ ;
+    }
+
+    void evaluate(float px, float py, float pz) {
+
+        // Acceleration at (px, py, pz) from everything on the list,
+        // into acc.
+
+        acc [0] = 0F ;
+        acc [1] = 0F ;
+        acc [2] = 0F ;
+        monopoles(px, py, pz, 0, count, acc) ;
+        quadrupoles(px, py, pz, 0, quadCount, acc) ;
+    }
+
+    void monopoles(float px, float py, float pz, int first, int last,
+                   float [] acc) {
+
+        // Adds forces of sources first to last - 1, as
+        // KernelTree.starForce.  Coincident sources exert no force.
+
+        float sx = 0F, sy = 0F, sz = 0F ;
+        for(int k = first ; k < last ; k++) {
+            float dx = wrap(px - x [k]) ;
+            float dy = wrap(py - y [k]) ;
+            float dz = wrap(pz - z [k]) ;
+            float rSquared = dx * dx + dy * dy + dz * dz ;
+            if(rSquared > 0F) {
+                float r = (float) Math.sqrt(rSquared) ;
+                float massRCubedInv = mass [k] / (rSquared * r) ;
+                sx -= massRCubedInv * dx ;
+                sy -= massRCubedInv * dy ;
+                sz -= massRCubedInv * dz ;
+            }
+        }
+        acc [0] += sx ;
+        acc [1] += sy ;
+        acc [2] += sz ;
+    }
+
+    void quadrupoles(float px, float py, float pz, int first, int last,
+                     float [] acc) {
+
+        // Adds quadrupole terms of sources first to last - 1, as
+        // KernelTree.forceLawAt.
+
+        float sx = 0F, sy = 0F, sz = 0F ;
+        for(int k = first ; k < last ; k++) {
+            float dx = wrap(px - qx [k]) ;
+            float dy = wrap(py - qy [k]) ;
+            float dz = wrap(pz - qz [k]) ;
+            float rSquared = dx * dx + dy * dy + dz * dz ;
+            float r = (float) Math.sqrt(rSquared) ;
+            float ux = qxx [k] * dx + qxy [k] * dy + qxz [k] * dz ;
+            float uy = qxy [k] * dx + qyy [k] * dy + qyz [k] * dz ;
+            float uz = qxz [k] * dx + qyz [k] * dy + qzz [k] * dz ;
+            float rQr = dx * ux + dy * uy + dz * uz ;
+            float rFiveInv = 1F / (rSquared * rSquared * r) ;
+            float radial = 2.5F * rQr / rSquared ;
+            sx += rFiveInv * (ux - radial * dx) ;
+            sy += rFiveInv * (uy - radial * dy) ;
+            sz += rFiveInv * (uz - radial * dz) ;
+        }
+        acc [0] += sx ;
+        acc [1] += sy ;
+        acc [2] += sz ;
+    }
+
+    static float wrap(float d) {
+
+        // Separation d on one axis, reduced to nearest periodic image.
+
+        float w = d ;
+        if(w > BOX_WIDTH / 2) w -= BOX_WIDTH ;
+        if(w < -BOX_WIDTH / 2) w += BOX_WIDTH ;
+        return w ;
+    }
+}
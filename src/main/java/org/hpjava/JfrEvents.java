@@ -0,0 +1,112 @@
+package org.hpjava;
+
+import jdk.jfr.Category ;
+import jdk.jfr.DataAmount ;
+import jdk.jfr.Description ;
+import jdk.jfr.Event ;
+import jdk.jfr.Label ;
+import jdk.jfr.Name ;
+import jdk.jfr.Timespan ;
+
+
+/*
+
+Java Flight Recorder events for StepMetrics - one Phase event per timed
+phase, and one Step event per step.  An event is only built and
+committed when a recording has it enabled, e.g. with
+
+  java -XX:StartFlightRecording=filename=bh.jfr ...
+
+This class is only loaded if jdk.jfr is available (see
+StepMetrics.jfrAvailable), so the rest of the program still runs on
+Java 8 builds without it.
+
+*/
+
+class JfrEvents {
+
+    @Name("org.hpjava.Phase")
+    @Label("Barnes-Hut Phase")
+    @Category("Barnes-Hut")
+    @Description("Time spent in one phase of a step")
+    static class Phase extends Event {
+
+        @Label("Step")
+        int step ;
+
+        @Label("Phase")
+        String phase ;
+
+        @Label("Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long nanos ;
+    }
+
+    @Name("org.hpjava.Step")
+    @Label("Barnes-Hut Step")
+    @Category("Barnes-Hut")
+    @Description("Tree and force kernel statistics of one step")
+    static class Step extends Event {
+
+        @Label("Step")
+        int step ;
+
+        @Label("Nodes")
+        int nodes ;
+
+        @Label("Tree Depth")
+        int depth ;
+
+        @Label("Stars")
+        long stars ;
+
+        @Label("Node Visits")
+        long visits ;
+
+        @Label("Interactions")
+        long interactions ;
+
+        @Label("Bytes to Device")
+        @DataAmount
+        long bytesToDevice ;
+
+        @Label("Bytes from Device")
+        @DataAmount
+        long bytesFromDevice ;
+
+        @Label("Execution Mode")
+        String mode ;
+    }
+
+    static boolean stepEnabled() {
+        return new Step().isEnabled() ;
+    }
+
+    static void phase(int step, String phase, long nanos) {
+        Phase event = new Phase() ;
+        if(event.isEnabled()) {
+            event.step = step ;
+            event.phase = phase ;
+            event.nanos = nanos ;
+            event.commit() ;
+        }
+    }
+
+    static void step(int step, int nodes, int depth, long stars,
+                     long visits, long interactions,
+                     long bytesToDevice, long bytesFromDevice, String mode) {
+        Step event = new Step() ;
+        if(event.isEnabled()) {
+            event.step = step ;
+            event.nodes = nodes ;
+            event.depth = depth ;
+            event.stars = stars ;
+            event.visits = visits ;
+            event.interactions = interactions ;
+            event.bytesToDevice = bytesToDevice ;
+            event.bytesFromDevice = bytesFromDevice ;
+            event.mode = mode ;
+            event.commit() ;
+        }
+    }
+}
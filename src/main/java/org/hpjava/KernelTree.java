@@ -1,7 +1,11 @@
 
 package org.hpjava;
 
+import java.util.Arrays ;
+
 import com.aparapi.Kernel;
+import com.aparapi.Range;
+import com.aparapi.device.OpenCLDevice;
 
 
 /*
@@ -13,6 +17,77 @@ Each original node is represented by NODEDSIZE consective elements
 in a big float array, and NODEISIZE consecutive elements in a big int array,
 with defined offsets for fields.
 
+If nodes are numbered in depth first preorder (FlatTree.preorder), the
+first child of a node is the next node, and SKIP is the first node after
+its subtree.  The tree walk is then a single forward loop: opening a node
+moves to the next node, accepting it jumps to SKIP.  Otherwise the walk
+follows the FIRSTCHILD / NEXT / PARENT links.
+
+A leaf node holds one or more stars (a "bucket" - see
+TreeBuilder.leafSize), whose indices are leafStars [firstStar] to
+leafStars [firstStar + nParticles - 1].  Unless the leaf as a whole is
+far enough away to use its centre of mass, forces from its stars are
+summed directly, skipping the star itself by index.
+
+A preorder tree may also be encoded more compactly (FlatTree.encode),
+with everything the per-star walk reads about a node in one record:
+
+  PACKED     eight floats (32 bytes) per node in nodesP - centre of
+             mass, threshold, number of stars, link and cell, with the
+             integer fields exactly representable as floats.
+
+  QUANTIZED  four ints (16 bytes) per node in nodesQ.  Centre of mass is
+             held as 16 bit fixed point offsets within the node's cell,
+             and the threshold as an 8 bit excess over size / opening
+             angle, rounded up so nodes are never accepted earlier than
+             in the other encodings.
+
+The link is SKIP for an internal node, or -(firstStar + 1) for a leaf.
+The cell is 8 * depth + octant in parent.  Mid-points are not stored:
+the walk keeps integer coordinates of the cell of the last node it
+visited, and since the next node is always a child of that node or of
+one of its ancestors, gets the coordinates of the next cell by a shift.
+The wide arrays stay valid, and are still used by the grouped and
+parent walks, and for quadrupole moments.
+
+Any loose stars (stars in no leaf, see RefitTreeBuilder) are
+leafStars [looseFirst] to leafStars [looseLast - 1], and act on every
+star directly.
+
+Nodes may also carry quadrupole moments, in which case (quadrupole set)
+forceLaw adds the quadrupole term of the expansion to the monopole.
+
+In active mode (see computeForcesActive) work item gid computes the
+force on star activeStars [gid] only - the stars at the end of their
+individual time steps (BlockSteps).
+
+In chunked mode (see computeForcesChunked) work item gid computes the
+forces on stars chunkStart [gid] to chunkStart [gid + 1] - 1 in turn,
+with chunk boundaries chosen for equal cost (LoadBalance).
+
+With backend FORK_JOIN the kernel is not executed by Aparapi at all:
+work items are run directly as Java code on the Parallel pool, in small
+chunks of hostGrain items, so that idle threads steal chunks from busy
+ones.  Each work item only writes the accelerations (and counters) of
+its own stars, so threads share the tree and output arrays without any
+locking or reduction.
+
+Backend VECTOR runs on the Parallel pool in the same way, but splits
+the per-star walk in two (see listForce).  The walk, over a preorder
+tree by SKIP links, only collects accepted nodes and the stars of
+opened leaves in an InteractionList, and the forces are then summed
+over the whole list in one loop - in SIMD lanes, if the Vector API is
+available.  Grouped mode, and trees not in preorder, still use the
+FORK_JOIN walk.
+
+In grouped mode (see computeForcesGrouped) each work item is a group of
+nearby stars (StarGroups) rather than a single star.  The group walks
+the tree once, opening a node unless it is far enough from every point
+of the group's bounding box, and collects accepted nodes in a shared
+interaction list.  Each star of the group then sums forces over the
+list.  Accepted nodes always pass the opening test of every star in the
+group, so this is at least as accurate as the per-star walk.
+
 */
 
 public class KernelTree extends Kernel {
@@ -33,8 +108,18 @@ public class KernelTree extends Kernel {
     final static int ZCENT = 5 ;
     
     final static int THRESHOLD = 6 ;
+
+    // traceless quadrupole moment about centre of mass - only set
+    // if tree was built with quadrupoles (see FlatTree.quadrupole)
+
+    final static int QXX = 7 ;
+    final static int QYY = 8 ;
+    final static int QZZ = 9 ;
+    final static int QXY = 10 ;
+    final static int QXZ = 11 ;
+    final static int QYZ = 12 ;
     
-    final static int NODEDSIZE = 7 ;
+    final static int NODEDSIZE = 13 ;
     
     // offsets of int fields
     
@@ -43,14 +128,55 @@ public class KernelTree extends Kernel {
     final static int NEXT = 2 ;
     
     final static int NPARTICLES = 3 ;
+
+    final static int FIRSTSTAR = 4 ;  // leaf stars start here in leafStars
+
+    final static int SKIP = 5 ;  // next node after subtree, in preorder
     
-    final static int NODEISIZE = 4 ;
+    final static int NODEISIZE = 6 ;
+
+    // Node encodings - see FlatTree.encode
+
+    final static int WIDE = 0 ;  // nodesD and nodesI only
+    final static int PACKED = 1 ;
+    final static int QUANTIZED = 2 ;
+
+    // offsets in nodesP (PACKED)
+
+    final static int PXCENT = 0 ;
+    final static int PYCENT = 1 ;
+    final static int PZCENT = 2 ;
+    final static int PTHRESHOLD = 3 ;
+    final static int PMASS = 4 ;
+    final static int PLINK = 5 ;
+    final static int PCELL = 6 ;
+
+    final static int PACKEDSIZE = 8 ;  // one unused
+
+    // offsets in nodesQ (QUANTIZED)
+
+    final static int QNXY = 0 ;    // x offset << 16 | y offset
+    final static int QNZCELL = 1 ; // z offset << 16 | threshold << 8 | cell
+    final static int QNMASS = 2 ;
+    final static int QNLINK = 3 ;
+
+    final static int QUANTSIZE = 4 ;
+
+    final static int MAX_CELL_DEPTH = 30 ;  // integer cell coordinates fit
     
     
     final static int NULL = 0 ;        
 
     final static int TREE_ROOT = 1 ;  // assumed first allocated
 
+    // Backends - see transferAndExecute
+
+    final static int APARAPI = 0 ;    // OpenCL device, or Java Thread Pool
+    final static int FORK_JOIN = 1 ;  // work items on Parallel pool
+    final static int VECTOR = 2 ;     // interaction lists on Parallel pool
+
+    final static int LIST_SIZE = 256 ;  // interaction list entries per group
+
         
     // Star positions
     final float [] x ;
@@ -62,11 +188,89 @@ public class KernelTree extends Kernel {
     final float [] ay ;
     final float [] az ;
 
-    final float [] nodesD ;
-    final int [] nodesI ;
+    // Flattened tree - usually arrays of a FlatTree, replaced by
+    // setTree if the FlatTree has had to grow them.
+    float [] nodesD ;
+    int [] nodesI ;
+    int [] leafStars ;
     
     int nodeTop ;
 
+    int quadrupole ;  // nonzero if nodes have quadrupole moments
+
+    int looseFirst, looseLast ;  // loose stars in leafStars
+
+    int skipWalk ;        // nonzero to walk tree by SKIP links
+    boolean parentWalk ;  // host side - never use SKIP links
+
+    int backend ;         // host side - APARAPI, FORK_JOIN or VECTOR
+    int hostGrain = 32 ;  // host side - work items per FORK_JOIN task
+
+    // Host side - interaction list of each thread running a pass
+    // (VECTOR).
+
+    final ThreadLocal<InteractionList> lists =
+            ThreadLocal.withInitial(() -> InteractionList.create(true)) ;
+
+    // Host side - shape of last pass, and nanoseconds each thread spent
+    // on it (FORK_JOIN), by Parallel.threadIndex.  Grown if the pool
+    // numbers its workers beyond THREADS.
+
+    int lastGlobalSize, lastLocalSize ;
+    long [] threadBusy = new long [Parallel.THREADS + 1] ;
+
+    // Compact encoding of a preorder tree, if any.  Arrays are
+    // placeholders unless encoding is set.
+
+    int encoding ;
+    float [] nodesP = new float [1] ;
+    int [] nodesQ = new int [1] ;
+    float thresholdBase ;  // least threshold per cell size (QUANTIZED)
+
+    final float [] cellSize = new float [MAX_CELL_DEPTH + 1] ;
+
+    // Active mode - see BlockSteps.  Array is a placeholder unless
+    // activeOnly is set.
+
+    int activeOnly ;
+    int [] activeStars = new int [1] ;
+
+    // Chunked mode - see LoadBalance.  Array is a placeholder unless
+    // chunked is set.
+
+    int chunked ;
+    int [] chunkStart = new int [1] ;
+
+    // Slice mode - see WorkSplitter.  Work item gid is star
+    // starBase + gid.
+
+    int starBase ;
+
+    // Grouped mode - see StarGroups.  Arrays are placeholders unless
+    // grouped is set.
+
+    int grouped ;
+    int [] groupStars = new int [1] ;
+    int [] groupStart = new int [1] ;
+    float [] groupBox = new float [1] ;
+
+    int [] list = new int [1] ;       // LIST_SIZE entries per group
+    int [] listCount = new int [1] ;  // per group
+
+    // Work done for each star (or group, in grouped mode)
+
+    int [] visits ;        // nodes visited in tree walk
+    int [] interactions ;  // evaluations of force law
+
+    // Host side bookkeeping for explicit buffer management (see
+    // computeForces).  Counters for a step are reset by setTree.
+
+    long bytesToDevice, bytesFromDevice ;  // in current step
+    int reallocations ;                    // of node buffers, current step
+
+    long totalBytesToDevice, totalBytesFromDevice ;
+    int totalReallocations ;
+
     /* Constructor allocates big arrays.  By the time this is called
      * the size of the BH tree is known.
      */
@@ -83,14 +287,455 @@ public class KernelTree extends Kernel {
 
         int num = numNodes + 1 ;  // reserve 0 to represent NULL
         nodesD = new float [NODEDSIZE * num] ;
-        nodesI = new int [NODEDSIZE * num] ;
+        nodesI = new int [NODEISIZE * num] ;
+
+        // Leaves of a Node tree hold one star each, with firstStar
+        // the index of the star itself.
+
+        leafStars = new int [x.length] ;
+        for(int i = 0 ; i < x.length ; i++) {
+            leafStars [i] = i ;
+        }
 
         nodeTop = 1 ;  // 0 reserved
+
+        visits = new int [x.length] ;
+        interactions = new int [x.length] ;
+        setCellSizes() ;
+    }
+
+    /* Constructor using node arrays of a FlatTree.  The kernel can
+     * be kept for the whole run, calling setTree after each rebuild
+     * of the tree.
+     */
+    KernelTree(float [] x, float [] y, float [] z,
+               float [] ax, float [] ay, float [] az, FlatTree tree) {
+
+        this.x = x ;
+        this.y = y ;
+        this.z = z ;
+
+        this.ax = ax ;
+        this.ay = ay ;
+        this.az = az ;
+
+        nodesD = tree.nodesD ;
+        nodesI = tree.nodesI ;
+        leafStars = tree.stars ;
+
+        nodeTop = tree.numNodes + 1 ;
+        quadrupole = tree.quadrupole ? 1 : 0 ;
+        skipWalk = tree.preorder ? 1 : 0 ;
+        setEncoding(tree) ;
+        looseFirst = tree.looseFirst ;
+        looseLast = tree.looseFirst + tree.numLoose ;
+
+        visits = new int [x.length] ;
+        interactions = new int [x.length] ;
+        setCellSizes() ;
+    }
+
+    void setCellSizes() {
+        for(int depth = 0 ; depth <= MAX_CELL_DEPTH ; depth++) {
+            cellSize [depth] = (float) (BOX_WIDTH / Math.pow(2, depth)) ;
+        }
+    }
+
+    static int backend(String name) {
+        switch(name.toLowerCase()) {
+            case "aparapi" :
+                return APARAPI ;
+            case "forkjoin" :
+                return FORK_JOIN ;
+            case "vector" :
+                return VECTOR ;
+            default :
+                throw new IllegalArgumentException("unknown force backend " + name) ;
+        }
+    }
+
+    static String backendName(int backend) {
+        switch(backend) {
+            case FORK_JOIN :
+                return "forkjoin" ;
+            case VECTOR :
+                return "vector" ;
+            default :
+                return "aparapi" ;
+        }
+    }
+
+    void setEncoding(FlatTree tree) {
+        encoding = skipWalk != 0 ? tree.encoding : WIDE ;
+        if(encoding == PACKED) {
+            nodesP = tree.packed ;
+        }
+        if(encoding == QUANTIZED) {
+            nodesQ = tree.quantized ;
+        }
+        thresholdBase = tree.thresholdBase ;
+    }
+
+    void setTree(FlatTree tree) {
+
+        /*
+         * Start a new step with a rebuilt tree.  Node arrays only change
+         * if the tree outgrew the previous ones.
+         */
+
+        bytesToDevice = 0 ;
+        bytesFromDevice = 0 ;
+        reallocations = 0 ;
+
+        float [] oldP = nodesP ;
+        int [] oldQ = nodesQ ;
+
+        nodeTop = tree.numNodes + 1 ;
+        quadrupole = tree.quadrupole ? 1 : 0 ;
+        skipWalk = (tree.preorder && !parentWalk) ? 1 : 0 ;
+        setEncoding(tree) ;
+        looseFirst = tree.looseFirst ;
+        looseLast = tree.looseFirst + tree.numLoose ;
+
+        if(tree.nodesD != nodesD || tree.nodesI != nodesI ||
+           tree.stars != leafStars || nodesP != oldP || nodesQ != oldQ) {
+            nodesD = tree.nodesD ;
+            nodesI = tree.nodesI ;
+            leafStars = tree.stars ;
+            reallocations++ ;
+            totalReallocations++ ;
+        }
+    }
+
+    void allocateNodes(FlatTree tree, int numNodes) {
+
+        /*
+         * For a tree of Node objects: reserve numNodes nodes in tree,
+         * to be filled in by allocateNode and setNeighbours.
+         */
+
+        tree.clear() ;
+        tree.allocateNodes(numNodes) ;
+        tree.quadrupole = false ;
+        tree.preorder = false ;  // children allocated before parents
+        tree.encoding = WIDE ;
+        tree.ensureStars(x.length) ;
+        for(int i = 0 ; i < x.length ; i++) {
+            tree.stars [i] = i ;  // see Node.star
+        }
+        setTree(tree) ;
+        nodeTop = 1 ;
+    }
+
+    void computeForces(Range range) {
+
+        /*
+         * Run the kernel in explicit mode (see setExplicit).  Positions
+         * and the tree are the only inputs that change between steps, and
+         * accelerations the only output, so only these are transferred.
+         * Buffers for other arrays stay on the device.
+         */
+
+        grouped = 0 ;
+        activeOnly = 0 ;
+        chunked = 0 ;
+        starBase = 0 ;
+        transferAndExecute(range, 0) ;
+    }
+
+    void computeForcesSlice(int first, int count) {
+
+        /*
+         * As computeForces, only for stars first to first + count - 1.
+         * Accelerations and counters of other stars are left unchanged
+         * on the host (except that, from an OpenCL device, all of ax,
+         * ay and az are copied back).
+         */
+
+        grouped = 0 ;
+        activeOnly = 0 ;
+        chunked = 0 ;
+        starBase = first ;
+        transferAndExecute(Range.create(count), 0) ;
+    }
+
+    void computeForcesActive(int [] active, int numActive) {
+
+        /*
+         * As computeForces, only for stars active [0] to
+         * active [numActive - 1].  Accelerations of other stars are
+         * left unchanged.
+         */
+
+        activeStars = active ;
+        long in = 0 ;
+        if(backend == APARAPI) {
+            put(activeStars) ;
+            in = 4L * activeStars.length ;
+        }
+
+        grouped = 0 ;
+        activeOnly = 1 ;
+        chunked = 0 ;
+        transferAndExecute(Range.create(numActive), in) ;
+    }
+
+    void computeForcesChunked(int [] chunkStart, int numChunks) {
+
+        /*
+         * As computeForces, one work item per chunk of consecutive
+         * stars - stars chunkStart [c] to chunkStart [c + 1] - 1 for
+         * chunk c.
+         */
+
+        this.chunkStart = chunkStart ;
+        long in = 0 ;
+        if(backend == APARAPI) {
+            put(this.chunkStart) ;
+            in = 4L * chunkStart.length ;
+        }
+
+        grouped = 0 ;
+        activeOnly = 0 ;
+        chunked = 1 ;
+        transferAndExecute(Range.create(numChunks), in) ;
+    }
+
+    void computeForcesGrouped(StarGroups groups) {
+
+        /*
+         * As computeForces, one work item per group of stars.
+         */
+
+        int numGroups = groups.numGroups ;
+        if(listCount.length < numGroups) {
+            int capacity = groups.groupStart.length ;
+            list = new int [LIST_SIZE * capacity] ;
+            listCount = new int [capacity] ;
+            reallocations++ ;
+            totalReallocations++ ;
+        }
+        groupStars = groups.groupStars ;
+        groupStart = groups.groupStart ;
+        groupBox = groups.groupBox ;
+
+        long in = 0 ;
+        if(backend == APARAPI) {
+            put(groupStars) ;
+            put(groupStart) ;
+            put(groupBox) ;
+            in = 4L * (groupStars.length + groupStart.length + groupBox.length) ;
+        }
+
+        grouped = 1 ;
+        activeOnly = 0 ;
+        chunked = 0 ;
+        transferAndExecute(Range.create(numGroups), in) ;
+    }
+
+    void transferAndExecute(Range range, long in) {
+
+        // Common part of computeForces and computeForcesGrouped.  With
+        // a compact encoding, the per-star walk only reads the wide
+        // arrays for quadrupole moments.  in is the bytes of arrays
+        // the caller has already put.
+
+        lastGlobalSize = range.getGlobalSize(0) ;
+        lastLocalSize = range.getLocalSize(0) ;
+
+        if(backend != APARAPI) {
+            Arrays.fill(threadBusy, 0L) ;
+            int grain = chunked != 0 ? 1 : hostGrain ;
+            boolean useLists = backend == VECTOR && grouped == 0 && skipWalk != 0 ;
+            Parallel.forRange(lastGlobalSize, grain, (lo, hi) -> {
+                long start = System.nanoTime() ;
+                if(useLists) {
+                    InteractionList list = list() ;
+                    for(int gid = lo ; gid < hi ; gid++) {
+                        listItem(gid, list) ;
+                    }
+                }
+                else {
+                    for(int gid = lo ; gid < hi ; gid++) {
+                        workItem(gid) ;
+                    }
+                }
+                addBusy(Parallel.threadIndex(), System.nanoTime() - start) ;
+            }) ;
+            return ;
+        }
+
+        put(x) ;
+        put(y) ;
+        put(z) ;
+        put(leafStars) ;
+        in += 4L * (x.length + y.length + z.length + leafStars.length) ;
+        if(encoding == WIDE || grouped != 0 || quadrupole != 0) {
+            put(nodesD) ;
+            in += 4L * nodesD.length ;
+        }
+        if(encoding == WIDE || grouped != 0) {
+            put(nodesI) ;
+            in += 4L * nodesI.length ;
+        }
+        if(encoding == PACKED && grouped == 0) {
+            put(nodesP) ;
+            in += 4L * nodesP.length ;
+        }
+        if(encoding == QUANTIZED && grouped == 0) {
+            put(nodesQ) ;
+            in += 4L * nodesQ.length ;
+        }
+
+        execute(range) ;
+
+        get(ax) ;
+        get(ay) ;
+        get(az) ;
+        long out = 4L * (ax.length + ay.length + az.length) ;
+
+        // Puts and gets only copy anything if the pass ran on an OpenCL
+        // device - not on the Java Thread Pool fallback.
+
+        if(!(getTargetDevice() instanceof OpenCLDevice)) return ;
+
+        bytesToDevice += in ;
+        bytesFromDevice += out ;
+        totalBytesToDevice += in ;
+        totalBytesFromDevice += out ;
+    }
+
+    synchronized void addBusy(int thread, long nanos) {
+        if(thread >= threadBusy.length) {
+            threadBusy = Arrays.copyOf(threadBusy, thread + 1) ;
+        }
+        threadBusy [thread] += nanos ;
+    }
+
+    InteractionList list() {
+
+        // Interaction list of the current thread (VECTOR).  Only that
+        // thread uses it, until the pass ends.
+
+        return lists.get() ;
+    }
+
+    void listItem(int gid, InteractionList list) {
+
+        // As workItem (not grouped), by listForce.
+
+        if(chunked != 0) {
+            for(int star = chunkStart [gid] ; star < chunkStart [gid + 1] ; star++) {
+                listForce(star, list) ;
+            }
+        }
+        else if(activeOnly != 0) {
+            listForce(activeStars [gid], list) ;
+        }
+        else {
+            listForce(starBase + gid, list) ;
+        }
+    }
+
+    void listForce(int star, InteractionList list) {
+
+        /*
+         * As starWalk, for a preorder tree.  The walk accepts and
+         * opens the same nodes as calcForceSkip, so visits and
+         * interactions are the same, but forces are only summed at the
+         * end, over the list.
+         */
+
+        float xStar = x [star] ;
+        float yStar = y [star] ;
+        float zStar = z [star] ;
+        list.clear() ;
+
+        int visited = 0 ;
+        int current = TREE_ROOT ;
+        while(current < nodeTop) {
+            visited++ ;
+            int nodesDptr = NODEDSIZE * current ;
+            int nodesIptr = NODEISIZE * current ;
+            if(distance(xStar, yStar, zStar, current) > nodesD [nodesDptr + THRESHOLD]) {
+                list.add(nodesD [nodesDptr + XCENT], nodesD [nodesDptr + YCENT],
+                         nodesD [nodesDptr + ZCENT], nodesI [nodesIptr + NPARTICLES]) ;
+                if(quadrupole != 0) {
+                    list.addQuadrupole(nodesD [nodesDptr + XCENT],
+                                       nodesD [nodesDptr + YCENT],
+                                       nodesD [nodesDptr + ZCENT], nodesD, nodesDptr) ;
+                }
+                current = nodesI [nodesIptr + SKIP] ;
+            }
+            else if(nodesI [nodesIptr + FIRSTCHILD] == NULL) {
+                int first = nodesI [nodesIptr + FIRSTSTAR] ;
+                listStars(star, list, first, first + nodesI [nodesIptr + NPARTICLES]) ;
+                current = nodesI [nodesIptr + SKIP] ;
+            }
+            else {
+                current = current + 1 ;
+            }
+        }
+        listStars(star, list, looseFirst, looseLast) ;
+
+        list.evaluate(xStar, yStar, zStar) ;
+        ax [star] = list.acc [0] ;
+        ay [star] = list.acc [1] ;
+        az [star] = list.acc [2] ;
+        visits [star] = visited ;
+        interactions [star] = list.count ;
+    }
+
+    void listStars(int id, InteractionList list, int first, int last) {
+
+        // As starsForce, adding leafStars [first] to leafStars [last - 1]
+        // to the list.
+
+        for(int m = first ; m < last ; m++) {
+            int star = leafStars [m] ;
+            if(star != id) {
+                list.add(x [star], y [star], z [star], 1F) ;
+            }
+        }
+    }
+
+    void fetchCounters() {
+
+        // Make visits and interactions of last pass readable on host.
+
+        if(backend == APARAPI) {
+            get(visits) ;
+            get(interactions) ;
+        }
+    }
+
+    long countVisits(int items) {
+
+        // Total nodes visited by first items work items in last pass.
+
+        if(backend == APARAPI) get(visits) ;
+        long sum = 0 ;
+        for(int i = 0 ; i < items ; i++) {
+            sum += visits [activeOnly != 0 ? activeStars [i] : i] ;
+        }
+        return sum ;
+    }
+
+    long countInteractions(int items) {
+
+        // Total force law evaluations by first items work items.
+
+        if(backend == APARAPI) get(interactions) ;
+        long sum = 0 ;
+        for(int i = 0 ; i < items ; i++) {
+            sum += interactions [activeOnly != 0 ? activeStars [i] : i] ;
+        }
+        return sum ;
     }
 
     int allocateNode(float xMid, float yMid, float zMid, int nParticles,
                      float xCent, float yCent, float zCent,
-                     float threshold) {
+                     float threshold, int firstStar) {
 
         /*
          * Allocate space for node and define most fields.
@@ -106,6 +751,7 @@ public class KernelTree extends Kernel {
         nodesD [nodesDptr + ZMID] = zMid ;
 
         nodesI [nodesIptr + NPARTICLES] = nParticles ;
+        nodesI [nodesIptr + FIRSTSTAR] = firstStar ;
 
         nodesD [nodesDptr + XCENT] = xCent ;
         nodesD [nodesDptr + YCENT] = yCent ;
@@ -169,6 +815,145 @@ public class KernelTree extends Kernel {
 
     void calcForce(int id, float x, float y, float z, int tree) {
 
+        /*
+         * In grouped mode, id is the group and x, y, z are unused.
+         */
+
+        if(encoding != WIDE && grouped == 0)
+            calcForceCompact(id, x, y, z) ;
+        else if(skipWalk != 0)
+            calcForceSkip(id, x, y, z, tree) ;
+        else
+            calcForceParent(id, x, y, z, tree) ;
+    }
+
+    void calcForceCompact(int id, float x, float y, float z) {
+
+        /*
+         * As calcForceSkip and calcForceNodeRule, for the whole tree,
+         * reading PACKED or QUANTIZED node records.
+         */
+
+        int current = TREE_ROOT ;
+        int depth = -1 ;             // of last node visited, and ...
+        int ix = 0 ;                 // ... integer coordinates of its cell
+        int iy = 0 ;
+        int iz = 0 ;
+
+        int ptr = 0 ;
+        int word = 0 ;
+        int cell = 0 ;
+        int shift = 0 ;
+        int mass = 0 ;
+        int link = 0 ;
+        float size = 0F ;
+        float xCent = 0F ;
+        float yCent = 0F ;
+        float zCent = 0F ;
+        float threshold = 0F ;
+        float dx = 0F ;
+        float dy = 0F ;
+        float dz = 0F ;
+
+        while(current < nodeTop) {
+            visits [id]++ ;
+
+            if(encoding == PACKED) {
+                ptr = PACKEDSIZE * current ;
+                xCent = nodesP [ptr + PXCENT] ;
+                yCent = nodesP [ptr + PYCENT] ;
+                zCent = nodesP [ptr + PZCENT] ;
+                threshold = nodesP [ptr + PTHRESHOLD] ;
+                mass = (int) nodesP [ptr + PMASS] ;
+                link = (int) nodesP [ptr + PLINK] ;
+                cell = (int) nodesP [ptr + PCELL] ;
+            }
+            else {
+                ptr = QUANTSIZE * current ;
+                word = nodesQ [ptr + QNZCELL] ;
+                mass = nodesQ [ptr + QNMASS] ;
+                link = nodesQ [ptr + QNLINK] ;
+                cell = word & 255 ;
+            }
+
+            // Cell of current node - a child of the last node visited
+            // (shift 0) or of one of its ancestors.
+
+            shift = depth - (cell >> 3) + 1 ;
+            ix = ((ix >> shift) << 1) | ((cell >> 2) & 1) ;
+            iy = ((iy >> shift) << 1) | ((cell >> 1) & 1) ;
+            iz = ((iz >> shift) << 1) | (cell & 1) ;
+            depth = cell >> 3 ;
+            size = cellSize [depth] ;
+
+            if(encoding == QUANTIZED) {
+                xCent = (ix + (((nodesQ [ptr + QNXY] >> 16) & 65535) + 0.5F) *
+                              (1F / 65536)) * size ;
+                yCent = (iy + ((nodesQ [ptr + QNXY] & 65535) + 0.5F) *
+                              (1F / 65536)) * size ;
+                zCent = (iz + (((word >> 16) & 65535) + 0.5F) *
+                              (1F / 65536)) * size ;
+                threshold = (thresholdBase + ((word >> 8) & 255) *
+                             (1F / 256)) * size ;
+            }
+
+            dx = wrap(x - (ix + 0.5F) * size) ;
+            dy = wrap(y - (iy + 0.5F) * size) ;
+            dz = wrap(z - (iz + 0.5F) * size) ;
+            if(dx * dx + dy * dy + dz * dz > threshold * threshold) {
+                forceLawAt(id, x, y, z, xCent, yCent, zCent, mass, current) ;
+                interactions [id]++ ;
+                if(link > 0)
+                    current = link ;
+                else
+                    current = current + 1 ;
+            }
+            else {
+                if(link < 0) {
+                    // leaf node - stars of bucket individually
+                    interactions [id] +=
+                            starsForce(id, x, y, z, -link - 1, -link - 1 + mass) ;
+                }
+                current = current + 1 ;
+            }
+        }
+    }
+
+    float wrap(float d) {
+
+        // Separation d on one axis, reduced to nearest periodic image.
+
+        float w = d ;
+        if(w > BOX_WIDTH / 2) w -= BOX_WIDTH ;
+        if(w < -BOX_WIDTH / 2) w += BOX_WIDTH ;
+        return w ;
+    }
+
+    void calcForceSkip(int id, float x, float y, float z, int tree) {
+
+        /*
+         * Walk of tree in preorder.  Every node visited is either
+         * accepted or opened, and the walk ends when it jumps past the
+         * last node.
+         */
+
+        int current = tree ;
+        boolean done ;
+        while(current < nodeTop) {
+            visits [id]++ ;
+            if(grouped == 0)
+                done = calcForceNodeRule(id, x, y, z, current) ;
+            else
+                done = groupNodeRule(id, current) ;
+            if(done)
+                current = nodesI [NODEISIZE * current + SKIP] ;
+            else
+                current = current + 1 ;
+        }
+    }
+
+    void calcForceParent(int id, float x, float y, float z, int tree) {
+
         /*
          * Has to be rewritten because GPU kernels don't generally
          * support recursion.  Also there are a few quirks of Aparapi,
@@ -180,13 +965,19 @@ public class KernelTree extends Kernel {
 
         int nodesIptr ;       // Aparapi doesn't like declarations inside while
         boolean continuing ;  // Aparapi doesn't like continue statement
+        boolean done ;
         boolean breaking = false ;  // Aparapi fussy about break statements
         while(!breaking) {
             continuing = false ;
 
             nodesIptr = NODEISIZE * current ;            
             if(firstVisit) {
-                if(!calcForceNodeRule(id, x, y, z, current)) {
+                visits [id]++ ;
+                if(grouped == 0)
+                    done = calcForceNodeRule(id, x, y, z, current) ;
+                else
+                    done = groupNodeRule(id, current) ;
+                if(!done) {
                 //if(nodesI [nodesIptr + FIRSTCHILD] != NULL) {  // debug
                     // visit children
                     current = nodesI [nodesIptr + FIRSTCHILD] ;
@@ -230,29 +1021,134 @@ public class KernelTree extends Kernel {
         if(nodesI [nodesIptr + NPARTICLES] == 0)
             throw new RuntimeException("Node without any particles") ;
 */
-        if(nodesI [nodesIptr + FIRSTCHILD] == NULL) {
-            // leaf node
-            if(x != nodesD [nodesDptr + XCENT] || 
-               y != nodesD [nodesDptr + YCENT] ||
-               z != nodesD [nodesDptr + ZCENT]) {
-                forceLaw(id, x, y, z, node) ;
-            }
+        float r = distance(x, y, z, node) ;
+        if(r > nodesD [nodesDptr + THRESHOLD]) {
+            forceLaw(id, x, y, z, node) ;
+            interactions [id]++ ;
             return true ;
         }
-        else {                 
-            float r = distance(x, y, z, node) ;
-            if(r > nodesD [nodesDptr + THRESHOLD]) {
-                forceLaw(id, x, y, z, node) ;
-                return true ;
-            }
-            else {
-                return false ;
+        else if(nodesI [nodesIptr + FIRSTCHILD] == NULL) {
+            // leaf node - stars of bucket individually
+            interactions [id] += leafForce(id, x, y, z, node) ;
+            return true ;
+        }
+        else {
+            return false ;
+        }
+    }
+
+    int leafForce(int id, float x, float y, float z, int node) {
+
+        // Forces on star id from every other star of leaf node.
+        // Returns number of stars.
+
+        int nodesIptr = NODEISIZE * node ;
+        int first = nodesI [nodesIptr + FIRSTSTAR] ;
+        return starsForce(id, x, y, z, first,
+                          first + nodesI [nodesIptr + NPARTICLES]) ;
+    }
+
+    int starsForce(int id, float x, float y, float z, int first, int last) {
+
+        // Forces on star id from leafStars [first] to leafStars [last - 1],
+        // other than itself.  Returns number of stars.
+
+        int count = 0 ;
+        for(int m = first ; m < last ; m++) {
+            int star = leafStars [m] ;
+            if(star != id) {
+                starForce(id, x, y, z, star) ;
+                count++ ;
             }
-            //return false ;  // debug
         }
+        return count ;
     }
     
 
+    boolean groupNodeRule(int group, int node) {
+
+        // As calcForceNodeRule, for all stars of group.  Accepted nodes
+        // are added to the group's interaction list.
+
+        // Leaves whose stars must be summed individually are entered as
+        // -node.
+
+        int nodesDptr = NODEDSIZE * node ;
+        int nodesIptr = NODEISIZE * node ;
+
+        int entry = NULL ;
+        if(boxDistance(group, node) > nodesD [nodesDptr + THRESHOLD]) {
+            entry = node ;
+        }
+        else if(nodesI [nodesIptr + FIRSTCHILD] == NULL) {
+            entry = -node ;
+        }
+        if(entry != NULL) {
+            if(listCount [group] == LIST_SIZE) {
+                flushList(group) ;
+            }
+            list [LIST_SIZE * group + listCount [group]] = entry ;
+            listCount [group]++ ;
+        }
+        return entry != NULL ;
+    }
+
+    void flushList(int group) {
+
+        // Evaluate interaction list for every star of group, then empty it.
+
+        int listPtr = LIST_SIZE * group ;
+        int count = listCount [group] ;
+        for(int m = groupStart [group] ; m < groupStart [group + 1] ; m++) {
+            int star = groupStars [m] ;
+            float xStar = x [star] ;
+            float yStar = y [star] ;
+            float zStar = z [star] ;
+            for(int k = 0 ; k < count ; k++) {
+                int entry = list [listPtr + k] ;
+                if(entry > 0) {
+                    forceLaw(star, xStar, yStar, zStar, entry) ;
+                    interactions [group]++ ;
+                }
+                else {
+                    interactions [group] +=
+                            leafForce(star, xStar, yStar, zStar, -entry) ;
+                }
+            }
+        }
+        listCount [group] = 0 ;
+    }
+
+    float boxDistance(int group, int node) {
+
+        // Smallest distance from mid-point of node to bounding box of
+        // group (lower bound on distance to any star of group).
+
+        int nodesDptr = NODEDSIZE * node ;
+        int boxPtr = StarGroups.BOXSIZE * group ;
+
+        float dx = axisDistance(nodesD [nodesDptr + XMID],
+                                groupBox [boxPtr + StarGroups.LO],
+                                groupBox [boxPtr + StarGroups.HI]) ;
+        float dy = axisDistance(nodesD [nodesDptr + YMID],
+                                groupBox [boxPtr + StarGroups.LO + 1],
+                                groupBox [boxPtr + StarGroups.HI + 1]) ;
+        float dz = axisDistance(nodesD [nodesDptr + ZMID],
+                                groupBox [boxPtr + StarGroups.LO + 2],
+                                groupBox [boxPtr + StarGroups.HI + 2]) ;
+        return sqrt(dx * dx + dy * dy + dz * dz) ;
+    }
+
+    float axisDistance(float p, float lo, float hi) {
+
+        // Distance from p to interval [lo, hi], over periodic images of p.
+
+        float d = max(max(lo - p, p - hi), 0F) ;
+        float dMinus = max(max(lo - (p - BOX_WIDTH), (p - BOX_WIDTH) - hi), 0F) ;
+        float dPlus = max(max(lo - (p + BOX_WIDTH), (p + BOX_WIDTH) - hi), 0F) ;
+        return min(d, min(dMinus, dPlus)) ;
+    }
+
     float distance(float x, float y, float z, int node) {
 
         // Distance from mid-point of this node.
@@ -284,19 +1180,33 @@ public class KernelTree extends Kernel {
         
         int nodesDptr = NODEDSIZE * node ;
         int nodesIptr = NODEISIZE * node ;
+
+        forceLawAt(id, x, y, z, nodesD [nodesDptr + XCENT],
+                   nodesD [nodesDptr + YCENT], nodesD [nodesDptr + ZCENT],
+                   nodesI [nodesIptr + NPARTICLES], node) ;
+    }
+
+    void forceLawAt(int id, float x, float y, float z,
+                    float xCent, float yCent, float zCent, int mass,
+                    int node) {
+
+        // As forceLaw, with centre of mass and mass already read
+        // (quadrupole moment, if any, still from nodesD).
+
+        int nodesDptr = NODEDSIZE * node ;
         
         float dx, dy, dz;  // separations in x and y directions
         float dx2, dy2, dz2, rSquared, r, massRCubedInv;      
 
         // Vector version of inverse square law
         // This version assumes periodic box.
-        dx = x - nodesD [nodesDptr + XCENT] ;
+        dx = x - xCent ;
         if(dx > BOX_WIDTH / 2) dx -= BOX_WIDTH ;
         if(dx < -BOX_WIDTH / 2) dx += BOX_WIDTH ;
-        dy = y - nodesD [nodesDptr + YCENT] ;
+        dy = y - yCent ;
         if(dy > BOX_WIDTH / 2) dy -= BOX_WIDTH ;
         if(dy < -BOX_WIDTH / 2) dy += BOX_WIDTH ;
-        dz = z - nodesD [nodesDptr + ZCENT] ;
+        dz = z - zCent ;
         if(dz > BOX_WIDTH / 2) dz -= BOX_WIDTH ;
         if(dz < -BOX_WIDTH / 2) dz += BOX_WIDTH ;
         dx2 = dx * dx;
@@ -305,21 +1215,120 @@ public class KernelTree extends Kernel {
         rSquared = dx2 + dy2 + dz2 ;
         //r = (float) Math.sqrt(rSquared) ;
         r = sqrt(rSquared) ;  // Aparapi implements this natively
-        massRCubedInv = nodesI [nodesIptr + NPARTICLES] / (rSquared * r) ;
+        massRCubedInv = mass / (rSquared * r) ;
         ax [id] -= massRCubedInv * dx ;
         ay [id] -= massRCubedInv * dy ;
         az [id] -= massRCubedInv * dz ;
+
+        if(quadrupole != 0) {
+
+            // Minus gradient of quadrupole potential -(r.Q.r) / (2 r^5)
+
+            float qx = nodesD [nodesDptr + QXX] * dx +
+                       nodesD [nodesDptr + QXY] * dy +
+                       nodesD [nodesDptr + QXZ] * dz ;
+            float qy = nodesD [nodesDptr + QXY] * dx +
+                       nodesD [nodesDptr + QYY] * dy +
+                       nodesD [nodesDptr + QYZ] * dz ;
+            float qz = nodesD [nodesDptr + QXZ] * dx +
+                       nodesD [nodesDptr + QYZ] * dy +
+                       nodesD [nodesDptr + QZZ] * dz ;
+            float rQr = dx * qx + dy * qy + dz * qz ;
+            float rFiveInv = 1F / (rSquared * rSquared * r) ;
+            float radial = 2.5F * rQr / rSquared ;
+            ax [id] += rFiveInv * (qx - radial * dx) ;
+            ay [id] += rFiveInv * (qy - radial * dy) ;
+            az [id] += rFiveInv * (qz - radial * dz) ;
+        }
+    }
+
+    void starForce(int id, float x, float y, float z, int star) {
+
+        // Force exerted by another star, as forceLaw.  Coincident stars
+        // exert no force on each other.
+
+        float dx, dy, dz;
+        float rSquared, r, rCubedInv ;
+
+        dx = x - this.x [star] ;
+        if(dx > BOX_WIDTH / 2) dx -= BOX_WIDTH ;
+        if(dx < -BOX_WIDTH / 2) dx += BOX_WIDTH ;
+        dy = y - this.y [star] ;
+        if(dy > BOX_WIDTH / 2) dy -= BOX_WIDTH ;
+        if(dy < -BOX_WIDTH / 2) dy += BOX_WIDTH ;
+        dz = z - this.z [star] ;
+        if(dz > BOX_WIDTH / 2) dz -= BOX_WIDTH ;
+        if(dz < -BOX_WIDTH / 2) dz += BOX_WIDTH ;
+        rSquared = dx * dx + dy * dy + dz * dz ;
+        if(rSquared > 0F) {
+            r = sqrt(rSquared) ;
+            rCubedInv = 1F / (rSquared * r) ;
+            ax [id] -= rCubedInv * dx ;
+            ay [id] -= rCubedInv * dy ;
+            az [id] -= rCubedInv * dz ;
+        }
     }
 
     public void run() {
+        workItem(getGlobalId()) ;
+    }
+
+    void starWalk(int star) {
 
-        int gid = getGlobalId() ;
+        // Force on one star, from the tree and any loose stars.  Not
+        // an overload of starForce - Aparapi names OpenCL functions by
+        // method name alone.
 
-        ax [gid] = 0F ;
-        ay [gid] = 0F ;
-        az [gid] = 0F ;
+        visits [star] = 0 ;
+        interactions [star] = 0 ;
 
-        calcForce(gid, x [gid], y [gid], z [gid], TREE_ROOT) ;
+        ax [star] = 0F ;
+        ay [star] = 0F ;
+        az [star] = 0F ;
+
+        calcForce(star, x [star], y [star], z [star], TREE_ROOT) ;
+
+        interactions [star] += starsForce(star, x [star], y [star], z [star],
+                                          looseFirst, looseLast) ;
+    }
+
+    void workItem(int gid) {
+
+        if(grouped == 0) {
+            if(chunked != 0) {
+                for(int star = chunkStart [gid] ; star < chunkStart [gid + 1] ; star++) {
+                    starWalk(star) ;
+                }
+            }
+            else if(activeOnly != 0) {
+                starWalk(activeStars [gid]) ;
+            }
+            else {
+                starWalk(starBase + gid) ;
+            }
+        }
+        else {
+            visits [gid] = 0 ;
+            interactions [gid] = 0 ;
+
+            for(int m = groupStart [gid] ; m < groupStart [gid + 1] ; m++) {
+                int star = groupStars [m] ;
+                ax [star] = 0F ;
+                ay [star] = 0F ;
+                az [star] = 0F ;
+            }
+            listCount [gid] = 0 ;
+
+            calcForce(gid, 0F, 0F, 0F, TREE_ROOT) ;
+
+            flushList(gid) ;
+
+            for(int m = groupStart [gid] ; m < groupStart [gid + 1] ; m++) {
+                int star = groupStars [m] ;
+                interactions [gid] += starsForce(star, x [star], y [star], z [star],
+                                                 looseFirst, looseLast) ;
+            }
+        }
     }
 }
 
@@ -0,0 +1,95 @@
+package org.hpjava;
+
+import java.util.Arrays ;
+
+
+/*
+
+Parallel LSD radix sort of 64 bit keys, each carrying an int index
+(typically a star number).  Arrays are pooled and reused between sorts.
+
+Callers fill in keys [0..n-1] and index [0..n-1], then call sort.
+
+*/
+
+class KeySort {
+
+    final static int RADIX_BITS = 11 ;
+    final static int RADIX = 1 << RADIX_BITS ;
+
+    final static int MIN_CHUNK = 2048 ;  // min keys per parallel chunk
+
+    long [] keys = new long [0], keysTmp ;
+    int [] index, indexTmp ;
+
+    int [] histograms ;   // RADIX counters per chunk
+
+    void ensureCapacity(int n) {
+        if(keys.length < n) {
+            keys = new long [n] ;
+            keysTmp = new long [n] ;
+            index = new int [n] ;
+            indexTmp = new int [n] ;
+        }
+    }
+
+    void sort(int n, int keyBits) {
+
+        // Sort first n keys, which only use their low keyBits bits.
+        // Each chunk of the arrays gets its own histogram.
+
+        int numChunks = Math.max(1, Math.min(4 * Parallel.THREADS,
+                                             n / MIN_CHUNK)) ;
+        int chunkSize = (n + numChunks - 1) / numChunks ;
+        if(histograms == null || histograms.length < RADIX * numChunks) {
+            histograms = new int [RADIX * numChunks] ;
+        }
+
+        for(int shift = 0 ; shift < keyBits ; shift += RADIX_BITS) {
+            int digitShift = shift ;
+
+            Parallel.forEach(numChunks, c -> {
+                int histPtr = RADIX * c ;
+                Arrays.fill(histograms, histPtr, histPtr + RADIX, 0) ;
+                int hi = Math.min(n, (c + 1) * chunkSize) ;
+                for(int i = c * chunkSize ; i < hi ; i++) {
+                    histograms [histPtr + (int) ((keys [i] >>> digitShift) & (RADIX - 1))]++ ;
+                }
+            }) ;
+
+            // Convert counts to scatter offsets, skipping the pass if
+            // every key has the same digit.
+
+            boolean trivial = false ;
+            int offset = 0 ;
+            for(int digit = 0 ; digit < RADIX ; digit++) {
+                int start = offset ;
+                for(int c = 0 ; c < numChunks ; c++) {
+                    int count = histograms [RADIX * c + digit] ;
+                    histograms [RADIX * c + digit] = offset ;
+                    offset += count ;
+                }
+                if(offset - start == n) trivial = true ;
+            }
+            if(trivial) continue ;
+
+            Parallel.forEach(numChunks, c -> {
+                int histPtr = RADIX * c ;
+                int hi = Math.min(n, (c + 1) * chunkSize) ;
+                for(int i = c * chunkSize ; i < hi ; i++) {
+                    long key = keys [i] ;
+                    int pos = histograms [histPtr + (int) ((key >>> digitShift) & (RADIX - 1))]++ ;
+                    keysTmp [pos] = key ;
+                    indexTmp [pos] = index [i] ;
+                }
+            }) ;
+
+            long [] keysSwap = keys ;
+            keys = keysTmp ;
+            keysTmp = keysSwap ;
+            int [] indexSwap = index ;
+            index = indexTmp ;
+            indexTmp = indexSwap ;
+        }
+    }
+}
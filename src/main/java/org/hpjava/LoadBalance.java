@@ -0,0 +1,199 @@
+package org.hpjava;
+
+
+/*
+
+Cost model load balancing of the per-star force pass.
+
+KernelTree counts the nodes each star visits and the force law
+evaluations it makes (visits, interactions).  Their sum is taken as the
+cost of the star's walk - it varies by an order of magnitude or more
+between the core and the outskirts of a cluster - and is assumed to
+change little from one step to the next.  After each pass, update splits
+the stars, in index order so that chunks stay compact in space, into
+numChunks contiguous chunks of about equal total cost.  These are the
+work items of the next pass (KernelTree.computeForcesChunked), for
+any backend:
+
+  APARAPI    each Java Thread Pool thread runs the work items whose
+             global id is its thread id modulo the local size, so with
+             a multiple of the local size of chunks every thread gets
+             the same number of equal-cost chunks.
+
+  FORK_JOIN  chunks are tasks of one work item each, and idle threads
+             steal whole chunks (and likewise VECTOR).
+
+The cost model is only valid while star indices stay put - a reorder
+(StarOrder) invalidates it, and the next pass is one work item per star
+again.
+
+measure reports how evenly work was spread in the last pass, as
+max / mean of:
+
+  chunk cost    cost of the work items of the pass.  For a pass of one
+                work item per star, this is for the same number of
+                chunks of equal numbers of stars instead, for comparison.
+
+  thread load   busy time of each Parallel pool thread (FORK_JOIN or
+                VECTOR), or cost of the work items each Java Thread
+                Pool thread ran (APARAPI).
+
+1 - mean / max of thread load is the fraction of thread time spent idle
+waiting for the slowest thread, at the end of the pass.
+
+*/
+
+class LoadBalance {
+
+    final int numChunks ;
+    final int [] chunkStart ;   // stars of chunk c are chunkStart [c] to
+                                // chunkStart [c + 1] - 1
+    final long [] chunkCost ;   // cost of each chunk, at last update
+
+    boolean valid ;             // chunkStart fits current star indices
+    int numStars ;
+
+    // Measures of last pass - see measure.
+
+    double chunkImbalance ;
+    double threadImbalance ;
+    int threads ;
+
+    LoadBalance(int numChunks) {
+        this.numChunks = numChunks ;
+        chunkStart = new int [numChunks + 1] ;
+        chunkCost = new long [numChunks] ;
+    }
+
+    static int defaultChunks() {
+
+        // Several chunks per thread, so a chunk whose cost was
+        // underestimated can be absorbed by stealing.
+
+        return 8 * Parallel.THREADS ;
+    }
+
+    boolean ready(int n) {
+        return valid && numStars == n ;
+    }
+
+    void invalidate() {
+        valid = false ;
+    }
+
+    static long cost(KernelTree kernel, int star) {
+        return (long) kernel.visits [star] + kernel.interactions [star] ;
+    }
+
+    void update(KernelTree kernel, int n) {
+
+        /*
+         * Split stars 0 to n - 1 into chunks of equal cost, from the
+         * counters of the pass just completed (KernelTree.fetchCounters
+         * must have been called).  The boundary of chunk c is the first
+         * star at which the running total reaches c / numChunks of the
+         * whole.
+         */
+
+        long total = 0 ;
+        for(int i = 0 ; i < n ; i++) {
+            total += cost(kernel, i) ;
+        }
+
+        long sum = 0 ;
+        int c = 0 ;
+        chunkStart [0] = 0 ;
+        for(int i = 0 ; i < n ; i++) {
+            while(c < numChunks - 1 && sum * numChunks >= (c + 1) * total) {
+                chunkStart [++c] = i ;
+            }
+            sum += cost(kernel, i) ;
+        }
+        while(c < numChunks - 1) {
+            chunkStart [++c] = n ;
+        }
+        chunkStart [numChunks] = n ;
+
+        for(c = 0 ; c < numChunks ; c++) {
+            long s = 0 ;
+            for(int i = chunkStart [c] ; i < chunkStart [c + 1] ; i++) {
+                s += cost(kernel, i) ;
+            }
+            chunkCost [c] = s ;
+        }
+
+        numStars = n ;
+        valid = true ;
+    }
+
+    void measure(KernelTree kernel, int n) {
+
+        /*
+         * Imbalance of the pass just completed, which was chunked if
+         * kernel.chunked is set, else one work item per star.
+         * Counters must have been fetched.
+         */
+
+        long [] cost = new long [numChunks] ;
+        for(int c = 0 ; c < numChunks ; c++) {
+            int lo, hi ;
+            if(kernel.chunked != 0) {
+                lo = chunkStart [c] ;
+                hi = chunkStart [c + 1] ;
+            }
+            else {
+                lo = (int) ((long) n * c / numChunks) ;
+                hi = (int) ((long) n * (c + 1) / numChunks) ;
+            }
+            for(int i = lo ; i < hi ; i++) {
+                cost [c] += cost(kernel, i) ;
+            }
+        }
+        chunkImbalance = imbalance(cost, numChunks) ;
+
+        if(kernel.backend != KernelTree.APARAPI) {
+            // Slot 0 is for the thread that started the pass, which may
+            // or may not have helped run it.  Pool threads that ran
+            // nothing count as idle, up to THREADS of them.
+
+            long [] busy = kernel.threadBusy ;
+            long [] load = new long [Math.max(busy.length - 1, Parallel.THREADS) + 1] ;
+            threads = 0 ;
+            for(int t = 1 ; t < busy.length ; t++) {
+                if(busy [t] > 0) load [threads++] = busy [t] ;
+            }
+            threads = Math.max(threads, Parallel.THREADS) ;
+            if(busy [0] > 0) load [threads++] = busy [0] ;
+            threadImbalance = imbalance(load, threads) ;
+        }
+        else {
+            int items = kernel.lastGlobalSize ;
+            threads = Math.max(kernel.lastLocalSize, 1) ;
+            long [] load = new long [threads] ;
+            for(int gid = 0 ; gid < items ; gid++) {
+                load [gid % threads] += kernel.chunked != 0 ? cost [gid] :
+                                                              cost(kernel, gid) ;
+            }
+            threadImbalance = imbalance(load, threads) ;
+        }
+    }
+
+    static double imbalance(long [] load, int n) {
+
+        // max / mean of load [0] to load [n - 1].
+
+        long max = 0, sum = 0 ;
+        for(int i = 0 ; i < n ; i++) {
+            max = Math.max(max, load [i]) ;
+            sum += load [i] ;
+        }
+        return sum == 0 ? 1 : (double) max * n / sum ;
+    }
+
+    String report() {
+        return String.format("chunk cost max / mean = %.3f, " +
+                             "thread load max / mean = %.3f over %d threads " +
+                             "(%.1f%% idle)", chunkImbalance, threadImbalance,
+                             threads, 100 * (1 - 1 / threadImbalance)) ;
+    }
+}
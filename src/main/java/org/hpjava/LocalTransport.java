@@ -0,0 +1,64 @@
+package org.hpjava;
+
+import java.io.IOException ;
+
+import java.nio.ByteBuffer ;
+
+import java.util.ArrayList ;
+import java.util.List ;
+import java.util.concurrent.LinkedBlockingQueue ;
+
+
+/*
+
+Transport between ranks that are threads of one JVM.  Each message is
+copied once, into a buffer handed to the receiver through an unbounded
+queue per pair of ranks.
+
+*/
+
+class LocalTransport extends Transport {
+
+    final List<LinkedBlockingQueue<ByteBuffer>> queues ;  // [to * size + from]
+
+    LocalTransport(int rank, int size, List<LinkedBlockingQueue<ByteBuffer>> queues) {
+        super(rank, size) ;
+        this.queues = queues ;
+    }
+
+    static LocalTransport [] create(int size) {
+
+        // Transports of all ranks, connected to each other.
+
+        List<LinkedBlockingQueue<ByteBuffer>> queues =
+                new ArrayList<LinkedBlockingQueue<ByteBuffer>>(size * size) ;
+        for(int k = 0 ; k < size * size ; k++) {
+            queues.add(new LinkedBlockingQueue<ByteBuffer>()) ;
+        }
+        LocalTransport [] transports = new LocalTransport [size] ;
+        for(int r = 0 ; r < size ; r++) {
+            transports [r] = new LocalTransport(r, size, queues) ;
+        }
+        return transports ;
+    }
+
+    void send(int to, ByteBuffer message) {
+        ByteBuffer copy = ByteBuffer.allocate(message.remaining()) ;
+        copy.put(message.duplicate()) ;
+        copy.flip() ;
+        queues.get(to * size + rank).add(copy) ;
+    }
+
+    ByteBuffer receive(int from) throws IOException {
+        try {
+            return queues.get(rank * size + from).take() ;
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt() ;
+            throw new IOException("interrupted receiving from rank " + from, e) ;
+        }
+    }
+
+    public void close() {
+    }
+}
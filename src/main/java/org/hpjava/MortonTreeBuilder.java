@@ -0,0 +1,451 @@
+package org.hpjava;
+
+import java.util.Arrays ;
+
+import static org.hpjava.KernelTree.* ;
+
+
+/*
+
+Parallel construction of the flattened BH tree from Morton keys.
+
+  1. Every star gets a 63 bit Morton key - its position quantized to
+     LEVELS bits per axis, with bits interleaved (x most significant)
+     so that the order of keys is the depth first order of cells in the
+     tree, with children ordered as in Node.addParticleToChild.
+
+  2. Keys, paired with star indices, are sorted by a parallel LSD radix
+     sort (KeySort).
+
+  3. Stars of any cell of the tree are now a contiguous range of sorted
+     keys, and ranges for the children of a cell are found by binary
+     search on the next three bits of the key.  The top levels of the
+     tree are split serially into a "plan" of subtrees, each holding a
+     modest number of stars.  Nodes in these subtrees are first counted,
+     then emitted in parallel, each subtree into a preassigned range of
+     the FlatTree.  Nodes are numbered in depth first preorder.
+
+  4. The few nodes of the plan above the subtrees are finished serially.
+
+Centres of mass (and quadrupole moments if wanted) are computed from
+those of the children, as each node is finished.
+
+A cell becomes a leaf once it holds no more than leafSize stars.  The
+stars of every node are a contiguous range of the sorted index, which
+is copied to FlatTree.stars.  Cells at the deepest level (LEVELS) hold
+stars with identical keys, and are always leaves.
+
+*/
+
+class MortonTreeBuilder extends TreeBuilder {
+
+    final static int LEVELS = 21 ;  // bits per axis in Morton keys
+
+    final static float KEY_SCALE = (1 << LEVELS) / BOX_WIDTH ;
+
+    final static int TASKS_PER_THREAD = 8 ;
+    final static int MIN_GRAIN = 2048 ;  // min stars per subtree task
+
+    // After a build, sort.keys [i] is the i'th key in sorted order and
+    // sort.index [i] the corresponding star.
+
+    final KeySort sort = new KeySort() ;
+
+    long [] keys ;
+    int [] index ;
+
+    // Plan of top level nodes and subtree tasks, in preorder
+
+    int numPlan ;
+    int [] planLo, planHi, planDepth ;
+    int [] planParent, planNext, planFirstChild ;
+    int [] planNode ;     // index of node in flat tree
+    int [] planCount ;    // for tasks, number of nodes in subtree, else 0
+    float [] planMid, planSize ;
+
+    int numTasks ;
+    int [] tasks ;        // plan entries that are subtree tasks
+
+    float [] x, y, z ;
+
+    MortonTreeBuilder(FlatTree tree) {
+        super(tree) ;
+        allocatePlan(64) ;
+    }
+
+    void build(float [] x, float [] y, float [] z, int n) {
+
+        this.x = x ;
+        this.y = y ;
+        this.z = z ;
+
+        sort.ensureCapacity(n) ;
+        computeKeys(n) ;
+        sort.sort(n, 3 * LEVELS) ;
+        keys = sort.keys ;
+        index = sort.index ;
+
+        tree.ensureStars(n) ;
+        System.arraycopy(index, 0, tree.stars, 0, n) ;
+
+        tree.clear() ;
+        tree.quadrupole = quadrupole ;
+        tree.preorder = true ;
+        if(n == 0) {
+            emptyRoot() ;
+            tree.encode(encoding, openingAngle) ;
+            return ;
+        }
+
+        // Plan, count and emit subtrees.
+
+        numPlan = 0 ;
+        numTasks = 0 ;
+        int grain = Math.max(Math.max(MIN_GRAIN, leafSize),
+                             Parallel.grain(n, TASKS_PER_THREAD)) ;
+        plan(0, n, 0, BOX_WIDTH / 2, BOX_WIDTH / 2, BOX_WIDTH / 2,
+             BOX_WIDTH, -1, grain) ;
+
+        Parallel.forEach(numTasks, t -> {
+            int p = tasks [t] ;
+            planCount [p] = count(planLo [p], planHi [p], planDepth [p]) ;
+        }) ;
+
+        int total = 0 ;
+        for(int p = 0 ; p < numPlan ; p++) {
+            planNode [p] = TREE_ROOT + total ;
+            total += (planCount [p] > 0) ? planCount [p] : 1 ;
+        }
+        tree.allocateNodes(total) ;
+
+        Parallel.forEach(numTasks, t -> {
+            int p = tasks [t] ;
+            int parent = planParent [p] ;
+            emit(planNode [p], (parent < 0) ? NULL : planNode [parent],
+                 planLo [p], planHi [p], planDepth [p],
+                 planMid [3 * p], planMid [3 * p + 1], planMid [3 * p + 2],
+                 planSize [p]) ;
+        }) ;
+
+        finishPlan() ;
+        tree.encode(encoding, openingAngle) ;
+    }
+
+    static long key(float x, float y, float z) {
+        return (spread(quantize(x)) << 2) | (spread(quantize(y)) << 1) |
+               spread(quantize(z)) ;
+    }
+
+    static int quantize(float x) {
+        int q = (int) (x * KEY_SCALE) ;
+        if(q < 0) return 0 ;
+        if(q >= 1 << LEVELS) return (1 << LEVELS) - 1 ;
+        return q ;
+    }
+
+    static long spread(long v) {
+
+        // Spread 21 bits of v out to every third bit.
+
+        v &= 0x1fffffL ;
+        v = (v | v << 32) & 0x1f00000000ffffL ;
+        v = (v | v << 16) & 0x1f0000ff0000ffL ;
+        v = (v | v << 8) & 0x100f00f00f00f00fL ;
+        v = (v | v << 4) & 0x10c30c30c30c30c3L ;
+        v = (v | v << 2) & 0x1249249249249249L ;
+        return v ;
+    }
+
+    void computeKeys(int n) {
+        Parallel.forRange(n, Parallel.grain(n, TASKS_PER_THREAD),
+                          (lo, hi) -> {
+            for(int i = lo ; i < hi ; i++) {
+                sort.keys [i] = key(x [i], y [i], z [i]) ;
+                sort.index [i] = i ;
+            }
+        }) ;
+    }
+
+    static int octant(long key, int depth) {
+
+        // Child of cell at depth containing key.
+
+        return (int) (key >>> (3 * (LEVELS - 1 - depth))) & 7 ;
+    }
+
+    int endOfOctant(int lo, int hi, int depth, int octant) {
+
+        // First index in [lo, hi) whose key is beyond given octant.
+
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1 ;
+            if(octant(keys [mid], depth) <= octant)
+                lo = mid + 1 ;
+            else
+                hi = mid ;
+        }
+        return lo ;
+    }
+
+    int plan(int lo, int hi, int depth, float xMid, float yMid, float zMid,
+             float size, int parent, int grain) {
+
+        int p = newPlan(lo, hi, depth, xMid, yMid, zMid, size, parent) ;
+
+        if(hi - lo <= grain || depth == LEVELS) {
+            planCount [p] = -1 ;  // filled in later
+            if(numTasks == tasks.length) {
+                tasks = Arrays.copyOf(tasks, 2 * numTasks) ;
+            }
+            tasks [numTasks++] = p ;
+            return p ;
+        }
+
+        int prev = -1 ;
+        float sizeBy4 = size / 4 ;
+        for(int start = lo ; start < hi ; ) {
+            int octant = octant(keys [start], depth) ;
+            int end = endOfOctant(start, hi, depth, octant) ;
+            int child = plan(start, end, depth + 1,
+                             (octant & 4) == 0 ? xMid - sizeBy4 : xMid + sizeBy4,
+                             (octant & 2) == 0 ? yMid - sizeBy4 : yMid + sizeBy4,
+                             (octant & 1) == 0 ? zMid - sizeBy4 : zMid + sizeBy4,
+                             size / 2, p, grain) ;
+            if(prev < 0)
+                planFirstChild [p] = child ;
+            else
+                planNext [prev] = child ;
+            prev = child ;
+            start = end ;
+        }
+        return p ;
+    }
+
+    int newPlan(int lo, int hi, int depth, float xMid, float yMid, float zMid,
+                float size, int parent) {
+        if(numPlan == planLo.length) {
+            allocatePlan(2 * numPlan) ;
+        }
+        int p = numPlan++ ;
+        planLo [p] = lo ;
+        planHi [p] = hi ;
+        planDepth [p] = depth ;
+        planParent [p] = parent ;
+        planNext [p] = -1 ;
+        planFirstChild [p] = -1 ;
+        planCount [p] = 0 ;
+        planMid [3 * p] = xMid ;
+        planMid [3 * p + 1] = yMid ;
+        planMid [3 * p + 2] = zMid ;
+        planSize [p] = size ;
+        return p ;
+    }
+
+    int count(int lo, int hi, int depth) {
+
+        // Number of nodes in subtree holding stars lo to hi - 1.
+
+        if(hi - lo <= leafSize || depth == LEVELS) return 1 ;
+
+        int total = 1 ;
+        for(int start = lo ; start < hi ; ) {
+            int end = endOfOctant(start, hi, depth, octant(keys [start], depth)) ;
+            total += count(start, end, depth + 1) ;
+            start = end ;
+        }
+        return total ;
+    }
+
+    int emit(int node, int parent, int lo, int hi, int depth,
+             float xMid, float yMid, float zMid, float size) {
+
+        // Write subtree holding stars lo to hi - 1 into flat tree,
+        // with root at node and other nodes following in preorder.
+        // Returns first node after the subtree.
+
+        float [] nodesD = tree.nodesD ;
+        int [] nodesI = tree.nodesI ;
+
+        int nodesDptr = NODEDSIZE * node ;
+        int nodesIptr = NODEISIZE * node ;
+
+        nodesD [nodesDptr + XMID] = xMid ;
+        nodesD [nodesDptr + YMID] = yMid ;
+        nodesD [nodesDptr + ZMID] = zMid ;
+
+        nodesI [nodesIptr + PARENT] = parent ;
+        nodesI [nodesIptr + NPARTICLES] = hi - lo ;
+        nodesI [nodesIptr + FIRSTSTAR] = lo ;
+
+        int nParticles = hi - lo ;
+        if(nParticles <= leafSize || depth == LEVELS) {
+            double xSum = 0, ySum = 0, zSum = 0 ;
+            for(int m = lo ; m < hi ; m++) {
+                int star = index [m] ;
+                xSum += x [star] ;
+                ySum += y [star] ;
+                zSum += z [star] ;
+            }
+            nodesD [nodesDptr + XCENT] = (float) (xSum / nParticles) ;
+            nodesD [nodesDptr + YCENT] = (float) (ySum / nParticles) ;
+            nodesD [nodesDptr + ZCENT] = (float) (zSum / nParticles) ;
+            nodesI [nodesIptr + FIRSTCHILD] = NULL ;
+            nodesI [nodesIptr + SKIP] = node + 1 ;
+            setThreshold(node, size) ;
+            if(quadrupole) setQuadrupole(node, x, y, z) ;
+            return node + 1 ;
+        }
+
+        int free = node + 1 ;
+        int firstChild = NULL ;
+        int prev = NULL ;
+        double xSum = 0, ySum = 0, zSum = 0 ;
+        float sizeBy4 = size / 4 ;
+        for(int start = lo ; start < hi ; ) {
+            int child = free ;
+            int octant = octant(keys [start], depth) ;
+            int end = endOfOctant(start, hi, depth, octant) ;
+            free = emit(child, node, start, end, depth + 1,
+                        (octant & 4) == 0 ? xMid - sizeBy4 : xMid + sizeBy4,
+                        (octant & 2) == 0 ? yMid - sizeBy4 : yMid + sizeBy4,
+                        (octant & 1) == 0 ? zMid - sizeBy4 : zMid + sizeBy4,
+                        size / 2) ;
+            int nChild = end - start ;
+            int childPtr = NODEDSIZE * child ;
+            xSum += (double) nChild * nodesD [childPtr + XCENT] ;
+            ySum += (double) nChild * nodesD [childPtr + YCENT] ;
+            zSum += (double) nChild * nodesD [childPtr + ZCENT] ;
+
+            if(prev == NULL)
+                firstChild = child ;
+            else
+                nodesI [NODEISIZE * prev + NEXT] = child ;
+            prev = child ;
+            start = end ;
+        }
+        nodesI [NODEISIZE * prev + NEXT] = NULL ;
+        nodesI [nodesIptr + FIRSTCHILD] = firstChild ;
+        nodesI [nodesIptr + SKIP] = free ;
+
+        nodesD [nodesDptr + XCENT] = (float) (xSum / nParticles) ;
+        nodesD [nodesDptr + YCENT] = (float) (ySum / nParticles) ;
+        nodesD [nodesDptr + ZCENT] = (float) (zSum / nParticles) ;
+        setThreshold(node, size) ;
+        if(quadrupole) setQuadrupole(node, x, y, z) ;
+
+        return free ;
+    }
+
+    void finishPlan() {
+
+        // Plan entries above the subtree tasks.  Children come after
+        // their parents in the plan, so work backwards.  Skip links
+        // depend on the parent, so are set in a forward pass.
+
+        float [] nodesD = tree.nodesD ;
+        int [] nodesI = tree.nodesI ;
+
+        for(int p = 0 ; p < numPlan ; p++) {
+            int next = planNext [p] ;
+            int parent = planParent [p] ;
+            int skip ;
+            if(next >= 0)
+                skip = planNode [next] ;
+            else if(parent >= 0)
+                skip = nodesI [NODEISIZE * planNode [parent] + SKIP] ;
+            else
+                skip = tree.numNodes + 1 ;
+            nodesI [NODEISIZE * planNode [p] + SKIP] = skip ;
+        }
+
+        for(int p = numPlan - 1 ; p >= 0 ; p--) {
+            int node = planNode [p] ;
+            int nodesDptr = NODEDSIZE * node ;
+            int nodesIptr = NODEISIZE * node ;
+
+            int next = planNext [p] ;
+            nodesI [nodesIptr + NEXT] = (next < 0) ? NULL : planNode [next] ;
+
+            if(planCount [p] > 0) continue ;  // task, already emitted
+
+            nodesD [nodesDptr + XMID] = planMid [3 * p] ;
+            nodesD [nodesDptr + YMID] = planMid [3 * p + 1] ;
+            nodesD [nodesDptr + ZMID] = planMid [3 * p + 2] ;
+
+            int parent = planParent [p] ;
+            nodesI [nodesIptr + PARENT] = (parent < 0) ? NULL : planNode [parent] ;
+            int nParticles = planHi [p] - planLo [p] ;
+            nodesI [nodesIptr + NPARTICLES] = nParticles ;
+            nodesI [nodesIptr + FIRSTSTAR] = planLo [p] ;
+            nodesI [nodesIptr + FIRSTCHILD] = planNode [planFirstChild [p]] ;
+
+            double xSum = 0, ySum = 0, zSum = 0 ;
+            for(int c = planFirstChild [p] ; c >= 0 ; c = planNext [c]) {
+                int nChild = planHi [c] - planLo [c] ;
+                int childPtr = NODEDSIZE * planNode [c] ;
+                xSum += (double) nChild * nodesD [childPtr + XCENT] ;
+                ySum += (double) nChild * nodesD [childPtr + YCENT] ;
+                zSum += (double) nChild * nodesD [childPtr + ZCENT] ;
+            }
+            nodesD [nodesDptr + XCENT] = (float) (xSum / nParticles) ;
+            nodesD [nodesDptr + YCENT] = (float) (ySum / nParticles) ;
+            nodesD [nodesDptr + ZCENT] = (float) (zSum / nParticles) ;
+            setThreshold(node, planSize [p]) ;
+            if(quadrupole) setQuadrupole(node, x, y, z) ;
+        }
+    }
+
+    void setThreshold(int node, float size) {
+        int nodesDptr = NODEDSIZE * node ;
+        float delta = tree.distance(tree.nodesD [nodesDptr + XCENT],
+                                    tree.nodesD [nodesDptr + YCENT],
+                                    tree.nodesD [nodesDptr + ZCENT], node) ;
+        tree.nodesD [nodesDptr + THRESHOLD] = threshold(size, delta) ;
+    }
+
+    void emptyRoot() {
+        int node = tree.allocateNodes(1) ;
+        int nodesDptr = NODEDSIZE * node ;
+        int nodesIptr = NODEISIZE * node ;
+        for(int i = 0 ; i <= THRESHOLD ; i++) {
+            tree.nodesD [nodesDptr + i] = BOX_WIDTH / 2 ;
+        }
+        for(int i = QXX ; i <= QYZ ; i++) {
+            tree.nodesD [nodesDptr + i] = 0 ;
+        }
+        tree.nodesI [nodesIptr + PARENT] = NULL ;
+        tree.nodesI [nodesIptr + FIRSTCHILD] = NULL ;
+        tree.nodesI [nodesIptr + NEXT] = NULL ;
+        tree.nodesI [nodesIptr + NPARTICLES] = 0 ;
+        tree.nodesI [nodesIptr + FIRSTSTAR] = 0 ;
+        tree.nodesI [nodesIptr + SKIP] = node + 1 ;
+    }
+
+    void allocatePlan(int capacity) {
+        if(planLo == null) {
+            planLo = new int [capacity] ;
+            planHi = new int [capacity] ;
+            planDepth = new int [capacity] ;
+            planParent = new int [capacity] ;
+            planNext = new int [capacity] ;
+            planFirstChild = new int [capacity] ;
+            planNode = new int [capacity] ;
+            planCount = new int [capacity] ;
+            planMid = new float [3 * capacity] ;
+            planSize = new float [capacity] ;
+            tasks = new int [capacity] ;
+        }
+        else {
+            planLo = Arrays.copyOf(planLo, capacity) ;
+            planHi = Arrays.copyOf(planHi, capacity) ;
+            planDepth = Arrays.copyOf(planDepth, capacity) ;
+            planParent = Arrays.copyOf(planParent, capacity) ;
+            planNext = Arrays.copyOf(planNext, capacity) ;
+            planFirstChild = Arrays.copyOf(planFirstChild, capacity) ;
+            planNode = Arrays.copyOf(planNode, capacity) ;
+            planCount = Arrays.copyOf(planCount, capacity) ;
+            planMid = Arrays.copyOf(planMid, 3 * capacity) ;
+            planSize = Arrays.copyOf(planSize, capacity) ;
+        }
+    }
+}
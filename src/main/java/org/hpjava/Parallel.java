@@ -0,0 +1,113 @@
+package org.hpjava;
+
+import java.util.concurrent.ForkJoinPool ;
+import java.util.concurrent.ForkJoinWorkerThread ;
+import java.util.concurrent.RecursiveAction ;
+import java.util.concurrent.atomic.AtomicInteger ;
+
+
+/*
+
+Minimal fork-join helpers for the host side (non-kernel) parts of a
+step.  All parallel host code shares one pool, whose size can be set
+with the "bh.threads" system property (default: all cores).
+
+*/
+
+class Parallel {
+
+    final static int THREADS =
+            Integer.getInteger("bh.threads",
+                               Runtime.getRuntime().availableProcessors()) ;
+
+    final static ForkJoinPool pool =
+            THREADS == ForkJoinPool.commonPool().getParallelism() ?
+            ForkJoinPool.commonPool() : new ForkJoinPool(THREADS) ;
+
+    interface RangeBody {
+        void run(int lo, int hi) ;
+    }
+
+    interface IndexBody {
+        void run(int i) ;
+    }
+
+    static void forRange(int n, int grain, RangeBody body) {
+
+        // Apply body to sub-ranges of [0, n) no longer than grain.
+
+        if(n <= grain) {
+            if(n > 0) body.run(0, n) ;
+        }
+        else {
+            pool.invoke(new RangeTask(0, n, Math.max(grain, 1), body)) ;
+        }
+    }
+
+    static void forEach(int n, IndexBody body) {
+
+        // Apply body to each index in [0, n) as a separate task.
+
+        forRange(n, 1, (lo, hi) -> {
+            for(int i = lo ; i < hi ; i++) body.run(i) ;
+        }) ;
+    }
+
+    // Number of the next pool thread to ask for its index.
+
+    final static AtomicInteger workers = new AtomicInteger() ;
+
+    final static ThreadLocal<Integer> workerIndex =
+            ThreadLocal.withInitial(() -> workers.incrementAndGet()) ;
+
+    static int threadIndex() {
+
+        /*
+         * Index of current thread: 0 for any thread outside the pool,
+         * else a number from 1 up that no other thread of the pool has.
+         * Pool indices of workers are not used, because they are sparse
+         * and may exceed THREADS.  A worker the pool retires and
+         * replaces gets a new number, so numbers may exceed THREADS too.
+         */
+
+        Thread thread = Thread.currentThread() ;
+        if(thread instanceof ForkJoinWorkerThread &&
+           ((ForkJoinWorkerThread) thread).getPool() == pool) {
+            return workerIndex.get() ;
+        }
+        return 0 ;
+    }
+
+    static int grain(int n, int tasksPerThread) {
+
+        // Grain giving about tasksPerThread tasks to each thread.
+
+        return Math.max(1, n / (tasksPerThread * THREADS)) ;
+    }
+
+    static class RangeTask extends RecursiveAction {
+
+        private final static long serialVersionUID = 1L ;
+
+        final int lo, hi, grain ;
+        final RangeBody body ;
+
+        RangeTask(int lo, int hi, int grain, RangeBody body) {
+            this.lo = lo ;
+            this.hi = hi ;
+            this.grain = grain ;
+            this.body = body ;
+        }
+
+        protected void compute() {
+            if(hi - lo <= grain) {
+                body.run(lo, hi) ;
+            }
+            else {
+                int mid = (lo + hi) >>> 1 ;
+                invokeAll(new RangeTask(lo, mid, grain, body),
+                          new RangeTask(mid, hi, grain, body)) ;
+            }
+        }
+    }
+}
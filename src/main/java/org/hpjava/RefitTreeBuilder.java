@@ -0,0 +1,382 @@
+package org.hpjava;
+
+import java.util.concurrent.atomic.AtomicInteger ;
+
+import static org.hpjava.KernelTree.* ;
+
+
+/*
+
+Keeps the tree from one step to the next, instead of rebuilding it.
+
+With small time steps only a few percent of stars leave the cell of
+their leaf between steps.  After a full build by another builder (which
+must number nodes in preorder), each following step:
+
+  1. Finds the stars that are no longer inside the cell of their leaf
+     (in parallel).
+
+  2. Moves each of these to the existing leaf whose cell now contains
+     it, found by descending from the root.  Nodes are never created or
+     removed, so the layout of the tree is unchanged.  If the star is in
+     an octant without a node, the descent continues into the nearest
+     child instead, and the star goes to the leaf reached if it is
+     within the leaf's cell size of the leaf's mid-point.  Otherwise
+     (typically a fast star ejected from a close encounter) it is
+     "loose" - not in any leaf.
+
+  3. If any star moved, lays out the stars of each leaf again as
+     contiguous ranges of FlatTree.stars, followed by the loose stars
+     (see FlatTree.looseFirst).  KernelTree sums forces from loose stars
+     directly.
+
+  4. Refits numbers of stars, centres of mass, thresholds (and
+     quadrupole moments) of all nodes, children before parents.
+
+Because of stars placed outside the cell of their leaf, a node's stars
+may extend beyond its cell, by up to half its size.  Each node's
+half-width is taken to be the larger of half its cell size, and the
+largest distance along any axis from its mid-point to one of its stars,
+and the threshold is computed from twice this
+instead of the cell size.  This is the usual threshold if every star is
+inside its cell.
+
+A full rebuild is done instead if more than maxMigrants of the stars
+are outside their cells, or more than maxLoose are loose, or a leaf
+would grow beyond leafGrowth * leafSize stars, or after maxSteps
+refits, or if stars have been renumbered (invalidate).  After a refit
+fails, the next 1, 3, 7, ... (up to maxSteps) steps are full builds
+without trying to refit, until a refit succeeds again - with leaves of
+one star, for example, refits rarely succeed.
+
+Options of the full builder (leaf size, opening angle, quadrupoles,
+node encoding) apply to refits as well.
+
+*/
+
+class RefitTreeBuilder extends TreeBuilder {
+
+    final TreeBuilder full ;
+
+    float maxMigrants =
+            Float.parseFloat(System.getProperty("bh.refitMigrants", "0.1")) ;
+           // fraction of stars leaving their leaf that forces a rebuild
+    float maxLoose =
+            Float.parseFloat(System.getProperty("bh.refitLoose", "0.0002")) ;
+           // fraction of stars not in any leaf that forces a rebuild
+    int maxSteps = Integer.getInteger("bh.refitSteps", 50) ;
+           // max refits between full builds
+    int leafGrowth = 4 ;  // max stars moved into leaf, over leafSize
+
+    boolean valid ;       // tree and leafOf describe current stars
+    int n ;
+    int steps ;           // refits since last full build
+    int failures ;        // refits that failed in a row
+    int backoff ;         // full builds to go before trying a refit again
+
+    // Outcome of last call to build
+
+    boolean rebuilt ;
+    int migrants ;
+    int loose ;
+
+    int [] leafOf = new int [0] ;    // leaf holding each star, or NULL
+    int [] moved = new int [0] ;     // stars found outside their leaf
+    float [] size = new float [0] ;  // of cell of each node
+    float [] extent = new float [0] ; // half-width of stars of each node
+    int [] fill = new int [0] ;      // scratch, per node
+
+    float [] x, y, z ;
+
+    RefitTreeBuilder(TreeBuilder full) {
+        super(full.tree) ;
+        this.full = full ;
+    }
+
+    void invalidate() {
+        valid = false ;
+    }
+
+    void build(float [] x, float [] y, float [] z, int n) {
+
+        this.x = x ;
+        this.y = y ;
+        this.z = z ;
+
+        migrants = 0 ;
+        loose = 0 ;
+        rebuilt = true ;
+        if(backoff > 0) {
+            backoff-- ;
+        }
+        else if(valid && n == this.n && steps < maxSteps) {
+            rebuilt = !refit() ;
+            failures = rebuilt ? Math.min(failures + 1, 16) : 0 ;
+            if(rebuilt) {
+                backoff = Math.min((1 << failures) - 1, maxSteps) ;
+            }
+        }
+        if(rebuilt) {
+            rebuild(n) ;
+        }
+    }
+
+    void rebuild(int n) {
+
+        full.build(x, y, z, n) ;
+        this.n = n ;
+        steps = 0 ;
+        valid = tree.preorder && backoff == 0 ;
+        if(!valid) return ;
+
+        int numNodes = tree.numNodes ;
+        if(size.length < numNodes + 1) {
+            size = new float [(int) (FlatTree.HEADROOM * (numNodes + 1))] ;
+            extent = new float [size.length] ;
+            fill = new int [size.length] ;
+        }
+        if(leafOf.length < n) {
+            leafOf = new int [n] ;
+            moved = new int [n] ;
+        }
+
+        // Parents come before children.
+
+        int [] nodesI = tree.nodesI ;
+        size [TREE_ROOT] = BOX_WIDTH ;
+        for(int node = TREE_ROOT ; node <= numNodes ; node++) {
+            int nodesIptr = NODEISIZE * node ;
+            int parent = nodesI [nodesIptr + PARENT] ;
+            if(parent != NULL) {
+                size [node] = size [parent] / 2 ;
+            }
+            if(nodesI [nodesIptr + FIRSTCHILD] == NULL) {
+                int first = nodesI [nodesIptr + FIRSTSTAR] ;
+                int last = first + nodesI [nodesIptr + NPARTICLES] ;
+                for(int m = first ; m < last ; m++) {
+                    leafOf [tree.stars [m]] = node ;
+                }
+            }
+        }
+    }
+
+    boolean refit() {
+
+        // Returns false if a full rebuild is needed.
+
+        AtomicInteger count = new AtomicInteger() ;
+        Parallel.forRange(n, Parallel.grain(n, 4), (lo, hi) -> {
+            for(int i = lo ; i < hi ; i++) {
+                if(leafOf [i] == NULL || !inside(i, leafOf [i])) {
+                    moved [count.getAndIncrement()] = i ;
+                }
+            }
+        }) ;
+        migrants = count.get() ;
+        if(migrants > maxMigrants * n) return false ;
+
+        if(migrants > 0) {
+            for(int k = 0 ; k < migrants ; k++) {
+                int star = moved [k] ;
+                int leaf = locate(x [star], y [star], z [star]) ;
+                if(!near(star, leaf)) {
+                    leaf = NULL ;
+                    loose++ ;
+                }
+                leafOf [star] = leaf ;
+            }
+            if(loose > maxLoose * n) return false ;
+
+            layoutStars() ;
+            int maxStars = leafGrowth * full.leafSize ;
+            for(int k = 0 ; k < migrants ; k++) {
+                int leaf = leafOf [moved [k]] ;
+                if(leaf != NULL &&
+                   tree.nodesI [NODEISIZE * leaf + NPARTICLES] > maxStars)
+                    return false ;
+            }
+        }
+
+        refitNodes() ;
+        steps++ ;
+        return true ;
+    }
+
+    boolean inside(int star, int node) {
+
+        // Is star inside cell of node?  As in FlatTreeBuilder.child, the
+        // lower half of a cell includes its lower edge, but not its
+        // mid-point.
+
+        int nodesDptr = NODEDSIZE * node ;
+        float [] nodesD = tree.nodesD ;
+        float half = size [node] / 2 ;
+        float xMid = nodesD [nodesDptr + XMID] ;
+        float yMid = nodesD [nodesDptr + YMID] ;
+        float zMid = nodesD [nodesDptr + ZMID] ;
+        return x [star] >= xMid - half && x [star] < xMid + half &&
+               y [star] >= yMid - half && y [star] < yMid + half &&
+               z [star] >= zMid - half && z [star] < zMid + half ;
+    }
+
+    boolean near(int star, int node) {
+
+        // Is star within cell size of mid-point of node on every axis?
+
+        int nodesDptr = NODEDSIZE * node ;
+        float [] nodesD = tree.nodesD ;
+        return Math.abs(x [star] - nodesD [nodesDptr + XMID]) <= size [node] &&
+               Math.abs(y [star] - nodesD [nodesDptr + YMID]) <= size [node] &&
+               Math.abs(z [star] - nodesD [nodesDptr + ZMID]) <= size [node] ;
+    }
+
+    int locate(float x, float y, float z) {
+
+        // Leaf whose cell contains x, y, z, or if the point is in an
+        // octant without a node, leaf reached by going to the nearest
+        // existing child from there on down.
+
+        float [] nodesD = tree.nodesD ;
+        int [] nodesI = tree.nodesI ;
+        int node = TREE_ROOT ;
+        while(nodesI [NODEISIZE * node + FIRSTCHILD] != NULL) {
+            int nodesDptr = NODEDSIZE * node ;
+            boolean xHigh = x >= nodesD [nodesDptr + XMID] ;
+            boolean yHigh = y >= nodesD [nodesDptr + YMID] ;
+            boolean zHigh = z >= nodesD [nodesDptr + ZMID] ;
+            int next = NULL ;
+            int nearest = NULL ;
+            float nearestDistance = Float.MAX_VALUE ;
+            int child = nodesI [NODEISIZE * node + FIRSTCHILD] ;
+            while(child != NULL) {
+                int childDptr = NODEDSIZE * child ;
+                if((nodesD [childDptr + XMID] >= nodesD [nodesDptr + XMID]) == xHigh &&
+                   (nodesD [childDptr + YMID] >= nodesD [nodesDptr + YMID]) == yHigh &&
+                   (nodesD [childDptr + ZMID] >= nodesD [nodesDptr + ZMID]) == zHigh) {
+                    next = child ;
+                }
+                float distance = Math.max(Math.abs(x - nodesD [childDptr + XMID]),
+                                          Math.max(Math.abs(y - nodesD [childDptr + YMID]),
+                                                   Math.abs(z - nodesD [childDptr + ZMID]))) ;
+                if(distance < nearestDistance) {
+                    nearest = child ;
+                    nearestDistance = distance ;
+                }
+                child = nodesI [NODEISIZE * child + NEXT] ;
+            }
+            node = (next != NULL) ? next : nearest ;
+        }
+        return node ;
+    }
+
+    void layoutStars() {
+
+        // Stars of each leaf contiguous in FlatTree.stars, with leaves
+        // in preorder, then loose stars (counting sort of stars by
+        // leafOf).
+
+        int [] nodesI = tree.nodesI ;
+        int numNodes = tree.numNodes ;
+        for(int node = TREE_ROOT ; node <= numNodes ; node++) {
+            nodesI [NODEISIZE * node + NPARTICLES] = 0 ;
+        }
+        for(int i = 0 ; i < n ; i++) {
+            if(leafOf [i] != NULL) {
+                nodesI [NODEISIZE * leafOf [i] + NPARTICLES]++ ;
+            }
+        }
+        int next = 0 ;
+        for(int node = TREE_ROOT ; node <= numNodes ; node++) {
+            int nodesIptr = NODEISIZE * node ;
+            if(nodesI [nodesIptr + FIRSTCHILD] == NULL) {
+                nodesI [nodesIptr + FIRSTSTAR] = next ;
+                fill [node] = next ;
+                next += nodesI [nodesIptr + NPARTICLES] ;
+            }
+        }
+        tree.looseFirst = next ;
+        tree.numLoose = n - next ;
+        for(int i = 0 ; i < n ; i++) {
+            if(leafOf [i] != NULL)
+                tree.stars [fill [leafOf [i]]++] = i ;
+            else
+                tree.stars [next++] = i ;
+        }
+    }
+
+    void refitNodes() {
+
+        // Children come after their parents, so work backwards.
+
+        float [] nodesD = tree.nodesD ;
+        int [] nodesI = tree.nodesI ;
+        float openingAngle = full.openingAngle ;
+
+        for(int node = tree.numNodes ; node >= TREE_ROOT ; node--) {
+
+            int nodesDptr = NODEDSIZE * node ;
+            int nodesIptr = NODEISIZE * node ;
+
+            float xMid = nodesD [nodesDptr + XMID] ;
+            float yMid = nodesD [nodesDptr + YMID] ;
+            float zMid = nodesD [nodesDptr + ZMID] ;
+
+            double xSum = 0, ySum = 0, zSum = 0 ;
+            float half = size [node] / 2 ;
+            int nParticles = 0 ;
+            int child = nodesI [nodesIptr + FIRSTCHILD] ;
+            if(child == NULL) {
+                int first = nodesI [nodesIptr + FIRSTSTAR] ;
+                nParticles = nodesI [nodesIptr + NPARTICLES] ;
+                for(int m = first ; m < first + nParticles ; m++) {
+                    int star = tree.stars [m] ;
+                    xSum += x [star] ;
+                    ySum += y [star] ;
+                    zSum += z [star] ;
+                    half = Math.max(half, Math.abs(x [star] - xMid)) ;
+                    half = Math.max(half, Math.abs(y [star] - yMid)) ;
+                    half = Math.max(half, Math.abs(z [star] - zMid)) ;
+                }
+            }
+            else {
+                nodesI [nodesIptr + FIRSTSTAR] = nodesI [NODEISIZE * child + FIRSTSTAR] ;
+                while(child != NULL) {
+                    int childDptr = NODEDSIZE * child ;
+                    int childIptr = NODEISIZE * child ;
+                    int m = nodesI [childIptr + NPARTICLES] ;
+                    xSum += (double) m * nodesD [childDptr + XCENT] ;
+                    ySum += (double) m * nodesD [childDptr + YCENT] ;
+                    zSum += (double) m * nodesD [childDptr + ZCENT] ;
+                    nParticles += m ;
+                    float reach = extent [child] +
+                            Math.max(Math.abs(nodesD [childDptr + XMID] - xMid),
+                                     Math.max(Math.abs(nodesD [childDptr + YMID] - yMid),
+                                              Math.abs(nodesD [childDptr + ZMID] - zMid))) ;
+                    half = Math.max(half, reach) ;
+                    child = nodesI [childIptr + NEXT] ;
+                }
+                nodesI [nodesIptr + NPARTICLES] = nParticles ;
+            }
+
+            if(nParticles > 0) {
+                nodesD [nodesDptr + XCENT] = (float) (xSum / nParticles) ;
+                nodesD [nodesDptr + YCENT] = (float) (ySum / nParticles) ;
+                nodesD [nodesDptr + ZCENT] = (float) (zSum / nParticles) ;
+            }
+            else {
+                nodesD [nodesDptr + XCENT] = nodesD [nodesDptr + XMID] ;
+                nodesD [nodesDptr + YCENT] = nodesD [nodesDptr + YMID] ;
+                nodesD [nodesDptr + ZCENT] = nodesD [nodesDptr + ZMID] ;
+            }
+
+            float delta = tree.distance(nodesD [nodesDptr + XCENT],
+                                        nodesD [nodesDptr + YCENT],
+                                        nodesD [nodesDptr + ZCENT], node) ;
+            nodesD [nodesDptr + THRESHOLD] = full.threshold(2 * half, delta) ;
+            extent [node] = half ;
+
+            if(full.quadrupole) setQuadrupole(node, x, y, z) ;
+        }
+        tree.encode(full.encoding, openingAngle) ;
+    }
+}
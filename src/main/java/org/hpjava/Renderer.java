@@ -0,0 +1,311 @@
+package org.hpjava;
+
+import java.awt.Dimension ;
+import java.awt.Graphics ;
+import java.awt.image.BufferedImage ;
+import java.awt.image.DataBufferInt ;
+import javax.swing.JFrame ;
+import javax.swing.JPanel ;
+import javax.swing.SwingUtilities ;
+
+import java.util.concurrent.ArrayBlockingQueue ;
+import java.util.concurrent.atomic.AtomicInteger ;
+
+
+/*
+
+Display of the simulation, decoupled from the integration.
+
+The main loop calls offer() every step.  At most FPS times per second,
+and only if a snapshot buffer is free, this copies current positions
+into the buffer and hands it to a render thread - the main loop never
+waits for the display.  The render thread rasterises the snapshot into
+the int [] raster of an off-screen image, then swaps it with the image
+shown by Swing, which draws it with a single drawImage.
+
+Rasterising is a density splat, in three parallel passes:
+
+  bin      the stars are split into one range per Parallel pool thread,
+           up to MAX_GRIDS ranges, and each range is projected and counted
+           into its own int grid of stars per pixel, so no two tasks write
+           the same grid.  The cap bounds the memory of the grids (4 MB
+           each for a 1024 pixel window) and the work of reduce, which
+           reads every grid for every pixel.
+
+  reduce   grids are summed pixel by pixel (and cleared for the next
+           frame), keeping the largest count.
+
+  tone     counts are mapped to grey levels on a log scale, from
+           MIN_GREY for one star to white for the densest pixel of the
+           frame, so the core of a cluster is not one white blob.
+
+The view is along one axis of the box (see view), optionally rotated by
+an angle about the vertical axis of the window, through the centre of
+the box.  Only the coordinates the view needs are copied into snapshots.
+
+*/
+
+class Renderer {
+
+    final static int SNAPSHOTS = 2 ;  // double buffered
+
+    // Views - horizontal and vertical axes of window
+
+    final static int XY = 0 ;
+    final static int XZ = 1 ;
+    final static int YZ = 2 ;
+
+    final static int MIN_GREY = 96 ;  // grey level of a single star
+    final static int TONES = 4096 ;   // counts with precomputed colours
+
+    final static int MAX_GRIDS = 8 ;  // most star ranges binned at once
+
+    final int n ;
+    final int size ;           // of square window, in pixels
+    final float scale ;        // pixels per unit length
+    final long frameInterval ; // nanoseconds
+
+    // Projection: window x = horizontal * across + depth * deep + offset,
+    // window y = scale * vertical coordinate.
+
+    final int horizontal, vertical, depth ;  // axes, 0 to 2 for x to z
+    final float across, deep, offset ;
+
+    final ArrayBlockingQueue<Snapshot> free =
+            new ArrayBlockingQueue<Snapshot>(SNAPSHOTS) ;
+    final ArrayBlockingQueue<Snapshot> filled =
+            new ArrayBlockingQueue<Snapshot>(SNAPSHOTS) ;
+
+    long nextFrame ;
+
+    // Images: back is drawn by render thread, front shown by Swing
+
+    BufferedImage back, front ;
+    final Object imageLock = new Object() ;
+
+    int chunks = Math.min(Math.max(Parallel.THREADS, 1), MAX_GRIDS) ;  // ranges
+    int [][] grids = new int [0] [] ;  // stars per pixel, per range
+
+    final int [] density ;     // stars per pixel, all ranges
+    final int [] tone ;        // colour for star count, below TONES
+    final AtomicInteger maxDensity = new AtomicInteger() ;
+
+    volatile long framesRendered, framesSkipped ;
+    volatile long renderNanos ;  // time to rasterise last frame
+
+    JPanel panel ;
+
+    Renderer(int n, int size, float boxWidth, int fps) {
+        this(n, size, boxWidth, fps, XY, 0F) ;
+    }
+
+    Renderer(int n, int size, float boxWidth, int fps, int view, float angle) {
+        this.n = n ;
+        this.size = size ;
+        scale = size / boxWidth ;
+        frameInterval = 1000000000L / Math.max(fps, 1) ;
+
+        horizontal = view == YZ ? 1 : 0 ;
+        vertical = view == XY ? 1 : 2 ;
+        depth = 3 - horizontal - vertical ;
+
+        // Turn about the vertical axis through the centre of the box.
+
+        double radians = Math.toRadians(angle) ;
+        float cos = (float) Math.cos(radians) ;
+        float sin = (float) Math.sin(radians) ;
+        if(Math.abs(sin) < 1e-6F) sin = 0F ;
+        if(Math.abs(cos) < 1e-6F) cos = 0F ;
+        across = scale * cos ;
+        deep = scale * sin ;
+        offset = 0.5F * size * (1 - cos - sin) ;
+
+        for(int i = 0 ; i < SNAPSHOTS ; i++) {
+            free.add(new Snapshot(n, deep != 0F)) ;
+        }
+
+        back = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB) ;
+        front = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB) ;
+
+        density = new int [size * size] ;
+        tone = new int [TONES] ;
+    }
+
+    static int view(String name) {
+        switch(name.toLowerCase()) {
+            case "xy" :
+                return XY ;
+            case "xz" :
+                return XZ ;
+            case "yz" :
+                return YZ ;
+            default :
+                throw new IllegalArgumentException("unknown view " + name) ;
+        }
+    }
+
+    void show(String title) {
+
+        // Open window and start render thread.
+
+        panel = new JPanel() {
+            public void paintComponent(Graphics g) {
+                synchronized(imageLock) {
+                    g.drawImage(front, 0, 0, null) ;
+                }
+            }
+        } ;
+        panel.setPreferredSize(new Dimension(size, size)) ;
+
+        SwingUtilities.invokeLater(() -> {
+            JFrame frame = new JFrame(title) ;
+            frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE) ;
+            frame.setContentPane(panel) ;
+            frame.pack() ;
+            frame.setVisible(true) ;
+        }) ;
+
+        Thread thread = new Thread(this::renderLoop, "renderer") ;
+        thread.setDaemon(true) ;
+        thread.start() ;
+    }
+
+    void offer(float [] x, float [] y, float [] z) {
+
+        // Called by integrator.  Never blocks.
+
+        long now = System.nanoTime() ;
+        if(now < nextFrame) return ;
+
+        Snapshot snapshot = free.poll() ;
+        if(snapshot == null) {
+            framesSkipped++ ;
+            return ;
+        }
+        float [][] axes = {x, y, z} ;
+        System.arraycopy(axes [horizontal], 0, snapshot.horizontal, 0, n) ;
+        System.arraycopy(axes [vertical], 0, snapshot.vertical, 0, n) ;
+        if(snapshot.depth != null) {
+            System.arraycopy(axes [depth], 0, snapshot.depth, 0, n) ;
+        }
+        filled.add(snapshot) ;
+
+        nextFrame = now + frameInterval ;
+    }
+
+    void renderLoop() {
+        try {
+            while(true) {
+                Snapshot snapshot = filled.take() ;
+                render(snapshot) ;
+                free.add(snapshot) ;
+
+                synchronized(imageLock) {
+                    BufferedImage swap = front ;
+                    front = back ;
+                    back = swap ;
+                }
+                framesRendered++ ;
+                if(panel != null) panel.repaint() ;
+            }
+        }
+        catch(InterruptedException e) {
+            // exit thread
+        }
+    }
+
+    void render(Snapshot snapshot) {
+        long start = System.nanoTime() ;
+        bin(snapshot) ;
+        reduce() ;
+        tone() ;
+        renderNanos = System.nanoTime() - start ;
+    }
+
+    void bin(Snapshot snapshot) {
+
+        // Count stars of each range into the range's grid.
+
+        if(grids.length != chunks) {
+            grids = new int [chunks] [size * size] ;
+        }
+        float [] h = snapshot.horizontal ;
+        float [] v = snapshot.vertical ;
+        float [] d = snapshot.depth ;
+
+        Parallel.forEach(chunks, c -> {
+            int [] grid = grids [c] ;
+            int lo = (int) ((long) n * c / chunks) ;
+            int hi = (int) ((long) n * (c + 1) / chunks) ;
+            for(int i = lo ; i < hi ; i++) {
+                float gx = across * h [i] + offset ;
+                if(d != null) gx += deep * d [i] ;
+                float gy = scale * v [i] ;
+                if(0 <= gx && gx < size && 0 <= gy && gy < size) {
+                    grid [(int) gy * size + (int) gx]++ ;
+                }
+            }
+        }) ;
+    }
+
+    void reduce() {
+
+        // Sum grids into density, clearing them, and find largest count.
+
+        maxDensity.set(0) ;
+        Parallel.forRange(size * size, Parallel.grain(size * size, 4),
+                          (lo, hi) -> {
+            int max = 0 ;
+            for(int p = lo ; p < hi ; p++) {
+                int count = 0 ;
+                for(int [] grid : grids) {
+                    count += grid [p] ;
+                    grid [p] = 0 ;
+                }
+                density [p] = count ;
+                max = Math.max(max, count) ;
+            }
+            maxDensity.accumulateAndGet(max, Math::max) ;
+        }) ;
+    }
+
+    void tone() {
+
+        // Map counts to grey levels in the back image.
+
+        double logMax = Math.log(Math.max(maxDensity.get(), 2)) ;
+        for(int count = 1 ; count < TONES ; count++) {
+            tone [count] = grey(count, logMax) ;
+        }
+
+        int [] raster = ((DataBufferInt) back.getRaster().getDataBuffer()).getData() ;
+        Parallel.forRange(size * size, Parallel.grain(size * size, 4),
+                          (lo, hi) -> {
+            for(int p = lo ; p < hi ; p++) {
+                int count = density [p] ;
+                raster [p] = count < TONES ? tone [count] : grey(count, logMax) ;
+            }
+        }) ;
+    }
+
+    static int grey(int count, double logMax) {
+
+        // Colour for count stars, log(count) / logMax of the way from
+        // MIN_GREY to white.
+
+        int grey = (int) Math.min(255, MIN_GREY + (255 - MIN_GREY) *
+                                       Math.log(count) / logMax) ;
+        return (grey << 16) | (grey << 8) | grey ;
+    }
+
+    static class Snapshot {
+
+        final float [] horizontal, vertical, depth ;  // depth only if turned
+
+        Snapshot(int n, boolean turned) {
+            horizontal = new float [n] ;
+            vertical = new float [n] ;
+            depth = turned ? new float [n] : null ;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package org.hpjava;
+
+import java.io.EOFException ;
+import java.io.IOException ;
+
+import java.net.InetSocketAddress ;
+import java.net.StandardSocketOptions ;
+
+import java.nio.ByteBuffer ;
+import java.nio.channels.ServerSocketChannel ;
+import java.nio.channels.SocketChannel ;
+
+import java.util.ArrayList ;
+import java.util.List ;
+import java.util.concurrent.LinkedBlockingQueue ;
+
+
+/*
+
+Transport between ranks in separate processes, over TCP.
+
+Rank r listens on port basePort + r of its host.  It connects to every
+lower rank, and accepts a connection from every higher one, so each
+pair of ranks shares one socket.  On one Linux host (host 127.0.0.1)
+this runs a "cluster" of JVMs over loopback.
+
+Each message is sent as a 4 byte length and the bytes.  A reader thread
+per peer reads whole messages into a queue, so a rank sending a large
+message never waits for the peer to start receiving - which would
+deadlock when two ranks send to each other at once.
+
+*/
+
+class SocketTransport extends Transport {
+
+    final static long CONNECT_TIMEOUT = 60000 ;  // milliseconds
+    final static Object CLOSED = new Object() ;  // peer went away
+
+    final SocketChannel [] peers ;
+    final List<LinkedBlockingQueue<Object>> queues ;  // by peer rank
+    final ByteBuffer header = ByteBuffer.allocate(4) ;
+
+    SocketTransport(int rank, int size, String host, int basePort)
+            throws IOException {
+        super(rank, size) ;
+        peers = new SocketChannel [size] ;
+        queues = new ArrayList<LinkedBlockingQueue<Object>>(size) ;
+        for(int q = 0 ; q < size ; q++) {
+            queues.add(new LinkedBlockingQueue<Object>()) ;
+        }
+
+        try(ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(host, basePort + rank), size) ;
+
+            for(int q = 0 ; q < rank ; q++) {
+                peers [q] = connect(new InetSocketAddress(host, basePort + q)) ;
+                ByteBuffer hello = ByteBuffer.allocate(4) ;
+                hello.putInt(rank) ;
+                hello.flip() ;
+                write(peers [q], hello) ;
+            }
+            for(int k = rank + 1 ; k < size ; k++) {
+                SocketChannel channel = server.accept() ;
+                ByteBuffer hello = ByteBuffer.allocate(4) ;
+                read(channel, hello) ;
+                peers [hello.getInt(0)] = channel ;
+            }
+        }
+
+        for(int q = 0 ; q < size ; q++) {
+            if(q == rank) continue ;
+            peers [q].setOption(StandardSocketOptions.TCP_NODELAY, true) ;
+            int peer = q ;
+            Thread reader = new Thread(() -> readLoop(peer),
+                                       "rank " + rank + " reader " + q) ;
+            reader.setDaemon(true) ;
+            reader.start() ;
+        }
+    }
+
+    static SocketChannel connect(InetSocketAddress address) throws IOException {
+
+        // Connect, retrying while the peer starts up.
+
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT ;
+        while(true) {
+            try {
+                return SocketChannel.open(address) ;
+            }
+            catch(IOException e) {
+                if(System.currentTimeMillis() > deadline) throw e ;
+                try {
+                    Thread.sleep(50) ;
+                }
+                catch(InterruptedException ie) {
+                    Thread.currentThread().interrupt() ;
+                    throw new IOException("interrupted connecting to " + address, ie) ;
+                }
+            }
+        }
+    }
+
+    void readLoop(int peer) {
+        try {
+            ByteBuffer length = ByteBuffer.allocate(4) ;
+            while(true) {
+                length.clear() ;
+                read(peers [peer], length) ;
+                ByteBuffer message = ByteBuffer.allocate(length.getInt(0)) ;
+                read(peers [peer], message) ;
+                message.flip() ;
+                queues.get(peer).add(message) ;
+            }
+        }
+        catch(IOException e) {
+            queues.get(peer).add(CLOSED) ;
+        }
+    }
+
+    static void read(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer) < 0) {
+                throw new EOFException() ;
+            }
+        }
+    }
+
+    static void write(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) {
+            channel.write(buffer) ;
+        }
+    }
+
+    void send(int to, ByteBuffer message) throws IOException {
+        header.clear() ;
+        header.putInt(message.remaining()) ;
+        header.flip() ;
+        write(peers [to], header) ;
+        write(peers [to], message.duplicate()) ;
+    }
+
+    ByteBuffer receive(int from) throws IOException {
+        Object message ;
+        try {
+            message = queues.get(from).take() ;
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt() ;
+            throw new IOException("interrupted receiving from rank " + from, e) ;
+        }
+        if(message == CLOSED) {
+            queues.get(from).add(CLOSED) ;
+            throw new IOException("rank " + from + " closed its connection") ;
+        }
+        return (ByteBuffer) message ;
+    }
+
+    public void close() throws IOException {
+        for(SocketChannel peer : peers) {
+            if(peer != null) peer.close() ;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.hpjava;
+
+import java.io.IOException ;
+import java.io.UncheckedIOException ;
+
+import java.nio.ByteOrder ;
+import java.nio.FloatBuffer ;
+import java.nio.MappedByteBuffer ;
+import java.nio.channels.FileChannel ;
+import java.nio.file.Path ;
+import java.nio.file.StandardOpenOption ;
+
+
+/*
+
+Bulk loading of initial positions and velocities from a file of raw
+little-endian 4 byte floats, with no header, in one of two layouts:
+
+  ROWS     x, y, z, vx, vy, vz of star 0, then of star 1, and so on
+           (24 bytes per star).
+
+  COLUMNS  x of all stars, then y of all stars, and so on, as in the
+           arrays of a Checkpoint.
+
+Either is what numpy's tofile writes for a float32 array of shape
+(n, 6) or (6, n).  The file must hold exactly n stars.
+
+The file is mapped in regions of CHUNK stars, and the regions are
+copied into the arrays in parallel, so there is no per-value parsing,
+and files of more than 2 GB (the limit of a single mapping) are fine.
+
+*/
+
+class StarFile {
+
+    final static int ROWS = 0 ;
+    final static int COLUMNS = 1 ;
+
+    final static int VALUES = 6 ;             // per star
+    final static int CHUNK = 1 << 16 ;        // stars per mapped region
+
+    static int format(String name) {
+        switch(name.toLowerCase()) {
+            case "rows" :
+                return ROWS ;
+            case "columns" :
+                return COLUMNS ;
+            default :
+                throw new IllegalArgumentException("unknown star file format " + name) ;
+        }
+    }
+
+    static void read(Path file, int format, int n,
+                     float [] x, float [] y, float [] z,
+                     float [] vx, float [] vy, float [] vz) throws IOException {
+
+        float [][] arrays = {x, y, z, vx, vy, vz} ;
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if(channel.size() != 4L * VALUES * n) {
+                throw new IOException("star file " + file + " has " +
+                                      channel.size() + " bytes, expected " +
+                                      4L * VALUES * n + " for " + n + " stars") ;
+            }
+            int chunks = (n + CHUNK - 1) / CHUNK ;
+            Parallel.forRange(chunks, 1, (lo, hi) -> {
+                try {
+                    for(int c = lo ; c < hi ; c++) {
+                        int start = c * CHUNK ;
+                        int count = Math.min(n - start, CHUNK) ;
+                        if(format == ROWS) {
+                            FloatBuffer rows =
+                                    region(channel, 4L * VALUES * start,
+                                           4L * VALUES * count).asFloatBuffer() ;
+                            for(int i = 0 ; i < count ; i++) {
+                                for(int k = 0 ; k < VALUES ; k++) {
+                                    arrays [k] [start + i] = rows.get(VALUES * i + k) ;
+                                }
+                            }
+                        }
+                        else {
+                            for(int k = 0 ; k < VALUES ; k++) {
+                                region(channel, 4L * ((long) k * n + start),
+                                       4L * count).asFloatBuffer()
+                                        .get(arrays [k], start, count) ;
+                            }
+                        }
+                    }
+                }
+                catch(IOException e) {
+                    throw new UncheckedIOException(e) ;
+                }
+            }) ;
+        }
+        catch(UncheckedIOException e) {
+            throw e.getCause() ;
+        }
+    }
+
+    static void write(Path file, int format, int n,
+                      float [] x, float [] y, float [] z,
+                      float [] vx, float [] vy, float [] vz) throws IOException {
+
+        // Write in the format read expects (for exporting, and tests).
+
+        float [][] arrays = {x, y, z, vx, vy, vz} ;
+        try(FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for(int start = 0 ; start < n ; start += CHUNK) {
+                int count = Math.min(n - start, CHUNK) ;
+                if(format == ROWS) {
+                    MappedByteBuffer buffer =
+                            map(channel, FileChannel.MapMode.READ_WRITE,
+                                4L * VALUES * start, 4L * VALUES * count) ;
+                    for(int i = 0 ; i < count ; i++) {
+                        for(int k = 0 ; k < VALUES ; k++) {
+                            buffer.putFloat(arrays [k] [start + i]) ;
+                        }
+                    }
+                }
+                else {
+                    for(int k = 0 ; k < VALUES ; k++) {
+                        map(channel, FileChannel.MapMode.READ_WRITE,
+                            4L * ((long) k * n + start), 4L * count)
+                                .asFloatBuffer().put(arrays [k], start, count) ;
+                    }
+                }
+            }
+        }
+    }
+
+    static MappedByteBuffer region(FileChannel channel, long position, long size)
+            throws IOException {
+        return map(channel, FileChannel.MapMode.READ_ONLY, position, size) ;
+    }
+
+    static MappedByteBuffer map(FileChannel channel, FileChannel.MapMode mode,
+                                long position, long size) throws IOException {
+        MappedByteBuffer buffer = channel.map(mode, position, size) ;
+        buffer.order(ByteOrder.LITTLE_ENDIAN) ;
+        return buffer ;
+    }
+}
@@ -0,0 +1,136 @@
+package org.hpjava;
+
+import java.util.Arrays ;
+
+import static org.hpjava.MortonTreeBuilder.LEVELS ;
+
+
+/*
+
+Partition of stars into small spatially compact groups, for the grouped
+force walk of KernelTree (after Barnes, J. Comp. Phys. 87, 161 (1990)).
+
+Stars are sorted by Morton key, so that the stars of any cell of the
+tree are a contiguous range.  The sorted range is then split top down,
+as in MortonTreeBuilder, and each cell holding no more than groupSize
+stars becomes a group.  Stars with identical keys at the deepest level
+are chopped into groups of groupSize.
+
+For each group, groupStars [groupStart [g] .. groupStart [g + 1] - 1]
+are its stars, and groupBox [6 * g ..] is the bounding box of their
+positions (x, y, z lower corner, then upper corner).
+
+*/
+
+class StarGroups {
+
+    final static int LO = 0 ;  // offsets in groupBox
+    final static int HI = 3 ;
+    final static int BOXSIZE = 6 ;
+
+    final int groupSize ;
+
+    final KeySort sort = new KeySort() ;
+
+    int numGroups ;
+    int [] groupStars = new int [0] ;
+    int [] groupStart = new int [1] ;
+    float [] groupBox = new float [0] ;
+
+    StarGroups(int groupSize) {
+        this.groupSize = groupSize ;
+    }
+
+    void build(float [] x, float [] y, float [] z, int n) {
+
+        sort.ensureCapacity(n) ;
+        Parallel.forRange(n, Parallel.grain(n, 4), (lo, hi) -> {
+            for(int i = lo ; i < hi ; i++) {
+                sort.keys [i] = MortonTreeBuilder.key(x [i], y [i], z [i]) ;
+                sort.index [i] = i ;
+            }
+        }) ;
+        sort.sort(n, 3 * LEVELS) ;
+
+        groupStars = sort.index ;
+
+        numGroups = 0 ;
+        split(0, n, 0) ;
+        groupStart [numGroups] = n ;
+
+        if(groupBox.length < BOXSIZE * numGroups) {
+            groupBox = new float [BOXSIZE * groupStart.length] ;
+        }
+        Parallel.forRange(numGroups, Parallel.grain(numGroups, 4), (lo, hi) -> {
+            for(int g = lo ; g < hi ; g++) {
+                bound(g, x, y, z) ;
+            }
+        }) ;
+    }
+
+    void split(int lo, int hi, int depth) {
+
+        // Divide sorted stars [lo, hi) of a cell at given depth.
+
+        if(hi - lo <= groupSize) {
+            newGroup(lo) ;
+            return ;
+        }
+        if(depth == LEVELS) {
+            for(int start = lo ; start < hi ; start += groupSize) {
+                newGroup(start) ;
+            }
+            return ;
+        }
+        long [] keys = sort.keys ;
+        for(int start = lo ; start < hi ; ) {
+            int octant = MortonTreeBuilder.octant(keys [start], depth) ;
+            int end = endOfOctant(start, hi, depth, octant) ;
+            split(start, end, depth + 1) ;
+            start = end ;
+        }
+    }
+
+    int endOfOctant(int lo, int hi, int depth, int octant) {
+
+        // As MortonTreeBuilder.endOfOctant.
+
+        long [] keys = sort.keys ;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1 ;
+            if(MortonTreeBuilder.octant(keys [mid], depth) <= octant)
+                lo = mid + 1 ;
+            else
+                hi = mid ;
+        }
+        return lo ;
+    }
+
+    void newGroup(int start) {
+        if(numGroups + 1 >= groupStart.length) {
+            groupStart = Arrays.copyOf(groupStart, 2 * (numGroups + 1)) ;
+        }
+        groupStart [numGroups++] = start ;
+    }
+
+    void bound(int g, float [] x, float [] y, float [] z) {
+        float xLo = Float.MAX_VALUE, yLo = Float.MAX_VALUE, zLo = Float.MAX_VALUE ;
+        float xHi = -Float.MAX_VALUE, yHi = -Float.MAX_VALUE, zHi = -Float.MAX_VALUE ;
+        for(int m = groupStart [g] ; m < groupStart [g + 1] ; m++) {
+            int star = groupStars [m] ;
+            xLo = Math.min(xLo, x [star]) ;
+            yLo = Math.min(yLo, y [star]) ;
+            zLo = Math.min(zLo, z [star]) ;
+            xHi = Math.max(xHi, x [star]) ;
+            yHi = Math.max(yHi, y [star]) ;
+            zHi = Math.max(zHi, z [star]) ;
+        }
+        int boxPtr = BOXSIZE * g ;
+        groupBox [boxPtr + LO] = xLo ;
+        groupBox [boxPtr + LO + 1] = yLo ;
+        groupBox [boxPtr + LO + 2] = zLo ;
+        groupBox [boxPtr + HI] = xHi ;
+        groupBox [boxPtr + HI + 1] = yHi ;
+        groupBox [boxPtr + HI + 2] = zHi ;
+    }
+}
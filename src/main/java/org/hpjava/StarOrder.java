@@ -0,0 +1,178 @@
+package org.hpjava;
+
+
+/*
+
+Reordering of per-star arrays along a space filling curve.
+
+Kernel work items are assigned to stars by index, so if stars close in
+space also have close indices, neighbouring work items walk much the
+same part of the tree.  Periodically permuting all per-star arrays into
+Morton or Hilbert order keeps it that way as stars move.
+
+originalId records where each star came from, so results can still be
+reported in terms of the original star numbers.
+
+*/
+
+class StarOrder {
+
+    final static int NONE = 0 ;
+    final static int MORTON = 1 ;
+    final static int HILBERT = 2 ;
+
+    final static int LEVELS = MortonTreeBuilder.LEVELS ;
+
+    final int curve ;
+
+    int [] originalId ;   // original number of star now at each index
+
+    final KeySort sort = new KeySort() ;
+
+    float [] scratch ;
+    int [] scratchId ;
+
+    int reorders ;
+
+    StarOrder(int curve, int n) {
+        this.curve = curve ;
+        originalId = new int [n] ;
+        for(int i = 0 ; i < n ; i++) {
+            originalId [i] = i ;
+        }
+        scratch = new float [n] ;
+        scratchId = new int [n] ;
+    }
+
+    static int curve(String name) {
+        switch(name.toLowerCase()) {
+            case "none" :
+                return NONE ;
+            case "morton" :
+                return MORTON ;
+            case "hilbert" :
+                return HILBERT ;
+            default :
+                throw new IllegalArgumentException("unknown curve " + name) ;
+        }
+    }
+
+    void reorder(int n, float [] x, float [] y, float [] z,
+                 float [] ... others) {
+
+        // Sort stars by curve key of their positions, and apply the same
+        // permutation to x, y, z and all other per-star arrays.
+
+        if(curve == NONE) return ;
+
+        sort.ensureCapacity(n) ;
+        Parallel.forRange(n, Parallel.grain(n, 4), (lo, hi) -> {
+            for(int i = lo ; i < hi ; i++) {
+                sort.keys [i] = (curve == HILBERT) ?
+                                hilbertKey(x [i], y [i], z [i]) :
+                                MortonTreeBuilder.key(x [i], y [i], z [i]) ;
+                sort.index [i] = i ;
+            }
+        }) ;
+        sort.sort(n, 3 * LEVELS) ;
+
+        int [] perm = sort.index ;
+
+        permute(n, perm, x) ;
+        permute(n, perm, y) ;
+        permute(n, perm, z) ;
+        for(float [] a : others) {
+            permute(n, perm, a) ;
+        }
+
+        Parallel.forRange(n, Parallel.grain(n, 4), (lo, hi) -> {
+            for(int i = lo ; i < hi ; i++) {
+                scratchId [i] = originalId [perm [i]] ;
+            }
+        }) ;
+        int [] swap = originalId ;
+        originalId = scratchId ;
+        scratchId = swap ;
+
+        reorders++ ;
+    }
+
+    void reorder(int n, int [] a) {
+
+        // Apply permutation of the last reorder to another per-star
+        // array.
+
+        if(curve == NONE) return ;
+
+        int [] perm = sort.index ;
+        Parallel.forRange(n, Parallel.grain(n, 4), (lo, hi) -> {
+            for(int i = lo ; i < hi ; i++) {
+                scratchId [i] = a [perm [i]] ;
+            }
+        }) ;
+        System.arraycopy(scratchId, 0, a, 0, n) ;
+    }
+
+    void permute(int n, int [] perm, float [] a) {
+        Parallel.forRange(n, Parallel.grain(n, 4), (lo, hi) -> {
+            for(int i = lo ; i < hi ; i++) {
+                scratch [i] = a [perm [i]] ;
+            }
+        }) ;
+        System.arraycopy(scratch, 0, a, 0, n) ;
+    }
+
+    static long hilbertKey(float x, float y, float z) {
+
+        // Hilbert curve index of position, with LEVELS bits per axis.
+        // Skilling's algorithm (AIP Conf. Proc. 707, 381 (2004)):
+        // transform coordinates to "transposed" Hilbert index, then
+        // interleave bits as for Morton keys.
+
+        int x0 = MortonTreeBuilder.quantize(x) ;
+        int x1 = MortonTreeBuilder.quantize(y) ;
+        int x2 = MortonTreeBuilder.quantize(z) ;
+        int t ;
+
+        // Inverse undo
+
+        for(int q = 1 << (LEVELS - 1) ; q > 1 ; q >>= 1) {
+            int p = q - 1 ;
+            if((x0 & q) != 0) {
+                x0 ^= p ;
+            }
+            if((x1 & q) != 0) {
+                x0 ^= p ;
+            }
+            else {
+                t = (x0 ^ x1) & p ;
+                x0 ^= t ;
+                x1 ^= t ;
+            }
+            if((x2 & q) != 0) {
+                x0 ^= p ;
+            }
+            else {
+                t = (x0 ^ x2) & p ;
+                x0 ^= t ;
+                x2 ^= t ;
+            }
+        }
+
+        // Gray encode
+
+        x1 ^= x0 ;
+        x2 ^= x1 ;
+        t = 0 ;
+        for(int q = 1 << (LEVELS - 1) ; q > 1 ; q >>= 1) {
+            if((x2 & q) != 0) t ^= q - 1 ;
+        }
+        x0 ^= t ;
+        x1 ^= t ;
+        x2 ^= t ;
+
+        return (MortonTreeBuilder.spread(x0) << 2) |
+               (MortonTreeBuilder.spread(x1) << 1) |
+               MortonTreeBuilder.spread(x2) ;
+    }
+}
@@ -0,0 +1,317 @@
+package org.hpjava;
+
+import java.io.PrintStream ;
+
+import java.util.Arrays ;
+import java.util.Locale ;
+
+
+/*
+
+Per-step metrics of the main loop.
+
+Each step, the time of each phase (in nanoseconds, summed if a phase
+runs more than once in a step) goes into a Histogram of that phase,
+along with the size and depth of the tree, work done by the force
+kernel (node visits and interactions, when counted) and bytes
+transferred to and from the device.
+
+Every "every" steps, a summary of the steps since the last one is
+written to out, in one of two formats:
+
+  CSV   one line per summary, after a header line.  For each phase,
+        count, mean, median, 99th percentile and max time in
+        milliseconds; then tree size and depth at the last step, visits
+        and interactions per star, and bytes and buffer reallocations
+        per step over the interval.
+
+  JSON  one JSON object per line, with the same fields, phases nested
+        by name.
+
+Phases that did not run in the interval have empty CSV fields (count
+0), and are left out of JSON.
+
+If the JDK has Flight Recorder, each phase and step is also committed as
+a JfrEvents event, at no cost unless a recording is running.
+
+The main loop prints a detailed report of a step only for a sample of
+steps (AparapiBarnesHut.LOG_EVERY), from the last values here.
+
+*/
+
+class StepMetrics {
+
+    // Summary formats
+
+    final static int NONE = 0 ;
+    final static int CSV = 1 ;
+    final static int JSON = 2 ;
+
+    // Phases of a step
+
+    final static int REORDER = 0 ;     // space filling curve ordering
+    final static int INTEGRATE = 1 ;   // position and velocity updates
+    final static int BUILD = 2 ;       // tree build (or refit)
+    final static int PRECOMPUTE = 3 ;  // legacy tree - centres of mass
+    final static int FLATTEN = 4 ;     // legacy tree - links
+    final static int GROUPS = 5 ;      // StarGroups
+    final static int FORCES = 6 ;      // force kernel
+    final static int CHECKPOINT = 7 ;  // snapshot for Checkpoint.Writer
+    final static int TRAJECTORY = 8 ;  // frame for TrajectoryWriter
+    final static int STEP = 9 ;        // whole step
+
+    final static String [] PHASES = {"reorder", "integrate", "build",
+                                     "precompute", "flatten", "groups",
+                                     "forces", "checkpoint", "trajectory",
+                                     "step"} ;
+
+    final int format ;
+    final int every ;
+    final PrintStream out ;
+    final boolean jfr ;
+
+    final Histogram [] phases = new Histogram [PHASES.length] ;
+
+    // Current step.  Phase times are -1 for phases that have not run.
+
+    int step ;
+    long stepStart ;
+    final long [] nanos = new long [PHASES.length] ;
+    int nodes, depth ;
+    long stars, visits, interactions ;  // stars 0 if walk not counted
+    long bytesToDevice, bytesFromDevice ;
+    int reallocations ;
+    String mode = "" ;
+
+    // Totals over the steps since last summary.
+
+    int steps ;
+    long totalStars, totalVisits, totalInteractions ;
+    long totalBytesToDevice, totalBytesFromDevice ;
+    long totalReallocations ;
+
+    boolean headerWritten ;
+
+    StepMetrics(int format, int every, PrintStream out) {
+        this.format = format ;
+        this.every = Math.max(every, 1) ;
+        this.out = out ;
+        jfr = jfrAvailable() ;
+        for(int p = 0 ; p < PHASES.length ; p++) {
+            phases [p] = new Histogram() ;
+        }
+    }
+
+    static int format(String name) {
+        switch(name.toLowerCase()) {
+            case "none" :
+                return NONE ;
+            case "csv" :
+                return CSV ;
+            case "json" :
+                return JSON ;
+            default :
+                throw new IllegalArgumentException("unknown metrics format " + name) ;
+        }
+    }
+
+    static boolean jfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event") ;
+            return true ;
+        }
+        catch(ClassNotFoundException | LinkageError e) {
+            return false ;
+        }
+    }
+
+    boolean wantsWalk() {
+
+        // Whether visits and interactions of this step will be used
+        // (fetching them may mean a transfer from the device).
+
+        return format != NONE || jfr && JfrEvents.stepEnabled() ;
+    }
+
+    void beginStep(int step) {
+        this.step = step ;
+        Arrays.fill(nanos, -1L) ;
+        stars = 0 ;
+        visits = 0 ;
+        interactions = 0 ;
+        bytesToDevice = 0 ;
+        bytesFromDevice = 0 ;
+        reallocations = 0 ;
+        stepStart = System.nanoTime() ;
+    }
+
+    static long start() {
+        return System.nanoTime() ;
+    }
+
+    long end(int phase, long start) {
+
+        // Close a phase opened by start, returning its time.
+
+        long time = System.nanoTime() - start ;
+        nanos [phase] = Math.max(nanos [phase], 0) + time ;
+        return time ;
+    }
+
+    long millis(int phase) {
+        return Math.max(nanos [phase], 0) / 1000000 ;
+    }
+
+    void tree(int nodes, int depth) {
+        this.nodes = nodes ;
+        this.depth = depth ;
+    }
+
+    void walk(long stars, long visits, long interactions) {
+        this.stars = stars ;
+        this.visits = visits ;
+        this.interactions = interactions ;
+    }
+
+    void transfers(long bytesToDevice, long bytesFromDevice, int reallocations,
+                   String mode) {
+        this.bytesToDevice = bytesToDevice ;
+        this.bytesFromDevice = bytesFromDevice ;
+        this.reallocations = reallocations ;
+        this.mode = mode ;
+    }
+
+    void endStep() {
+        end(STEP, stepStart) ;
+        for(int p = 0 ; p < PHASES.length ; p++) {
+            if(nanos [p] >= 0) {
+                phases [p].record(nanos [p]) ;
+                if(jfr) JfrEvents.phase(step, PHASES [p], nanos [p]) ;
+            }
+        }
+        if(jfr) {
+            JfrEvents.step(step, nodes, depth, stars, visits, interactions,
+                           bytesToDevice, bytesFromDevice, mode) ;
+        }
+
+        steps++ ;
+        totalStars += stars ;
+        totalVisits += visits ;
+        totalInteractions += interactions ;
+        totalBytesToDevice += bytesToDevice ;
+        totalBytesFromDevice += bytesFromDevice ;
+        totalReallocations += reallocations ;
+
+        if(steps == every) {
+            summary() ;
+        }
+    }
+
+    void summary() {
+
+        // Write summary of steps since last one, and start a new interval.
+
+        if(steps == 0) return ;
+        if(format == CSV) {
+            if(!headerWritten) {
+                out.println(csvHeader()) ;
+                headerWritten = true ;
+            }
+            out.println(csv()) ;
+        }
+        if(format == JSON) {
+            out.println(json()) ;
+        }
+        out.flush() ;
+
+        for(Histogram h : phases) {
+            h.reset() ;
+        }
+        steps = 0 ;
+        totalStars = 0 ;
+        totalVisits = 0 ;
+        totalInteractions = 0 ;
+        totalBytesToDevice = 0 ;
+        totalBytesFromDevice = 0 ;
+        totalReallocations = 0 ;
+    }
+
+    static String csvHeader() {
+        StringBuilder line = new StringBuilder("step,steps") ;
+        for(String phase : PHASES) {
+            for(String field : new String [] {"count", "mean_ms", "p50_ms",
+                                              "p99_ms", "max_ms"}) {
+                line.append(',').append(phase).append('_').append(field) ;
+            }
+        }
+        line.append(",nodes,depth,visits_per_star,interactions_per_star," +
+                    "bytes_to_device,bytes_from_device,reallocations,mode") ;
+        return line.toString() ;
+    }
+
+    String csv() {
+        StringBuilder line = new StringBuilder() ;
+        line.append(step).append(',').append(steps) ;
+        for(Histogram h : phases) {
+            line.append(',').append(h.count) ;
+            if(h.count > 0) {
+                line.append(',').append(ms(h.mean()))
+                    .append(',').append(ms(h.percentile(0.5)))
+                    .append(',').append(ms(h.percentile(0.99)))
+                    .append(',').append(ms(h.max)) ;
+            }
+            else {
+                line.append(",,,,") ;
+            }
+        }
+        line.append(',').append(nodes).append(',').append(depth)
+            .append(',').append(perStar(totalVisits))
+            .append(',').append(perStar(totalInteractions))
+            .append(',').append(totalBytesToDevice / steps)
+            .append(',').append(totalBytesFromDevice / steps)
+            .append(',').append(totalReallocations)
+            .append(',').append(mode) ;
+        return line.toString() ;
+    }
+
+    String json() {
+        StringBuilder line = new StringBuilder() ;
+        line.append("{\"step\":").append(step)
+            .append(",\"steps\":").append(steps)
+            .append(",\"phases\":{") ;
+        boolean first = true ;
+        for(int p = 0 ; p < PHASES.length ; p++) {
+            Histogram h = phases [p] ;
+            if(h.count == 0) continue ;
+            if(!first) line.append(',') ;
+            first = false ;
+            line.append('"').append(PHASES [p]).append("\":{")
+                .append("\"count\":").append(h.count)
+                .append(",\"mean_ms\":").append(ms(h.mean()))
+                .append(",\"p50_ms\":").append(ms(h.percentile(0.5)))
+                .append(",\"p99_ms\":").append(ms(h.percentile(0.99)))
+                .append(",\"max_ms\":").append(ms(h.max))
+                .append('}') ;
+        }
+        line.append("},\"nodes\":").append(nodes)
+            .append(",\"depth\":").append(depth) ;
+        if(totalStars > 0) {
+            line.append(",\"visits_per_star\":").append(perStar(totalVisits))
+                .append(",\"interactions_per_star\":").append(perStar(totalInteractions)) ;
+        }
+        line.append(",\"bytes_to_device\":").append(totalBytesToDevice / steps)
+            .append(",\"bytes_from_device\":").append(totalBytesFromDevice / steps)
+            .append(",\"reallocations\":").append(totalReallocations)
+            .append(",\"mode\":\"").append(mode).append("\"}") ;
+        return line.toString() ;
+    }
+
+    static String ms(double nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6) ;
+    }
+
+    String perStar(long total) {
+        return totalStars == 0 ? "" :
+               String.format(Locale.ROOT, "%.2f", (double) total / totalStars) ;
+    }
+}
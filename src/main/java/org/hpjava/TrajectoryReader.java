@@ -0,0 +1,186 @@
+package org.hpjava;
+
+import java.io.Closeable ;
+import java.io.IOException ;
+
+import java.nio.ByteBuffer ;
+import java.nio.ByteOrder ;
+import java.nio.channels.FileChannel ;
+import java.nio.file.Path ;
+import java.nio.file.StandardOpenOption ;
+
+
+/*
+
+Reads frames of a file written by TrajectoryWriter, one at a time, into
+arrays held here.  Positions of QUANTIZED and DELTA files are restored
+to the middle of their quantization intervals.
+
+Without ids in the file, id [i] is i.  A trailing frame cut short (by a
+run killed mid-write) is treated as the end of the file.
+
+*/
+
+class TrajectoryReader implements Closeable {
+
+    final Path file ;
+    final FileChannel channel ;
+
+    final int n ;
+    final int encoding ;
+    final boolean velocities ;
+    final float boxWidth ;
+
+    // Current frame
+
+    long step ;
+    double time ;
+    boolean key ;
+    final float [] x, y, z, vx, vy, vz ;
+    final int [] id ;
+
+    final char [][] last, previous ;  // quantized positions of last two
+                                       // frames (previous only for DELTA)
+    int sinceKey ;
+    boolean started ;                  // read a key frame
+
+    ByteBuffer in ;
+
+    TrajectoryReader(Path file) throws IOException {
+        this.file = file ;
+        channel = FileChannel.open(file, StandardOpenOption.READ) ;
+
+        in = ByteBuffer.allocate(TrajectoryWriter.HEADER) ;
+        in.order(ByteOrder.LITTLE_ENDIAN) ;
+        if(!read(TrajectoryWriter.HEADER) ||
+           in.getInt(0) != TrajectoryWriter.MAGIC) {
+            channel.close() ;
+            throw new IOException("not a trajectory file " + file) ;
+        }
+        if(in.getInt(4) != TrajectoryWriter.VERSION) {
+            channel.close() ;
+            throw new IOException("unsupported trajectory version " +
+                                  in.getInt(4) + " in " + file) ;
+        }
+        n = in.getInt(8) ;
+        encoding = in.getInt(12) ;
+        velocities = (in.getInt(16) & TrajectoryWriter.VELOCITIES) != 0 ;
+        boxWidth = in.getFloat(20) ;
+
+        x = new float [n] ;
+        y = new float [n] ;
+        z = new float [n] ;
+        vx = velocities ? new float [n] : null ;
+        vy = velocities ? new float [n] : null ;
+        vz = velocities ? new float [n] : null ;
+        id = new int [n] ;
+        for(int i = 0 ; i < n ; i++) {
+            id [i] = i ;
+        }
+        last = encoding != TrajectoryWriter.FLOAT ? new char [3] [n] : null ;
+        previous = encoding == TrajectoryWriter.DELTA ? new char [3] [n] : null ;
+    }
+
+    boolean next() throws IOException {
+
+        // Read next frame, returning false at end of file.
+
+        if(!read(TrajectoryWriter.HEADER)) return false ;
+        if(in.getInt(0) != TrajectoryWriter.FRAME_MAGIC) {
+            throw new IOException("bad frame in trajectory file " + file) ;
+        }
+        int flags = in.getInt(4) ;
+        long frameStep = in.getLong(8) ;
+        double frameTime = in.getDouble(16) ;
+        int size = in.getInt(24) ;
+        if(!read(size)) return false ;
+
+        step = frameStep ;
+        time = frameTime ;
+        key = (flags & TrajectoryWriter.KEY) != 0 ;
+        if(encoding == TrajectoryWriter.DELTA && !key && !started) {
+            throw new IOException("trajectory file " + file +
+                                  " does not start with a key frame") ;
+        }
+        started = true ;
+
+        if((flags & TrajectoryWriter.IDS) != 0) {
+            in.asIntBuffer().get(id) ;
+            in.position(in.position() + 4 * n) ;
+        }
+        float unit = boxWidth / TrajectoryWriter.LEVELS ;
+        float [][] positions = {x, y, z} ;
+        for(int k = 0 ; k < 3 ; k++) {
+            float [] a = positions [k] ;
+            if(encoding == TrajectoryWriter.FLOAT) {
+                in.asFloatBuffer().get(a) ;
+                in.position(in.position() + 4 * n) ;
+                continue ;
+            }
+            char [] q = encoding == TrajectoryWriter.DELTA ? previous [k] :
+                                                             last [k] ;
+            if(encoding == TrajectoryWriter.QUANTIZED || key) {
+                for(int i = 0 ; i < n ; i++) {
+                    q [i] = in.getChar() ;
+                }
+            }
+            else {
+                char [] p1 = last [k] ;
+                char [] p0 = previous [k] ;
+                boolean linear = sinceKey > 0 ;
+                for(int i = 0 ; i < n ; i++) {
+                    int v = getVarint() ;
+                    int d = (v >>> 1) ^ -(v & 1) ;
+                    int prediction = linear ? 2 * p1 [i] - p0 [i] : p1 [i] ;
+                    q [i] = (char) (prediction + d) ;  // overwrites p0 [i]
+                }
+            }
+            if(encoding == TrajectoryWriter.DELTA) {
+                previous [k] = last [k] ;
+                last [k] = q ;
+            }
+            for(int i = 0 ; i < n ; i++) {
+                a [i] = (q [i] + 0.5F) * unit ;
+            }
+        }
+        if(velocities) {
+            for(float [] a : new float [][] {vx, vy, vz}) {
+                in.asFloatBuffer().get(a) ;
+                in.position(in.position() + 4 * n) ;
+            }
+        }
+        sinceKey = key ? 0 : sinceKey + 1 ;
+        return true ;
+    }
+
+    int getVarint() {
+        int v = 0 ;
+        for(int shift = 0 ; ; shift += 7) {
+            byte b = in.get() ;
+            v |= (b & 0x7F) << shift ;
+            if(b >= 0) return v ;
+        }
+    }
+
+    boolean read(int size) throws IOException {
+
+        // Read next size bytes of file into in, returning false if the
+        // file ends first.
+
+        if(in.capacity() < size) {
+            in = ByteBuffer.allocate(size) ;
+            in.order(ByteOrder.LITTLE_ENDIAN) ;
+        }
+        in.clear() ;
+        in.limit(size) ;
+        while(in.hasRemaining()) {
+            if(channel.read(in) < 0) return false ;
+        }
+        in.flip() ;
+        return true ;
+    }
+
+    public void close() throws IOException {
+        channel.close() ;
+    }
+}
@@ -0,0 +1,449 @@
+package org.hpjava;
+
+import java.io.IOException ;
+
+import java.nio.ByteBuffer ;
+import java.nio.ByteOrder ;
+import java.nio.channels.FileChannel ;
+import java.nio.file.Path ;
+import java.nio.file.StandardOpenOption ;
+
+import java.util.concurrent.ArrayBlockingQueue ;
+import java.util.concurrent.TimeUnit ;
+
+
+/*
+
+Streaming trajectory output - positions (and optionally velocities) of
+all stars every few steps, for offline analysis.
+
+The main loop calls offer() with the current state.  This copies the
+arrays into one of a ring of reusable frame buffers and hands it to a
+writer thread, which encodes it and appends it to the file through a
+FileChannel.  The main loop only pays for the copy.  If the writer falls
+behind and no buffer is free, the policy decides what happens:
+
+  DROP   the frame is skipped and counted (the default - integration
+         never waits for the disk).
+
+  BLOCK  the main loop waits for a free buffer, so the run slows down to
+         the speed of the disk but no frame is lost.
+
+Positions are encoded in one of three ways:
+
+  FLOAT      4 byte floats, exact.
+
+  QUANTIZED  2 byte unsigned fixed point fractions of the box width, so
+             within BOX_WIDTH / 2^17 of the true position.
+
+  DELTA      quantized as above, but each coordinate is stored as the
+             difference from a linear prediction off the two previous
+             written frames (the previous one alone after a key frame),
+             zigzag encoded as a 1 to 3 byte varint.  Stars move
+             smoothly, so most differences fit one byte.  Arithmetic is
+             modulo 2^16, so stars crossing the periodic box need no
+             special case.  Every KEY_INTERVAL-th written frame, and the
+             first after a reorder, is a key frame of plain quantized
+             values, where a reader can start.
+
+Velocities, when written, are always 4 byte floats.
+
+File layout, all little-endian.  A file header:
+
+   0  int     MAGIC ("BHTR")
+   4  int     VERSION
+   8  int     n, number of stars
+  12  int     encoding
+  16  int     flags - VELOCITIES
+  20  float   box width
+  24  int     key frame interval
+  28          reserved, zero up to HEADER
+
+then one record per frame:
+
+   0  int     FRAME_MAGIC ("BHTF")
+   4  int     flags - KEY, IDS
+   8  long    step
+  16  double  simulated time
+  24  int     bytes of payload
+  28  int     reserved
+  32          payload - ids (n ints, only if IDS), x values, y values,
+              z values, then vx, vy, vz if VELOCITIES.
+
+Star ids are written in key frames if the caller passes them, which it
+should when stars are reordered (StarOrder), since array positions then
+no longer identify stars.  They hold for the frames up to the next key
+frame.  See TrajectoryReader.
+
+*/
+
+class TrajectoryWriter {
+
+    final static int MAGIC = 0x52544842 ;        // "BHTR" little-endian
+    final static int FRAME_MAGIC = 0x46544842 ;  // "BHTF"
+    final static int VERSION = 1 ;
+    final static int HEADER = 32 ;               // bytes, file and frame
+
+    // Encodings
+
+    final static int FLOAT = 0 ;
+    final static int QUANTIZED = 1 ;
+    final static int DELTA = 2 ;
+
+    // Policies when no buffer is free
+
+    final static int DROP = 0 ;
+    final static int BLOCK = 1 ;
+
+    // Flags
+
+    final static int VELOCITIES = 1 ;  // file
+    final static int KEY = 1 ;         // frame
+    final static int IDS = 2 ;         // frame
+
+    final static int KEY_INTERVAL = 100 ;
+    final static int LEVELS = 1 << 16 ;  // quantization levels
+
+    final Path file ;
+    final int n ;
+    final int encoding ;
+    final int policy ;
+    final boolean velocities ;
+    final float boxWidth ;
+    final float scale ;      // quantization levels per unit length
+
+    final int buffers ;
+    final ArrayBlockingQueue<Frame> free ;
+    final ArrayBlockingQueue<Frame> filled ;
+    final Frame end ;        // marks end of stream for writer thread
+
+    final FileChannel channel ;
+    final ByteBuffer out ;
+    final Thread thread ;
+
+    boolean keyPending = true ;  // next frame taken must be a key frame
+    boolean closed ;
+
+    // Writer thread state - quantized positions of last two frames
+    // written, for DELTA.
+
+    final char [][] last, previous ;
+    int sinceKey ;           // frames written since last key frame
+
+    volatile IOException failure ;
+
+    // Statistics.  Frames and bytes written, and time spent encoding and
+    // writing, are updated by the writer thread.
+
+    volatile long framesWritten, bytesWritten, writeNanos ;
+    long framesDropped, blockedNanos ;
+    int maxQueueDepth ;
+
+    TrajectoryWriter(Path file, int n, int encoding, boolean velocities,
+                     float boxWidth, int buffers, int policy) throws IOException {
+        this.file = file ;
+        this.n = n ;
+        this.encoding = encoding ;
+        this.policy = policy ;
+        this.velocities = velocities ;
+        this.boxWidth = boxWidth ;
+        scale = LEVELS / boxWidth ;
+
+        this.buffers = Math.max(buffers, 1) ;
+        free = new ArrayBlockingQueue<Frame>(this.buffers) ;
+        filled = new ArrayBlockingQueue<Frame>(this.buffers + 1) ;
+        for(int i = 0 ; i < this.buffers ; i++) {
+            free.add(new Frame(n, velocities)) ;
+        }
+        end = new Frame(0, false) ;
+
+        if(encoding == DELTA) {
+            last = new char [3] [n] ;
+            previous = new char [3] [n] ;
+        }
+        else {
+            last = null ;
+            previous = null ;
+        }
+
+        // Worst case frame: ids, 4 byte positions (or 3 byte varints),
+        // and velocities.
+
+        out = ByteBuffer.allocateDirect(HEADER + 4 * n + 12 * n +
+                                        (velocities ? 12 * n : 0)) ;
+        out.order(ByteOrder.LITTLE_ENDIAN) ;
+
+        channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                                   StandardOpenOption.WRITE,
+                                   StandardOpenOption.TRUNCATE_EXISTING) ;
+        out.putInt(MAGIC) ;
+        out.putInt(VERSION) ;
+        out.putInt(n) ;
+        out.putInt(encoding) ;
+        out.putInt(velocities ? VELOCITIES : 0) ;
+        out.putFloat(boxWidth) ;
+        out.putInt(KEY_INTERVAL) ;
+        out.putInt(0) ;
+        write() ;
+
+        thread = new Thread(this::writeLoop, "trajectory writer") ;
+        thread.setDaemon(true) ;
+        thread.start() ;
+    }
+
+    static int encoding(String name) {
+        switch(name.toLowerCase()) {
+            case "float" :
+                return FLOAT ;
+            case "quantized" :
+                return QUANTIZED ;
+            case "delta" :
+                return DELTA ;
+            default :
+                throw new IllegalArgumentException("unknown trajectory encoding " + name) ;
+        }
+    }
+
+    static int policy(String name) {
+        switch(name.toLowerCase()) {
+            case "drop" :
+                return DROP ;
+            case "block" :
+                return BLOCK ;
+            default :
+                throw new IllegalArgumentException("unknown trajectory policy " + name) ;
+        }
+    }
+
+    void reordered() {
+
+        // Stars have been permuted - next frame must not be a delta
+        // against frames in the old order.
+
+        keyPending = true ;
+    }
+
+    boolean offer(long step, double time, float [] x, float [] y, float [] z,
+                  float [] vx, float [] vy, float [] vz, int [] id)
+            throws IOException {
+
+        /*
+         * Called by the main loop.  Queue a copy of the current state,
+         * returning false if it was dropped.  id may be null if stars
+         * are never reordered.
+         */
+
+        if(failure != null) {
+            throw new IOException("failed writing " + file, failure) ;
+        }
+        if(closed) return false ;
+
+        Frame frame = free.poll() ;
+        if(frame == null) {
+            if(policy == DROP) {
+                framesDropped++ ;
+                return false ;
+            }
+            long start = System.nanoTime() ;
+            try {
+                while(frame == null) {
+                    frame = free.poll(100, TimeUnit.MILLISECONDS) ;
+                    if(failure != null) {
+                        throw new IOException("failed writing " + file, failure) ;
+                    }
+                }
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt() ;
+                throw new IOException("interrupted writing " + file, e) ;
+            }
+            blockedNanos += System.nanoTime() - start ;
+        }
+
+        frame.step = step ;
+        frame.time = time ;
+        frame.key = keyPending ;
+        keyPending = false ;
+        System.arraycopy(x, 0, frame.x, 0, n) ;
+        System.arraycopy(y, 0, frame.y, 0, n) ;
+        System.arraycopy(z, 0, frame.z, 0, n) ;
+        if(velocities) {
+            System.arraycopy(vx, 0, frame.vx, 0, n) ;
+            System.arraycopy(vy, 0, frame.vy, 0, n) ;
+            System.arraycopy(vz, 0, frame.vz, 0, n) ;
+        }
+        if(id != null) {
+            System.arraycopy(id, 0, frame.id, 0, n) ;
+        }
+        frame.hasIds = id != null ;
+        filled.add(frame) ;
+
+        maxQueueDepth = Math.max(maxQueueDepth, filled.size()) ;
+        return true ;
+    }
+
+    int queueDepth() {
+
+        // Frames waiting for, or being written by, the writer thread.
+
+        return buffers - free.size() ;
+    }
+
+    double megabytesPerSecond() {
+
+        // Rate of the writer thread while busy.
+
+        long nanos = writeNanos ;
+        return nanos == 0 ? 0 : bytesWritten * 1e3 / nanos ;
+    }
+
+    void close() throws IOException {
+
+        // Write frames still queued, then close file.
+
+        if(closed) return ;
+        closed = true ;
+        filled.add(end) ;
+        try {
+            thread.join() ;
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt() ;
+            throw new IOException("interrupted writing " + file, e) ;
+        }
+        finally {
+            channel.close() ;
+        }
+        if(failure != null) {
+            throw new IOException("failed writing " + file, failure) ;
+        }
+    }
+
+    void writeLoop() {
+        try {
+            while(true) {
+                Frame frame = filled.take() ;
+                if(frame == end) break ;
+                long start = System.nanoTime() ;
+                long bytes = encode(frame) ;
+                free.add(frame) ;
+                write() ;
+                bytesWritten += bytes ;
+                framesWritten++ ;
+                writeNanos += System.nanoTime() - start ;
+            }
+        }
+        catch(IOException e) {
+            failure = e ;
+        }
+        catch(InterruptedException e) {
+            // exit thread
+        }
+    }
+
+    long encode(Frame frame) {
+
+        // Encode frame into out, returning its size in bytes.
+
+        boolean key = frame.key || sinceKey + 1 >= KEY_INTERVAL ;
+        boolean ids = key && frame.hasIds ;
+
+        out.position(HEADER) ;
+        if(ids) {
+            out.asIntBuffer().put(frame.id) ;
+            out.position(out.position() + 4 * n) ;
+        }
+        float [][] positions = {frame.x, frame.y, frame.z} ;
+        for(int k = 0 ; k < 3 ; k++) {
+            float [] a = positions [k] ;
+            if(encoding == FLOAT) {
+                out.asFloatBuffer().put(a) ;
+                out.position(out.position() + 4 * n) ;
+            }
+            else if(encoding == QUANTIZED || key) {
+                for(int i = 0 ; i < n ; i++) {
+                    out.putChar(quantize(a [i])) ;
+                }
+            }
+            else {
+                char [] p1 = last [k] ;
+                char [] p0 = previous [k] ;
+                boolean linear = sinceKey > 0 ;
+                for(int i = 0 ; i < n ; i++) {
+                    char q = quantize(a [i]) ;
+                    int prediction = linear ? 2 * p1 [i] - p0 [i] : p1 [i] ;
+                    int d = (short) (q - prediction) ;
+                    putVarint((d << 1) ^ (d >> 31)) ;
+                }
+            }
+            if(encoding == DELTA) {
+                char [] p0 = previous [k] ;
+                char [] p1 = last [k] ;
+                previous [k] = p1 ;
+                last [k] = p0 ;
+                for(int i = 0 ; i < n ; i++) {
+                    p0 [i] = quantize(a [i]) ;
+                }
+            }
+        }
+        if(velocities) {
+            for(float [] a : new float [][] {frame.vx, frame.vy, frame.vz}) {
+                out.asFloatBuffer().put(a) ;
+                out.position(out.position() + 4 * n) ;
+            }
+        }
+        sinceKey = key ? 0 : sinceKey + 1 ;
+
+        int size = out.position() ;
+        out.putInt(0, FRAME_MAGIC) ;
+        out.putInt(4, (key ? KEY : 0) | (ids ? IDS : 0)) ;
+        out.putLong(8, frame.step) ;
+        out.putDouble(16, frame.time) ;
+        out.putInt(24, size - HEADER) ;
+        out.putInt(28, 0) ;
+        return size ;
+    }
+
+    char quantize(float a) {
+        int q = (int) (a * scale) ;
+        return (char) Math.max(0, Math.min(q, LEVELS - 1)) ;
+    }
+
+    void putVarint(int v) {
+        while(v >= 0x80) {
+            out.put((byte) (v | 0x80)) ;
+            v >>>= 7 ;
+        }
+        out.put((byte) v) ;
+    }
+
+    void write() throws IOException {
+
+        // Append contents of out to file, leaving out empty.
+
+        out.flip() ;
+        while(out.hasRemaining()) {
+            channel.write(out) ;
+        }
+        out.clear() ;
+    }
+
+    static class Frame {
+
+        final float [] x, y, z, vx, vy, vz ;
+        final int [] id ;
+        long step ;
+        double time ;
+        boolean key, hasIds ;
+
+        Frame(int n, boolean velocities) {
+            x = new float [n] ;
+            y = new float [n] ;
+            z = new float [n] ;
+            vx = velocities ? new float [n] : null ;
+            vy = velocities ? new float [n] : null ;
+            vz = velocities ? new float [n] : null ;
+            id = new int [n] ;
+        }
+    }
+}
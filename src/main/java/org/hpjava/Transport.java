@@ -0,0 +1,94 @@
+package org.hpjava;
+
+import java.io.Closeable ;
+import java.io.IOException ;
+
+import java.nio.ByteBuffer ;
+
+
+/*
+
+Message passing between the ranks of a distributed run (see Domain).
+
+A transport connects rank "rank" to every other rank of "size" ranks.
+Messages between any two ranks arrive in the order they were sent, and
+send never waits for the receiver, so every rank may send all its
+messages of an exchange before receiving any.
+
+Implementations:
+
+  LocalTransport   ranks are threads of one JVM, and messages are
+                   copied into queues in shared memory.
+
+  SocketTransport  ranks are separate JVMs (on one host, or several),
+                   connected pairwise by TCP sockets.
+
+The collective operations here are built on send and receive, so they
+are the same for every transport.
+
+*/
+
+abstract class Transport implements Closeable {
+
+    final static int LOCAL = 0 ;
+    final static int SOCKET = 1 ;
+
+    final int rank ;
+    final int size ;
+
+    long bytesSent ;  // to other ranks
+
+    Transport(int rank, int size) {
+        this.rank = rank ;
+        this.size = size ;
+    }
+
+    static int type(String name) {
+        switch(name.toLowerCase()) {
+            case "local" :
+                return LOCAL ;
+            case "socket" :
+                return SOCKET ;
+            default :
+                throw new IllegalArgumentException("unknown transport " + name) ;
+        }
+    }
+
+    // Send bytes position to limit of message to rank "to".  The
+    // message may be reused as soon as this returns.
+
+    abstract void send(int to, ByteBuffer message) throws IOException ;
+
+    // Next message from rank "from", ready to read.
+
+    abstract ByteBuffer receive(int from) throws IOException ;
+
+    ByteBuffer [] allToAll(ByteBuffer [] out) throws IOException {
+
+        // Send out [q] to each rank q, returning the message from each
+        // rank (this rank's own message is passed straight through).
+
+        for(int q = 0 ; q < size ; q++) {
+            if(q != rank) {
+                bytesSent += out [q].remaining() ;
+                send(q, out [q]) ;
+            }
+        }
+        ByteBuffer [] in = new ByteBuffer [size] ;
+        for(int q = 0 ; q < size ; q++) {
+            in [q] = q == rank ? out [q].duplicate() : receive(q) ;
+        }
+        return in ;
+    }
+
+    ByteBuffer [] allGather(ByteBuffer out) throws IOException {
+
+        // Send the same message to every rank.
+
+        ByteBuffer [] all = new ByteBuffer [size] ;
+        for(int q = 0 ; q < size ; q++) {
+            all [q] = out.duplicate() ;
+        }
+        return allToAll(all) ;
+    }
+}
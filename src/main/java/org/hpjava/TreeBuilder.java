@@ -0,0 +1,116 @@
+package org.hpjava;
+
+
+/*
+
+Common interface of the builders that construct the BH tree directly
+in flattened form (see FlatTree).
+
+*/
+
+abstract class TreeBuilder {
+
+    // Least opening threshold of a node, less the offset of its centre
+    // of mass, per unit of cell size.  Over sqrt(3) / 2, so no star in a
+    // cell is far enough from its centre of mass for the walk to accept
+    // it, whatever the opening angle.
+
+    final static float MIN_OPENING = 0.87F ;
+
+    final FlatTree tree ;
+
+    float openingAngle =
+            Float.parseFloat(System.getProperty("bh.openingAngle",
+                             String.valueOf(AparapiBarnesHut.Node.OPENING_ANGLE))) ;
+           // (the legacy Node tree always uses Node.OPENING_ANGLE)
+
+    boolean quadrupole = Boolean.getBoolean("bh.quadrupole") ;
+           // compute quadrupole moments of nodes
+
+    int leafSize = Integer.getInteger("bh.leafSize", 1) ;
+           // max stars in a leaf, except for coincident stars
+
+    int encoding = FlatTree.encoding(System.getProperty("bh.nodeEncoding", "wide")) ;
+           // compact node records for the per-star walk (see KernelTree)
+
+    TreeBuilder(FlatTree tree) {
+        this.tree = tree ;
+    }
+
+    float threshold(float size, float delta) {
+
+        // Opening threshold of a node of cell size size, whose centre of
+        // mass is delta from its mid-point.  Beyond opening angle
+        // 2 / sqrt(3), size / openingAngle + delta would let stars inside
+        // the cell accept it, and so pull on themselves.
+
+        return Math.max(1 / openingAngle, MIN_OPENING) * size + delta ;
+    }
+
+    // Rebuild tree from positions of first n stars.
+
+    abstract void build(float [] x, float [] y, float [] z, int n) ;
+
+    // Stars have been renumbered since the last build.
+
+    void invalidate() {
+    }
+
+    void setQuadrupole(int node, float [] x, float [] y, float [] z) {
+
+        // Quadrupole moment of node about its centre of mass, from those
+        // of its children (parallel axis theorem).  Children must be
+        // finished, and linked.  For a leaf, summed over its stars.
+
+        float [] nodesD = tree.nodesD ;
+        int [] nodesI = tree.nodesI ;
+        int nodesDptr = KernelTree.NODEDSIZE * node ;
+        int nodesIptr = KernelTree.NODEISIZE * node ;
+
+        double xCent = nodesD [nodesDptr + KernelTree.XCENT] ;
+        double yCent = nodesD [nodesDptr + KernelTree.YCENT] ;
+        double zCent = nodesD [nodesDptr + KernelTree.ZCENT] ;
+
+        double qxx = 0, qyy = 0, qzz = 0, qxy = 0, qxz = 0, qyz = 0 ;
+        if(nodesI [nodesIptr + KernelTree.FIRSTCHILD] == KernelTree.NULL) {
+            int first = nodesI [nodesIptr + KernelTree.FIRSTSTAR] ;
+            int last = first + nodesI [nodesIptr + KernelTree.NPARTICLES] ;
+            for(int m = first ; m < last ; m++) {
+                int star = tree.stars [m] ;
+                double dx = x [star] - xCent ;
+                double dy = y [star] - yCent ;
+                double dz = z [star] - zCent ;
+                double dSquared = dx * dx + dy * dy + dz * dz ;
+                qxx += 3 * dx * dx - dSquared ;
+                qyy += 3 * dy * dy - dSquared ;
+                qzz += 3 * dz * dz - dSquared ;
+                qxy += 3 * dx * dy ;
+                qxz += 3 * dx * dz ;
+                qyz += 3 * dy * dz ;
+            }
+        }
+        int child = nodesI [KernelTree.NODEISIZE * node + KernelTree.FIRSTCHILD] ;
+        while(child != KernelTree.NULL) {
+            int childDptr = KernelTree.NODEDSIZE * child ;
+            int childIptr = KernelTree.NODEISIZE * child ;
+            double m = nodesI [childIptr + KernelTree.NPARTICLES] ;
+            double dx = nodesD [childDptr + KernelTree.XCENT] - xCent ;
+            double dy = nodesD [childDptr + KernelTree.YCENT] - yCent ;
+            double dz = nodesD [childDptr + KernelTree.ZCENT] - zCent ;
+            double dSquared = dx * dx + dy * dy + dz * dz ;
+            qxx += nodesD [childDptr + KernelTree.QXX] + m * (3 * dx * dx - dSquared) ;
+            qyy += nodesD [childDptr + KernelTree.QYY] + m * (3 * dy * dy - dSquared) ;
+            qzz += nodesD [childDptr + KernelTree.QZZ] + m * (3 * dz * dz - dSquared) ;
+            qxy += nodesD [childDptr + KernelTree.QXY] + m * 3 * dx * dy ;
+            qxz += nodesD [childDptr + KernelTree.QXZ] + m * 3 * dx * dz ;
+            qyz += nodesD [childDptr + KernelTree.QYZ] + m * 3 * dy * dz ;
+            child = nodesI [childIptr + KernelTree.NEXT] ;
+        }
+        nodesD [nodesDptr + KernelTree.QXX] = (float) qxx ;
+        nodesD [nodesDptr + KernelTree.QYY] = (float) qyy ;
+        nodesD [nodesDptr + KernelTree.QZZ] = (float) qzz ;
+        nodesD [nodesDptr + KernelTree.QXY] = (float) qxy ;
+        nodesD [nodesDptr + KernelTree.QXZ] = (float) qxz ;
+        nodesD [nodesDptr + KernelTree.QYZ] = (float) qyz ;
+    }
+}
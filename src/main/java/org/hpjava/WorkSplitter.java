@@ -0,0 +1,245 @@
+package org.hpjava;
+
+import java.util.Locale ;
+
+import java.util.concurrent.ExecutionException ;
+import java.util.concurrent.ExecutorService ;
+import java.util.concurrent.Executors ;
+import java.util.concurrent.Future ;
+
+
+/*
+
+Per-star force pass split between several backends at once - for
+example Aparapi on an OpenCL device, and the Parallel pool on the host
+cores that would otherwise wait for it.
+
+Each backend has its own KernelTree over the same positions and tree,
+and computes forces for one contiguous slice of the stars
+(KernelTree.computeForcesSlice), all slices at the same time.  Host
+backends write their accelerations straight into the shared ax, ay and
+az.  A kernel run on an OpenCL device copies all of its acceleration
+arrays back, so it writes into arrays of its own, and only its slice is
+copied into the shared ones.
+
+After each pass the throughput of each backend (stars per second of
+its slice) is measured, smoothed over steps, and the next pass gives
+each backend a share of the stars in proportion.  A backend always gets
+at least MIN_SHARE, so that it keeps being measured.
+
+With two CPU backends (APARAPI on the Java Thread Pool and FORK_JOIN)
+both run on the same cores, so this shows only that the split is
+correct and converges - there is nothing idle for it to use.
+
+*/
+
+class WorkSplitter {
+
+    final static double SMOOTHING = 0.5 ;   // weight of last pass in rates
+    final static double MIN_SHARE = 0.02 ;
+
+    final float [] ax, ay, az ;
+    final KernelTree [] kernels ;
+    final int [] backends ;
+    final boolean [] ownArrays ;  // kernel writes into arrays of its own
+
+    final double [] share ;  // fraction of stars for each backend
+    final double [] rate ;   // smoothed stars per nanosecond
+    final int [] start ;     // slice of backend k is start [k] to start [k + 1] - 1
+    final long [] nanos ;    // time of each slice in last pass
+
+    final ExecutorService pool ;
+
+    WorkSplitter(float [] x, float [] y, float [] z,
+                 float [] ax, float [] ay, float [] az, FlatTree tree,
+                 int [] backends, boolean onDevice, int hostGrain) {
+
+        // onDevice - whether APARAPI kernels run on an OpenCL device.
+
+        this.ax = ax ;
+        this.ay = ay ;
+        this.az = az ;
+        this.backends = backends ;
+
+        int count = backends.length ;
+        kernels = new KernelTree [count] ;
+        ownArrays = new boolean [count] ;
+        for(int k = 0 ; k < count ; k++) {
+            ownArrays [k] = onDevice && backends [k] == KernelTree.APARAPI ;
+            int n = x.length ;
+            kernels [k] = ownArrays [k] ?
+                    new KernelTree(x, y, z, new float [n], new float [n],
+                                   new float [n], tree) :
+                    new KernelTree(x, y, z, ax, ay, az, tree) ;
+            kernels [k].setExplicit(true) ;
+            kernels [k].backend = backends [k] ;
+            kernels [k].hostGrain = hostGrain ;
+        }
+
+        share = new double [count] ;
+        rate = new double [count] ;
+        start = new int [count + 1] ;
+        nanos = new long [count] ;
+        for(int k = 0 ; k < count ; k++) {
+            share [k] = 1.0 / count ;
+        }
+
+        pool = Executors.newFixedThreadPool(Math.max(count - 1, 1), r -> {
+            Thread thread = new Thread(r, "work splitter") ;
+            thread.setDaemon(true) ;
+            return thread ;
+        }) ;
+    }
+
+    static int [] backends(String names) {
+
+        // Comma separated names, as KernelTree.backend.
+
+        String [] parts = names.split(",") ;
+        int [] backends = new int [parts.length] ;
+        for(int k = 0 ; k < parts.length ; k++) {
+            backends [k] = KernelTree.backend(parts [k].trim()) ;
+        }
+        return backends ;
+    }
+
+    void setTree(FlatTree tree) {
+        for(KernelTree kernel : kernels) {
+            kernel.setTree(tree) ;
+        }
+    }
+
+    void computeForces(int n) {
+
+        // Forces on stars 0 to n - 1, then new shares from the times.
+
+        int count = kernels.length ;
+        start [0] = 0 ;
+        double sum = 0 ;
+        for(int k = 0 ; k < count ; k++) {
+            sum += share [k] ;
+            start [k + 1] = k == count - 1 ? n : (int) Math.round(sum * n) ;
+        }
+
+        Future<?> [] futures = new Future<?> [count] ;
+        for(int k = 1 ; k < count ; k++) {
+            int slice = k ;
+            futures [k] = pool.submit(() -> runSlice(slice)) ;
+        }
+        runSlice(0) ;
+        for(int k = 1 ; k < count ; k++) {
+            try {
+                futures [k].get() ;
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt() ;
+                throw new IllegalStateException("interrupted in force pass", e) ;
+            }
+            catch(ExecutionException e) {
+                throw new IllegalStateException("force pass failed", e.getCause()) ;
+            }
+        }
+
+        long [] stars = new long [count] ;
+        for(int k = 0 ; k < count ; k++) {
+            stars [k] = start [k + 1] - start [k] ;
+        }
+        update(stars, nanos) ;
+    }
+
+    void runSlice(int k) {
+        long begin = System.nanoTime() ;
+        int first = start [k], count = start [k + 1] - first ;
+        if(count > 0) {
+            KernelTree kernel = kernels [k] ;
+            kernel.computeForcesSlice(first, count) ;
+            if(ownArrays [k]) {
+                System.arraycopy(kernel.ax, first, ax, first, count) ;
+                System.arraycopy(kernel.ay, first, ay, first, count) ;
+                System.arraycopy(kernel.az, first, az, first, count) ;
+            }
+        }
+        nanos [k] = System.nanoTime() - begin ;
+    }
+
+    void update(long [] stars, long [] nanos) {
+
+        // New shares from the stars each backend did, and its time.
+        // A backend with nothing to do keeps its old rate.
+
+        int count = kernels.length ;
+        for(int k = 0 ; k < count ; k++) {
+            if(stars [k] == 0 || nanos [k] == 0) continue ;
+            double measured = (double) stars [k] / nanos [k] ;
+            rate [k] = rate [k] == 0 ? measured :
+                       SMOOTHING * measured + (1 - SMOOTHING) * rate [k] ;
+        }
+        double total = 0 ;
+        for(int k = 0 ; k < count ; k++) {
+            if(rate [k] == 0) return ;  // not all measured yet
+            total += rate [k] ;
+        }
+        double sum = 0 ;
+        for(int k = 0 ; k < count ; k++) {
+            share [k] = Math.max(rate [k] / total, MIN_SHARE) ;
+            sum += share [k] ;
+        }
+        for(int k = 0 ; k < count ; k++) {
+            share [k] /= sum ;
+        }
+    }
+
+    long countVisits() {
+        long sum = 0 ;
+        for(int k = 0 ; k < kernels.length ; k++) {
+            kernels [k].fetchCounters() ;
+            for(int i = start [k] ; i < start [k + 1] ; i++) {
+                sum += kernels [k].visits [i] ;
+            }
+        }
+        return sum ;
+    }
+
+    long countInteractions() {
+        long sum = 0 ;
+        for(int k = 0 ; k < kernels.length ; k++) {
+            kernels [k].fetchCounters() ;
+            for(int i = start [k] ; i < start [k + 1] ; i++) {
+                sum += kernels [k].interactions [i] ;
+            }
+        }
+        return sum ;
+    }
+
+    long bytesToDevice() {
+        long sum = 0 ;
+        for(KernelTree kernel : kernels) {
+            sum += kernel.bytesToDevice ;
+        }
+        return sum ;
+    }
+
+    long bytesFromDevice() {
+        long sum = 0 ;
+        for(KernelTree kernel : kernels) {
+            sum += kernel.bytesFromDevice ;
+        }
+        return sum ;
+    }
+
+    String report() {
+
+        // Share and throughput of each backend in last pass.
+
+        StringBuilder report = new StringBuilder("split:") ;
+        for(int k = 0 ; k < kernels.length ; k++) {
+            int stars = start [k + 1] - start [k] ;
+            report.append(String.format(Locale.ROOT, " %s %d stars in %.1f ms (%.0f stars/ms)",
+                                        KernelTree.backendName(backends [k]),
+                                        stars, nanos [k] / 1e6,
+                                        stars / Math.max(nanos [k] / 1e6, 1e-3))) ;
+            if(k < kernels.length - 1) report.append(",") ;
+        }
+        return report.toString() ;
+    }
+}
@@ -0,0 +1,110 @@
+package org.hpjava;
+
+import jdk.incubator.vector.FloatVector ;
+import jdk.incubator.vector.VectorMask ;
+import jdk.incubator.vector.VectorOperators ;
+import jdk.incubator.vector.VectorSpecies ;
+
+
+/*
+
+InteractionList summed with the Vector API, in lanes of the widest float
+vector the machine has (SPECIES_PREFERRED).  The periodic wrap is two
+masked subtractions, and sources coincident with the star are masked out
+of the sum, so a whole vector of sources is processed without branches.
+Sources left over after the last whole vector are summed by the scalar
+loops of InteractionList.
+
+Compiled only into META-INF/versions/17 of the jar, with the incubating
+module jdk.incubator.vector, and loaded by InteractionList.create only
+if that module is available at run time.
+
+*/
+
+class VectorInteractionList extends InteractionList {
+
+    final static VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED ;
+
+    final static FloatVector ONE = FloatVector.broadcast(SPECIES, 1F) ;
+
+    String lanes() {
+        return "in " + SPECIES.length() + " float lanes" ;
+    }
+
+    void monopoles(float px, float py, float pz, int first, int last,
+                   float [] acc) {
+
+        FloatVector sx = FloatVector.zero(SPECIES) ;
+        FloatVector sy = FloatVector.zero(SPECIES) ;
+        FloatVector sz = FloatVector.zero(SPECIES) ;
+
+        int bound = first + SPECIES.loopBound(last - first) ;
+        int k ;
+        for(k = first ; k < bound ; k += SPECIES.length()) {
+            FloatVector dx = wrap(FloatVector.fromArray(SPECIES, x, k).neg().add(px)) ;
+            FloatVector dy = wrap(FloatVector.fromArray(SPECIES, y, k).neg().add(py)) ;
+            FloatVector dz = wrap(FloatVector.fromArray(SPECIES, z, k).neg().add(pz)) ;
+            FloatVector rSquared = dx.mul(dx).add(dy.mul(dy)).add(dz.mul(dz)) ;
+            VectorMask<Float> apart = rSquared.compare(VectorOperators.GT, 0F) ;
+            FloatVector massRCubedInv =
+                    FloatVector.fromArray(SPECIES, mass, k)
+                               .div(rSquared.mul(rSquared.sqrt()))
+                               .blend(0F, apart.not()) ;
+            sx = sx.sub(massRCubedInv.mul(dx)) ;
+            sy = sy.sub(massRCubedInv.mul(dy)) ;
+            sz = sz.sub(massRCubedInv.mul(dz)) ;
+        }
+        acc [0] += sx.reduceLanes(VectorOperators.ADD) ;
+        acc [1] += sy.reduceLanes(VectorOperators.ADD) ;
+        acc [2] += sz.reduceLanes(VectorOperators.ADD) ;
+
+        super.monopoles(px, py, pz, k, last, acc) ;
+    }
+
+    void quadrupoles(float px, float py, float pz, int first, int last,
+                     float [] acc) {
+
+        FloatVector sx = FloatVector.zero(SPECIES) ;
+        FloatVector sy = FloatVector.zero(SPECIES) ;
+        FloatVector sz = FloatVector.zero(SPECIES) ;
+
+        int bound = first + SPECIES.loopBound(last - first) ;
+        int k ;
+        for(k = first ; k < bound ; k += SPECIES.length()) {
+            FloatVector dx = wrap(FloatVector.fromArray(SPECIES, qx, k).neg().add(px)) ;
+            FloatVector dy = wrap(FloatVector.fromArray(SPECIES, qy, k).neg().add(py)) ;
+            FloatVector dz = wrap(FloatVector.fromArray(SPECIES, qz, k).neg().add(pz)) ;
+            FloatVector rSquared = dx.mul(dx).add(dy.mul(dy)).add(dz.mul(dz)) ;
+            FloatVector r = rSquared.sqrt() ;
+
+            FloatVector xx = FloatVector.fromArray(SPECIES, qxx, k) ;
+            FloatVector yy = FloatVector.fromArray(SPECIES, qyy, k) ;
+            FloatVector zz = FloatVector.fromArray(SPECIES, qzz, k) ;
+            FloatVector xy = FloatVector.fromArray(SPECIES, qxy, k) ;
+            FloatVector xz = FloatVector.fromArray(SPECIES, qxz, k) ;
+            FloatVector yz = FloatVector.fromArray(SPECIES, qyz, k) ;
+            FloatVector ux = xx.mul(dx).add(xy.mul(dy)).add(xz.mul(dz)) ;
+            FloatVector uy = xy.mul(dx).add(yy.mul(dy)).add(yz.mul(dz)) ;
+            FloatVector uz = xz.mul(dx).add(yz.mul(dy)).add(zz.mul(dz)) ;
+            FloatVector rQr = dx.mul(ux).add(dy.mul(uy)).add(dz.mul(uz)) ;
+            FloatVector rFiveInv = ONE.div(rSquared.mul(rSquared).mul(r)) ;
+            FloatVector radial = rQr.mul(2.5F).div(rSquared) ;
+            sx = sx.add(rFiveInv.mul(ux.sub(radial.mul(dx)))) ;
+            sy = sy.add(rFiveInv.mul(uy.sub(radial.mul(dy)))) ;
+            sz = sz.add(rFiveInv.mul(uz.sub(radial.mul(dz)))) ;
+        }
+        acc [0] += sx.reduceLanes(VectorOperators.ADD) ;
+        acc [1] += sy.reduceLanes(VectorOperators.ADD) ;
+        acc [2] += sz.reduceLanes(VectorOperators.ADD) ;
+
+        super.quadrupoles(px, py, pz, k, last, acc) ;
+    }
+
+    static FloatVector wrap(FloatVector d) {
+
+        // As InteractionList.wrap, lane by lane.
+
+        FloatVector w = d.sub(BOX_WIDTH, d.compare(VectorOperators.GT, BOX_WIDTH / 2)) ;
+        return w.add(BOX_WIDTH, w.compare(VectorOperators.LT, -BOX_WIDTH / 2)) ;
+    }
+}
@@ -0,0 +1,173 @@
+package org.hpjava;
+
+import java.util.Arrays ;
+
+import junit.framework.TestCase;
+
+import com.aparapi.Range ;
+
+/**
+ * Checks block time steps on independent harmonic oscillators of very
+ * different stiffness, and the force kernel restricted to active stars.
+ */
+public class BlockStepsTest
+    extends TestCase
+{
+    static final int N = 300 ;
+    static final int MAX_LEVEL = 4 ;
+
+    static final float DT = AparapiBarnesHut.DT / 4 ;
+    static final float STEP_LENGTH = 1e-4F ;
+
+    static final float CENTRE = 0.5F * AparapiBarnesHut.BOX_WIDTH ;
+    static final float AMPLITUDE = 0.1F ;
+
+    float [] x, y, z, vx, vy, vz, ax, ay, az ;
+    float [] k ;  // spring constant of each star
+
+    protected void setUp()
+    {
+        x = new float [N] ;
+        y = new float [N] ;
+        z = new float [N] ;
+        vx = new float [N] ;
+        vy = new float [N] ;
+        vz = new float [N] ;
+        ax = new float [N] ;
+        ay = new float [N] ;
+        az = new float [N] ;
+        k = new float [N] ;
+
+        // Periods from about 0.6 down to 0.006.
+
+        for(int i = 0 ; i < N ; i++) {
+            k [i] = (float) Math.pow(10, 2 + 4 * (i % 3) / 2.0) ;
+            x [i] = CENTRE + AMPLITUDE ;
+            y [i] = CENTRE ;
+            z [i] = CENTRE ;
+        }
+    }
+
+    void forces(BlockSteps steps)
+    {
+        for(int m = 0 ; m < steps.numActive ; m++) {
+            int i = steps.active [m] ;
+            ax [i] = -k [i] * (x [i] - CENTRE) ;
+        }
+    }
+
+    float [] integrate(int maxLevel, int baseSteps, long [] forceCount)
+    {
+        BlockSteps steps = new BlockSteps(N, maxLevel, DT, STEP_LENGTH) ;
+        long endTick = (long) baseSteps << maxLevel ;
+        long tick = 0 ;
+        long [] start = new long [N] ;
+        while(true) {
+            steps.drift(x, y, z, vx, vy, vz) ;
+            tick = Math.round(steps.time / DT) ;
+
+            // Each active star is at the end of a step of its level.
+
+            for(int m = 0 ; m < steps.numActive ; m++) {
+                int i = steps.active [m] ;
+                if(steps.level [i] >= 0) {
+                    assertEquals(steps.ticks(steps.level [i]), tick - start [i]) ;
+                }
+                start [i] = tick ;
+            }
+
+            forces(steps) ;
+            forceCount [0] += steps.numActive ;
+            if(tick >= endTick) break ;
+            steps.kick(vx, vy, vz, ax, ay, az) ;
+        }
+        assertEquals(0, steps.tick) ;
+        assertEquals(N, steps.numActive) ;
+        return x.clone() ;
+    }
+
+    public void testOscillators()
+    {
+        int baseSteps = 10 ;
+
+        long [] blockForces = new long [1] ;
+        float [] block = integrate(MAX_LEVEL, baseSteps, blockForces) ;
+
+        setUp() ;
+        long [] globalForces = new long [1] ;
+        float [] global = integrate(0, baseSteps << MAX_LEVEL, globalForces) ;
+
+        // Soft oscillators take longer steps, so far fewer forces are
+        // computed, but all stay about as close to the exact solution as
+        // with the finest step throughout.
+
+        assertTrue(blockForces [0] < globalForces [0] / 2) ;
+
+        double time = (baseSteps << MAX_LEVEL) * DT ;
+        for(int i = 0 ; i < N ; i++) {
+            double exact = CENTRE + AMPLITUDE * Math.cos(Math.sqrt(k [i]) * time) ;
+            double globalError = Math.abs(global [i] - exact) ;
+            double blockError = Math.abs(block [i] - exact) ;
+            assertTrue(blockError < Math.max(2 * globalError, 1e-2 * AMPLITUDE)) ;
+        }
+    }
+
+    public void testLevelsFollowAcceleration()
+    {
+        BlockSteps steps = new BlockSteps(N, MAX_LEVEL, DT, STEP_LENGTH) ;
+        steps.drift(x, y, z, vx, vy, vz) ;
+        forces(steps) ;
+        steps.kick(vx, vy, vz, ax, ay, az) ;
+
+        for(int i = 0 ; i < N ; i++) {
+            float step = DT * steps.ticks(steps.level [i]) ;
+            float a = Math.abs(ax [i]) ;
+            if(steps.level [i] < MAX_LEVEL) {
+                assertTrue(a * step * step / 2 <= STEP_LENGTH) ;
+            }
+            if(steps.level [i] > 0) {
+                assertTrue(a * 4 * step * step / 2 > STEP_LENGTH) ;
+            }
+        }
+        assertEquals(0, steps.level [0]) ;
+        assertEquals(MAX_LEVEL, steps.level [2]) ;
+    }
+
+    public void testActiveForces()
+    {
+        int n = 5000 ;
+        TestStars stars = new TestStars(n, 31) ;
+        FlatTree tree = new FlatTree(16) ;
+        new FlatTreeBuilder(tree).build(stars.x, stars.y, stars.z, n) ;
+
+        float [] ax1 = new float [n], ay1 = new float [n], az1 = new float [n] ;
+        KernelTree kernel = new KernelTree(stars.x, stars.y, stars.z,
+                                           ax1, ay1, az1, tree) ;
+        kernel.execute(Range.create(n)) ;
+        kernel.dispose() ;
+
+        float [] ax2 = new float [n], ay2 = new float [n], az2 = new float [n] ;
+        Arrays.fill(ax2, -1F) ;
+        int [] active = new int [n] ;
+        int numActive = 0 ;
+        for(int i = 0 ; i < n ; i += 3) {
+            active [numActive++] = i ;
+        }
+        kernel = new KernelTree(stars.x, stars.y, stars.z, ax2, ay2, az2, tree) ;
+        kernel.computeForcesActive(active, numActive) ;
+        long interactions = kernel.countInteractions(numActive) ;
+        kernel.dispose() ;
+
+        assertTrue(interactions > 0) ;
+        for(int i = 0 ; i < n ; i++) {
+            if(i % 3 == 0) {
+                assertEquals(ax1 [i], ax2 [i]) ;
+                assertEquals(ay1 [i], ay2 [i]) ;
+                assertEquals(az1 [i], az2 [i]) ;
+            }
+            else {
+                assertEquals(-1F, ax2 [i]) ;
+            }
+        }
+    }
+}
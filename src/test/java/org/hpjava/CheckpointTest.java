@@ -0,0 +1,234 @@
+package org.hpjava;
+
+import java.io.File ;
+import java.io.IOException ;
+import java.io.RandomAccessFile ;
+
+import java.nio.file.Files ;
+import java.nio.file.Path ;
+
+import java.util.Arrays ;
+import java.util.Random ;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that checkpoints restore state exactly, are replaced
+ * atomically, and that damaged files are rejected.
+ */
+public class CheckpointTest
+    extends TestCase
+{
+    static final int N = 10000 ;
+
+    Path dir ;
+
+    protected void setUp() throws IOException
+    {
+        dir = Files.createTempDirectory("checkpoint") ;
+    }
+
+    protected void tearDown() throws IOException
+    {
+        for(File file : dir.toFile().listFiles()) {
+            file.delete() ;
+        }
+        Files.delete(dir) ;
+    }
+
+    Checkpoint random(long seed, boolean blockSteps)
+    {
+        return random(seed, blockSteps, false) ;
+    }
+
+    Checkpoint random(long seed, boolean blockSteps, boolean reordered)
+    {
+        Random rand = new Random(seed) ;
+        Checkpoint checkpoint = new Checkpoint(N, blockSteps, reordered) ;
+        for(float [] array : checkpoint.state) {
+            for(int i = 0 ; i < N ; i++) {
+                array [i] = (float) rand.nextGaussian() ;
+            }
+        }
+        if(blockSteps) {
+            for(int i = 0 ; i < N ; i++) {
+                checkpoint.level [i] = rand.nextInt(5) ;
+            }
+            checkpoint.maxLevel = 4 ;
+            checkpoint.tick = 12 ;
+        }
+        if(reordered) {
+            for(int i = 0 ; i < N ; i++) {
+                checkpoint.originalId [i] = (i * 7919) % N ;
+            }
+        }
+        checkpoint.kickPending = !blockSteps ;
+        checkpoint.iteration = 1L << 33 ;
+        checkpoint.time = 1234.5 ;
+        checkpoint.dt = AparapiBarnesHut.DT ;
+        checkpoint.boxWidth = AparapiBarnesHut.BOX_WIDTH ;
+        checkpoint.openingAngle = 0.7F ;
+        checkpoint.stepLength = 3e-5F ;
+        return checkpoint ;
+    }
+
+    void assertSame(Checkpoint expected, Checkpoint actual)
+    {
+        assertEquals(expected.n, actual.n) ;
+        assertEquals(expected.kickPending, actual.kickPending) ;
+        assertEquals(expected.iteration, actual.iteration) ;
+        assertEquals(expected.time, actual.time) ;
+        assertEquals(expected.dt, actual.dt) ;
+        assertEquals(expected.boxWidth, actual.boxWidth) ;
+        assertEquals(expected.openingAngle, actual.openingAngle) ;
+        assertEquals(expected.maxLevel, actual.maxLevel) ;
+        assertEquals(expected.stepLength, actual.stepLength) ;
+        assertEquals(expected.tick, actual.tick) ;
+        for(int k = 0 ; k < expected.state.length ; k++) {
+            assertTrue(Arrays.equals(expected.state [k], actual.state [k])) ;
+        }
+        assertTrue(Arrays.equals(expected.level, actual.level)) ;
+        assertTrue(Arrays.equals(expected.originalId, actual.originalId)) ;
+    }
+
+    public void testRoundTrip() throws IOException
+    {
+        for(boolean blockSteps : new boolean [] {false, true}) {
+            Path file = dir.resolve("state.bh") ;
+            Checkpoint checkpoint = random(1, blockSteps) ;
+            checkpoint.write(file) ;
+            assertEquals(checkpoint.size(), Files.size(file)) ;
+            assertFalse(Files.exists(dir.resolve("state.bh.tmp"))) ;
+
+            assertSame(checkpoint, Checkpoint.read(file)) ;
+
+            // Straight into existing arrays.
+
+            float [][] state = new float [Checkpoint.ARRAYS.length] [N] ;
+            int [] level = new int [N] ;
+            Checkpoint restored = Checkpoint.read(file, state, level, null) ;
+            assertTrue(restored.state == state) ;
+            assertTrue(Arrays.equals(checkpoint.state [3], state [3])) ;
+            if(blockSteps)
+                assertTrue(Arrays.equals(checkpoint.level, level)) ;
+            else
+                assertNull(restored.level) ;
+
+            try {
+                Checkpoint.read(file, new float [Checkpoint.ARRAYS.length] [N + 1],
+                                null, null) ;
+                fail() ;
+            }
+            catch(IOException e) {
+            }
+        }
+    }
+
+    public void testOriginalIds() throws IOException
+    {
+        // Permutation of reordered stars is restored, after the levels.
+
+        Path file = dir.resolve("reordered.bh") ;
+        for(boolean blockSteps : new boolean [] {false, true}) {
+            Checkpoint checkpoint = random(3, blockSteps, true) ;
+            checkpoint.write(file) ;
+            assertEquals(checkpoint.size(), Files.size(file)) ;
+            assertSame(checkpoint, Checkpoint.read(file)) ;
+
+            int [] ids = new int [N] ;
+            Checkpoint restored = Checkpoint.read(file, new float [Checkpoint.ARRAYS.length] [N],
+                                                  null, ids) ;
+            assertTrue(restored.originalId == ids) ;
+            assertTrue(Arrays.equals(checkpoint.originalId, ids)) ;
+        }
+
+        // Files of stars never reordered have no ids, including those
+        // of version 1, which could not save them.
+
+        Checkpoint checkpoint = random(4, true) ;
+        checkpoint.write(file) ;
+        try(RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(4) ;
+            raf.write(1) ;
+        }
+        Checkpoint restored = Checkpoint.read(file, new float [Checkpoint.ARRAYS.length] [N],
+                                              null, new int [N]) ;
+        assertNull(restored.originalId) ;
+        assertSame(checkpoint, restored) ;
+    }
+
+    public void testBackgroundWriter() throws Exception
+    {
+        // Successive snapshots replace the file, and each write sees the
+        // snapshot as it was when submitted.
+
+        Path file = dir.resolve("run.bh") ;
+        Checkpoint.Writer writer = new Checkpoint.Writer(file) ;
+        Checkpoint expected = null ;
+        for(int i = 0 ; i < 3 ; i++) {
+            expected = random(10 + i, i == 2, i > 0) ;
+            Checkpoint snapshot = writer.snapshot(N, i == 2, i > 0) ;
+            for(int k = 0 ; k < expected.state.length ; k++) {
+                System.arraycopy(expected.state [k], 0, snapshot.state [k], 0, N) ;
+            }
+            if(snapshot.level != null) {
+                System.arraycopy(expected.level, 0, snapshot.level, 0, N) ;
+            }
+            if(snapshot.originalId != null) {
+                System.arraycopy(expected.originalId, 0, snapshot.originalId, 0, N) ;
+            }
+            snapshot.kickPending = expected.kickPending ;
+            snapshot.iteration = expected.iteration ;
+            snapshot.time = expected.time ;
+            snapshot.dt = expected.dt ;
+            snapshot.boxWidth = expected.boxWidth ;
+            snapshot.openingAngle = expected.openingAngle ;
+            snapshot.maxLevel = expected.maxLevel ;
+            snapshot.stepLength = expected.stepLength ;
+            snapshot.tick = expected.tick ;
+            writer.write(snapshot) ;
+        }
+        writer.finish() ;
+        assertEquals(3, writer.written) ;
+        assertSame(expected, Checkpoint.read(file)) ;
+    }
+
+    public void testDamagedFiles() throws IOException
+    {
+        Path file = dir.resolve("damaged.bh") ;
+        random(2, false).write(file) ;
+
+        try(RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(raf.length() - 4) ;
+        }
+        try {
+            Checkpoint.read(file) ;
+            fail() ;
+        }
+        catch(IOException e) {
+            assertTrue(e.getMessage().startsWith("truncated")) ;
+        }
+
+        random(2, false).write(file) ;
+        try(RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(4) ;
+            raf.write(99) ;
+        }
+        try {
+            Checkpoint.read(file) ;
+            fail() ;
+        }
+        catch(IOException e) {
+            assertTrue(e.getMessage().startsWith("unsupported")) ;
+        }
+
+        Files.write(file, new byte [Checkpoint.HEADER]) ;
+        try {
+            Checkpoint.read(file) ;
+            fail() ;
+        }
+        catch(IOException e) {
+            assertTrue(e.getMessage().startsWith("not a checkpoint")) ;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package org.hpjava;
+
+import java.io.IOException ;
+
+import java.net.ServerSocket ;
+
+import java.util.Arrays ;
+
+import junit.framework.TestCase;
+
+import com.aparapi.Range ;
+
+/**
+ * Checks forces and steps of ranks of a distributed run against a
+ * single process, and the socket transport against the local one.
+ */
+public class DomainTest
+    extends TestCase
+{
+    static final int N = 6000 ;
+
+    interface Connect
+    {
+        Transport rank(int rank) throws IOException ;
+    }
+
+    static float [][] forces(TestStars stars, int size, Connect connect,
+                             int [] imported)
+        throws Exception
+    {
+        // Accelerations of stars split in order between ranks, put back
+        // in original order.
+
+        int n = stars.x.length ;
+        float [][] a = new float [3] [n] ;
+        DistributedBarnesHut.forRanks(size, rank -> {
+            Domain domain = new Domain(connect.rank(rank), KernelTree.BOX_WIDTH,
+                                       KernelTree.FORK_JOIN, 32, n) ;
+            int lo = rank * n / size, hi = (rank + 1) * n / size ;
+            domain.n = hi - lo ;
+            for(int i = lo ; i < hi ; i++) {
+                domain.x [i - lo] = stars.x [i] ;
+                domain.y [i - lo] = stars.y [i] ;
+                domain.z [i - lo] = stars.z [i] ;
+                domain.id [i - lo] = i ;
+            }
+            domain.start() ;
+            synchronized(a) {
+                for(int i = 0 ; i < domain.n ; i++) {
+                    a [0] [domain.id [i]] = domain.ax [i] ;
+                    a [1] [domain.id [i]] = domain.ay [i] ;
+                    a [2] [domain.id [i]] = domain.az [i] ;
+                }
+                imported [rank] = domain.importedNodes ;
+            }
+            domain.transport.close() ;
+        }) ;
+        return a ;
+    }
+
+    static Connect local(int size)
+    {
+        LocalTransport [] transports = LocalTransport.create(size) ;
+        return rank -> transports [rank] ;
+    }
+
+    public void testSingleRank() throws Exception
+    {
+        // One rank builds and walks the same tree as a single process.
+
+        TestStars stars = new TestStars(N, 3) ;
+        float [][] a = forces(stars, 1, local(1), new int [1]) ;
+
+        FlatTree tree = new FlatTree(16) ;
+        FlatTreeBuilder builder = new FlatTreeBuilder(tree) ;
+        builder.encoding = KernelTree.WIDE ;
+        builder.build(stars.x, stars.y, stars.z, N) ;
+        float [][] b = new float [3] [N] ;
+        KernelTree kernel = new KernelTree(stars.x, stars.y, stars.z,
+                                           b [0], b [1], b [2], tree) ;
+        kernel.backend = KernelTree.FORK_JOIN ;
+        kernel.setTree(tree) ;
+        kernel.computeForces(Range.create(N)) ;
+        kernel.dispose() ;
+        for(int k = 0 ; k < 3 ; k++) {
+            assertTrue(Arrays.equals(b [k], a [k])) ;
+        }
+    }
+
+    public void testLocallyEssentialTrees() throws Exception
+    {
+        // Forces through imported trees are as accurate as through one.
+
+        TestStars stars = new TestStars(N, 4) ;
+        float [][] single = forces(stars, 1, local(1), new int [1]) ;
+        int [] imported = new int [3] ;
+        float [][] a = forces(stars, 3, local(3), imported) ;
+
+        double error1 = stars.error(single [0], single [1], single [2], 37) ;
+        double error3 = stars.error(a [0], a [1], a [2], 37) ;
+        assertTrue(error3 < 0.05) ;
+        assertTrue(error3 < 1.5 * error1) ;
+        for(int count : imported) {
+            assertTrue(count > 0) ;
+        }
+    }
+
+    public void testSocketTransport() throws Exception
+    {
+        // Ranks over loopback get the same messages as through memory.
+
+        int port ;
+        try(ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort() ;
+        }
+        int basePort = port ;
+        TestStars stars = new TestStars(N, 5) ;
+        float [][] a = forces(stars, 2, local(2), new int [2]) ;
+        float [][] b = forces(stars, 2,
+                              rank -> new SocketTransport(rank, 2, "127.0.0.1",
+                                                          basePort),
+                              new int [2]) ;
+        for(int k = 0 ; k < 3 ; k++) {
+            assertTrue(Arrays.equals(a [k], b [k])) ;
+        }
+    }
+
+    static float [][] run(int size, int steps) throws Exception
+    {
+        // Positions by star after steps of a Plummer sphere, rebalancing
+        // every other step.
+
+        InitialConditions initial =
+                new InitialConditions(InitialConditions.PLUMMER, 7,
+                                      KernelTree.BOX_WIDTH,
+                                      AparapiBarnesHut.RADIUS, 0,
+                                      AparapiBarnesHut.ANGULAR_VELOCITY, 2) ;
+        int n = InitialConditions.CHUNK + 3000 ;
+        float [][] s = new float [3] [n] ;
+        int [] count = new int [1] ;
+        LocalTransport [] transports = LocalTransport.create(size) ;
+        DistributedBarnesHut.forRanks(size, rank -> {
+            Domain domain = new Domain(transports [rank], KernelTree.BOX_WIDTH,
+                                       KernelTree.FORK_JOIN, 32, 100) ;
+            domain.generate(initial, n) ;
+            domain.start() ;
+            for(int step = 1 ; step <= steps ; step++) {
+                domain.step(AparapiBarnesHut.DT, step % 2 == 0) ;
+            }
+            synchronized(s) {
+                for(int i = 0 ; i < domain.n ; i++) {
+                    s [0] [domain.id [i]] = domain.x [i] ;
+                    s [1] [domain.id [i]] = domain.y [i] ;
+                    s [2] [domain.id [i]] = domain.z [i] ;
+                }
+                count [0] += domain.n ;
+            }
+        }) ;
+        assertEquals(n, count [0]) ;
+        return s ;
+    }
+
+    public void testSteps() throws Exception
+    {
+        float [][] single = run(1, 4) ;
+        float [][] s = run(3, 4) ;
+        for(int k = 0 ; k < 3 ; k++) {
+            for(int i = 0 ; i < single [k].length ; i++) {
+                assertEquals(single [k] [i], s [k] [i], 1e-3F) ;
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.hpjava;
+
+import java.util.Arrays ;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of forces by the fast multipole method.
+ */
+public class FastMultipoleTest
+    extends TestCase
+{
+    static final int N = 4000 ;
+
+    static FlatTree tree(TestStars stars, int leafSize)
+    {
+        FlatTree tree = new FlatTree(16) ;
+        FlatTreeBuilder builder = new FlatTreeBuilder(tree) ;
+        builder.leafSize = leafSize ;
+        builder.build(stars.x, stars.y, stars.z, stars.x.length) ;
+        return tree ;
+    }
+
+    public void testErrorFallsWithOrder()
+    {
+        TestStars stars = new TestStars(N, 8) ;
+        FlatTree tree = tree(stars, 8) ;
+        float [] ax = new float [N], ay = new float [N], az = new float [N] ;
+
+        double previous = 1 ;
+        for(int order = 1 ; order <= 7 ; order += 2) {
+            FastMultipole fmm = new FastMultipole(stars.x, stars.y, stars.z,
+                                                  ax, ay, az, order, 0.5F) ;
+            fmm.computeForces(tree, N) ;
+            double error = stars.error(ax, ay, az, 7) ;
+            assertTrue(error < 0.5 * previous) ;
+            previous = error ;
+        }
+        assertTrue(previous < 1e-4) ;
+    }
+
+    public void testSameForcesInParallel()
+    {
+        // Each star's sum is made in the same order, whatever the
+        // tasks.
+
+        TestStars stars = new TestStars(N, 9) ;
+        FlatTree tree = tree(stars, 4) ;
+        float [][] a = new float [3] [N], b = new float [3] [N] ;
+
+        FastMultipole serial = new FastMultipole(stars.x, stars.y, stars.z,
+                                                 a [0], a [1], a [2], 4, 0.6F) ;
+        serial.grain = Integer.MAX_VALUE ;
+        serial.computeForces(tree, N) ;
+
+        FastMultipole parallel = new FastMultipole(stars.x, stars.y, stars.z,
+                                                   b [0], b [1], b [2], 4, 0.6F) ;
+        parallel.grain = 16 ;
+        parallel.computeForces(tree, N) ;
+
+        for(int k = 0 ; k < 3 ; k++) {
+            assertTrue(Arrays.equals(a [k], b [k])) ;
+        }
+        assertEquals(serial.cellInteractions.sum(), parallel.cellInteractions.sum()) ;
+        assertTrue(serial.cellInteractions.sum() > 0) ;
+    }
+
+    public void testPeriodicImages()
+    {
+        // Two stars either side of a face of the box attract across it.
+
+        float box = KernelTree.BOX_WIDTH ;
+        float [] x = {0.5F, box - 0.5F, 30, 70}, y = {50, 50, 20, 80}, z = {50, 50, 60, 40} ;
+        TestStars stars = new TestStars(4, 1) ;
+        System.arraycopy(x, 0, stars.x, 0, 4) ;
+        System.arraycopy(y, 0, stars.y, 0, 4) ;
+        System.arraycopy(z, 0, stars.z, 0, 4) ;
+        FlatTree tree = tree(stars, 1) ;
+        float [] ax = new float [4], ay = new float [4], az = new float [4] ;
+        new FastMultipole(stars.x, stars.y, stars.z, ax, ay, az, 6, 0.5F)
+                .computeForces(tree, 4) ;
+        for(int i = 0 ; i < 4 ; i++) {
+            double [] direct = stars.direct(i) ;
+            assertEquals(direct [0], ax [i], 1e-4 * Math.abs(direct [0]) + 1e-7) ;
+            assertEquals(direct [1], ay [i], 1e-4 * Math.abs(direct [1]) + 1e-7) ;
+        }
+        assertTrue(ax [0] < 0) ;
+    }
+}
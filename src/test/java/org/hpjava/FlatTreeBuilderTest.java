@@ -0,0 +1,97 @@
+package org.hpjava;
+
+import junit.framework.TestCase;
+
+import com.aparapi.Range ;
+
+/**
+ * Checks the flat tree builder against the original Node based tree.
+ */
+public class FlatTreeBuilderTest
+    extends TestCase
+{
+    static final int N = 3000 ;
+
+    float [] x, y, z ;
+
+    protected void setUp()
+    {
+        TestStars stars = new TestStars(N, 1234) ;
+        x = stars.x ;
+        y = stars.y ;
+        z = stars.z ;
+    }
+
+    public void testSameTreeAndForces()
+    {
+        float [] ax1 = new float [N], ay1 = new float [N], az1 = new float [N] ;
+        float [] ax2 = new float [N], ay2 = new float [N], az2 = new float [N] ;
+
+        // Original Node based tree.
+
+        AparapiBarnesHut.Node.numNodes = 0 ;
+        AparapiBarnesHut.Node root = new AparapiBarnesHut.Node(
+                AparapiBarnesHut.BOX_WIDTH / 2, AparapiBarnesHut.BOX_WIDTH / 2,
+                AparapiBarnesHut.BOX_WIDTH / 2, AparapiBarnesHut.BOX_WIDTH) ;
+        for(int i = 0 ; i < N ; i++) {
+            root.addParticle(x [i], y [i], z [i], i) ;
+        }
+        KernelTree legacy = new KernelTree(x, y, z, ax1, ay1, az1,
+                                           AparapiBarnesHut.Node.numNodes) ;
+        root.preComputeAndAllocateFlat(legacy) ;
+        root.flatten(KernelTree.NULL, KernelTree.NULL, legacy) ;
+        legacy.execute(Range.create(N)) ;
+        legacy.dispose() ;
+
+        // Flat tree, built twice to exercise reuse of pooled arrays.
+
+        FlatTree tree = new FlatTree(16) ;
+        FlatTreeBuilder builder = new FlatTreeBuilder(tree) ;
+        builder.build(y, z, x, N) ;
+        builder.build(x, y, z, N) ;
+
+        assertEquals(AparapiBarnesHut.Node.numNodes, tree.numNodes) ;
+        assertEquals(N, tree.nodesI [KernelTree.NODEISIZE * KernelTree.TREE_ROOT +
+                                     KernelTree.NPARTICLES]) ;
+
+        KernelTree flat = new KernelTree(x, y, z, ax2, ay2, az2, tree) ;
+        flat.execute(Range.create(N)) ;
+        flat.dispose() ;
+
+        // Centres of mass are accumulated with different rounding, which
+        // can occasionally flip the opening decision for a node right on
+        // its threshold, so compare to within a typical BH error.
+
+        for(int i = 0 ; i < N ; i++) {
+            float mag = (float) Math.sqrt(ax1 [i] * ax1 [i] + ay1 [i] * ay1 [i] +
+                                          az1 [i] * az1 [i]) ;
+            float tol = 1e-2F * mag ;
+            assertEquals(ax1 [i], ax2 [i], tol) ;
+            assertEquals(ay1 [i], ay2 [i], tol) ;
+            assertEquals(az1 [i], az2 [i], tol) ;
+        }
+    }
+
+    public void testParentAndSiblingLinks()
+    {
+        FlatTree tree = new FlatTree(16) ;
+        new FlatTreeBuilder(tree).build(x, y, z, N) ;
+
+        // Particle counts of children add up to that of their parent.
+
+        for(int node = KernelTree.TREE_ROOT ; node <= tree.numNodes ; node++) {
+            int nodesIptr = KernelTree.NODEISIZE * node ;
+            int child = tree.nodesI [nodesIptr + KernelTree.FIRSTCHILD] ;
+            if(child != KernelTree.NULL) {
+                int sum = 0 ;
+                while(child != KernelTree.NULL) {
+                    int childPtr = KernelTree.NODEISIZE * child ;
+                    assertEquals(node, tree.nodesI [childPtr + KernelTree.PARENT]) ;
+                    sum += tree.nodesI [childPtr + KernelTree.NPARTICLES] ;
+                    child = tree.nodesI [childPtr + KernelTree.NEXT] ;
+                }
+                assertEquals(tree.nodesI [nodesIptr + KernelTree.NPARTICLES], sum) ;
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package org.hpjava;
+
+import java.io.File ;
+import java.io.IOException ;
+
+import java.nio.file.Files ;
+import java.nio.file.Path ;
+
+import java.util.Arrays ;
+import java.util.SplittableRandom ;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that initial conditions do not depend on how chunks are
+ * scheduled, that the models are near equilibrium, and that star files
+ * load back exactly.
+ */
+public class InitialConditionsTest
+    extends TestCase
+{
+    static final float BOX = AparapiBarnesHut.BOX_WIDTH ;
+    static final float RADIUS = AparapiBarnesHut.RADIUS ;
+
+    static InitialConditions model(int model)
+    {
+        return new InitialConditions(model, 99, BOX, RADIUS, 0,
+                                     AparapiBarnesHut.ANGULAR_VELOCITY, 2) ;
+    }
+
+    static float [][] generate(InitialConditions initial, int n)
+    {
+        float [][] s = new float [6] [n] ;
+        initial.generate(n, s [0], s [1], s [2], s [3], s [4], s [5]) ;
+        return s ;
+    }
+
+    public void testChunkOrder()
+    {
+        // Chunks generated one by one, last first, give the same stars
+        // as the parallel generator.
+
+        int n = 3 * InitialConditions.CHUNK + 100 ;
+        for(int m = 0 ; m < 4 ; m++) {
+            InitialConditions initial = model(m) ;
+            float [][] expected = generate(initial, n) ;
+
+            float [][] s = new float [6] [n] ;
+            SplittableRandom root = new SplittableRandom(initial.seed) ;
+            double [] axis = InitialConditions.axis(root) ;
+            long [] seeds = InitialConditions.chunkSeeds(root, n) ;
+            assertEquals(4, seeds.length) ;
+            for(int c = seeds.length - 1 ; c >= 0 ; c--) {
+                initial.generateChunk(c, seeds [c], axis, n, 0,
+                                      s [0], s [1], s [2], s [3], s [4], s [5]) ;
+            }
+            for(int k = 0 ; k < 6 ; k++) {
+                assertTrue(Arrays.equals(expected [k], s [k])) ;
+            }
+        }
+    }
+
+    static double virialRatio(float [][] s, int lo, int hi)
+    {
+        // 2 K / |W| of stars lo to hi - 1, about their centre of mass
+        // (no periodic images).
+
+        int n = hi - lo ;
+        double [] mean = new double [6] ;
+        for(int i = lo ; i < hi ; i++) {
+            for(int k = 0 ; k < 6 ; k++) {
+                mean [k] += s [k] [i] / (double) n ;
+            }
+        }
+        double kinetic = 0, potential = 0 ;
+        for(int i = lo ; i < hi ; i++) {
+            for(int k = 3 ; k < 6 ; k++) {
+                double v = s [k] [i] - mean [k] ;
+                kinetic += 0.5 * v * v ;
+            }
+            for(int j = lo ; j < i ; j++) {
+                double dx = s [0] [i] - s [0] [j] ;
+                double dy = s [1] [i] - s [1] [j] ;
+                double dz = s [2] [i] - s [2] [j] ;
+                potential -= 1 / Math.sqrt(dx * dx + dy * dy + dz * dz) ;
+            }
+        }
+        return 2 * kinetic / -potential ;
+    }
+
+    public void testEquilibrium()
+    {
+        int n = 4000 ;
+        for(int m : new int [] {InitialConditions.PLUMMER,
+                                InitialConditions.HERNQUIST}) {
+            InitialConditions initial = model(m) ;
+            float [][] s = generate(initial, n) ;
+
+            double ratio = virialRatio(s, 0, n) ;
+            assertTrue(ratio > 0.85 && ratio < 1.3) ;
+
+            // Median radius, against the model truncated at RADIUS.
+
+            double [] r = new double [n] ;
+            for(int i = 0 ; i < n ; i++) {
+                double dx = s [0] [i] - BOX / 2 ;
+                double dy = s [1] [i] - BOX / 2 ;
+                double dz = s [2] [i] - BOX / 2 ;
+                r [i] = Math.sqrt(dx * dx + dy * dy + dz * dz) ;
+                assertTrue(r [i] <= RADIUS * 1.0001) ;
+            }
+            Arrays.sort(r) ;
+            double a = initial.scale ;
+            double median ;
+            if(m == InitialConditions.PLUMMER) {
+                double half = 0.5 * Math.pow(RADIUS * RADIUS /
+                                             (RADIUS * RADIUS + a * a), 1.5) ;
+                median = a / Math.sqrt(Math.pow(half, -2.0 / 3.0) - 1) ;
+            }
+            else {
+                double half = Math.sqrt(0.5) * RADIUS / (RADIUS + a) ;
+                median = a * half / (1 - half) ;
+            }
+            assertEquals(median, r [n / 2], 0.05 * median) ;
+        }
+    }
+
+    public void testCollision()
+    {
+        // Two bound spheres on opposite sides of the centre, falling
+        // towards each other.
+
+        int n = 4000 ;
+        float [][] s = generate(model(InitialConditions.COLLISION), n) ;
+        double [][] mean = new double [2] [6] ;
+        for(int i = 0 ; i < n ; i++) {
+            for(int k = 0 ; k < 6 ; k++) {
+                mean [2 * i / n] [k] += s [k] [i] / (n / 2.0) ;
+            }
+        }
+        assertEquals(BOX / 2 + RADIUS, mean [0] [0], 0.5) ;
+        assertEquals(BOX / 2 - RADIUS, mean [1] [0], 0.5) ;
+        assertEquals(BOX / 2, mean [0] [1], 0.5) ;
+        assertTrue(mean [0] [3] < 0 && mean [1] [3] > 0) ;
+        assertEquals(-mean [0] [3], mean [1] [3], 0.1 * mean [1] [3]) ;
+
+        for(int g = 0 ; g < 2 ; g++) {
+            double ratio = virialRatio(s, g * n / 2, (g + 1) * n / 2) ;
+            assertTrue(ratio > 0.85 && ratio < 1.3) ;
+        }
+    }
+
+    public void testStarFile() throws IOException
+    {
+        int n = 2 * StarFile.CHUNK + 5 ;
+        float [][] s = generate(model(InitialConditions.SPHERE), n) ;
+        Path dir = Files.createTempDirectory("stars") ;
+        try {
+            for(int format : new int [] {StarFile.ROWS, StarFile.COLUMNS}) {
+                Path file = dir.resolve("stars" + format) ;
+                StarFile.write(file, format, n, s [0], s [1], s [2],
+                               s [3], s [4], s [5]) ;
+                assertEquals(24L * n, Files.size(file)) ;
+
+                float [][] loaded = new float [6] [n] ;
+                StarFile.read(file, format, n, loaded [0], loaded [1], loaded [2],
+                              loaded [3], loaded [4], loaded [5]) ;
+                for(int k = 0 ; k < 6 ; k++) {
+                    assertTrue(Arrays.equals(s [k], loaded [k])) ;
+                }
+
+                try {
+                    StarFile.read(file, format, n - 1, loaded [0], loaded [1],
+                                  loaded [2], loaded [3], loaded [4], loaded [5]) ;
+                    fail() ;
+                }
+                catch(IOException e) {
+                }
+            }
+
+            // Rows are interleaved.
+
+            byte [] bytes = Files.readAllBytes(dir.resolve("stars" + StarFile.ROWS)) ;
+            int bits = (bytes [12] & 0xFF) | (bytes [13] & 0xFF) << 8 |
+                       (bytes [14] & 0xFF) << 16 | (bytes [15] & 0xFF) << 24 ;
+            assertEquals(s [3] [0], Float.intBitsToFloat(bits)) ;
+        }
+        finally {
+            for(File file : dir.toFile().listFiles()) {
+                file.delete() ;
+            }
+            Files.delete(dir) ;
+        }
+    }
+}
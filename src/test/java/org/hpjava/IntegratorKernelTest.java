@@ -0,0 +1,145 @@
+package org.hpjava;
+
+import junit.framework.TestCase;
+
+import java.util.Random ;
+
+/**
+ * Checks the Verlet kernel against the serial loops of the main program.
+ */
+public class IntegratorKernelTest
+    extends TestCase
+{
+    static final int N = 10000 ;
+    static final int STEPS = 5 ;
+
+    static final float DT = AparapiBarnesHut.DT ;
+
+    float [] x, y, z, vx, vy, vz ;
+    float [][] accel ;  // made up accelerations for each step
+
+    protected void setUp()
+    {
+        TestStars stars = new TestStars(N, 99) ;
+        x = stars.x ;
+        y = stars.y ;
+        z = stars.z ;
+
+        Random rand = new Random(7) ;
+        vx = new float [N] ;
+        vy = new float [N] ;
+        vz = new float [N] ;
+        for(int i = 0 ; i < N ; i++) {
+            vx [i] = 100 * (rand.nextFloat() - 0.5F) ;
+            vy [i] = 100 * (rand.nextFloat() - 0.5F) ;
+            vz [i] = 100 * (rand.nextFloat() - 0.5F) ;
+        }
+        accel = new float [3 * STEPS][N] ;
+        for(float [] a : accel) {
+            for(int i = 0 ; i < N ; i++) {
+                a [i] = 1000 * (rand.nextFloat() - 0.5F) ;
+            }
+        }
+    }
+
+    class Run {
+
+        // Copy of initial state, integrated for STEPS steps.
+
+        float [] x = IntegratorKernelTest.this.x.clone() ;
+        float [] y = IntegratorKernelTest.this.y.clone() ;
+        float [] z = IntegratorKernelTest.this.z.clone() ;
+        float [] vx = IntegratorKernelTest.this.vx.clone() ;
+        float [] vy = IntegratorKernelTest.this.vy.clone() ;
+        float [] vz = IntegratorKernelTest.this.vz.clone() ;
+        float [] ax = new float [N], ay = new float [N], az = new float [N] ;
+
+        void accelerations(int step) {
+            System.arraycopy(accel [3 * step], 0, ax, 0, N) ;
+            System.arraycopy(accel [3 * step + 1], 0, ay, 0, N) ;
+            System.arraycopy(accel [3 * step + 2], 0, az, 0, N) ;
+        }
+
+        void serial() {
+            double dtOver2 = 0.5 * DT ;
+            double dtSquaredOver2 = 0.5 * DT * DT ;
+            for(int step = 0 ; step < STEPS ; step++) {
+                AparapiBarnesHut.updatePositions(x, y, z, vx, vy, vz,
+                                                 ax, ay, az, N,
+                                                 dtOver2, dtSquaredOver2) ;
+                accelerations(step) ;
+                AparapiBarnesHut.updateVelocities(vx, vy, vz, ax, ay, az, N,
+                                                  dtOver2) ;
+            }
+        }
+
+        void kernel(boolean fused) {
+            IntegratorKernel kernel =
+                    new IntegratorKernel(x, y, z, vx, vy, vz, ax, ay, az,
+                                         N, DT, false) ;
+            boolean kickPending = false ;
+            for(int step = 0 ; step < STEPS ; step++) {
+                if(kickPending)
+                    kernel.kickDrift() ;
+                else
+                    kernel.drift() ;
+                accelerations(step) ;
+                if(fused)
+                    kickPending = true ;
+                else
+                    kernel.kick() ;
+            }
+            if(kickPending) kernel.kick() ;
+            kernel.dispose() ;
+        }
+    }
+
+    public void testMatchesSerialLoops()
+    {
+        Run serial = new Run() ;
+        serial.serial() ;
+
+        Run kernel = new Run() ;
+        kernel.kernel(false) ;
+
+        // Kernel works in float throughout, serial loops partly in double.
+
+        for(int i = 0 ; i < N ; i++) {
+            assertEquals(serial.x [i], kernel.x [i], 1e-4F) ;
+            assertEquals(serial.y [i], kernel.y [i], 1e-4F) ;
+            assertEquals(serial.z [i], kernel.z [i], 1e-4F) ;
+            assertEquals(serial.vx [i], kernel.vx [i], 1e-4F) ;
+            assertEquals(serial.vy [i], kernel.vy [i], 1e-4F) ;
+            assertEquals(serial.vz [i], kernel.vz [i], 1e-4F) ;
+        }
+    }
+
+    public void testFusedKickSameAsSeparate()
+    {
+        Run separate = new Run() ;
+        separate.kernel(false) ;
+
+        Run fused = new Run() ;
+        fused.kernel(true) ;
+
+        for(int i = 0 ; i < N ; i++) {
+            assertEquals(separate.x [i], fused.x [i]) ;
+            assertEquals(separate.y [i], fused.y [i]) ;
+            assertEquals(separate.z [i], fused.z [i]) ;
+            assertEquals(separate.vx [i], fused.vx [i]) ;
+            assertEquals(separate.vy [i], fused.vy [i]) ;
+            assertEquals(separate.vz [i], fused.vz [i]) ;
+        }
+    }
+
+    public void testPeriodicWrap()
+    {
+        IntegratorKernel kernel =
+                new IntegratorKernel(x, y, z, vx, vy, vz, vx, vy, vz, N, DT, false) ;
+        float box = IntegratorKernel.BOX_WIDTH ;
+        assertEquals(AparapiBarnesHut.mod(-0.25F, box), kernel.wrap(-0.25F)) ;
+        assertEquals(AparapiBarnesHut.mod(box + 3, box), kernel.wrap(box + 3)) ;
+        assertEquals(42F, kernel.wrap(42F)) ;
+        kernel.dispose() ;
+    }
+}
@@ -0,0 +1,103 @@
+package org.hpjava;
+
+import java.util.Random ;
+
+import junit.framework.TestCase;
+
+import com.aparapi.Range ;
+
+/**
+ * Tests of the interaction lists of the vector backend.
+ */
+public class InteractionListTest
+    extends TestCase
+{
+    public void testVectorBackend()
+    {
+        // Same nodes accepted as by the per-star walk, so the same
+        // counts, and forces equal up to the order of summation.
+
+        int n = 3000 ;
+        TestStars stars = new TestStars(n, 23) ;
+        FlatTree tree = new FlatTree(16) ;
+        MortonTreeBuilder builder = new MortonTreeBuilder(tree) ;
+        builder.leafSize = 8 ;
+
+        for(boolean quadrupole : new boolean [] {false, true}) {
+            builder.quadrupole = quadrupole ;
+            builder.build(stars.x, stars.y, stars.z, n) ;
+
+            float [][] a = new float [3] [n], b = new float [3] [n] ;
+            KernelTree forkJoin = new KernelTree(stars.x, stars.y, stars.z,
+                                                 a [0], a [1], a [2], tree) ;
+            forkJoin.backend = KernelTree.FORK_JOIN ;
+            forkJoin.computeForces(Range.create(n)) ;
+
+            KernelTree vector = new KernelTree(stars.x, stars.y, stars.z,
+                                               b [0], b [1], b [2], tree) ;
+            vector.backend = KernelTree.VECTOR ;
+            vector.hostGrain = 7 ;
+            vector.computeForces(Range.create(n)) ;
+
+            assertEquals(forkJoin.countVisits(n), vector.countVisits(n)) ;
+            assertEquals(forkJoin.countInteractions(n), vector.countInteractions(n)) ;
+            for(int i = 0 ; i < n ; i++) {
+                double size = Math.abs(a [0] [i]) + Math.abs(a [1] [i]) +
+                              Math.abs(a [2] [i]) ;
+                for(int k = 0 ; k < 3 ; k++) {
+                    assertEquals(a [k] [i], b [k] [i], 1e-4 * size) ;
+                }
+            }
+            forkJoin.dispose() ;
+            vector.dispose() ;
+        }
+    }
+
+    public void testSameSumAnyLanes()
+    {
+        // Sources across the box edge from the star, coincident with it,
+        // and a count that is not a multiple of the lanes.
+
+        float box = KernelTree.BOX_WIDTH ;
+        InteractionList scalar = new InteractionList() ;
+        InteractionList vector = InteractionList.create(true) ;
+        float [] moments = new float [KernelTree.NODEDSIZE] ;
+        Random rand = new Random(3) ;
+        for(InteractionList list : new InteractionList [] {scalar, vector}) {
+            rand.setSeed(3) ;
+            list.add(1F, 1F, 1F, 1F) ;
+            for(int k = 0 ; k < 37 ; k++) {
+                list.add(box * rand.nextFloat(), box * rand.nextFloat(),
+                         box * rand.nextFloat(), 1 + rand.nextInt(10)) ;
+            }
+            for(int k = 0 ; k < 21 ; k++) {
+                for(int q = KernelTree.QXX ; q <= KernelTree.QYZ ; q++) {
+                    moments [q] = rand.nextFloat() - 0.5F ;
+                }
+                list.addQuadrupole(box * rand.nextFloat(), box * rand.nextFloat(),
+                                   box * rand.nextFloat(), moments, 0) ;
+            }
+        }
+
+        scalar.evaluate(1F, 1F, 1F) ;
+        vector.evaluate(1F, 1F, 1F) ;
+        for(int k = 0 ; k < 3 ; k++) {
+            assertFalse(Float.isNaN(vector.acc [k])) ;
+            assertEquals(scalar.acc [k], vector.acc [k], 1e-5 * Math.abs(scalar.acc [k])) ;
+        }
+
+        // Direct sum over sources, wrapped to nearest image.
+
+        double ax = 0 ;
+        for(int k = 1 ; k < scalar.count ; k++) {
+            double dx = InteractionList.wrap(1F - scalar.x [k]) ;
+            double dy = InteractionList.wrap(1F - scalar.y [k]) ;
+            double dz = InteractionList.wrap(1F - scalar.z [k]) ;
+            double r = Math.sqrt(dx * dx + dy * dy + dz * dz) ;
+            ax -= scalar.mass [k] * dx / (r * r * r) ;
+        }
+        scalar.quadCount = 0 ;
+        scalar.evaluate(1F, 1F, 1F) ;
+        assertEquals(ax, scalar.acc [0], 1e-5 * Math.abs(ax)) ;
+    }
+}
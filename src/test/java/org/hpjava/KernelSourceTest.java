@@ -0,0 +1,72 @@
+package org.hpjava;
+
+import java.util.HashSet ;
+import java.util.Set ;
+import java.util.regex.Matcher ;
+import java.util.regex.Pattern ;
+
+import junit.framework.TestCase;
+
+import com.aparapi.internal.model.ClassModel ;
+import com.aparapi.internal.model.Entrypoint ;
+import com.aparapi.internal.writer.KernelWriter ;
+
+/**
+ * Tests of the OpenCL source Aparapi generates for the kernels.  No
+ * device is needed, but the source must be valid for the kernels to
+ * run on one - otherwise Aparapi silently falls back to the Java Thread
+ * Pool, which is all the other tests use.
+ */
+public class KernelSourceTest
+    extends TestCase
+{
+    // Definitions of kernel functions start a line with their return
+    // type, e.g. "void org_hpjava_KernelTree__workItem(This *this, ...";
+    // calls are indented.
+
+    static final Pattern DEFINITION =
+            Pattern.compile("^\\w[\\w ]* (org_hpjava_\\w+)\\(", Pattern.MULTILINE) ;
+
+    static String source(Object kernel) throws Exception
+    {
+        ClassModel model = ClassModel.createClassModel(kernel.getClass()) ;
+        Entrypoint entrypoint = model.getEntrypoint("run", kernel) ;
+        return KernelWriter.writeToString(entrypoint) ;
+    }
+
+    static void assertUniqueFunctions(String source)
+    {
+        Set<String> names = new HashSet<String>() ;
+        Matcher matcher = DEFINITION.matcher(source) ;
+        while(matcher.find()) {
+            assertTrue("duplicate OpenCL function " + matcher.group(1),
+                       names.add(matcher.group(1))) ;
+        }
+        assertFalse(names.isEmpty()) ;
+    }
+
+    public void testKernelTreeFunctionsUnique() throws Exception
+    {
+        int n = 100 ;
+        TestStars stars = new TestStars(n, 1) ;
+        FlatTree tree = new FlatTree(16) ;
+        new FlatTreeBuilder(tree).build(stars.x, stars.y, stars.z, n) ;
+        float [] a = new float [n] ;
+        KernelTree kernel = new KernelTree(stars.x, stars.y, stars.z, a, a, a, tree) ;
+
+        String source = source(kernel) ;
+        assertUniqueFunctions(source) ;
+        assertTrue(source.contains("org_hpjava_KernelTree__workItem")) ;
+        kernel.dispose() ;
+    }
+
+    public void testIntegratorKernelFunctionsUnique() throws Exception
+    {
+        int n = 10 ;
+        float [] s = new float [n] ;
+        IntegratorKernel kernel = new IntegratorKernel(s, s, s, s, s, s, s, s, s,
+                                                       n, 1F, false) ;
+        assertUniqueFunctions(source(kernel)) ;
+        kernel.dispose() ;
+    }
+}
@@ -0,0 +1,140 @@
+package org.hpjava;
+
+import java.util.Arrays ;
+
+import junit.framework.TestCase;
+
+import com.aparapi.Range ;
+import com.aparapi.device.OpenCLDevice ;
+
+/**
+ * Tests of a KernelTree kept across several steps.
+ */
+public class KernelTreeTest
+    extends TestCase
+{
+    public void testNodeArraysSized()
+    {
+        int n = 10 ;
+        KernelTree kernel = new KernelTree(new float [n], new float [n], new float [n],
+                                           new float [n], new float [n], new float [n],
+                                           100) ;
+        assertEquals(KernelTree.NODEDSIZE * 101, kernel.nodesD.length) ;
+        assertEquals(KernelTree.NODEISIZE * 101, kernel.nodesI.length) ;
+    }
+
+    public void testPersistentKernelFollowsTree()
+    {
+        int n = 4000 ;
+        TestStars stars = new TestStars(n, 5) ;
+        float [] ax = new float [n], ay = new float [n], az = new float [n] ;
+
+        FlatTree tree = new FlatTree(16) ;
+        FlatTreeBuilder builder = new FlatTreeBuilder(tree) ;
+        builder.build(stars.x, stars.y, stars.z, 100) ;
+
+        KernelTree kernel = new KernelTree(stars.x, stars.y, stars.z,
+                                           ax, ay, az, tree) ;
+        kernel.setExplicit(true) ;
+        kernel.setTree(tree) ;
+        kernel.computeForces(Range.create(100)) ;
+        assertEquals(0, kernel.reallocations) ;
+
+        // Bigger tree forces reallocation of node arrays.
+
+        builder.build(stars.x, stars.y, stars.z, n) ;
+        kernel.setTree(tree) ;
+        assertEquals(1, kernel.reallocations) ;
+        kernel.computeForces(Range.create(n)) ;
+        if(kernel.getTargetDevice() instanceof OpenCLDevice) {
+            assertTrue(kernel.bytesToDevice >= 4L * tree.numNodes *
+                       (KernelTree.NODEDSIZE + KernelTree.NODEISIZE)) ;
+            assertEquals(12L * n, kernel.bytesFromDevice) ;
+        }
+        else {
+
+            // Java Thread Pool fallback copies nothing.
+
+            assertEquals(0L, kernel.bytesToDevice) ;
+            assertEquals(0L, kernel.bytesFromDevice) ;
+        }
+
+        // Nor for the active star list of block steps.
+
+        int [] active = {0, 1, 2} ;
+        kernel.setTree(tree) ;
+        kernel.computeForcesActive(active, active.length) ;
+        if(!(kernel.getTargetDevice() instanceof OpenCLDevice)) {
+            assertEquals(0L, kernel.bytesToDevice) ;
+        }
+
+        // Same tree again - no reallocation, same result as a fresh kernel.
+
+        builder.build(stars.x, stars.y, stars.z, n) ;
+        kernel.setTree(tree) ;
+        assertEquals(0, kernel.reallocations) ;
+        assertEquals(1, kernel.totalReallocations) ;
+        kernel.computeForces(Range.create(n)) ;
+        kernel.dispose() ;
+
+        float [] bx = new float [n], by = new float [n], bz = new float [n] ;
+        KernelTree fresh = new KernelTree(stars.x, stars.y, stars.z,
+                                          bx, by, bz, tree) ;
+        fresh.execute(Range.create(n)) ;
+        fresh.dispose() ;
+
+        for(int i = 0 ; i < n ; i++) {
+            assertEquals(bx [i], ax [i]) ;
+            assertEquals(by [i], ay [i]) ;
+            assertEquals(bz [i], az [i]) ;
+        }
+    }
+
+    float [][] forces(TestStars stars, FlatTree tree, StarGroups groups,
+                      int backend, long [] interactions)
+    {
+        int n = stars.x.length ;
+        float [][] a = new float [3] [n] ;
+        KernelTree kernel = new KernelTree(stars.x, stars.y, stars.z,
+                                           a [0], a [1], a [2], tree) ;
+        kernel.backend = backend ;
+        kernel.hostGrain = 7 ;
+        if(groups != null) {
+            kernel.computeForcesGrouped(groups) ;
+            interactions [0] = kernel.countInteractions(groups.numGroups) ;
+        }
+        else {
+            kernel.computeForces(Range.create(n)) ;
+            interactions [0] = kernel.countInteractions(n) ;
+        }
+        kernel.dispose() ;
+        return a ;
+    }
+
+    public void testForkJoinBackend()
+    {
+        // Same walk as Java code, so same forces as through Aparapi.
+
+        int n = 4000 ;
+        TestStars stars = new TestStars(n, 17) ;
+        FlatTree tree = new FlatTree(16) ;
+        MortonTreeBuilder builder = new MortonTreeBuilder(tree) ;
+        builder.leafSize = 8 ;
+        StarGroups groups = new StarGroups(32) ;
+        groups.build(stars.x, stars.y, stars.z, n) ;
+
+        for(int encoding : new int [] {KernelTree.WIDE, KernelTree.QUANTIZED}) {
+            builder.encoding = encoding ;
+            builder.build(stars.x, stars.y, stars.z, n) ;
+            for(StarGroups g : new StarGroups [] {null, groups}) {
+                long [] count1 = new long [1], count2 = new long [1] ;
+                float [][] a1 = forces(stars, tree, g, KernelTree.APARAPI, count1) ;
+                float [][] a2 = forces(stars, tree, g, KernelTree.FORK_JOIN, count2) ;
+                for(int k = 0 ; k < 3 ; k++) {
+                    assertTrue(Arrays.equals(a1 [k], a2 [k])) ;
+                }
+                assertEquals(count1 [0], count2 [0]) ;
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package org.hpjava;
+
+import junit.framework.TestCase;
+
+import com.aparapi.Range ;
+
+/**
+ * Checks trees whose leaves hold several stars.
+ */
+public class LeafBucketTest
+    extends TestCase
+{
+    static final int N = 10000 ;
+    static final int LEAF_SIZE = 16 ;
+
+    TestStars stars ;
+
+    protected void setUp()
+    {
+        stars = new TestStars(N, 8642) ;
+    }
+
+    TreeBuilder [] builders(int leafSize)
+    {
+        TreeBuilder [] builders = {
+            new FlatTreeBuilder(new FlatTree(16)),
+            new MortonTreeBuilder(new FlatTree(16))
+        } ;
+        for(TreeBuilder builder : builders) {
+            builder.leafSize = leafSize ;
+        }
+        return builders ;
+    }
+
+    public void testLeavesHoldEveryStarOnce()
+    {
+        for(TreeBuilder builder : builders(LEAF_SIZE)) {
+            builder.build(stars.x, stars.y, stars.z, N) ;
+            FlatTree tree = builder.tree ;
+
+            boolean [] seen = new boolean [N] ;
+            int leaves = 0 ;
+            for(int node = KernelTree.TREE_ROOT ; node <= tree.numNodes ; node++) {
+                int nodesIptr = KernelTree.NODEISIZE * node ;
+                if(tree.nodesI [nodesIptr + KernelTree.FIRSTCHILD] != KernelTree.NULL)
+                    continue ;
+                leaves++ ;
+                int first = tree.nodesI [nodesIptr + KernelTree.FIRSTSTAR] ;
+                int count = tree.nodesI [nodesIptr + KernelTree.NPARTICLES] ;
+                assertTrue(count > 0 && count <= LEAF_SIZE) ;
+                double xSum = 0 ;
+                for(int m = first ; m < first + count ; m++) {
+                    int star = tree.stars [m] ;
+                    assertFalse(seen [star]) ;
+                    seen [star] = true ;
+                    xSum += stars.x [star] ;
+                }
+                assertEquals(xSum / count,
+                             tree.nodesD [KernelTree.NODEDSIZE * node + KernelTree.XCENT],
+                             1e-4) ;
+            }
+            for(int i = 0 ; i < N ; i++) {
+                assertTrue(seen [i]) ;
+            }
+
+            // Much smaller tree than with one star per leaf.
+
+            assertTrue(tree.numNodes < N / 4) ;
+            assertTrue(leaves < tree.numNodes) ;
+        }
+    }
+
+    public void testNoNodeAcceptedByItsOwnStars()
+    {
+        // At an opening angle past 2 / sqrt(3), no star is far enough
+        // from the centre of mass of any node containing it to accept
+        // that node.
+
+        for(int leafSize : new int [] {1, LEAF_SIZE}) {
+            for(TreeBuilder builder : builders(leafSize)) {
+                builder.openingAngle = 1.4F ;
+                builder.build(stars.x, stars.y, stars.z, N) ;
+                FlatTree tree = builder.tree ;
+                for(int leaf = KernelTree.TREE_ROOT ; leaf <= tree.numNodes ; leaf++) {
+                    int leafPtr = KernelTree.NODEISIZE * leaf ;
+                    if(tree.nodesI [leafPtr + KernelTree.FIRSTCHILD] != KernelTree.NULL)
+                        continue ;
+                    int first = tree.nodesI [leafPtr + KernelTree.FIRSTSTAR] ;
+                    int count = tree.nodesI [leafPtr + KernelTree.NPARTICLES] ;
+                    for(int m = first ; m < first + count ; m++) {
+                        int star = tree.stars [m] ;
+                        for(int node = leaf ; node != KernelTree.NULL ;
+                            node = tree.nodesI [KernelTree.NODEISIZE * node + KernelTree.PARENT]) {
+                            int nodesDptr = KernelTree.NODEDSIZE * node ;
+                            assertTrue(distance(star, tree, nodesDptr) <=
+                                       tree.nodesD [nodesDptr + KernelTree.THRESHOLD]) ;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    float distance(int star, FlatTree tree, int nodesDptr)
+    {
+        // Distance of star from centre of mass of node, with cyclic
+        // boundaries.
+
+        float box = KernelTree.BOX_WIDTH ;
+        float [] d = {stars.x [star] - tree.nodesD [nodesDptr + KernelTree.XCENT],
+                      stars.y [star] - tree.nodesD [nodesDptr + KernelTree.YCENT],
+                      stars.z [star] - tree.nodesD [nodesDptr + KernelTree.ZCENT]} ;
+        float sum = 0 ;
+        for(float c : d) {
+            if(c > box / 2) c -= box ;
+            if(c < -box / 2) c += box ;
+            sum += c * c ;
+        }
+        return (float) Math.sqrt(sum) ;
+    }
+
+    public void testForcesAsAccurate()
+    {
+        float [] ax = new float [N], ay = new float [N], az = new float [N] ;
+
+        FlatTree tree = new FlatTree(16) ;
+        new MortonTreeBuilder(tree).build(stars.x, stars.y, stars.z, N) ;
+        KernelTree kernel = new KernelTree(stars.x, stars.y, stars.z,
+                                           ax, ay, az, tree) ;
+        kernel.execute(Range.create(N)) ;
+        kernel.dispose() ;
+        double singleError = stars.error(ax, ay, az, 50) ;
+
+        for(TreeBuilder builder : builders(LEAF_SIZE)) {
+            builder.build(stars.x, stars.y, stars.z, N) ;
+            kernel = new KernelTree(stars.x, stars.y, stars.z,
+                                    ax, ay, az, builder.tree) ;
+            kernel.execute(Range.create(N)) ;
+            kernel.dispose() ;
+            assertTrue(stars.error(ax, ay, az, 50) <= singleError) ;
+        }
+    }
+
+    public void testGroupedWalk()
+    {
+        float [] ax1 = new float [N], ay1 = new float [N], az1 = new float [N] ;
+        float [] ax2 = new float [N], ay2 = new float [N], az2 = new float [N] ;
+
+        TreeBuilder builder = builders(LEAF_SIZE) [1] ;
+        builder.build(stars.x, stars.y, stars.z, N) ;
+
+        KernelTree kernel = new KernelTree(stars.x, stars.y, stars.z,
+                                           ax1, ay1, az1, builder.tree) ;
+        kernel.execute(Range.create(N)) ;
+        kernel.dispose() ;
+
+        StarGroups groups = new StarGroups(LEAF_SIZE) ;
+        groups.build(stars.x, stars.y, stars.z, N) ;
+        kernel = new KernelTree(stars.x, stars.y, stars.z,
+                                ax2, ay2, az2, builder.tree) ;
+        kernel.computeForcesGrouped(groups) ;
+        kernel.dispose() ;
+
+        assertTrue(stars.error(ax2, ay2, az2, 50) <=
+                   stars.error(ax1, ay1, az1, 50)) ;
+    }
+}
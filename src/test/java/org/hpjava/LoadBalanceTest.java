@@ -0,0 +1,95 @@
+package org.hpjava;
+
+import java.util.Arrays ;
+
+import junit.framework.TestCase;
+
+import com.aparapi.Range ;
+
+/**
+ * Checks that chunks of equal cost even out the work of a clustered
+ * distribution, without changing any forces.
+ */
+public class LoadBalanceTest
+    extends TestCase
+{
+    static final int N = 4000 ;
+    static final int CHUNKS = 16 ;
+
+    TestStars stars ;
+    FlatTree tree ;
+
+    protected void setUp()
+    {
+        // Dense core in the first quarter of the indices, whose walks
+        // open many more nodes than those of the outer stars.
+
+        stars = new TestStars(N, 23) ;
+        float centre = 0.5F * AparapiBarnesHut.BOX_WIDTH ;
+        for(int i = 0 ; i < N / 4 ; i++) {
+            stars.x [i] = centre + 0.05F * (stars.x [i] - centre) ;
+            stars.y [i] = centre + 0.05F * (stars.y [i] - centre) ;
+            stars.z [i] = centre + 0.05F * (stars.z [i] - centre) ;
+        }
+        tree = new FlatTree(16) ;
+        MortonTreeBuilder builder = new MortonTreeBuilder(tree) ;
+        builder.leafSize = 8 ;
+        builder.build(stars.x, stars.y, stars.z, N) ;
+    }
+
+    public void testChunksEvenOutCost()
+    {
+        for(int backend : new int [] {KernelTree.APARAPI, KernelTree.FORK_JOIN}) {
+            float [] ax1 = new float [N], ay1 = new float [N], az1 = new float [N] ;
+            KernelTree kernel = new KernelTree(stars.x, stars.y, stars.z,
+                                               ax1, ay1, az1, tree) ;
+            kernel.backend = backend ;
+            LoadBalance balance = new LoadBalance(CHUNKS) ;
+            assertFalse(balance.ready(N)) ;
+
+            kernel.computeForces(Range.create(N)) ;
+            kernel.fetchCounters() ;
+            balance.measure(kernel, N) ;
+            double equalSplit = balance.chunkImbalance ;
+            int [] visits = kernel.visits.clone() ;
+            balance.update(kernel, N) ;
+            assertTrue(balance.ready(N)) ;
+
+            // Chunks tile the stars, each about 1 / CHUNKS of the cost.
+
+            assertEquals(0, balance.chunkStart [0]) ;
+            assertEquals(N, balance.chunkStart [CHUNKS]) ;
+            long total = 0 ;
+            for(int c = 0 ; c < CHUNKS ; c++) {
+                assertTrue(balance.chunkStart [c] < balance.chunkStart [c + 1]) ;
+                total += balance.chunkCost [c] ;
+            }
+            for(int c = 0 ; c < CHUNKS ; c++) {
+                assertTrue(Math.abs(balance.chunkCost [c] - total / CHUNKS) <
+                           0.05 * total / CHUNKS) ;
+            }
+
+            float [] ax2 = new float [N], ay2 = new float [N], az2 = new float [N] ;
+            Arrays.fill(ax2, -1F) ;
+            kernel.dispose() ;
+            kernel = new KernelTree(stars.x, stars.y, stars.z, ax2, ay2, az2, tree) ;
+            kernel.backend = backend ;
+            kernel.computeForcesChunked(balance.chunkStart, balance.numChunks) ;
+            kernel.fetchCounters() ;
+            balance.measure(kernel, N) ;
+            kernel.dispose() ;
+
+            assertTrue(equalSplit > 1.5) ;
+            assertTrue(balance.chunkImbalance < 1.05) ;
+            assertTrue(balance.threadImbalance >= 1) ;
+
+            assertTrue(Arrays.equals(ax1, ax2)) ;
+            assertTrue(Arrays.equals(ay1, ay2)) ;
+            assertTrue(Arrays.equals(az1, az2)) ;
+            assertTrue(Arrays.equals(visits, kernel.visits)) ;
+
+            balance.invalidate() ;
+            assertFalse(balance.ready(N)) ;
+        }
+    }
+}
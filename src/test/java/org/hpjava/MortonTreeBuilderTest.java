@@ -0,0 +1,155 @@
+package org.hpjava;
+
+import junit.framework.TestCase;
+
+import com.aparapi.Range ;
+
+/**
+ * Checks the parallel Morton key tree builder against the serial one.
+ */
+public class MortonTreeBuilderTest
+    extends TestCase
+{
+    static final int N = 20000 ;  // enough for several parallel subtrees
+
+    float [] x, y, z ;
+
+    protected void setUp()
+    {
+        TestStars stars = new TestStars(N, 4321) ;
+        x = stars.x ;
+        y = stars.y ;
+        z = stars.z ;
+    }
+
+    public void testKeysSorted()
+    {
+        MortonTreeBuilder builder = new MortonTreeBuilder(new FlatTree(16)) ;
+        builder.build(x, y, z, N) ;
+
+        boolean [] seen = new boolean [N] ;
+        for(int i = 0 ; i < N ; i++) {
+            if(i > 0) assertTrue(builder.keys [i - 1] <= builder.keys [i]) ;
+            int star = builder.index [i] ;
+            assertFalse(seen [star]) ;
+            seen [star] = true ;
+            assertEquals(MortonTreeBuilder.key(x [star], y [star], z [star]),
+                         builder.keys [i]) ;
+        }
+    }
+
+    public void testPreorderLinks()
+    {
+        FlatTree tree = new FlatTree(16) ;
+        new MortonTreeBuilder(tree).build(x, y, z, N) ;
+
+        int [] nodesI = tree.nodesI ;
+        int stars = 0 ;
+        for(int node = KernelTree.TREE_ROOT ; node <= tree.numNodes ; node++) {
+            int nodesIptr = KernelTree.NODEISIZE * node ;
+            int child = nodesI [nodesIptr + KernelTree.FIRSTCHILD] ;
+            if(child == KernelTree.NULL) {
+                assertEquals(1, nodesI [nodesIptr + KernelTree.NPARTICLES]) ;
+                stars++ ;
+            }
+            else {
+                assertEquals(node + 1, child) ;
+                int sum = 0 ;
+                while(child != KernelTree.NULL) {
+                    int childPtr = KernelTree.NODEISIZE * child ;
+                    assertEquals(node, nodesI [childPtr + KernelTree.PARENT]) ;
+                    sum += nodesI [childPtr + KernelTree.NPARTICLES] ;
+                    child = nodesI [childPtr + KernelTree.NEXT] ;
+                }
+                assertEquals(nodesI [nodesIptr + KernelTree.NPARTICLES], sum) ;
+            }
+        }
+        assertEquals(N, stars) ;
+    }
+
+    public void testForcesMatchSerialBuild()
+    {
+        float [] ax1 = new float [N], ay1 = new float [N], az1 = new float [N] ;
+        float [] ax2 = new float [N], ay2 = new float [N], az2 = new float [N] ;
+
+        FlatTree serial = new FlatTree(16) ;
+        new FlatTreeBuilder(serial).build(x, y, z, N) ;
+        KernelTree kernel = new KernelTree(x, y, z, ax1, ay1, az1, serial) ;
+        kernel.execute(Range.create(N)) ;
+        kernel.dispose() ;
+
+        FlatTree parallel = new FlatTree(16) ;
+        new MortonTreeBuilder(parallel).build(x, y, z, N) ;
+        kernel = new KernelTree(x, y, z, ax2, ay2, az2, parallel) ;
+        kernel.execute(Range.create(N)) ;
+        kernel.dispose() ;
+
+        // Key quantization can place a star right on a cell boundary in
+        // the neighbouring cell, so trees may differ very slightly.
+
+        int diff = Math.abs(serial.numNodes - parallel.numNodes) ;
+        assertTrue(diff < N / 1000) ;
+
+        for(int i = 0 ; i < N ; i++) {
+            float mag = (float) Math.sqrt(ax1 [i] * ax1 [i] + ay1 [i] * ay1 [i] +
+                                          az1 [i] * az1 [i]) ;
+            float tol = 1e-2F * mag ;
+            assertEquals(ax1 [i], ax2 [i], tol) ;
+            assertEquals(ay1 [i], ay2 [i], tol) ;
+            assertEquals(az1 [i], az2 [i], tol) ;
+        }
+    }
+
+    public void testCoincidentStars()
+    {
+        // Pairs of stars at identical positions share a leaf, but still
+        // act on each other as distinct stars elsewhere.
+
+        int n = 2000 ;
+        float [] xs = new float [n], ys = new float [n], zs = new float [n] ;
+        for(int i = 0 ; i < n ; i++) {
+            xs [i] = x [i / 2] ;
+            ys [i] = y [i / 2] ;
+            zs [i] = z [i / 2] ;
+        }
+
+        FlatTree tree = new FlatTree(16) ;
+        new MortonTreeBuilder(tree).build(xs, ys, zs, n) ;
+
+        int leaves = 0 ;
+        for(int node = KernelTree.TREE_ROOT ; node <= tree.numNodes ; node++) {
+            int nodesIptr = KernelTree.NODEISIZE * node ;
+            if(tree.nodesI [nodesIptr + KernelTree.FIRSTCHILD] == KernelTree.NULL) {
+                assertEquals(2, tree.nodesI [nodesIptr + KernelTree.NPARTICLES]) ;
+                leaves++ ;
+            }
+        }
+        assertEquals(n / 2, leaves) ;
+
+        // Force on each star of a pair includes twice the force from
+        // a single star of another pair.
+
+        float [] ax = new float [n], ay = new float [n], az = new float [n] ;
+        KernelTree kernel = new KernelTree(xs, ys, zs, ax, ay, az, tree) ;
+        kernel.execute(Range.create(n)) ;
+        kernel.dispose() ;
+
+        float [] ax1 = new float [n / 2], ay1 = new float [n / 2], az1 = new float [n / 2] ;
+        float [] x1 = new float [n / 2], y1 = new float [n / 2], z1 = new float [n / 2] ;
+        System.arraycopy(x, 0, x1, 0, n / 2) ;
+        System.arraycopy(y, 0, y1, 0, n / 2) ;
+        System.arraycopy(z, 0, z1, 0, n / 2) ;
+        FlatTree single = new FlatTree(16) ;
+        new MortonTreeBuilder(single).build(x1, y1, z1, n / 2) ;
+        kernel = new KernelTree(x1, y1, z1, ax1, ay1, az1, single) ;
+        kernel.execute(Range.create(n / 2)) ;
+        kernel.dispose() ;
+
+        for(int i = 0 ; i < n ; i++) {
+            assertFalse(Float.isNaN(ax [i])) ;
+            float mag = (float) Math.sqrt(ax [i] * ax [i] + ay [i] * ay [i] +
+                                          az [i] * az [i]) ;
+            assertEquals(2 * ax1 [i / 2], ax [i], 1e-2F * mag) ;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.hpjava;
+
+import junit.framework.TestCase;
+
+import com.aparapi.Range ;
+
+/**
+ * Checks forces from the compact node encodings against the wide arrays.
+ */
+public class NodeEncodingTest
+    extends TestCase
+{
+    static final int N = 10000 ;
+
+    // Quantized centres of mass are within 1/65536 of a cell, and
+    // thresholds are rounded up, so the relative RMS error against direct
+    // summation may be at most this much worse than with wide nodes.
+
+    static final double QUANTIZED_TOLERANCE = 1e-4 ;
+
+    TestStars stars ;
+
+    protected void setUp()
+    {
+        stars = new TestStars(N, 1357) ;
+    }
+
+    float [][] forces(TreeBuilder builder, int encoding)
+    {
+        float [][] a = new float [3] [N] ;
+        builder.encoding = encoding ;
+        builder.build(stars.x, stars.y, stars.z, N) ;
+        assertEquals(encoding, builder.tree.encoding) ;
+        KernelTree kernel = new KernelTree(stars.x, stars.y, stars.z,
+                                           a [0], a [1], a [2], builder.tree) ;
+        kernel.execute(Range.create(N)) ;
+        kernel.dispose() ;
+        return a ;
+    }
+
+    static double difference(float [][] a, float [][] b)
+    {
+        // Relative RMS difference of two sets of accelerations.
+
+        double diff = 0, norm = 0 ;
+        for(int i = 0 ; i < N ; i++) {
+            for(int k = 0 ; k < 3 ; k++) {
+                diff += (a [k] [i] - b [k] [i]) * (a [k] [i] - b [k] [i]) ;
+                norm += b [k] [i] * b [k] [i] ;
+            }
+        }
+        return Math.sqrt(diff / norm) ;
+    }
+
+    void checkEncodings(TreeBuilder builder)
+    {
+        float [][] wide = forces(builder, KernelTree.WIDE) ;
+        float [][] packed = forces(builder, KernelTree.PACKED) ;
+        float [][] quantized = forces(builder, KernelTree.QUANTIZED) ;
+
+        // Packed records hold the same values as the wide arrays.
+
+        assertEquals(0.0, difference(packed, wide)) ;
+
+        // Quantized nodes open a few more nodes, so forces differ by a
+        // small fraction of the error of the approximation itself.
+
+        double wideError = stars.error(wide [0], wide [1], wide [2], 50) ;
+        assertTrue(difference(quantized, wide) < 0.2 * wideError) ;
+        assertTrue(stars.error(quantized [0], quantized [1], quantized [2], 50) <=
+                   wideError + QUANTIZED_TOLERANCE) ;
+    }
+
+    public void testBothBuilders()
+    {
+        for(int leafSize : new int [] {1, 8}) {
+            TreeBuilder [] builders = {
+                new FlatTreeBuilder(new FlatTree(16)),
+                new MortonTreeBuilder(new FlatTree(16))
+            } ;
+            for(TreeBuilder builder : builders) {
+                builder.leafSize = leafSize ;
+                checkEncodings(builder) ;
+            }
+        }
+    }
+
+    public void testQuadrupole()
+    {
+        TreeBuilder builder = new MortonTreeBuilder(new FlatTree(16)) ;
+        builder.quadrupole = true ;
+        checkEncodings(builder) ;
+    }
+}
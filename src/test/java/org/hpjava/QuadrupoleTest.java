@@ -0,0 +1,111 @@
+package org.hpjava;
+
+import junit.framework.TestCase;
+
+import com.aparapi.Range ;
+
+/**
+ * Checks quadrupole moments of tree nodes, and the accuracy they add
+ * to forces.
+ */
+public class QuadrupoleTest
+    extends TestCase
+{
+    static final int N = 10000 ;
+
+    TestStars stars ;
+
+    protected void setUp()
+    {
+        stars = new TestStars(N, 1357) ;
+    }
+
+    public void testRootMoment()
+    {
+        // Root quadrupole from builders equals sum over all stars.
+
+        double xc = 0, yc = 0, zc = 0 ;
+        for(int i = 0 ; i < N ; i++) {
+            xc += stars.x [i] ;
+            yc += stars.y [i] ;
+            zc += stars.z [i] ;
+        }
+        xc /= N ;
+        yc /= N ;
+        zc /= N ;
+        double [] q = new double [6] ;
+        for(int i = 0 ; i < N ; i++) {
+            double dx = stars.x [i] - xc, dy = stars.y [i] - yc, dz = stars.z [i] - zc ;
+            double dSquared = dx * dx + dy * dy + dz * dz ;
+            q [0] += 3 * dx * dx - dSquared ;
+            q [1] += 3 * dy * dy - dSquared ;
+            q [2] += 3 * dz * dz - dSquared ;
+            q [3] += 3 * dx * dy ;
+            q [4] += 3 * dx * dz ;
+            q [5] += 3 * dy * dz ;
+        }
+        double scale = N * AparapiBarnesHut.RADIUS * AparapiBarnesHut.RADIUS ;
+
+        TreeBuilder [] builders = {
+            new FlatTreeBuilder(new FlatTree(16)),
+            new MortonTreeBuilder(new FlatTree(16))
+        } ;
+        for(TreeBuilder builder : builders) {
+            builder.quadrupole = true ;
+            builder.build(stars.x, stars.y, stars.z, N) ;
+            assertTrue(builder.tree.quadrupole) ;
+            int rootPtr = KernelTree.NODEDSIZE * KernelTree.TREE_ROOT ;
+            for(int k = 0 ; k < 6 ; k++) {
+                assertEquals(q [k], builder.tree.nodesD [rootPtr + KernelTree.QXX + k],
+                             1e-4 * scale) ;
+            }
+        }
+    }
+
+    public void testPairOnAxis()
+    {
+        // Two stars at +/- s on z axis, seen from distance R on the axis:
+        // exact acceleration -1/(R-s)^2 - 1/(R+s)^2 ~ -2/R^2 - 6s^2/R^4.
+
+        float c = 0.5F * KernelTree.BOX_WIDTH ;
+        float s = 1F, r = 20F ;
+        float [] x = {c, c, c}, y = {c, c, c}, z = {c - s, c + s, c + r} ;
+        float [] ax = new float [3], ay = new float [3], az = new float [3] ;
+
+        FlatTree tree = new FlatTree(16) ;
+        FlatTreeBuilder builder = new FlatTreeBuilder(tree) ;
+        builder.quadrupole = true ;
+        builder.build(x, y, z, 2) ;  // tree of pair only
+
+        KernelTree kernel = new KernelTree(x, y, z, ax, ay, az, tree) ;
+        kernel.forceLaw(2, x [2], y [2], z [2], KernelTree.TREE_ROOT) ;
+        kernel.dispose() ;
+
+        double exact = -1 / ((r - s) * (r - s)) - 1 / ((r + s) * (r + s)) ;
+        double monopole = -2 / (r * r) ;
+        assertEquals(exact, az [2], 0.05 * Math.abs(exact - monopole)) ;
+        assertEquals(0F, ax [2], 1e-7F) ;
+        assertEquals(0F, ay [2], 1e-7F) ;
+    }
+
+    public void testMoreAccurate()
+    {
+        float [] ax = new float [N], ay = new float [N], az = new float [N] ;
+        double [] error = new double [2] ;
+
+        for(int q = 0 ; q < 2 ; q++) {
+            FlatTree tree = new FlatTree(16) ;
+            MortonTreeBuilder builder = new MortonTreeBuilder(tree) ;
+            builder.quadrupole = (q == 1) ;
+            builder.build(stars.x, stars.y, stars.z, N) ;
+
+            KernelTree kernel = new KernelTree(stars.x, stars.y, stars.z,
+                                               ax, ay, az, tree) ;
+            kernel.execute(Range.create(N)) ;
+            kernel.dispose() ;
+
+            error [q] = stars.error(ax, ay, az, 50) ;
+        }
+        assertTrue(error [1] < 0.5 * error [0]) ;
+    }
+}
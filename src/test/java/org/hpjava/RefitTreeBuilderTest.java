@@ -0,0 +1,199 @@
+package org.hpjava;
+
+import java.util.Random ;
+
+import junit.framework.TestCase;
+
+import com.aparapi.Range ;
+
+/**
+ * Checks trees refitted after small moves of the stars.
+ */
+public class RefitTreeBuilderTest
+    extends TestCase
+{
+    static final int N = 10000 ;
+
+    TestStars stars ;
+
+    protected void setUp()
+    {
+        stars = new TestStars(N, 9753) ;
+    }
+
+    void move(float step, long seed)
+    {
+        Random rand = new Random(seed) ;
+        for(int i = 0 ; i < N ; i++) {
+            stars.x [i] += step * (float) rand.nextGaussian() ;
+            stars.y [i] += step * (float) rand.nextGaussian() ;
+            stars.z [i] += step * (float) rand.nextGaussian() ;
+        }
+    }
+
+    void checkTree(RefitTreeBuilder refit)
+    {
+        // Every star in exactly one leaf, within the extent of the leaf,
+        // or else loose, and node counts and centres of mass consistent
+        // with the stars.
+
+        FlatTree tree = refit.tree ;
+        boolean [] seen = new boolean [N] ;
+        for(int node = tree.numNodes ; node >= KernelTree.TREE_ROOT ; node--) {
+            int nodesIptr = KernelTree.NODEISIZE * node ;
+            int nodesDptr = KernelTree.NODEDSIZE * node ;
+            int first = tree.nodesI [nodesIptr + KernelTree.FIRSTSTAR] ;
+            int count = tree.nodesI [nodesIptr + KernelTree.NPARTICLES] ;
+            if(tree.nodesI [nodesIptr + KernelTree.FIRSTCHILD] == KernelTree.NULL) {
+                for(int m = first ; m < first + count ; m++) {
+                    int star = tree.stars [m] ;
+                    assertFalse(seen [star]) ;
+                    seen [star] = true ;
+                    float [] nodesD = tree.nodesD ;
+                    float extent = refit.extent [node] ;
+                    assertTrue(Math.abs(stars.x [star] - nodesD [nodesDptr + KernelTree.XMID]) <= extent) ;
+                    assertTrue(Math.abs(stars.y [star] - nodesD [nodesDptr + KernelTree.YMID]) <= extent) ;
+                    assertTrue(Math.abs(stars.z [star] - nodesD [nodesDptr + KernelTree.ZMID]) <= extent) ;
+                }
+            }
+            double xSum = 0 ;
+            for(int m = first ; m < first + count ; m++) {
+                xSum += stars.x [tree.stars [m]] ;
+            }
+            if(count > 0) {
+                assertEquals(xSum / count, tree.nodesD [nodesDptr + KernelTree.XCENT],
+                             1e-4) ;
+            }
+        }
+        assertEquals(refit.loose, tree.numLoose) ;
+        for(int m = tree.looseFirst ; m < tree.looseFirst + tree.numLoose ; m++) {
+            assertFalse(seen [tree.stars [m]]) ;
+            seen [tree.stars [m]] = true ;
+        }
+        for(int i = 0 ; i < N ; i++) {
+            assertTrue(seen [i]) ;
+        }
+        assertEquals(N - tree.numLoose, tree.nodesI [KernelTree.NODEISIZE * KernelTree.TREE_ROOT +
+                                     KernelTree.NPARTICLES]) ;
+    }
+
+    public void testRefitAfterSmallMoves()
+    {
+        for(TreeBuilder full : new TreeBuilder [] {
+                new FlatTreeBuilder(new FlatTree(16)),
+                new MortonTreeBuilder(new FlatTree(16)) }) {
+
+            stars = new TestStars(N, 9753) ;
+            full.leafSize = 8 ;
+            RefitTreeBuilder refit = new RefitTreeBuilder(full) ;
+            refit.maxMigrants = 0.05F ;
+            refit.maxLoose = 0.01F ;
+
+            refit.build(stars.x, stars.y, stars.z, N) ;
+            assertTrue(refit.rebuilt) ;
+            int numNodes = refit.tree.numNodes ;
+
+            for(int step = 0 ; step < 3 ; step++) {
+                move(1e-4F * AparapiBarnesHut.BOX_WIDTH, step) ;
+                refit.build(stars.x, stars.y, stars.z, N) ;
+                assertFalse(refit.rebuilt) ;
+                assertTrue(refit.migrants > 0) ;
+                assertEquals(numNodes, refit.tree.numNodes) ;
+                checkTree(refit) ;
+            }
+
+            // Forces from refitted tree about as accurate as from a new one.
+
+            float [] ax = new float [N], ay = new float [N], az = new float [N] ;
+            KernelTree kernel = new KernelTree(stars.x, stars.y, stars.z,
+                                               ax, ay, az, refit.tree) ;
+            kernel.execute(Range.create(N)) ;
+            double refitError = stars.error(ax, ay, az, 50) ;
+
+            full.build(stars.x, stars.y, stars.z, N) ;
+            kernel.setTree(full.tree) ;
+            kernel.execute(Range.create(N)) ;
+            kernel.dispose() ;
+            double buildError = stars.error(ax, ay, az, 50) ;
+
+            assertTrue(refitError < 1.1 * buildError) ;
+        }
+    }
+
+    public void testLooseStar()
+    {
+        RefitTreeBuilder refit =
+                new RefitTreeBuilder(new MortonTreeBuilder(new FlatTree(16))) ;
+        refit.build(stars.x, stars.y, stars.z, N) ;
+
+        // Star thrown well outside the ball, far from any leaf.
+
+        stars.x [0] = 0.2F * AparapiBarnesHut.BOX_WIDTH ;
+        stars.y [0] = stars.z [0] = 0.5F * AparapiBarnesHut.BOX_WIDTH ;
+        refit.build(stars.x, stars.y, stars.z, N) ;
+        assertFalse(refit.rebuilt) ;
+        assertEquals(1, refit.loose) ;
+        checkTree(refit) ;
+
+        // Forces on it, and from it, still accurate.
+
+        float [] ax = new float [N], ay = new float [N], az = new float [N] ;
+        KernelTree kernel = new KernelTree(stars.x, stars.y, stars.z,
+                                           ax, ay, az, refit.tree) ;
+        kernel.execute(Range.create(N)) ;
+        double [] a = stars.direct(0) ;
+        assertEquals(a [0], ax [0], 1e-2 * Math.abs(a [0])) ;
+        double refitError = stars.error(ax, ay, az, 50) ;
+
+        refit.full.build(stars.x, stars.y, stars.z, N) ;
+        kernel.setTree(refit.tree) ;
+        kernel.execute(Range.create(N)) ;
+        kernel.dispose() ;
+        assertTrue(refitError < 1.1 * stars.error(ax, ay, az, 50)) ;
+        refit.invalidate() ;
+        refit.build(stars.x, stars.y, stars.z, N) ;
+
+        // After a full build it is in a leaf again.
+
+        assertTrue(refit.rebuilt) ;
+        assertEquals(0, refit.tree.numLoose) ;
+        checkTree(refit) ;
+    }
+
+    public void testRebuildTriggers()
+    {
+        RefitTreeBuilder refit =
+                new RefitTreeBuilder(new FlatTreeBuilder(new FlatTree(16))) ;
+        refit.maxSteps = 2 ;
+        refit.build(stars.x, stars.y, stars.z, N) ;
+
+        // Most stars leave their leaves.
+
+        move(1e-2F * AparapiBarnesHut.BOX_WIDTH, 1) ;
+        refit.build(stars.x, stars.y, stars.z, N) ;
+        assertTrue(refit.rebuilt) ;
+        assertEquals(1, refit.backoff) ;
+
+        // No refit tried in the step after a failed one.
+
+        refit.build(stars.x, stars.y, stars.z, N) ;
+        assertTrue(refit.rebuilt) ;
+        assertEquals(0, refit.migrants) ;
+
+        // Stars don't move, but only maxSteps refits allowed.
+
+        refit.build(stars.x, stars.y, stars.z, N) ;
+        assertFalse(refit.rebuilt) ;
+        refit.build(stars.x, stars.y, stars.z, N) ;
+        assertFalse(refit.rebuilt) ;
+        refit.build(stars.x, stars.y, stars.z, N) ;
+        assertTrue(refit.rebuilt) ;
+
+        // Stars renumbered.
+
+        refit.invalidate() ;
+        refit.build(stars.x, stars.y, stars.z, N) ;
+        assertTrue(refit.rebuilt) ;
+        checkTree(refit) ;
+    }
+}
@@ -0,0 +1,106 @@
+package org.hpjava;
+
+import java.awt.image.DataBufferInt ;
+import java.util.Arrays ;
+import java.util.Random ;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the off-screen renderer (no window is opened).
+ */
+public class RendererTest
+    extends TestCase
+{
+    public void testOfferNeverBlocks()
+    {
+        int n = 100 ;
+        float [] x = new float [n], y = new float [n], z = new float [n] ;
+
+        // No render thread is running, so snapshots are never freed.
+
+        Renderer renderer = new Renderer(n, 10, 100F, 1000000000) ;
+        for(int i = 0 ; i < 10 ; i++) {
+            renderer.offer(x, y, z) ;
+        }
+        assertEquals(Renderer.SNAPSHOTS, renderer.filled.size()) ;
+        assertEquals(10 - Renderer.SNAPSHOTS, renderer.framesSkipped) ;
+    }
+
+    static int [] render(Renderer renderer, float [] x, float [] y, float [] z)
+    {
+        renderer.nextFrame = 0 ;
+        renderer.offer(x, y, z) ;
+        Renderer.Snapshot snapshot = renderer.filled.poll() ;
+        renderer.render(snapshot) ;
+        renderer.free.add(snapshot) ;
+        return ((DataBufferInt) renderer.back.getRaster().getDataBuffer()).getData() ;
+    }
+
+    public void testDensityBrightness()
+    {
+        // Two stars in one pixel, one in another, one outside the box.
+
+        float [] x = {15F, 15.5F, 85F, -1F} ;
+        float [] y = {25F, 25.5F, 5F, 50F} ;
+        float [] z = new float [4] ;
+
+        int [] raster = render(new Renderer(4, 10, 100F, 25), x, y, z) ;
+        int lit = 0 ;
+        for(int p = 0 ; p < raster.length ; p++) {
+            if(raster [p] != 0) lit++ ;
+        }
+        assertEquals(2, lit) ;
+
+        // Densest pixel is white, a single star MIN_GREY.
+
+        assertEquals(0xffffff, raster [2 * 10 + 1]) ;
+        assertEquals(Renderer.MIN_GREY, raster [0 * 10 + 8] & 0xff) ;
+    }
+
+    public void testViews()
+    {
+        float [] x = {15F}, y = {25F}, z = {85F} ;
+
+        int [] raster = render(new Renderer(1, 10, 100F, 25, Renderer.XZ, 0F), x, y, z) ;
+        assertTrue(raster [8 * 10 + 1] != 0) ;
+
+        raster = render(new Renderer(1, 10, 100F, 25, Renderer.YZ, 0F), x, y, z) ;
+        assertTrue(raster [8 * 10 + 2] != 0) ;
+
+        // Turned a quarter turn, z is across the window.
+
+        raster = render(new Renderer(1, 10, 100F, 25, Renderer.XY, 90F), x, y, z) ;
+        assertTrue(raster [2 * 10 + 8] != 0) ;
+
+        raster = render(new Renderer(1, 10, 100F, 25, Renderer.XY, 180F), x, y, z) ;
+        assertTrue(raster [2 * 10 + 8] != 0) ;
+    }
+
+    public void testSameImageAnyRanges()
+    {
+        // Grids of any number of star ranges sum to the same counts,
+        // and are cleared for the next frame.
+
+        int n = 20000 ;
+        TestStars stars = new TestStars(n, 4) ;
+        Renderer one = new Renderer(n, 64, KernelTree.BOX_WIDTH, 25) ;
+        one.chunks = 1 ;
+        Renderer many = new Renderer(n, 64, KernelTree.BOX_WIDTH, 25) ;
+        many.chunks = 7 ;
+        int [] expected = render(one, stars.x, stars.y, stars.z).clone() ;
+        for(int frame = 0 ; frame < 2 ; frame++) {
+            assertTrue(Arrays.equals(expected, render(many, stars.x, stars.y, stars.z))) ;
+            assertTrue(Arrays.equals(one.density, many.density)) ;
+        }
+        assertEquals(n, Arrays.stream(many.density).sum()) ;
+
+        Random rand = new Random(1) ;
+        float [] x = new float [n] ;
+        for(int i = 0 ; i < n ; i++) {
+            x [i] = KernelTree.BOX_WIDTH * rand.nextFloat() ;
+        }
+        render(many, x, x, x) ;
+        assertEquals(n, Arrays.stream(many.density).sum()) ;
+    }
+}
@@ -0,0 +1,95 @@
+package org.hpjava;
+
+import java.util.Arrays ;
+
+import junit.framework.TestCase;
+
+import com.aparapi.Range ;
+
+/**
+ * Checks the preorder node layout and the walk by skip links.
+ */
+public class SkipWalkTest
+    extends TestCase
+{
+    static final int N = 5000 ;
+
+    TestStars stars ;
+
+    protected void setUp()
+    {
+        stars = new TestStars(N, 2468) ;
+    }
+
+    TreeBuilder [] builders(int leafSize)
+    {
+        TreeBuilder [] builders = {
+            new FlatTreeBuilder(new FlatTree(16)),
+            new MortonTreeBuilder(new FlatTree(16))
+        } ;
+        for(TreeBuilder builder : builders) {
+            builder.leafSize = leafSize ;
+        }
+        return builders ;
+    }
+
+    int checkSubtree(FlatTree tree, int node)
+    {
+        // Returns first node after subtree, checking children follow
+        // their parent in preorder.
+
+        int [] nodesI = tree.nodesI ;
+        int next = node + 1 ;
+        int child = nodesI [KernelTree.NODEISIZE * node + KernelTree.FIRSTCHILD] ;
+        while(child != KernelTree.NULL) {
+            assertEquals(next, child) ;
+            next = checkSubtree(tree, child) ;
+            child = nodesI [KernelTree.NODEISIZE * child + KernelTree.NEXT] ;
+        }
+        assertEquals(next, nodesI [KernelTree.NODEISIZE * node + KernelTree.SKIP]) ;
+        return next ;
+    }
+
+    public void testSkipLinks()
+    {
+        for(int leafSize : new int [] {1, 8}) {
+            for(TreeBuilder builder : builders(leafSize)) {
+                builder.build(stars.x, stars.y, stars.z, N) ;
+                assertTrue(builder.tree.preorder) ;
+                assertEquals(builder.tree.numNodes + 1,
+                             checkSubtree(builder.tree, KernelTree.TREE_ROOT)) ;
+            }
+        }
+    }
+
+    public void testSameForcesAsParentWalk()
+    {
+        float [] ax1 = new float [N], ay1 = new float [N], az1 = new float [N] ;
+        float [] ax2 = new float [N], ay2 = new float [N], az2 = new float [N] ;
+
+        // Both walks visit nodes in the same order, so results are
+        // identical.
+
+        for(TreeBuilder builder : builders(8)) {
+            builder.build(stars.x, stars.y, stars.z, N) ;
+
+            KernelTree kernel = new KernelTree(stars.x, stars.y, stars.z,
+                                               ax1, ay1, az1, builder.tree) ;
+            assertEquals(1, kernel.skipWalk) ;
+            kernel.execute(Range.create(N)) ;
+            kernel.dispose() ;
+
+            kernel = new KernelTree(stars.x, stars.y, stars.z,
+                                    ax2, ay2, az2, builder.tree) ;
+            kernel.parentWalk = true ;
+            kernel.setTree(builder.tree) ;
+            assertEquals(0, kernel.skipWalk) ;
+            kernel.execute(Range.create(N)) ;
+            kernel.dispose() ;
+
+            assertTrue(Arrays.equals(ax1, ax2)) ;
+            assertTrue(Arrays.equals(ay1, ay2)) ;
+            assertTrue(Arrays.equals(az1, az2)) ;
+        }
+    }
+}
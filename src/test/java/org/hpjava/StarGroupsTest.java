@@ -0,0 +1,113 @@
+package org.hpjava;
+
+import junit.framework.TestCase;
+
+import com.aparapi.Range ;
+
+/**
+ * Checks grouping of stars, and the grouped force walk against the
+ * per-star walk.
+ */
+public class StarGroupsTest
+    extends TestCase
+{
+    static final int N = 20000 ;
+    static final int GROUP_SIZE = 32 ;
+
+    TestStars stars ;
+    float [] x, y, z ;
+
+    protected void setUp()
+    {
+        stars = new TestStars(N, 2468) ;
+        x = stars.x ;
+        y = stars.y ;
+        z = stars.z ;
+    }
+
+    public void testGroupsPartitionStars()
+    {
+        StarGroups groups = new StarGroups(GROUP_SIZE) ;
+        groups.build(x, y, z, N) ;
+
+        assertTrue(groups.numGroups >= N / GROUP_SIZE) ;
+        assertEquals(0, groups.groupStart [0]) ;
+        assertEquals(N, groups.groupStart [groups.numGroups]) ;
+
+        boolean [] seen = new boolean [N] ;
+        for(int g = 0 ; g < groups.numGroups ; g++) {
+            int size = groups.groupStart [g + 1] - groups.groupStart [g] ;
+            assertTrue(size > 0 && size <= GROUP_SIZE) ;
+            int boxPtr = StarGroups.BOXSIZE * g ;
+            for(int m = groups.groupStart [g] ; m < groups.groupStart [g + 1] ; m++) {
+                int star = groups.groupStars [m] ;
+                assertFalse(seen [star]) ;
+                seen [star] = true ;
+                assertTrue(groups.groupBox [boxPtr + StarGroups.LO] <= x [star]) ;
+                assertTrue(groups.groupBox [boxPtr + StarGroups.HI] >= x [star]) ;
+                assertTrue(groups.groupBox [boxPtr + StarGroups.LO + 1] <= y [star]) ;
+                assertTrue(groups.groupBox [boxPtr + StarGroups.HI + 1] >= y [star]) ;
+                assertTrue(groups.groupBox [boxPtr + StarGroups.LO + 2] <= z [star]) ;
+                assertTrue(groups.groupBox [boxPtr + StarGroups.HI + 2] >= z [star]) ;
+            }
+        }
+    }
+
+    public void testGroupedWalkFewerVisitsSameAccuracy()
+    {
+        float [] ax1 = new float [N], ay1 = new float [N], az1 = new float [N] ;
+        float [] ax2 = new float [N], ay2 = new float [N], az2 = new float [N] ;
+
+        FlatTree tree = new FlatTree(16) ;
+        new MortonTreeBuilder(tree).build(x, y, z, N) ;
+
+        KernelTree kernel = new KernelTree(x, y, z, ax1, ay1, az1, tree) ;
+        kernel.setExplicit(true) ;
+        kernel.setTree(tree) ;
+        kernel.computeForces(Range.create(N)) ;
+        long perStarVisits = kernel.countVisits(N) ;
+        long perStarInteractions = kernel.countInteractions(N) ;
+        kernel.dispose() ;
+
+        StarGroups groups = new StarGroups(GROUP_SIZE) ;
+        groups.build(x, y, z, N) ;
+
+        kernel = new KernelTree(x, y, z, ax2, ay2, az2, tree) ;
+        kernel.setExplicit(true) ;
+        kernel.setTree(tree) ;
+        kernel.computeForcesGrouped(groups) ;
+        long groupedVisits = kernel.countVisits(groups.numGroups) ;
+        long groupedInteractions = kernel.countInteractions(groups.numGroups) ;
+        kernel.dispose() ;
+
+        // Group walk opens more nodes, so it is a little more accurate,
+        // does more interactions, but visits far fewer nodes.
+
+        assertTrue(groupedVisits < perStarVisits / 4) ;
+        assertTrue(groupedInteractions >= perStarInteractions) ;
+
+        // Compare both with direct summation, for a sample of stars.
+
+        double perStarError = stars.error(ax1, ay1, az1, 100) ;
+        double groupedError = stars.error(ax2, ay2, az2, 100) ;
+        assertTrue(perStarError < 0.03) ;
+        assertTrue(groupedError <= perStarError) ;
+    }
+
+    public void testCoincidentStars()
+    {
+        // More identical stars than fit in a group.
+
+        int n = 3 * GROUP_SIZE + 5 ;
+        float [] xs = new float [n], ys = new float [n], zs = new float [n] ;
+        for(int i = 0 ; i < n ; i++) {
+            xs [i] = 10F ;
+            ys [i] = 20F ;
+            zs [i] = 30F ;
+        }
+        StarGroups groups = new StarGroups(GROUP_SIZE) ;
+        groups.build(xs, ys, zs, n) ;
+        assertEquals(4, groups.numGroups) ;
+        assertEquals(n, groups.groupStart [4]) ;
+    }
+}
@@ -0,0 +1,73 @@
+package org.hpjava;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for space filling curve reordering of stars.
+ */
+public class StarOrderTest
+    extends TestCase
+{
+    static final int N = 5000 ;
+
+    public void testPermutationTracksOriginalIds()
+    {
+        TestStars stars = new TestStars(N, 99) ;
+        float [] x = stars.x.clone(), y = stars.y.clone(), z = stars.z.clone() ;
+        float [] v = new float [N] ;
+        for(int i = 0 ; i < N ; i++) v [i] = i ;
+        int [] ids = new int [N] ;
+        for(int i = 0 ; i < N ; i++) ids [i] = i ;
+
+        StarOrder order = new StarOrder(StarOrder.HILBERT, N) ;
+        order.reorder(N, x, y, z, v) ;
+        order.reorder(N, ids) ;
+        order.reorder(N, y, z, x) ;  // different permutation second time
+        order.reorder(N, ids) ;
+
+        for(int i = 0 ; i < N ; i++) {
+            int id = order.originalId [i] ;
+            assertEquals(id, ids [i]) ;
+            assertEquals(stars.x [id], x [i]) ;
+            assertEquals(stars.y [id], y [i]) ;
+            assertEquals(stars.z [id], z [i]) ;
+        }
+    }
+
+    public void testMortonOrderSortsKeys()
+    {
+        TestStars stars = new TestStars(N, 7) ;
+        float [] x = stars.x, y = stars.y, z = stars.z ;
+
+        new StarOrder(StarOrder.MORTON, N).reorder(N, x, y, z) ;
+
+        for(int i = 1 ; i < N ; i++) {
+            assertTrue(MortonTreeBuilder.key(x [i - 1], y [i - 1], z [i - 1]) <=
+                       MortonTreeBuilder.key(x [i], y [i], z [i])) ;
+        }
+    }
+
+    public void testHilbertCurveIsContinuous()
+    {
+        // Centres of an 8 x 8 x 8 grid of cells, taken in Hilbert order,
+        // step to a face-adjacent cell every time.
+
+        int side = 8 ;
+        int n = side * side * side ;
+        float cell = AparapiBarnesHut.BOX_WIDTH / side ;
+        float [] x = new float [n], y = new float [n], z = new float [n] ;
+        for(int i = 0 ; i < n ; i++) {
+            x [i] = (i / (side * side) + 0.5F) * cell ;
+            y [i] = ((i / side) % side + 0.5F) * cell ;
+            z [i] = (i % side + 0.5F) * cell ;
+        }
+
+        new StarOrder(StarOrder.HILBERT, n).reorder(n, x, y, z) ;
+
+        for(int i = 1 ; i < n ; i++) {
+            float step = Math.abs(x [i] - x [i - 1]) + Math.abs(y [i] - y [i - 1]) +
+                         Math.abs(z [i] - z [i - 1]) ;
+            assertEquals(cell, step, 1e-3F) ;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package org.hpjava;
+
+import java.io.ByteArrayOutputStream ;
+import java.io.PrintStream ;
+
+import java.util.Arrays ;
+import java.util.Random ;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks histogram percentiles, metrics summaries and the tree depth
+ * they report.
+ */
+public class StepMetricsTest
+    extends TestCase
+{
+    public void testPercentiles()
+    {
+        Random rand = new Random(5) ;
+        long [] values = new long [10000] ;
+        Histogram h = new Histogram() ;
+        for(int i = 0 ; i < values.length ; i++) {
+            values [i] = (long) Math.exp(20 * rand.nextDouble()) ;
+            h.record(values [i]) ;
+        }
+        Arrays.sort(values) ;
+
+        for(double q : new double [] {0.01, 0.5, 0.9, 0.99}) {
+            long exact = values [(int) Math.ceil(q * values.length) - 1] ;
+            long p = h.percentile(q) ;
+            assertTrue(p >= exact) ;
+            assertTrue(p <= exact + exact / Histogram.SUB + 1) ;
+        }
+        assertEquals(values [0], h.min) ;
+        assertEquals(values [values.length - 1], h.max) ;
+        assertEquals(values [values.length - 1], h.percentile(1.0)) ;
+
+        // Buckets tile the values.
+
+        for(int b = 1 ; b < Histogram.BUCKETS ; b++) {
+            assertEquals(b - 1, Histogram.bucket(Histogram.lowest(b) - 1)) ;
+            assertEquals(b, Histogram.bucket(Histogram.lowest(b))) ;
+        }
+    }
+
+    StepMetrics run(int format, ByteArrayOutputStream bytes)
+    {
+        StepMetrics metrics = new StepMetrics(format, 4, new PrintStream(bytes)) ;
+        for(int step = 0 ; step < 10 ; step++) {
+            metrics.beginStep(step) ;
+            metrics.end(StepMetrics.BUILD, StepMetrics.start() - 2000000) ;
+            metrics.end(StepMetrics.FORCES, StepMetrics.start() - 30000000) ;
+            metrics.tree(1000 + step, 12) ;
+            metrics.walk(100, 5000, 4000) ;
+            metrics.transfers(400, 40, 0, "jtp") ;
+            metrics.endStep() ;
+        }
+        return metrics ;
+    }
+
+    public void testSummaries()
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream() ;
+        run(StepMetrics.CSV, bytes) ;
+        String [] lines = bytes.toString().split("\n") ;
+
+        // Header and one line per 4 steps, with matching fields.
+
+        assertEquals(3, lines.length) ;
+        assertEquals(StepMetrics.csvHeader(), lines [0]) ;
+        String [] header = lines [0].split(",", -1) ;
+        String [] fields = lines [2].split(",", -1) ;
+        assertEquals(header.length, fields.length) ;
+        int forces = Arrays.asList(header).indexOf("forces_p50_ms") ;
+        double p50 = Double.parseDouble(fields [forces]) ;
+        assertTrue(p50 >= 30 && p50 < 33) ;
+        assertEquals("7", fields [0]) ;
+        assertEquals("", fields [Arrays.asList(header).indexOf("reorder_mean_ms")]) ;
+        assertEquals("1007", fields [Arrays.asList(header).indexOf("nodes")]) ;
+        assertEquals("50.00", fields [Arrays.asList(header).indexOf("visits_per_star")]) ;
+        assertEquals("jtp", fields [fields.length - 1]) ;
+
+        bytes.reset() ;
+        run(StepMetrics.JSON, bytes) ;
+        lines = bytes.toString().split("\n") ;
+        assertEquals(2, lines.length) ;
+        assertTrue(lines [1].startsWith("{\"step\":7,\"steps\":4,\"phases\":{\"build\":")) ;
+        assertTrue(lines [1].contains("\"interactions_per_star\":40.00")) ;
+        assertFalse(lines [1].contains("reorder")) ;
+        assertTrue(lines [1].endsWith("\"mode\":\"jtp\"}")) ;
+
+        bytes.reset() ;
+        run(StepMetrics.NONE, bytes) ;
+        assertEquals(0, bytes.size()) ;
+    }
+
+    public void testTreeDepth()
+    {
+        // Two stars very close together need a deep tree to separate.
+
+        int n = 1000 ;
+        TestStars stars = new TestStars(n, 3) ;
+        stars.x [1] = stars.x [0] + 1e-3F ;
+        stars.y [1] = stars.y [0] ;
+        stars.z [1] = stars.z [0] ;
+
+        FlatTree tree = new FlatTree(16) ;
+        new FlatTreeBuilder(tree).build(stars.x, stars.y, stars.z, n) ;
+
+        // Leaves of the pair are at the first depth whose cells
+        // separate them, far below the leaves of the other stars.
+
+        int expected = 0 ;
+        double cells = 1 ;
+        while(Math.floor(stars.x [0] * cells / KernelTree.BOX_WIDTH) ==
+              Math.floor(stars.x [1] * cells / KernelTree.BOX_WIDTH)) {
+            expected++ ;
+            cells *= 2 ;
+        }
+        assertTrue(expected > 10) ;
+        assertEquals(expected, tree.depth()) ;
+
+        FlatTree morton = new FlatTree(16) ;
+        new MortonTreeBuilder(morton).build(stars.x, stars.y, stars.z, n) ;
+        assertEquals(tree.depth(), morton.depth()) ;
+    }
+}
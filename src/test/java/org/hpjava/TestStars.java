@@ -0,0 +1,80 @@
+package org.hpjava;
+
+import java.util.Random ;
+
+/**
+ * Star positions shared by the tests.
+ */
+class TestStars
+{
+    final float [] x, y, z ;
+
+    /**
+     * Uniform ball of n stars, as the initial state in AparapiBarnesHut.
+     */
+    TestStars(int n, long seed)
+    {
+        x = new float [n] ;
+        y = new float [n] ;
+        z = new float [n] ;
+
+        float radius = AparapiBarnesHut.RADIUS ;
+        float centre = 0.5F * AparapiBarnesHut.BOX_WIDTH ;
+
+        Random rand = new Random(seed) ;
+        for(int i = 0 ; i < n ; i++) {
+            double rx, ry, rz ;
+            do {
+                rx = (2 * rand.nextDouble() - 1) * radius ;
+                ry = (2 * rand.nextDouble() - 1) * radius ;
+                rz = (2 * rand.nextDouble() - 1) * radius ;
+            } while(rx * rx + ry * ry + rz * rz > radius * radius) ;
+            x [i] = (float) (centre + rx) ;
+            y [i] = (float) (centre + ry) ;
+            z [i] = (float) (centre + rz) ;
+        }
+    }
+
+    /**
+     * Acceleration of star i summed directly over all other stars, as in
+     * KernelTree.forceLaw.
+     */
+    double [] direct(int i)
+    {
+        float box = KernelTree.BOX_WIDTH ;
+        double [] a = new double [3] ;
+        for(int j = 0 ; j < x.length ; j++) {
+            if(j == i) continue ;
+            double dx = x [i] - x [j], dy = y [i] - y [j], dz = z [i] - z [j] ;
+            if(dx > box / 2) dx -= box ;
+            if(dx < -box / 2) dx += box ;
+            if(dy > box / 2) dy -= box ;
+            if(dy < -box / 2) dy += box ;
+            if(dz > box / 2) dz -= box ;
+            if(dz < -box / 2) dz += box ;
+            double rSquared = dx * dx + dy * dy + dz * dz ;
+            double rCubedInv = 1 / (rSquared * Math.sqrt(rSquared)) ;
+            a [0] -= rCubedInv * dx ;
+            a [1] -= rCubedInv * dy ;
+            a [2] -= rCubedInv * dz ;
+        }
+        return a ;
+    }
+
+    /**
+     * Relative RMS error of accelerations ax, ay, az over every stride'th
+     * star, compared with direct summation.
+     */
+    double error(float [] ax, float [] ay, float [] az, int stride)
+    {
+        double error = 0, norm = 0 ;
+        for(int i = 0 ; i < x.length ; i += stride) {
+            double [] a = direct(i) ;
+            norm += a [0] * a [0] + a [1] * a [1] + a [2] * a [2] ;
+            error += (ax [i] - a [0]) * (ax [i] - a [0]) +
+                     (ay [i] - a [1]) * (ay [i] - a [1]) +
+                     (az [i] - a [2]) * (az [i] - a [2]) ;
+        }
+        return Math.sqrt(error / norm) ;
+    }
+}
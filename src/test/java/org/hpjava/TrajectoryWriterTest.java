@@ -0,0 +1,188 @@
+package org.hpjava;
+
+import java.io.File ;
+import java.io.IOException ;
+import java.io.RandomAccessFile ;
+
+import java.nio.file.Files ;
+import java.nio.file.Path ;
+
+import java.util.Random ;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that trajectory frames read back as written in each encoding,
+ * across reorders and under both backpressure policies.
+ */
+public class TrajectoryWriterTest
+    extends TestCase
+{
+    static final int N = 20000 ;
+    static final int FRAMES = 12 ;
+    static final float BOX = AparapiBarnesHut.BOX_WIDTH ;
+
+    Path dir ;
+
+    // Stars drifting through the periodic box, in original order.
+
+    float [] x0, y0, z0, vx, vy, vz ;
+
+    protected void setUp() throws IOException
+    {
+        dir = Files.createTempDirectory("trajectory") ;
+
+        TestStars stars = new TestStars(N, 7) ;
+        x0 = stars.x ;
+        y0 = stars.y ;
+        z0 = stars.z ;
+        Random rand = new Random(8) ;
+        vx = new float [N] ;
+        vy = new float [N] ;
+        vz = new float [N] ;
+        for(int i = 0 ; i < N ; i++) {
+            vx [i] = (float) (30 * rand.nextGaussian()) ;
+            vy [i] = (float) (30 * rand.nextGaussian()) ;
+            vz [i] = (float) (30 * rand.nextGaussian()) ;
+        }
+    }
+
+    protected void tearDown() throws IOException
+    {
+        for(File file : dir.toFile().listFiles()) {
+            file.delete() ;
+        }
+        Files.delete(dir) ;
+    }
+
+    static float position(float start, float v, int frame)
+    {
+        float a = (start + v * 0.005F * frame) % BOX ;
+        return a < 0 ? a + BOX : a ;
+    }
+
+    long write(Path file, int encoding, int policy, int buffers, boolean reorder)
+            throws IOException
+    {
+        // Write FRAMES frames, permuting the stars half way if reorder,
+        // returning frames written.
+
+        TrajectoryWriter writer = new TrajectoryWriter(file, N, encoding, true,
+                                                       BOX, buffers, policy) ;
+        int [] id = new int [N] ;
+        for(int i = 0 ; i < N ; i++) {
+            id [i] = i ;
+        }
+        float [] x = new float [N], y = new float [N], z = new float [N] ;
+        float [] fvx = new float [N], fvy = new float [N], fvz = new float [N] ;
+        Random rand = new Random(9) ;
+        for(int frame = 0 ; frame < FRAMES ; frame++) {
+            if(reorder && frame == FRAMES / 2) {
+                for(int i = N - 1 ; i > 0 ; i--) {
+                    int j = rand.nextInt(i + 1) ;
+                    int swap = id [i] ;
+                    id [i] = id [j] ;
+                    id [j] = swap ;
+                }
+                writer.reordered() ;
+            }
+            for(int i = 0 ; i < N ; i++) {
+                int s = id [i] ;
+                x [i] = position(x0 [s], vx [s], frame) ;
+                y [i] = position(y0 [s], vy [s], frame) ;
+                z [i] = position(z0 [s], vz [s], frame) ;
+                fvx [i] = vx [s] ;
+                fvy [i] = vy [s] ;
+                fvz [i] = vz [s] ;
+            }
+            writer.offer(10 * frame, 0.005 * frame, x, y, z, fvx, fvy, fvz,
+                         reorder ? id : null) ;
+        }
+        writer.close() ;
+        assertEquals(FRAMES, writer.framesWritten + writer.framesDropped) ;
+        assertEquals(0, writer.queueDepth()) ;
+        return writer.framesWritten ;
+    }
+
+    int check(Path file, float tolerance) throws IOException
+    {
+        // Check each frame in file against the drifting stars, returning
+        // number of frames.
+
+        int frames = 0 ;
+        long lastStep = -1 ;
+        try(TrajectoryReader reader = new TrajectoryReader(file)) {
+            assertEquals(N, reader.n) ;
+            while(reader.next()) {
+                assertTrue(reader.step > lastStep) ;
+                lastStep = reader.step ;
+                int frame = (int) (reader.step / 10) ;
+                assertEquals(0.005 * frame, reader.time) ;
+                for(int i = 0 ; i < N ; i++) {
+                    int s = reader.id [i] ;
+                    assertEquals(position(x0 [s], vx [s], frame), reader.x [i], tolerance) ;
+                    assertEquals(position(y0 [s], vy [s], frame), reader.y [i], tolerance) ;
+                    assertEquals(position(z0 [s], vz [s], frame), reader.z [i], tolerance) ;
+                    assertEquals(vx [s], reader.vx [i]) ;
+                    assertEquals(vz [s], reader.vz [i]) ;
+                }
+                frames++ ;
+            }
+        }
+        return frames ;
+    }
+
+    public void testEncodings() throws IOException
+    {
+        float unit = BOX / TrajectoryWriter.LEVELS ;
+        long [] sizes = new long [3] ;
+        for(int encoding = 0 ; encoding < 3 ; encoding++) {
+            Path file = dir.resolve("run" + encoding + ".bht") ;
+            write(file, encoding, TrajectoryWriter.BLOCK, 2, true) ;
+            float tolerance = encoding == TrajectoryWriter.FLOAT ? 0 : unit ;
+            assertEquals(FRAMES, check(file, tolerance)) ;
+            sizes [encoding] = Files.size(file) ;
+        }
+
+        // Positions in quantized frames take half the space of floats,
+        // and most deltas take one byte.
+
+        long velocities = 12L * N * FRAMES ;
+        long ids = 2 * 4L * N ;
+        assertTrue(sizes [TrajectoryWriter.QUANTIZED] - velocities - ids <
+                   0.51 * (sizes [TrajectoryWriter.FLOAT] - velocities - ids)) ;
+        assertTrue(sizes [TrajectoryWriter.DELTA] - velocities - ids <
+                   0.7 * (sizes [TrajectoryWriter.QUANTIZED] - velocities - ids)) ;
+    }
+
+    public void testDropPolicy() throws IOException
+    {
+        // Whatever the writer keeps up with, frames in the file are
+        // complete and in order.
+
+        Path file = dir.resolve("drop.bht") ;
+        long written = write(file, TrajectoryWriter.DELTA, TrajectoryWriter.DROP,
+                             1, false) ;
+        assertTrue(written > 0) ;
+        assertEquals(written, check(file, BOX / TrajectoryWriter.LEVELS)) ;
+    }
+
+    public void testTruncatedFile() throws IOException
+    {
+        Path file = dir.resolve("cut.bht") ;
+        write(file, TrajectoryWriter.QUANTIZED, TrajectoryWriter.BLOCK, 2, false) ;
+        try(RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(raf.length() - 100) ;
+        }
+        assertEquals(FRAMES - 1, check(file, BOX / TrajectoryWriter.LEVELS)) ;
+
+        Files.write(file, new byte [TrajectoryWriter.HEADER]) ;
+        try {
+            new TrajectoryReader(file) ;
+            fail() ;
+        }
+        catch(IOException e) {
+            assertTrue(e.getMessage().startsWith("not a trajectory")) ;
+        }
+    }
+}
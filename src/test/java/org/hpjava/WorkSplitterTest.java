@@ -0,0 +1,84 @@
+package org.hpjava;
+
+import java.util.Arrays ;
+
+import junit.framework.TestCase;
+
+import com.aparapi.Range ;
+
+/**
+ * Tests of the force pass split between backends.
+ */
+public class WorkSplitterTest
+    extends TestCase
+{
+    public void testSameForces()
+    {
+        // Slices on the Java Thread Pool and the Parallel pool together
+        // give the forces of one pass, whatever the shares.
+
+        int n = 5000 ;
+        TestStars stars = new TestStars(n, 21) ;
+        FlatTree tree = new FlatTree(16) ;
+        new FlatTreeBuilder(tree).build(stars.x, stars.y, stars.z, n) ;
+
+        float [][] a = new float [3] [n] ;
+        KernelTree kernel = new KernelTree(stars.x, stars.y, stars.z,
+                                           a [0], a [1], a [2], tree) ;
+        kernel.backend = KernelTree.FORK_JOIN ;
+        kernel.computeForces(Range.create(n)) ;
+        long interactions = kernel.countInteractions(n) ;
+
+        float [][] b = new float [3] [n] ;
+        WorkSplitter splitter =
+                new WorkSplitter(stars.x, stars.y, stars.z, b [0], b [1], b [2],
+                                 tree, WorkSplitter.backends("aparapi, forkjoin"),
+                                 false, 32) ;
+        for(int pass = 0 ; pass < 3 ; pass++) {
+            for(int k = 0 ; k < 3 ; k++) {
+                Arrays.fill(b [k], Float.NaN) ;
+            }
+            splitter.setTree(tree) ;
+            splitter.computeForces(n) ;
+            for(int k = 0 ; k < 3 ; k++) {
+                assertTrue(Arrays.equals(a [k], b [k])) ;
+            }
+            assertEquals(interactions, splitter.countInteractions()) ;
+            splitter.share [0] = 0.1 * (pass + 1) ;
+            splitter.share [1] = 1 - splitter.share [0] ;
+        }
+        for(KernelTree k : splitter.kernels) {
+            k.dispose() ;
+        }
+    }
+
+    public void testSharesFollowThroughput()
+    {
+        int n = 100 ;
+        float [] s = new float [n] ;
+        WorkSplitter splitter =
+                new WorkSplitter(s, s, s, s, s, s, new FlatTree(1),
+                                 new int [] {KernelTree.FORK_JOIN,
+                                             KernelTree.FORK_JOIN,
+                                             KernelTree.FORK_JOIN},
+                                 false, 32) ;
+
+        // Backend 0 twice as fast as 1, backend 2 stalled.
+
+        for(int pass = 0 ; pass < 20 ; pass++) {
+            long [] stars = new long [3] ;
+            long [] nanos = new long [3] ;
+            for(int k = 0 ; k < 3 ; k++) {
+                stars [k] = Math.round(splitter.share [k] * 1000000) ;
+            }
+            nanos [0] = stars [0] ;
+            nanos [1] = 2 * stars [1] ;
+            nanos [2] = 1000 * stars [2] ;
+            splitter.update(stars, nanos) ;
+        }
+        assertEquals(WorkSplitter.MIN_SHARE, splitter.share [2], 0.001) ;
+        assertEquals(2 * splitter.share [1], splitter.share [0], 0.01) ;
+        assertEquals(1.0, splitter.share [0] + splitter.share [1] +
+                          splitter.share [2], 1e-9) ;
+    }
+}